@@ -28,4 +28,12 @@ rm -rf "${TARGET_DIR}"
 mkdir -p "${TARGET_DIR}"
 cp -R "${BUILD_DIR}/"* "${TARGET_DIR}/"
 
+echo "==> Precompressing text and WebAssembly assets"
+find "${TARGET_DIR}" -type f \( -name '*.js' -o -name '*.mjs' -o -name '*.css' -o -name '*.html' -o -name '*.json' -o -name '*.svg' -o -name '*.wasm' \) | while read -r asset; do
+  gzip -9 -k -f "${asset}"
+  if command -v brotli >/dev/null 2>&1; then
+    brotli -q 11 -k -f "${asset}"
+  fi
+done
+
 echo "Done. Assets copied to ${TARGET_DIR}"
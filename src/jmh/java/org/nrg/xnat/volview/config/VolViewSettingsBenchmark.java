@@ -0,0 +1,65 @@
+package org.nrg.xnat.volview.config;
+
+import org.nrg.xdat.preferences.SiteConfigPreferences;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Measures settings lookups on the request path. The site configuration is a Mockito stub, so the
+ * {@link #refresh()} numbers include stub overhead and are only meaningful relative to each other.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VolViewSettingsBenchmark {
+    private VolViewSettings settings;
+
+    @Setup
+    public void setUp() {
+        final SiteConfigPreferences preferences = mock(SiteConfigPreferences.class);
+        when(preferences.getProperty(VolViewSettings.PROP_DICOMWEB_BASE)).thenReturn("/xapi/dicomweb/projects");
+        when(preferences.getProperty(VolViewSettings.PROP_VIEWER_ENTRY_POINT)).thenReturn("/volview/app/index.html");
+        when(preferences.getProperty(VolViewSettings.PROP_SHELL_PATH)).thenReturn(null);
+        when(preferences.getProperty(VolViewSettings.PROP_SERVER_NAME)).thenReturn("XNAT DICOMweb");
+        when(preferences.getProperty(VolViewSettings.PROP_SHELL_INLINE_CONFIG)).thenReturn(Boolean.FALSE);
+        settings = new VolViewSettings(preferences, "/xapi/dicomweb/projects", "/volview/app/index.html",
+                "/plugin-resources/xnat-volview/index.html", "XNAT DICOMweb", false, 8, 100, 15, 60, false,
+                false, 64, 400, 200, 10, 32, "");
+    }
+
+    @Benchmark
+    public VolViewSettings.Snapshot snapshot() {
+        return settings.getSnapshot();
+    }
+
+    @Benchmark
+    public String viewerEntryPoint() {
+        return settings.getViewerEntryPoint();
+    }
+
+    @Benchmark
+    public String projectDicomwebPath() {
+        return settings.getProjectDicomwebPath("PROJ");
+    }
+
+    @Benchmark
+    public VolViewSettings.Snapshot refresh() {
+        return settings.refresh();
+    }
+}
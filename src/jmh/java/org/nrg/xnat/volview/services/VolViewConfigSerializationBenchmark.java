@@ -0,0 +1,80 @@
+package org.nrg.xnat.volview.services;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.nrg.xnat.volview.cache.DicomwebDiskCache;
+import org.nrg.xnat.volview.cache.ProjectConfigCache;
+import org.nrg.xnat.volview.cache.SessionDescriptor;
+import org.nrg.xnat.volview.cache.SessionDescriptorCache;
+import org.nrg.xnat.volview.cache.SessionManifestCache;
+import org.nrg.xnat.volview.cache.StudyIndexCache;
+import org.nrg.xnat.volview.config.VolViewSettings;
+import org.nrg.xnat.volview.metrics.VolViewMetrics;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures building and serializing the project and session config payloads end to end, through the
+ * same service methods the controller uses. The cold project benchmark uses a zero-sized cache so
+ * that every call rebuilds and reserializes the payload.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VolViewConfigSerializationBenchmark {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final String BASE_URL = "https://xnat.example.org/xnat";
+    private static final String PATH_PREFIX = "/xnat";
+
+    private VolViewLaunchService cachedService;
+    private VolViewLaunchService uncachedService;
+    private SessionDescriptor session;
+
+    @Setup
+    public void setUp() throws JsonProcessingException {
+        final VolViewSettings settings = new VolViewSettings(null, "/xapi/dicomweb/projects", "/volview/app/index.html",
+                "/plugin-resources/xnat-volview/index.html", "XNAT DICOMweb", false, 8, 100, 15, 60, false,
+                false, 64, 400, 200, 10, 32, "");
+        cachedService = createService(settings, 2000);
+        uncachedService = createService(settings, 0);
+        session = new SessionDescriptor("XNAT_E00001", "xnat:mrSessionData", "PROJ", "SUBJ01_MR1",
+                "1.2.826.0.1.3680043.8.498.10948517459278357195613937461058127443", new HashSet<>(Arrays.asList("SHARED1", "SHARED2")));
+        cachedService.getProjectConfig("PROJ", BASE_URL, PATH_PREFIX);
+    }
+
+    @Benchmark
+    public byte[] projectConfigCold() throws JsonProcessingException {
+        return uncachedService.getProjectConfig("PROJ", BASE_URL, PATH_PREFIX).getBody();
+    }
+
+    @Benchmark
+    public byte[] projectConfigCached() throws JsonProcessingException {
+        return cachedService.getProjectConfig("PROJ", BASE_URL, PATH_PREFIX).getBody();
+    }
+
+    @Benchmark
+    public byte[] sessionConfig() throws JsonProcessingException {
+        return MAPPER.writeValueAsBytes(cachedService.getSessionConfig("PROJ", session, BASE_URL, PATH_PREFIX));
+    }
+
+    private static VolViewLaunchService createService(final VolViewSettings settings, final long projectCacheSize) {
+        final SessionDescriptorCache sessions = new SessionDescriptorCache(null, 10, 300, 30);
+        return new VolViewLaunchService(settings, new ProjectConfigCache(projectCacheSize), sessions,
+                new StudyIndexCache(null, 10, 60), new DicomwebDiskCache(null, "", 1, 1), new SessionManifestCache(1), new VolViewMetrics());
+    }
+}
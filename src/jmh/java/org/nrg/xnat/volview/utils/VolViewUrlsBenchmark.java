@@ -0,0 +1,98 @@
+package org.nrg.xnat.volview.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VolViewUrlsBenchmark {
+    private MockHttpServletRequest directRequest;
+    private MockHttpServletRequest proxiedRequest;
+    private LaunchUrlTemplates.Renderer launchUrls;
+
+    @Setup
+    public void setUp() {
+        directRequest = new MockHttpServletRequest("GET", "/xnat/xapi/volview/config/projects/PROJ");
+        directRequest.setScheme("http");
+        directRequest.setServerName("xnat.example.org");
+        directRequest.setServerPort(8080);
+        directRequest.setContextPath("/xnat");
+
+        proxiedRequest = new MockHttpServletRequest("GET", "/xapi/volview/config/projects/PROJ");
+        proxiedRequest.setScheme("http");
+        proxiedRequest.setServerName("localhost");
+        proxiedRequest.setServerPort(8080);
+        proxiedRequest.addHeader("X-Forwarded-Proto", "https");
+        proxiedRequest.addHeader("X-Forwarded-Host", "xnat.example.org:443, internal-lb:8443");
+        proxiedRequest.addHeader("X-Forwarded-Port", "443");
+        proxiedRequest.addHeader("X-Forwarded-Prefix", "/xnat/");
+
+        launchUrls = LaunchUrlTemplates.compile(1, "/volview/app/index.html", "/xapi/dicomweb/projects").bind("https://xnat.example.org/xnat", "/xnat");
+    }
+
+    @Benchmark
+    public String buildBaseUrlDirect() {
+        return VolViewUrls.buildBaseUrl(directRequest);
+    }
+
+    @Benchmark
+    public String buildBaseUrlProxied() {
+        return VolViewUrls.buildBaseUrl(proxiedRequest);
+    }
+
+    @Benchmark
+    public Object parseHostPort() {
+        return VolViewUrls.parseHostPort("xnat.example.org:8443");
+    }
+
+    @Benchmark
+    public Object parseHostPortIpv6() {
+        return VolViewUrls.parseHostPort("[2001:db8::1]:8443");
+    }
+
+    @Benchmark
+    public String normalizePrefix() {
+        return VolViewUrls.normalizePrefix("xnat/", "/context");
+    }
+
+    @Benchmark
+    public String joinPaths() {
+        return VolViewUrls.joinPaths("/xnat/xapi/dicomweb/projects/PROJ/", "/studies/{studyInstanceUID}/series");
+    }
+
+    @Benchmark
+    public String resolveUrlRelative() {
+        return VolViewUrls.resolveUrl("/volview/app/index.html", "https://xnat.example.org/xnat");
+    }
+
+    @Benchmark
+    public String resolveUrlAbsolute() {
+        return VolViewUrls.resolveUrl("https://viewer.example.org/volview/index.html", "https://xnat.example.org/xnat");
+    }
+
+    @Benchmark
+    public String renderStudyLaunchUrl() {
+        return launchUrls.launchUrl("PROJ", "XNAT_E00001", "1.2.826.0.1.3680043.8.498.10948517459278357195613937461058127443", null);
+    }
+
+    @Benchmark
+    public String renderSeriesLaunchUrl() {
+        return launchUrls.launchUrl("PROJ", "XNAT_E00001", "1.2.826.0.1.3680043.8.498.10948517459278357195613937461058127443",
+                "1.2.826.0.1.3680043.8.498.31245876123498761234987612349876123498");
+    }
+}
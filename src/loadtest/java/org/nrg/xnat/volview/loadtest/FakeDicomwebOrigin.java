@@ -0,0 +1,185 @@
+package org.nrg.xnat.volview.loadtest;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A DICOMweb server on the loopback interface that serves the {@link SyntheticArchive} in place of the
+ * XNAT DICOMweb plugin. It answers QIDO-RS series searches, WADO-RS series metadata and instances under
+ * <code>/dicomweb/{projectId}/</code>, after an optional fixed delay that stands in for the archive's own
+ * latency. JSON responses are built once per path, so the origin itself adds almost nothing on top of
+ * that delay.
+ */
+public final class FakeDicomwebOrigin implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(FakeDicomwebOrigin.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final String BASE_PATH = "/dicomweb/";
+    private static final String DICOM_JSON = "application/dicom+json";
+
+    private final SyntheticArchive archive;
+    private final long latencyMillis;
+    private final HttpServer server;
+    private final ExecutorService workers;
+    private final ConcurrentMap<String, byte[]> responses = new ConcurrentHashMap<>();
+    private final LongAdder requests = new LongAdder();
+
+    public FakeDicomwebOrigin(final SyntheticArchive archive, final long latencyMillis) throws IOException {
+        // The server writes headers and body separately, which otherwise stalls every response on the
+        // delayed ACK of the headers. Read once, when the first server is created.
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        this.archive = archive;
+        this.latencyMillis = latencyMillis;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 256);
+        this.workers = Executors.newCachedThreadPool(runnable -> {
+            final Thread thread = new Thread(runnable, "fake-dicomweb-origin");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.createContext(BASE_PATH, this::handle);
+        server.setExecutor(workers);
+        server.start();
+        log.info("Fake DICOMweb origin listening at {} with {} ms latency", getUrl(), latencyMillis);
+    }
+
+    /**
+     * Returns the base URL to use as <code>volview.dicomweb-cache.origin</code>.
+     */
+    public String getUrl() {
+        return "http://" + server.getAddress().getAddress().getHostAddress() + ":" + server.getAddress().getPort() + BASE_PATH.substring(0, BASE_PATH.length() - 1);
+    }
+
+    public long getRequestCount() {
+        return requests.sum();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        workers.shutdownNow();
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        requests.increment();
+        try {
+            if (latencyMillis > 0) {
+                TimeUnit.MILLISECONDS.sleep(latencyMillis);
+            }
+            final List<String> path = Arrays.asList(exchange.getRequestURI().getPath().substring(BASE_PATH.length()).split("/"));
+            final SyntheticArchive.Session session = path.size() >= 3 && "studies".equals(path.get(1)) ? archive.getStudy(path.get(0), path.get(2)) : null;
+            if (session == null) {
+                send(exchange, 404, null, null);
+            } else if (path.size() == 4 && "series".equals(path.get(3))) {
+                send(exchange, 200, DICOM_JSON, responses.computeIfAbsent(exchange.getRequestURI().getPath(), key -> toJson(searchSeries(session))));
+            } else if (path.size() == 6 && "metadata".equals(path.get(5)) && session.getSeries(path.get(4)) != null) {
+                send(exchange, 200, DICOM_JSON, responses.computeIfAbsent(exchange.getRequestURI().getPath(), key -> toJson(seriesMetadata(session, session.getSeries(path.get(4))))));
+            } else if (path.size() == 7 && "instances".equals(path.get(5)) && session.getSeries(path.get(4)) != null
+                       && session.getSeries(path.get(4)).getSopInstanceUids().contains(path.get(6))) {
+                send(exchange, 200, "application/dicom", archive.getInstance());
+            } else {
+                send(exchange, 404, null, null);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            send(exchange, 503, null, null);
+        } catch (RuntimeException e) {
+            log.error("Fake DICOMweb origin failed to serve {}", exchange.getRequestURI(), e);
+            send(exchange, 500, null, null);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static List<Map<String, Object>> searchSeries(final SyntheticArchive.Session session) {
+        final List<Map<String, Object>> results = new ArrayList<>(session.getSeries().size());
+        for (final SyntheticArchive.Series series : session.getSeries()) {
+            final Map<String, Object> attributes = new LinkedHashMap<>();
+            attributes.put("00080060", attribute("CS", "MR"));
+            attributes.put("0008103E", attribute("LO", "Synthetic series " + series.getNumber()));
+            attributes.put("0020000D", attribute("UI", session.getStudyInstanceUid()));
+            attributes.put("0020000E", attribute("UI", series.getSeriesInstanceUid()));
+            attributes.put("00200011", attribute("IS", series.getNumber()));
+            attributes.put("00201209", attribute("IS", series.getSopInstanceUids().size()));
+            results.add(attributes);
+        }
+        return results;
+    }
+
+    private static List<Map<String, Object>> seriesMetadata(final SyntheticArchive.Session session, final SyntheticArchive.Series series) {
+        final List<Map<String, Object>> results = new ArrayList<>(series.getSopInstanceUids().size());
+        int number = 1;
+        for (final String sopInstanceUid : series.getSopInstanceUids()) {
+            final Map<String, Object> attributes = new LinkedHashMap<>();
+            attributes.put("00080016", attribute("UI", "1.2.840.10008.5.1.4.1.1.4"));
+            attributes.put("00080018", attribute("UI", sopInstanceUid));
+            attributes.put("00080060", attribute("CS", "MR"));
+            attributes.put("00100010", Collections.singletonMap("vr", "PN"));
+            attributes.put("0020000D", attribute("UI", session.getStudyInstanceUid()));
+            attributes.put("0020000E", attribute("UI", series.getSeriesInstanceUid()));
+            attributes.put("00200011", attribute("IS", series.getNumber()));
+            attributes.put("00200013", attribute("IS", number));
+            attributes.put("00200032", attribute("DS", -120.0, -120.0, number * 1.5));
+            attributes.put("00200037", attribute("DS", 1.0, 0.0, 0.0, 0.0, 1.0, 0.0));
+            attributes.put("00280010", attribute("US", 256));
+            attributes.put("00280011", attribute("US", 256));
+            attributes.put("00280030", attribute("DS", 0.9375, 0.9375));
+            attributes.put("00280100", attribute("US", 16));
+            results.add(attributes);
+            number++;
+        }
+        return results;
+    }
+
+    private static Map<String, Object> attribute(final String vr, final Object... values) {
+        final Map<String, Object> attribute = new LinkedHashMap<>();
+        attribute.put("vr", vr);
+        attribute.put("Value", Arrays.asList(values));
+        return attribute;
+    }
+
+    private static byte[] toJson(final Object value) {
+        try {
+            return MAPPER.writeValueAsBytes(value);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void send(final HttpExchange exchange, final int status, final String contentType, final byte[] body) throws IOException {
+        if (body == null) {
+            final byte[] message = ("Fake DICOMweb origin returned " + status).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain");
+            exchange.sendResponseHeaders(status, message.length);
+            try (final OutputStream output = exchange.getResponseBody()) {
+                output.write(message);
+            }
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, body.length);
+        try (final OutputStream output = exchange.getResponseBody()) {
+            output.write(body);
+        }
+    }
+}
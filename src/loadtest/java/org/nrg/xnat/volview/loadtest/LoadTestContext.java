@@ -0,0 +1,170 @@
+package org.nrg.xnat.volview.loadtest;
+
+import org.nrg.xdat.preferences.SiteConfigPreferences;
+import org.nrg.xdat.security.services.RoleHolder;
+import org.nrg.xdat.security.services.UserManagementServiceI;
+import org.nrg.xft.security.UserI;
+import org.nrg.xnat.volview.cache.DicomwebDiskCache;
+import org.nrg.xnat.volview.cache.DicomwebMetadataCache;
+import org.nrg.xnat.volview.cache.ProjectConfigCache;
+import org.nrg.xnat.volview.cache.SeriesThumbnailCache;
+import org.nrg.xnat.volview.cache.SessionDescriptorCache;
+import org.nrg.xnat.volview.cache.SessionManifestCache;
+import org.nrg.xnat.volview.cache.StudyIndexCache;
+import org.nrg.xnat.volview.config.VolViewSettings;
+import org.nrg.xnat.volview.metrics.VolViewMetrics;
+import org.nrg.xnat.volview.rest.VolViewConfigController;
+import org.nrg.xnat.volview.rest.VolViewDicomwebController;
+import org.nrg.xnat.volview.rest.VolViewPageController;
+import org.nrg.xnat.volview.services.DicomCatalogService;
+import org.nrg.xnat.volview.services.VolViewAdmissionControl;
+import org.nrg.xnat.volview.services.VolViewDicomwebProxy;
+import org.nrg.xnat.volview.services.VolViewLaunchService;
+import org.nrg.xnat.volview.services.VolViewManifestService;
+import org.nrg.xnat.volview.services.VolViewMetadataPrefetcher;
+import org.nrg.xnat.volview.services.VolViewRequestExecutor;
+import org.nrg.xnat.volview.services.VolViewThumbnailService;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.mockito.Mockito.mock;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+
+/**
+ * Starts the plugin's launch path in one JVM without XNAT: the real settings, caches, services and
+ * controllers are wired by Spring as they are in the plugin, while the XNAT database, site
+ * configuration and permission checks are replaced by stubs backed by the {@link SyntheticArchive}.
+ * The DICOMweb cache is enabled and points at a {@link FakeDicomwebOrigin}. Requests go through Spring
+ * MVC with {@link MockMvc}, so routing, argument resolution, async handling and message conversion are
+ * measured but the servlet container and network are not.
+ * <p>
+ * Any <code>volview.*</code> system property overrides the harness defaults, e.g.
+ * <code>-Dvolview.admission.enabled=true</code>.
+ */
+public final class LoadTestContext implements AutoCloseable {
+    private static final long ASYNC_TIMEOUT_MILLIS = 60000;
+
+    private final Path cacheDirectory;
+    private final AnnotationConfigApplicationContext context;
+    private final MockMvc mvc;
+
+    public LoadTestContext(final SyntheticArchive archive, final String originUrl) throws IOException {
+        cacheDirectory = Files.createTempDirectory("volview-loadtest");
+        final Map<String, Object> defaults = new HashMap<>();
+        defaults.put("volview.dicomweb-cache.enabled", "true");
+        defaults.put("volview.dicomweb-cache.origin", originUrl);
+        defaults.put("volview.dicomweb-cache.dir", cacheDirectory.resolve("dicomweb").toString());
+        defaults.put("volview.thumbnail.cache.dir", cacheDirectory.resolve("thumbnails").toString());
+
+        context = new AnnotationConfigApplicationContext();
+        context.getEnvironment().getPropertySources().addLast(new MapPropertySource("loadtest", defaults));
+        context.registerBean(SiteConfigPreferences.class, () -> mock(SiteConfigPreferences.class));
+        context.registerBean(NamedParameterJdbcTemplate.class, () -> mock(NamedParameterJdbcTemplate.class));
+        context.registerBean(UserManagementServiceI.class, () -> mock(UserManagementServiceI.class));
+        context.registerBean(RoleHolder.class, () -> mock(RoleHolder.class));
+        context.registerBean(SessionDescriptorCache.class, () -> new SyntheticSessionDescriptorCache(archive));
+        context.register(VolViewSettings.class, VolViewMetrics.class, ProjectConfigCache.class, StudyIndexCache.class,
+                DicomwebDiskCache.class, DicomwebMetadataCache.class, SessionManifestCache.class, SeriesThumbnailCache.class,
+                DicomCatalogService.class, VolViewLaunchService.class, VolViewManifestService.class, VolViewDicomwebProxy.class,
+                VolViewMetadataPrefetcher.class, VolViewThumbnailService.class, VolViewRequestExecutor.class, VolViewAdmissionControl.class,
+                VolViewConfigController.class, VolViewDicomwebController.class, VolViewPageController.class);
+        context.refresh();
+
+        mvc = MockMvcBuilders.standaloneSetup(context.getBean(VolViewPageController.class),
+                context.getBean(VolViewConfigController.class),
+                context.getBean(VolViewDicomwebController.class)).build();
+    }
+
+    public VolViewMetrics getMetrics() {
+        return context.getBean(VolViewMetrics.class);
+    }
+
+    /**
+     * Performs the request on the calling thread and waits for an async result if the handler returned
+     * one.
+     */
+    public MockHttpServletResponse perform(final MockHttpServletRequestBuilder request) throws Exception {
+        MvcResult result = mvc.perform(request).andReturn();
+        if (result.getRequest().isAsyncStarted()) {
+            result.getAsyncResult(ASYNC_TIMEOUT_MILLIS);
+            result = mvc.perform(asyncDispatch(result)).andReturn();
+        }
+        return result.getResponse();
+    }
+
+    /**
+     * Signs the calling thread in as the given user for the XDAT user lookups in the controllers.
+     */
+    public static void signIn(final String username) {
+        SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken(createUser(username), null, Collections.emptyList()));
+    }
+
+    @Override
+    public void close() throws IOException {
+        context.close();
+        FileSystemUtils.deleteRecursively(cacheDirectory);
+    }
+
+    /**
+     * Returns a user that only knows its name. The plugin reads nothing else from the user once the
+     * permission checks are stubbed out, and a proxy avoids the overhead of a mock on the request path.
+     */
+    private static UserI createUser(final String username) {
+        return (UserI) Proxy.newProxyInstance(UserI.class.getClassLoader(), new Class<?>[]{UserI.class}, (proxy, method, arguments) -> {
+            switch (method.getName()) {
+                case "getUsername":
+                case "getLogin":
+                case "toString":
+                    return username;
+                case "hashCode":
+                    return username.hashCode();
+                case "equals":
+                    return proxy == arguments[0];
+                default:
+                    return defaultValue(method.getReturnType());
+            }
+        });
+    }
+
+    private static Object defaultValue(final Class<?> type) {
+        if (!type.isPrimitive() || type == void.class) {
+            return null;
+        }
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == char.class) {
+            return '\0';
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        if (type == float.class) {
+            return 0F;
+        }
+        if (type == double.class) {
+            return 0D;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        return type == short.class ? (Object) (short) 0 : (Object) (byte) 0;
+    }
+}
@@ -0,0 +1,114 @@
+package org.nrg.xnat.volview.loadtest;
+
+import org.nrg.xnat.volview.metrics.LatencyHistogram;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency and throughput per stage of the launch sequence over one measurement window. Recording is
+ * lock-free, so every virtual user records into the same report.
+ */
+public final class LoadTestReport {
+    public enum Stage {
+        /** The shell page. */
+        SHELL,
+        /** The project config the shell loads first. */
+        PROJECT_CONFIG,
+        /** The config of the session being launched. */
+        SESSION_CONFIG,
+        /** The project's study stream, with the session's study and series first. */
+        STUDY_STREAM,
+        /** The QIDO-RS series search VolView starts with. */
+        QIDO_SERIES,
+        /** WADO-RS metadata for each series. */
+        WADO_METADATA,
+        /** WADO-RS instances of the series the user opens. */
+        WADO_INSTANCE,
+        /** The whole sequence, for launches where every request succeeded. */
+        LAUNCH
+    }
+
+    private final Map<Stage, LatencyHistogram> latencies = new EnumMap<>(Stage.class);
+    private final Map<Stage, LongAdder> errors = new EnumMap<>(Stage.class);
+    private final long started = System.nanoTime();
+    private volatile long finished;
+
+    public LoadTestReport() {
+        for (final Stage stage : Stage.values()) {
+            latencies.put(stage, new LatencyHistogram());
+            errors.put(stage, new LongAdder());
+        }
+    }
+
+    /**
+     * Records a request that started at the given {@link System#nanoTime()} and returns whether its status
+     * counts as a success, which is any 2xx status or <code>304 Not Modified</code>. Requests that end
+     * after the report is finished aren't recorded.
+     */
+    public boolean record(final Stage stage, final long startedNanos, final int status) {
+        final boolean succeeded = status >= 200 && status < 300 || status == 304;
+        if (finished != 0) {
+            return succeeded;
+        }
+        if (succeeded) {
+            latencies.get(stage).recordNanos(System.nanoTime() - startedNanos);
+        } else {
+            errors.get(stage).increment();
+        }
+        return succeeded;
+    }
+
+    public void recordError(final Stage stage) {
+        if (finished == 0) {
+            errors.get(stage).increment();
+        }
+    }
+
+    public void finish() {
+        finished = System.nanoTime();
+    }
+
+    public double getElapsedSeconds() {
+        return ((finished == 0 ? System.nanoTime() : finished) - started) / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+
+    /**
+     * Returns the results by stage in the form stored as the baseline: count, errors, throughput in
+     * requests per second and latency percentiles in microseconds.
+     */
+    public Map<String, Object> toMap() {
+        final double elapsed = getElapsedSeconds();
+        final Map<String, Object> stages = new LinkedHashMap<>();
+        for (final Stage stage : Stage.values()) {
+            final LatencyHistogram histogram = latencies.get(stage);
+            final Map<String, Object> values = new LinkedHashMap<>();
+            values.put("count", histogram.getCount());
+            values.put("errors", errors.get(stage).sum());
+            values.put("throughput", elapsed > 0 ? histogram.getCount() / elapsed : 0D);
+            values.put("p50Micros", histogram.getPercentile(50));
+            values.put("p99Micros", histogram.getPercentile(99));
+            values.put("p999Micros", histogram.getPercentile(99.9));
+            values.put("maxMicros", histogram.getMax());
+            stages.put(stage.name(), values);
+        }
+        return stages;
+    }
+
+    public String format() {
+        final StringBuilder output = new StringBuilder(1024);
+        output.append(String.format(Locale.ROOT, "%-15s %9s %7s %10s %10s %10s %10s %10s%n", "stage", "count", "errors", "req/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms"));
+        final double elapsed = getElapsedSeconds();
+        for (final Stage stage : Stage.values()) {
+            final LatencyHistogram histogram = latencies.get(stage);
+            output.append(String.format(Locale.ROOT, "%-15s %9d %7d %10.1f %10.2f %10.2f %10.2f %10.2f%n", stage, histogram.getCount(), errors.get(stage).sum(),
+                    elapsed > 0 ? histogram.getCount() / elapsed : 0D, histogram.getPercentile(50) / 1000D, histogram.getPercentile(99) / 1000D,
+                    histogram.getPercentile(99.9) / 1000D, histogram.getMax() / 1000D));
+        }
+        return output.toString();
+    }
+}
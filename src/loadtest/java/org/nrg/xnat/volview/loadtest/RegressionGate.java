@@ -0,0 +1,69 @@
+package org.nrg.xnat.volview.loadtest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Compares a load test run with the stored baseline. A stage regressed when it had errors, when its p50
+ * or p99 latency grew by more than the tolerance plus a small absolute slack, or when its throughput fell
+ * by more than the tolerance. The slack keeps sub-millisecond stages from failing on scheduler noise.
+ * p99 is only gated for stages with enough requests in the baseline for it to differ from the maximum,
+ * and p99.9 and max are reported but never gated.
+ */
+public final class RegressionGate {
+    private static final long MIN_TAIL_SAMPLES = 100;
+
+    private final double tolerance;
+    private final long slackMicros;
+
+    public RegressionGate(final double tolerance, final long slackMicros) {
+        this.tolerance = tolerance;
+        this.slackMicros = slackMicros;
+    }
+
+    /**
+     * Returns a description of every regression, or an empty list if the run is within the baseline.
+     * Runs with a different workload than the baseline can't be compared and always fail.
+     */
+    @SuppressWarnings("unchecked")
+    public List<String> check(final Map<String, Object> results, final Map<String, Object> baseline) {
+        final List<String> regressions = new ArrayList<>();
+        if (!baseline.get("workload").equals(results.get("workload"))) {
+            regressions.add("the workload " + results.get("workload") + " differs from the baseline workload " + baseline.get("workload")
+                            + "; record a new baseline with -Ploadtest.update-baseline=true");
+            return regressions;
+        }
+        final Map<String, Map<String, Number>> stages = (Map<String, Map<String, Number>>) results.get("stages");
+        final Map<String, Map<String, Number>> expected = (Map<String, Map<String, Number>>) baseline.get("stages");
+        for (final Map.Entry<String, Map<String, Number>> entry : expected.entrySet()) {
+            final String stage = entry.getKey();
+            final Map<String, Number> current = stages.get(stage);
+            if (current == null) {
+                regressions.add(stage + " is missing from the results");
+                continue;
+            }
+            if (current.get("errors").longValue() > 0) {
+                regressions.add(String.format(Locale.ROOT, "%s had %d errors", stage, current.get("errors").longValue()));
+            }
+            checkLatency(regressions, stage, "p50", current.get("p50Micros").longValue(), entry.getValue().get("p50Micros").longValue());
+            if (entry.getValue().get("count").longValue() >= MIN_TAIL_SAMPLES) {
+                checkLatency(regressions, stage, "p99", current.get("p99Micros").longValue(), entry.getValue().get("p99Micros").longValue());
+            }
+            final double throughput = current.get("throughput").doubleValue();
+            final double minimum = entry.getValue().get("throughput").doubleValue() / (1 + tolerance);
+            if (throughput < minimum) {
+                regressions.add(String.format(Locale.ROOT, "%s throughput %.1f/s is below %.1f/s", stage, throughput, minimum));
+            }
+        }
+        return regressions;
+    }
+
+    private void checkLatency(final List<String> regressions, final String stage, final String percentile, final long micros, final long baselineMicros) {
+        final long limit = (long) (baselineMicros * (1 + tolerance)) + slackMicros;
+        if (micros > limit) {
+            regressions.add(String.format(Locale.ROOT, "%s %s %.2f ms exceeds %.2f ms (baseline %.2f ms)", stage, percentile, micros / 1000D, limit / 1000D, baselineMicros / 1000D));
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package org.nrg.xnat.volview.loadtest;
+
+import org.nrg.xnat.volview.cache.SessionDescriptor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * A deterministic set of projects, image sessions, series and instances shared by the stand-in XNAT
+ * services and the fake DICOMweb origin. UIDs are derived from indexes, so two runs with the same
+ * workload see the same archive. Every instance has the same synthetic payload of the configured size,
+ * which is all the caching pass-through looks at.
+ */
+public final class SyntheticArchive {
+    private static final String UID_ROOT = "1.2.826.0.1.3680043.8.498.1";
+
+    private final List<Session> sessions;
+    private final Map<String, Session> sessionsById = new HashMap<>();
+    private final Map<String, Session> sessionsByStudy = new HashMap<>();
+    private final byte[] instance;
+
+    public SyntheticArchive(final int projects, final int sessionsPerProject, final int seriesPerSession, final int instancesPerSeries, final int instanceBytes) {
+        final List<Session> created = new ArrayList<>(projects * sessionsPerProject);
+        for (int project = 1; project <= projects; project++) {
+            final String projectId = String.format("LOAD%02d", project);
+            for (int index = 1; index <= sessionsPerProject; index++) {
+                final String studyUid = UID_ROOT + "." + project + "." + index;
+                final List<Series> series = new ArrayList<>(seriesPerSession);
+                for (int number = 1; number <= seriesPerSession; number++) {
+                    final String seriesUid = studyUid + "." + number;
+                    final List<String> instances = new ArrayList<>(instancesPerSeries);
+                    for (int instanceNumber = 1; instanceNumber <= instancesPerSeries; instanceNumber++) {
+                        instances.add(seriesUid + "." + instanceNumber);
+                    }
+                    series.add(new Series(seriesUid, number, Collections.unmodifiableList(instances)));
+                }
+                final Session session = new Session(String.format("%s_E%05d", projectId, index), projectId, String.format("%s_MR%d", projectId, index), studyUid, Collections.unmodifiableList(series));
+                created.add(session);
+                sessionsById.put(session.getId(), session);
+                sessionsByStudy.put(projectId + "/" + studyUid, session);
+            }
+        }
+        this.sessions = Collections.unmodifiableList(created);
+        this.instance = new byte[Math.max(1, instanceBytes)];
+        new Random(instanceBytes).nextBytes(instance);
+    }
+
+    public List<Session> getSessions() {
+        return sessions;
+    }
+
+    public Session getSession(final String sessionId) {
+        return sessionsById.get(sessionId);
+    }
+
+    public Session getStudy(final String projectId, final String studyInstanceUid) {
+        return sessionsByStudy.get(projectId + "/" + studyInstanceUid);
+    }
+
+    public byte[] getInstance() {
+        return instance;
+    }
+
+    public static final class Session {
+        private final String id;
+        private final String projectId;
+        private final String label;
+        private final String studyInstanceUid;
+        private final List<Series> series;
+        private final SessionDescriptor descriptor;
+
+        private Session(final String id, final String projectId, final String label, final String studyInstanceUid, final List<Series> series) {
+            this.id = id;
+            this.projectId = projectId;
+            this.label = label;
+            this.studyInstanceUid = studyInstanceUid;
+            this.series = series;
+            this.descriptor = new SessionDescriptor(id, "xnat:mrSessionData", projectId, label, studyInstanceUid, null);
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getProjectId() {
+            return projectId;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public String getStudyInstanceUid() {
+            return studyInstanceUid;
+        }
+
+        public List<Series> getSeries() {
+            return series;
+        }
+
+        public Series getSeries(final String seriesInstanceUid) {
+            for (final Series candidate : series) {
+                if (candidate.getSeriesInstanceUid().equals(seriesInstanceUid)) {
+                    return candidate;
+                }
+            }
+            return null;
+        }
+
+        public SessionDescriptor getDescriptor() {
+            return descriptor;
+        }
+    }
+
+    public static final class Series {
+        private final String seriesInstanceUid;
+        private final int number;
+        private final List<String> sopInstanceUids;
+
+        private Series(final String seriesInstanceUid, final int number, final List<String> sopInstanceUids) {
+            this.seriesInstanceUid = seriesInstanceUid;
+            this.number = number;
+            this.sopInstanceUids = sopInstanceUids;
+        }
+
+        public String getSeriesInstanceUid() {
+            return seriesInstanceUid;
+        }
+
+        public int getNumber() {
+            return number;
+        }
+
+        public List<String> getSopInstanceUids() {
+            return sopInstanceUids;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package org.nrg.xnat.volview.loadtest;
+
+import org.nrg.xft.security.UserI;
+import org.nrg.xnat.volview.cache.SessionDescriptor;
+import org.nrg.xnat.volview.cache.SessionDescriptorCache;
+
+/**
+ * Stands in for the session descriptor cache, which otherwise loads descriptors from the XNAT database
+ * and checks access through XDAT permissions. Descriptors come from the {@link SyntheticArchive} and
+ * every virtual user can read every project, so the numbers match a warm cache on a real node.
+ */
+public class SyntheticSessionDescriptorCache extends SessionDescriptorCache {
+    private final SyntheticArchive archive;
+
+    public SyntheticSessionDescriptorCache(final SyntheticArchive archive) {
+        super(null, 1, 1, 1);
+        this.archive = archive;
+    }
+
+    @Override
+    public SessionDescriptor getDescriptor(final String sessionId) {
+        final SyntheticArchive.Session session = archive.getSession(sessionId);
+        return session == null ? null : session.getDescriptor();
+    }
+
+    @Override
+    public boolean canRead(final UserI user, final SessionDescriptor descriptor) {
+        return true;
+    }
+
+    @Override
+    public boolean canReadProject(final UserI user, final String projectId) {
+        return true;
+    }
+}
@@ -0,0 +1,118 @@
+package org.nrg.xnat.volview.loadtest;
+
+import org.nrg.xnat.volview.loadtest.LoadTestReport.Stage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+
+/**
+ * Launches random sessions one after another the way the shell and VolView do: the shell page, the
+ * project config, the session config, the study stream, a QIDO-RS series search, WADO-RS metadata for
+ * every series and then every instance of one series. Each request is timed into the report that is
+ * current when the launch starts.
+ */
+public final class VirtualUser implements Runnable {
+    private static final Logger log = LoggerFactory.getLogger(VirtualUser.class);
+    private static final String XAPI = "/xapi";
+    private static final String DICOM_JSON = "application/dicom+json";
+
+    private final LoadTestContext context;
+    private final List<SyntheticArchive.Session> sessions;
+    private final String username;
+    private final long thinkTimeMillis;
+    private final AtomicReference<LoadTestReport> report;
+    private final BooleanSupplier stopped;
+
+    public VirtualUser(final LoadTestContext context,
+                       final List<SyntheticArchive.Session> sessions,
+                       final String username,
+                       final long thinkTimeMillis,
+                       final AtomicReference<LoadTestReport> report,
+                       final BooleanSupplier stopped) {
+        this.context = context;
+        this.sessions = sessions;
+        this.username = username;
+        this.thinkTimeMillis = thinkTimeMillis;
+        this.report = report;
+        this.stopped = stopped;
+    }
+
+    @Override
+    public void run() {
+        LoadTestContext.signIn(username);
+        while (!stopped.getAsBoolean()) {
+            launch(sessions.get(ThreadLocalRandom.current().nextInt(sessions.size())), report.get());
+            if (thinkTimeMillis > 0) {
+                try {
+                    TimeUnit.MILLISECONDS.sleep(thinkTimeMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void launch(final SyntheticArchive.Session session, final LoadTestReport report) {
+        final long started = System.nanoTime();
+        final String projectId = session.getProjectId();
+        final String studyPath = "/volview/dicomweb/projects/{projectId}/studies/{studyInstanceUid}";
+        boolean succeeded = request(report, Stage.SHELL, get(XAPI + "/volview/app/projects/{projectId}", projectId)
+                        .param("sessionId", session.getId())
+                        .header(HttpHeaders.ACCEPT_ENCODING, "gzip, deflate, br"))
+                && request(report, Stage.PROJECT_CONFIG, xapi("/volview/config/projects/{projectId}", projectId))
+                && request(report, Stage.SESSION_CONFIG, xapi("/volview/config/projects/{projectId}/sessions/{sessionId}", projectId, session.getId()))
+                && request(report, Stage.STUDY_STREAM, xapi("/volview/config/projects/{projectId}/studies/stream", projectId)
+                        .param("session", session.getId())
+                        .header(HttpHeaders.ACCEPT, "application/x-ndjson"))
+                && request(report, Stage.QIDO_SERIES, xapi(studyPath + "/series", projectId, session.getStudyInstanceUid())
+                        .header(HttpHeaders.ACCEPT, DICOM_JSON));
+        for (final SyntheticArchive.Series series : session.getSeries()) {
+            succeeded = succeeded && request(report, Stage.WADO_METADATA, xapi(studyPath + "/series/{seriesInstanceUid}/metadata",
+                    projectId, session.getStudyInstanceUid(), series.getSeriesInstanceUid())
+                    .header(HttpHeaders.ACCEPT, DICOM_JSON));
+        }
+        final SyntheticArchive.Series opened = session.getSeries().get(ThreadLocalRandom.current().nextInt(session.getSeries().size()));
+        for (final String sopInstanceUid : opened.getSopInstanceUids()) {
+            succeeded = succeeded && request(report, Stage.WADO_INSTANCE, xapi(studyPath + "/series/{seriesInstanceUid}/instances/{sopInstanceUid}",
+                    projectId, session.getStudyInstanceUid(), opened.getSeriesInstanceUid(), sopInstanceUid)
+                    .header(HttpHeaders.ACCEPT, "application/dicom"));
+        }
+        if (succeeded) {
+            report.record(Stage.LAUNCH, started, 200);
+        } else {
+            report.recordError(Stage.LAUNCH);
+        }
+    }
+
+    private boolean request(final LoadTestReport report, final Stage stage, final MockHttpServletRequestBuilder request) {
+        final long started = System.nanoTime();
+        try {
+            final MockHttpServletResponse response = context.perform(request);
+            if (!report.record(stage, started, response.getStatus())) {
+                log.debug("{} request for {} returned {}", stage, username, response.getStatus());
+                return false;
+            }
+            return true;
+        } catch (Exception e) {
+            log.warn("{} request for {} failed: {}", stage, username, e.toString());
+            log.debug("{} request for {} failed", stage, username, e);
+            report.recordError(stage);
+            return false;
+        }
+    }
+
+    private static MockHttpServletRequestBuilder xapi(final String path, final Object... variables) {
+        return get(XAPI + path, variables).servletPath(XAPI);
+    }
+}
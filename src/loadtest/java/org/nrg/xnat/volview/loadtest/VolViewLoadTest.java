@@ -0,0 +1,149 @@
+package org.nrg.xnat.volview.loadtest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs virtual users through the launch sequence against the {@link LoadTestContext} and the
+ * {@link FakeDicomwebOrigin}, prints latency and throughput per stage and compares them with the stored
+ * baseline. Exits with status 1 when the {@link RegressionGate} finds a regression or there is no
+ * baseline to compare with, which fails the <code>loadTest</code> Gradle task. Runs that update the
+ * baseline aren't gated. The results record the machine they came from, and comparing with a baseline
+ * from another machine logs a warning.
+ * <p>
+ * The run is configured with <code>loadtest.*</code> system properties, which the Gradle task takes from
+ * project properties of the same name, e.g. <code>./gradlew loadTest -Ploadtest.users=50</code>.
+ */
+public final class VolViewLoadTest {
+    private static final Logger log = LoggerFactory.getLogger(VolViewLoadTest.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+
+    private VolViewLoadTest() {
+    }
+
+    @SuppressWarnings("unchecked")
+    public static void main(final String[] args) throws Exception {
+        final Map<String, Object> workload = new LinkedHashMap<>();
+        workload.put("users", Integer.getInteger("loadtest.users", 20));
+        workload.put("projects", Integer.getInteger("loadtest.projects", 4));
+        workload.put("sessionsPerProject", Integer.getInteger("loadtest.sessions", 50));
+        workload.put("seriesPerSession", Integer.getInteger("loadtest.series", 4));
+        workload.put("instancesPerSeries", Integer.getInteger("loadtest.instances", 40));
+        workload.put("instanceKb", Integer.getInteger("loadtest.instance-kb", 128));
+        workload.put("originLatencyMillis", Integer.getInteger("loadtest.origin-latency-ms", 5));
+        workload.put("thinkTimeMillis", Integer.getInteger("loadtest.think-time-ms", 0));
+        final int warmupSeconds = Integer.getInteger("loadtest.warmup-seconds", 15);
+        final int durationSeconds = Integer.getInteger("loadtest.duration-seconds", 60);
+        final File baselineFile = new File(System.getProperty("loadtest.baseline", "src/loadtest/baseline.json"));
+        final File resultsFile = new File(System.getProperty("loadtest.results", "build/reports/loadtest/results.json"));
+        final boolean updateBaseline = Boolean.parseBoolean(System.getProperty("loadtest.update-baseline", "false"));
+        final RegressionGate gate = new RegressionGate(Double.parseDouble(System.getProperty("loadtest.tolerance", "0.25")),
+                TimeUnit.MILLISECONDS.toMicros(Long.getLong("loadtest.slack-ms", 1)));
+
+        final SyntheticArchive archive = new SyntheticArchive((Integer) workload.get("projects"), (Integer) workload.get("sessionsPerProject"),
+                (Integer) workload.get("seriesPerSession"), (Integer) workload.get("instancesPerSeries"), (Integer) workload.get("instanceKb") * 1024);
+        final Map<String, Object> results = new LinkedHashMap<>();
+        try (final FakeDicomwebOrigin origin = new FakeDicomwebOrigin(archive, (Integer) workload.get("originLatencyMillis"));
+             final LoadTestContext context = new LoadTestContext(archive, origin.getUrl())) {
+            final LoadTestReport report = run(context, archive, workload, warmupSeconds, durationSeconds);
+            System.out.println(report.format());
+            System.out.printf("Origin requests: %d%n", origin.getRequestCount());
+            results.put("workload", workload);
+            results.put("machine", machine());
+            results.put("elapsedSeconds", report.getElapsedSeconds());
+            results.put("stages", report.toMap());
+            results.put("plugin", context.getMetrics().toMap());
+        }
+
+        write(resultsFile, results);
+        log.info("Load test results written to {}", resultsFile.getAbsolutePath());
+        if (updateBaseline) {
+            write(baselineFile, results);
+            log.info("Load test baseline updated at {}", baselineFile.getAbsolutePath());
+            return;
+        }
+        if (!baselineFile.isFile()) {
+            // A gate without a baseline would pass anything, so a missing file fails the run like a regression.
+            log.error("No load test baseline at {}; record one with -Ploadtest.update-baseline=true on the machine that runs the gate", baselineFile.getAbsolutePath());
+            System.exit(1);
+        }
+        // Both sides are read back from JSON, so the numbers in the machine profiles have the same types.
+        final Map<String, Object> current = MAPPER.readValue(resultsFile, Map.class);
+        final Map<String, Object> baseline = MAPPER.readValue(baselineFile, Map.class);
+        if (!current.get("machine").equals(baseline.get("machine"))) {
+            log.warn("The load test baseline was recorded on {}, this run is on {}; the comparison is only meaningful on the same machine", baseline.get("machine"), current.get("machine"));
+        }
+        final List<String> regressions = gate.check(current, baseline);
+        if (regressions.isEmpty()) {
+            log.info("Load test results are within the baseline at {}", baselineFile.getAbsolutePath());
+            return;
+        }
+        for (final String regression : regressions) {
+            log.error("Load test regression: {}", regression);
+        }
+        System.exit(1);
+    }
+
+    /**
+     * Describes the machine the run used, so a baseline records where it came from.
+     */
+    private static Map<String, Object> machine() {
+        final Map<String, Object> machine = new LinkedHashMap<>();
+        machine.put("processors", Runtime.getRuntime().availableProcessors());
+        machine.put("maxHeapMb", Runtime.getRuntime().maxMemory() / (1024 * 1024));
+        machine.put("os", System.getProperty("os.name") + " " + System.getProperty("os.arch"));
+        machine.put("java", System.getProperty("java.vendor") + " " + System.getProperty("java.version"));
+        return machine;
+    }
+
+    private static LoadTestReport run(final LoadTestContext context, final SyntheticArchive archive, final Map<String, Object> workload, final int warmupSeconds, final int durationSeconds) throws InterruptedException {
+        final int users = (Integer) workload.get("users");
+        final AtomicReference<LoadTestReport> report = new AtomicReference<>(new LoadTestReport());
+        final AtomicBoolean stopped = new AtomicBoolean();
+        final AtomicInteger threads = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool(users, runnable -> {
+            final Thread thread = new Thread(runnable, "volview-loadtest-user-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int user = 1; user <= users; user++) {
+            executor.execute(new VirtualUser(context, archive.getSessions(), "loadtest" + user, (Integer) workload.get("thinkTimeMillis"), report, stopped::get));
+        }
+        log.info("Warming up {} virtual users for {} s", users, warmupSeconds);
+        TimeUnit.SECONDS.sleep(warmupSeconds);
+        final LoadTestReport measured = new LoadTestReport();
+        report.set(measured);
+        log.info("Measuring for {} s", durationSeconds);
+        TimeUnit.SECONDS.sleep(durationSeconds);
+        measured.finish();
+        stopped.set(true);
+        executor.shutdown();
+        if (!executor.awaitTermination(2, TimeUnit.MINUTES)) {
+            log.warn("Virtual users didn't finish their last launch within two minutes");
+            executor.shutdownNow();
+        }
+        return measured;
+    }
+
+    private static void write(final File file, final Map<String, Object> results) throws IOException {
+        final File directory = file.getAbsoluteFile().getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create " + directory);
+        }
+        MAPPER.writeValue(file, results);
+    }
+}
@@ -0,0 +1,64 @@
+package org.nrg.xnat.volview.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * The directory a disk cache keeps its files in. It's a subdirectory of the configured location that the
+ * plugin creates and marks, so clearing it on startup never touches anything the plugin didn't write,
+ * whatever an administrator points the setting at.
+ */
+final class CacheDirectory {
+    private static final Logger log = LoggerFactory.getLogger(CacheDirectory.class);
+
+    static final String SUBDIRECTORY = "volview-cache";
+    static final String MARKER = ".volview-cache";
+
+    private CacheDirectory() {
+    }
+
+    static Path resolve(final Path configured) {
+        return configured.resolve(SUBDIRECTORY);
+    }
+
+    /**
+     * Creates and marks the directory, or empties it if it already carries the marker. An unmarked
+     * directory is used as it is and never cleared.
+     */
+    static void prepare(final Path directory) throws IOException {
+        final Path marker = directory.resolve(MARKER);
+        if (!Files.isDirectory(directory)) {
+            Files.createDirectories(directory);
+        } else if (Files.isRegularFile(marker)) {
+            try (final DirectoryStream<Path> children = Files.newDirectoryStream(directory)) {
+                for (final Path child : children) {
+                    if (!child.equals(marker)) {
+                        FileSystemUtils.deleteRecursively(child);
+                    }
+                }
+            }
+            return;
+        } else if (hasChildren(directory)) {
+            log.warn("{} exists but wasn't created by the VolView plugin, so it won't be cleared", directory);
+            return;
+        }
+        try {
+            Files.createFile(marker);
+        } catch (FileAlreadyExistsException ignored) {
+            // Another node sharing the directory marked it first.
+        }
+    }
+
+    private static boolean hasChildren(final Path directory) throws IOException {
+        try (final DirectoryStream<Path> children = Files.newDirectoryStream(directory)) {
+            return children.iterator().hasNext();
+        }
+    }
+}
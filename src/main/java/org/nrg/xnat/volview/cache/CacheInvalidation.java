@@ -0,0 +1,63 @@
+package org.nrg.xnat.volview.cache;
+
+import java.util.Objects;
+
+/**
+ * Something that changed and makes cached VolView data stale, as sent over the
+ * {@link CacheInvalidationBus}. Invalidations name what changed rather than which cache entries to drop,
+ * since each node knows best what it has cached for it.
+ */
+public final class CacheInvalidation {
+    public enum Scope {
+        /** One or more <code>volview.*</code> site settings changed. */
+        SETTINGS,
+        /** An image session was archived, changed, shared or moved; the key is the session ID. */
+        SESSION_CHANGED,
+        /** An image session was deleted; the key is the session ID. */
+        SESSION_REMOVED,
+        /** A project was deleted; the key is the project ID. */
+        PROJECT_REMOVED
+    }
+
+    private final Scope scope;
+    private final String key;
+
+    public CacheInvalidation(final Scope scope, final String key) {
+        this.scope = scope;
+        this.key = key;
+    }
+
+    public static CacheInvalidation settings() {
+        return new CacheInvalidation(Scope.SETTINGS, null);
+    }
+
+    public Scope getScope() {
+        return scope;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof CacheInvalidation)) {
+            return false;
+        }
+        final CacheInvalidation invalidation = (CacheInvalidation) other;
+        return scope == invalidation.scope && Objects.equals(key, invalidation.key);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(scope, key);
+    }
+
+    @Override
+    public String toString() {
+        return key == null ? scope.name() : scope + " " + key;
+    }
+}
@@ -0,0 +1,26 @@
+package org.nrg.xnat.volview.cache;
+
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Carries {@link CacheInvalidation cache invalidations} to every XNAT node that runs the plugin. A
+ * published invalidation is applied on the publishing node before {@link #publish(CacheInvalidation)}
+ * returns and on the other nodes within the implementation's delivery delay. Listeners see each
+ * invalidation once per node, whichever node it came from, so the code that drops cache entries is the
+ * same for local and remote changes.
+ * <p>
+ * The implementation is chosen with <code>volview.invalidation.bus</code>: <code>local</code> for
+ * single-node deployments, or <code>database</code> to share invalidations through the XNAT database.
+ */
+public interface CacheInvalidationBus {
+    void publish(CacheInvalidation invalidation);
+
+    /**
+     * Registers a listener for invalidations from this and other nodes. Listeners run on the publishing
+     * thread for local invalidations and on the bus's own thread for remote ones, and must not block.
+     */
+    void subscribe(Consumer<CacheInvalidation> listener);
+
+    Map<String, Object> getStatistics();
+}
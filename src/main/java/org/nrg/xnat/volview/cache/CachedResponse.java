@@ -0,0 +1,54 @@
+package org.nrg.xnat.volview.cache;
+
+import org.springframework.util.DigestUtils;
+
+/**
+ * An already-serialized response body together with its strong entity tag. The tag is derived from the
+ * body alone, so every node of a cluster sends the same tag for the same content.
+ */
+public final class CachedResponse {
+    private final byte[] body;
+    private final String etag;
+
+    public CachedResponse(final byte[] body) {
+        this.body = body;
+        this.etag = "\"" + DigestUtils.md5DigestAsHex(body) + "\"";
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    /**
+     * Returns true when the given <code>If-None-Match</code> header value matches this response's
+     * entity tag, either directly, as one element of a list, or through the <code>*</code> wildcard.
+     */
+    public boolean matches(final String ifNoneMatch) {
+        if (ifNoneMatch == null || ifNoneMatch.isEmpty()) {
+            return false;
+        }
+        if (ifNoneMatch.trim().equals("*")) {
+            return true;
+        }
+        int start = 0;
+        while (start < ifNoneMatch.length()) {
+            int end = ifNoneMatch.indexOf(',', start);
+            if (end < 0) {
+                end = ifNoneMatch.length();
+            }
+            String candidate = ifNoneMatch.substring(start, end).trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals(etag)) {
+                return true;
+            }
+            start = end + 1;
+        }
+        return false;
+    }
+}
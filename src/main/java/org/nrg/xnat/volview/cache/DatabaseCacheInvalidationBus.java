@@ -0,0 +1,210 @@
+package org.nrg.xnat.volview.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link CacheInvalidationBus} shared through the XNAT database, for deployments with several nodes
+ * behind a load balancer. Each invalidation is applied locally and appended to a small table whose
+ * sequence ID serves as a cluster-wide version counter. Every node reads the rows past the last version
+ * it has seen on a background thread, so other nodes drop stale entries within one poll interval and
+ * requests never touch the table.
+ * <p>
+ * Sequence values are handed out before their rows commit, so a row can become visible after a higher
+ * one. Skipped versions are kept as gaps and read again on later polls until they show up or are old
+ * enough to be a rolled back insert. Rows are deleted after an hour. The node ID only needs to be unique
+ * per bus, which also lets two application contexts in one JVM act as separate nodes.
+ */
+public class DatabaseCacheInvalidationBus extends LocalCacheInvalidationBus {
+    private static final Logger log = LoggerFactory.getLogger(DatabaseCacheInvalidationBus.class);
+
+    private static final String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS volview_cache_invalidation ("
+                                               + "id BIGSERIAL PRIMARY KEY, "
+                                               + "node VARCHAR(64) NOT NULL, "
+                                               + "scope VARCHAR(32) NOT NULL, "
+                                               + "item_key VARCHAR(255), "
+                                               + "created TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP)";
+    private static final String INSERT = "INSERT INTO volview_cache_invalidation (node, scope, item_key) VALUES (:node, :scope, :key)";
+    private static final String QUERY_LATEST = "SELECT COALESCE(MAX(id), 0) FROM volview_cache_invalidation";
+    private static final int BATCH_SIZE = 1000;
+    private static final String QUERY_AFTER = "SELECT id, node, scope, item_key FROM volview_cache_invalidation WHERE id > :after ORDER BY id LIMIT " + BATCH_SIZE;
+    private static final String QUERY_IDS = "SELECT id, node, scope, item_key FROM volview_cache_invalidation WHERE id IN (:ids)";
+    private static final String DELETE_BEFORE = "DELETE FROM volview_cache_invalidation WHERE created < :cutoff";
+    private static final int MAX_GAPS = 1000;
+    private static final long GAP_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(60);
+    private static final long RETENTION_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final long PRUNE_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+    private final NamedParameterJdbcTemplate template;
+    private final String nodeId;
+    private final long pollIntervalMillis;
+    private final ScheduledThreadPoolExecutor poller;
+    // Only touched by the poller thread.
+    private final TreeMap<Long, Long> gaps = new TreeMap<>();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder publishFailures = new LongAdder();
+    private final LongAdder pollFailures = new LongAdder();
+    private volatile long lastVersion;
+    private volatile long lastPolled;
+    private long lastPruned;
+
+    public DatabaseCacheInvalidationBus(final NamedParameterJdbcTemplate template, final String nodeId, final int pollSeconds) {
+        this.template = template;
+        this.nodeId = nodeId;
+        this.pollIntervalMillis = TimeUnit.SECONDS.toMillis(Math.max(1, pollSeconds));
+        this.poller = new ScheduledThreadPoolExecutor(1, runnable -> {
+            final Thread thread = new Thread(runnable, "volview-invalidation-" + nodeId);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PostConstruct
+    public void start() {
+        try {
+            template.getJdbcOperations().execute(CREATE_TABLE);
+        } catch (DataAccessException e) {
+            // Another node may have created the table at the same moment; the query below tells.
+            log.debug("Failed to create the VolView cache invalidation table", e);
+        }
+        try {
+            lastVersion = template.queryForObject(QUERY_LATEST, Collections.<String, Object>emptyMap(), Long.class);
+        } catch (DataAccessException e) {
+            log.error("Failed to read the VolView cache invalidation table; the first poll will apply everything still in it", e);
+        }
+        lastPolled = System.nanoTime();
+        lastPruned = lastPolled;
+        poller.scheduleWithFixedDelay(this::poll, pollIntervalMillis, pollIntervalMillis, TimeUnit.MILLISECONDS);
+        log.info("VolView cache invalidation bus started on node {} at version {}, polling every {} ms", nodeId, lastVersion, pollIntervalMillis);
+    }
+
+    @PreDestroy
+    public void stop() {
+        poller.shutdownNow();
+    }
+
+    @Override
+    public void publish(final CacheInvalidation invalidation) {
+        super.publish(invalidation);
+        try {
+            template.update(INSERT, new MapSqlParameterSource("node", nodeId)
+                    .addValue("scope", invalidation.getScope().name())
+                    .addValue("key", invalidation.getKey()));
+        } catch (DataAccessException e) {
+            publishFailures.increment();
+            log.error("Failed to share VolView cache invalidation {}; other nodes will drop the entries when they expire", invalidation, e);
+        }
+    }
+
+    @Override
+    public Map<String, Object> getStatistics() {
+        final Map<String, Object> statistics = super.getStatistics();
+        statistics.put("implementation", "database");
+        statistics.put("nodeId", nodeId);
+        statistics.put("version", lastVersion);
+        statistics.put("received", received.sum());
+        statistics.put("publishFailures", publishFailures.sum());
+        statistics.put("pollFailures", pollFailures.sum());
+        statistics.put("millisSinceLastPoll", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastPolled));
+        return statistics;
+    }
+
+    private void poll() {
+        try {
+            readGaps();
+            while (readNew() == BATCH_SIZE) {
+                log.debug("Reading the next batch of VolView cache invalidations after version {}", lastVersion);
+            }
+            expireGaps();
+            lastPolled = System.nanoTime();
+            if (lastPolled - lastPruned > PRUNE_INTERVAL_NANOS) {
+                lastPruned = lastPolled;
+                template.update(DELETE_BEFORE, new MapSqlParameterSource("cutoff", new Timestamp(System.currentTimeMillis() - RETENTION_MILLIS)));
+            }
+        } catch (DataAccessException e) {
+            pollFailures.increment();
+            log.warn("Failed to read VolView cache invalidations from other nodes", e);
+        } catch (RuntimeException e) {
+            pollFailures.increment();
+            log.error("Unexpected failure while reading VolView cache invalidations", e);
+        }
+    }
+
+    /**
+     * Applies the invalidations that showed up in earlier gaps.
+     */
+    private void readGaps() {
+        if (gaps.isEmpty()) {
+            return;
+        }
+        for (final Map<String, Object> row : template.queryForList(QUERY_IDS, new MapSqlParameterSource("ids", new ArrayList<>(gaps.keySet())))) {
+            final long id = ((Number) row.get("id")).longValue();
+            if (gaps.remove(id) != null) {
+                apply(id, row);
+            }
+        }
+    }
+
+    /**
+     * Applies the next batch of invalidations past the last version, noting any versions skipped on the
+     * way as gaps, and returns the number of rows read.
+     */
+    private int readNew() {
+        final List<Map<String, Object>> rows = template.queryForList(QUERY_AFTER, new MapSqlParameterSource("after", lastVersion));
+        final long now = System.nanoTime();
+        for (final Map<String, Object> row : rows) {
+            final long id = ((Number) row.get("id")).longValue();
+            for (long missing = Math.max(lastVersion + 1, id - MAX_GAPS); missing < id; missing++) {
+                gaps.put(missing, now);
+            }
+            lastVersion = id;
+            apply(id, row);
+        }
+        return rows.size();
+    }
+
+    private void apply(final long id, final Map<String, Object> row) {
+        if (nodeId.equals(row.get("node"))) {
+            return;
+        }
+        final CacheInvalidation invalidation;
+        try {
+            invalidation = new CacheInvalidation(CacheInvalidation.Scope.valueOf((String) row.get("scope")), (String) row.get("item_key"));
+        } catch (IllegalArgumentException e) {
+            log.warn("Ignoring VolView cache invalidation {} with unknown scope {}", id, row.get("scope"));
+            return;
+        }
+        received.increment();
+        log.debug("Applying VolView cache invalidation {} from node {} at version {}", invalidation, row.get("node"), id);
+        deliver(invalidation);
+    }
+
+    private void expireGaps() {
+        final long now = System.nanoTime();
+        final Iterator<Long> noticed = gaps.values().iterator();
+        while (noticed.hasNext()) {
+            if (now - noticed.next() > GAP_TIMEOUT_NANOS) {
+                noticed.remove();
+            }
+        }
+        while (gaps.size() > MAX_GAPS) {
+            gaps.pollFirstEntry();
+        }
+    }
+}
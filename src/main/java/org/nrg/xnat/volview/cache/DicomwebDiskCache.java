@@ -0,0 +1,273 @@
+package org.nrg.xnat.volview.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.util.DigestUtils;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Size-bounded, least-recently-used store of DICOMweb responses on local disk. Keys start with the
+ * project ID and the study path (<code>PROJ/studies/1.2.3/...</code>) so that everything cached for a
+ * study can be dropped at once. The index only lives in memory, so the cache's own subdirectory of the
+ * configured directory is cleared on startup.
+ * <p>
+ * The first time a study is cached in a project, the image sessions holding its StudyInstanceUID are
+ * read from the database and remembered, so session events can drop the study's responses later even if
+ * the session has since been moved or deleted.
+ */
+@Component
+public class DicomwebDiskCache {
+    private static final Logger log = LoggerFactory.getLogger(DicomwebDiskCache.class);
+
+    private static final String QUERY_STUDY_SESSIONS = "SELECT id FROM xnat_imagesessiondata WHERE uid = :studyInstanceUid";
+    private static final String QUERY_SESSION_STUDY = "SELECT uid FROM xnat_imagesessiondata WHERE id = :sessionId";
+    private static final String STUDIES_SEGMENT = "/studies/";
+
+    private final NamedParameterJdbcTemplate template;
+    // Entries are grouped by their study key.
+    private final DiskLruStore<Entry> store;
+    private final long maximumAgeMillis;
+    // Session IDs by study key. Entries outlive the study's last cached response by the maximum age,
+    // and so the responses themselves.
+    private final Cache<String, Set<String>> studySessions;
+    private final AtomicLong sequence = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    @Autowired
+    public DicomwebDiskCache(final NamedParameterJdbcTemplate template,
+                             @Value("${volview.dicomweb-cache.dir:}") final String cacheDirectory,
+                             @Value("${volview.dicomweb-cache.max-size-mb:10240}") final long maximumSizeMb,
+                             @Value("${volview.dicomweb-cache.max-age-hours:24}") final long maximumAgeHours) {
+        this.template = template;
+        this.store = new DiskLruStore<>("DICOMweb response",
+                                        CacheDirectory.resolve(cacheDirectory == null || cacheDirectory.trim().isEmpty()
+                                                               ? Paths.get(System.getProperty("java.io.tmpdir"), "xnat-volview", "dicomweb")
+                                                               : Paths.get(cacheDirectory.trim())),
+                                        maximumSizeMb * 1024L * 1024L);
+        this.maximumAgeMillis = TimeUnit.HOURS.toMillis(maximumAgeHours);
+        this.studySessions = CacheBuilder.newBuilder().expireAfterAccess(maximumAgeHours, TimeUnit.HOURS).build();
+    }
+
+    @PostConstruct
+    public void initialize() {
+        try {
+            store.prepare();
+            log.info("VolView DICOMweb cache uses {} with at most {} MB", store.getDirectory(), store.getMaximumBytes() / (1024L * 1024L));
+        } catch (IOException e) {
+            log.error("Failed to prepare the VolView DICOMweb cache directory {}", store.getDirectory(), e);
+        }
+    }
+
+    /**
+     * Returns the cached entry for the key, or null if there is none or it's older than the maximum age.
+     */
+    public Entry get(final String key) {
+        final Entry entry = store.get(key);
+        if (entry != null && System.currentTimeMillis() - entry.created > maximumAgeMillis) {
+            store.remove(key, entry);
+            misses.increment();
+            return null;
+        }
+        if (entry == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return entry;
+    }
+
+    /**
+     * Creates an empty file in the cache directory for a response that is being downloaded.
+     */
+    public Path createTempFile() throws IOException {
+        return Files.createTempFile(store.getDirectory(), "fetch-", ".tmp");
+    }
+
+    /**
+     * Moves the downloaded file into the cache and evicts least recently used entries until the cache is
+     * back under its size limit. The entity tag is built from the hex digest of the file's content.
+     * Returns null, leaving the file in place, if it's too large to cache.
+     */
+    public Entry put(final String key, final Path downloaded, final String contentType, final String contentDigest) throws IOException {
+        final long size = Files.size(downloaded);
+        if (!store.fits(size)) {
+            return null;
+        }
+        indexStudy(key);
+        final String name = DigestUtils.md5DigestAsHex(key.getBytes(StandardCharsets.UTF_8));
+        final Path file = store.getDirectory().resolve(name + "-" + sequence.incrementAndGet());
+        Files.move(downloaded, file, StandardCopyOption.ATOMIC_MOVE);
+        final Entry entry = new Entry(file, size, contentType, "\"" + contentDigest + "-" + Long.toHexString(size) + "\"");
+        store.put(key, getStudyKey(key), entry);
+        return entry;
+    }
+
+    /**
+     * Remembers which sessions hold the study of the cache key, unless that's already known. Responses
+     * cached elsewhere, e.g. in the metadata cache, are indexed through here as well.
+     */
+    public void indexStudy(final String key) {
+        final String studyKey = getStudyKey(key);
+        final int index = studyKey.indexOf(STUDIES_SEGMENT);
+        if (index < 0 || studySessions.getIfPresent(studyKey) != null) {
+            return;
+        }
+        try {
+            final MapSqlParameterSource parameters = new MapSqlParameterSource("studyInstanceUid", studyKey.substring(index + STUDIES_SEGMENT.length()));
+            studySessions.put(studyKey, new HashSet<>(template.queryForList(QUERY_STUDY_SESSIONS, parameters, String.class)));
+        } catch (DataAccessException e) {
+            log.warn("Failed to look up the sessions of cached DICOMweb study {}", studyKey, e);
+        }
+    }
+
+    /**
+     * Drops everything cached, in every project, for the studies the session held when they were cached
+     * and for the study it holds now. Returns their study keys (<code>PROJ/studies/1.2.3</code>) so other
+     * caches can drop them too.
+     */
+    public Set<String> invalidateSession(final String sessionId) {
+        final String studySuffix = findStudySuffix(sessionId);
+        final Set<String> studyKeys = new HashSet<>();
+        final Iterator<Map.Entry<String, Set<String>>> iterator = studySessions.asMap().entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<String, Set<String>> study = iterator.next();
+            if (study.getValue().contains(sessionId) || studySuffix != null && study.getKey().endsWith(studySuffix)) {
+                studyKeys.add(study.getKey());
+                iterator.remove();
+            }
+        }
+        studyKeys.forEach(this::invalidateStudy);
+        return studyKeys;
+    }
+
+    /**
+     * Returns <code>/studies/</code> followed by the session's current StudyInstanceUID, e.g. for a session
+     * archived into a study that was already cached, or null if it has none.
+     */
+    private String findStudySuffix(final String sessionId) {
+        try {
+            final List<String> uids = template.queryForList(QUERY_SESSION_STUDY, new MapSqlParameterSource("sessionId", sessionId), String.class);
+            return uids.isEmpty() || uids.get(0) == null ? null : STUDIES_SEGMENT + uids.get(0);
+        } catch (DataAccessException e) {
+            log.warn("Failed to look up the study of session {}", sessionId, e);
+            return null;
+        }
+    }
+
+    /**
+     * Drops everything cached for the study key, e.g. after the session was moved or deleted.
+     */
+    public void invalidateStudy(final String studyKey) {
+        final int removed = store.removeGroup(studyKey);
+        if (removed > 0) {
+            log.debug("Dropped {} cached DICOMweb responses for study {}", removed, studyKey);
+        }
+    }
+
+    /**
+     * Drops everything cached under the project, e.g. after it was deleted. Responses for its sessions
+     * cached under other projects they were shared into are dropped by {@link #invalidateSession(String)}.
+     */
+    public void invalidateProject(final String projectId) {
+        final String prefix = projectId + "/";
+        studySessions.asMap().keySet().removeIf(studyKey -> studyKey.startsWith(prefix));
+        store.findGroups(prefix).forEach(this::invalidateStudy);
+    }
+
+    /**
+     * Drops an entry whose file has gone missing.
+     */
+    public void invalidate(final String key) {
+        store.remove(key);
+    }
+
+    public void invalidateAll() {
+        final int removed = store.clear();
+        studySessions.invalidateAll();
+        log.debug("Dropped all {} cached DICOMweb responses", removed);
+    }
+
+    public Map<String, Object> getStatistics() {
+        final Map<String, Object> statistics = new LinkedHashMap<>();
+        store.addUsage(statistics);
+        final long hitCount = hits.sum();
+        final long missCount = misses.sum();
+        statistics.put("hits", hitCount);
+        statistics.put("misses", missCount);
+        statistics.put("evictions", store.getEvictions());
+        statistics.put("hitRate", hitCount + missCount == 0 ? 1.0 : (double) hitCount / (hitCount + missCount));
+        return statistics;
+    }
+
+    /**
+     * Returns the <code>PROJ/studies/1.2.3</code> prefix of a cache key.
+     */
+    private static String getStudyKey(final String key) {
+        int end = -1;
+        for (int segment = 0; segment < 3; segment++) {
+            end = key.indexOf('/', end + 1);
+            if (end < 0) {
+                return key;
+            }
+        }
+        return key.substring(0, end);
+    }
+
+    public static final class Entry implements DiskLruStore.StoredFile {
+        private final Path file;
+        private final long size;
+        private final String contentType;
+        private final String etag;
+        private final long created = System.currentTimeMillis();
+
+        private Entry(final Path file, final long size, final String contentType, final String etag) {
+            this.file = file;
+            this.size = size;
+            this.contentType = contentType;
+            this.etag = etag;
+        }
+
+        @Override
+        public Path getFile() {
+            return file;
+        }
+
+        @Override
+        public long getSize() {
+            return size;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+    }
+}
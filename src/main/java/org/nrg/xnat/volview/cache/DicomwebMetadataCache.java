@@ -0,0 +1,162 @@
+package org.nrg.xnat.volview.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Size-bounded, in-memory store of WADO-RS metadata responses, keyed like the {@link DicomwebDiskCache}
+ * (<code>PROJ/studies/1.2.3/series/4.5.6/metadata</code>). Concurrent loads of the same key share one
+ * origin request. Entries loaded by the launch prefetcher are tracked until first served, so the
+ * statistics show how many prefetches paid off and how many expired unused.
+ */
+@Component
+public class DicomwebMetadataCache {
+    private static final Logger log = LoggerFactory.getLogger(DicomwebMetadataCache.class);
+
+    private final Cache<String, Metadata> metadata;
+    private final long maximumBytes;
+    private final LongAdder prefetched = new LongAdder();
+    private final LongAdder prefetchHits = new LongAdder();
+    private final LongAdder wasted = new LongAdder();
+
+    @Autowired
+    public DicomwebMetadataCache(@Value("${volview.prefetch.cache.max-size-mb:128}") final long maximumSizeMb,
+                                 @Value("${volview.prefetch.cache.max-age-minutes:10}") final long maximumAgeMinutes) {
+        this.maximumBytes = maximumSizeMb * 1024L * 1024L;
+        this.metadata = CacheBuilder.newBuilder()
+                .maximumWeight(maximumBytes)
+                .weigher((String key, Metadata entry) -> entry.getResponse().getBody().length)
+                .expireAfterWrite(maximumAgeMinutes, TimeUnit.MINUTES)
+                .removalListener(this::removed)
+                .recordStats()
+                .build();
+        log.info("VolView DICOMweb metadata cache initialized with maximum size {} MB and maximum age {} minutes", maximumSizeMb, maximumAgeMinutes);
+    }
+
+    /**
+     * Returns the cached metadata for the key, loading it with the loader on a miss.
+     */
+    public Metadata get(final String key, final Callable<Metadata> loader) throws ExecutionException {
+        final Metadata entry = metadata.get(key, loader);
+        if (entry.prefetched && entry.served.compareAndSet(false, true)) {
+            prefetchHits.increment();
+        }
+        return entry;
+    }
+
+    /**
+     * Loads the metadata for the key with the loader unless it's already cached, and returns whether it
+     * was loaded.
+     */
+    public boolean prefetch(final String key, final Callable<Metadata> loader) throws ExecutionException {
+        if (metadata.asMap().containsKey(key)) {
+            return false;
+        }
+        final AtomicBoolean loaded = new AtomicBoolean();
+        metadata.get(key, () -> {
+            final Metadata entry = loader.call();
+            loaded.set(true);
+            prefetched.increment();
+            return entry;
+        });
+        return loaded.get();
+    }
+
+    /**
+     * Drops the metadata cached for the study key (<code>PROJ/studies/1.2.3</code>).
+     */
+    public void invalidateStudy(final String studyKey) {
+        final String prefix = studyKey + "/";
+        metadata.asMap().keySet().removeIf(key -> key.startsWith(prefix));
+    }
+
+    /**
+     * Drops the metadata cached under the project (<code>PROJ/studies/...</code>).
+     */
+    public void invalidateProject(final String projectId) {
+        final String prefix = projectId + "/";
+        metadata.asMap().keySet().removeIf(key -> key.startsWith(prefix));
+    }
+
+    public void invalidateAll() {
+        metadata.invalidateAll();
+    }
+
+    public Map<String, Object> getStatistics() {
+        final CacheStats stats = metadata.stats();
+        long bytes = 0;
+        for (final Metadata entry : metadata.asMap().values()) {
+            bytes += entry.getResponse().getBody().length;
+        }
+        final long prefetchCount = prefetched.sum();
+        final long prefetchHitCount = prefetchHits.sum();
+        final Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("size", metadata.size());
+        statistics.put("bytes", bytes);
+        statistics.put("maximumBytes", maximumBytes);
+        statistics.put("hits", stats.hitCount());
+        statistics.put("misses", stats.missCount());
+        statistics.put("evictions", stats.evictionCount());
+        statistics.put("hitRate", stats.hitRate());
+        statistics.put("prefetched", prefetchCount);
+        statistics.put("prefetchHits", prefetchHitCount);
+        statistics.put("prefetchHitRatio", prefetchCount == 0 ? 0.0 : (double) prefetchHitCount / prefetchCount);
+        statistics.put("wastedPrefetches", wasted.sum());
+        return statistics;
+    }
+
+    /**
+     * Counts prefetched metadata that aged out or was pushed out without being served. Entries dropped
+     * because their session changed or the cache was cleared weren't wasted by prefetching.
+     */
+    private void removed(final RemovalNotification<String, Metadata> notification) {
+        final RemovalCause cause = notification.getCause();
+        if (cause != RemovalCause.EXPIRED && cause != RemovalCause.SIZE) {
+            return;
+        }
+        final Metadata entry = notification.getValue();
+        if (entry != null && entry.prefetched && !entry.served.get()) {
+            wasted.increment();
+        }
+    }
+
+    /**
+     * A metadata response body with its entity tag and content type.
+     */
+    public static final class Metadata {
+        private final CachedResponse response;
+        private final String contentType;
+        private final boolean prefetched;
+        private final AtomicBoolean served = new AtomicBoolean();
+
+        public Metadata(final byte[] body, final String contentType, final boolean prefetched) {
+            this.response = new CachedResponse(body);
+            this.contentType = contentType;
+            this.prefetched = prefetched;
+        }
+
+        public CachedResponse getResponse() {
+            return response;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+    }
+}
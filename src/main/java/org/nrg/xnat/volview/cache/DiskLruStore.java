@@ -0,0 +1,248 @@
+package org.nrg.xnat.volview.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The size-bounded, least-recently-used index over the files of a disk cache in a {@link CacheDirectory}.
+ * Callers write each file into the directory and then add its entry here, which evicts least recently used
+ * entries until the store is back under its size limit and deletes the files of everything evicted or
+ * removed. Entries may belong to a group, e.g. a study or a session, so a group can be dropped without
+ * scanning the whole store.
+ * <p>
+ * The index is guarded by a single lock that is never held while files are deleted.
+ */
+final class DiskLruStore<E extends DiskLruStore.StoredFile> {
+    private static final Logger log = LoggerFactory.getLogger(DiskLruStore.class);
+
+    private final String description;
+    private final Path directory;
+    private final long maximumBytes;
+    private final Map<String, Record<E>> records = new LinkedHashMap<>(1024, 0.75f, true);
+    private final Map<String, Set<String>> groups = new HashMap<>();
+    private final LongAdder evictions = new LongAdder();
+    private long totalBytes;
+
+    /**
+     * Creates a store of at most the given number of bytes; the description names its files in log
+     * messages, e.g. <code>thumbnail</code>.
+     */
+    DiskLruStore(final String description, final Path directory, final long maximumBytes) {
+        this.description = description;
+        this.directory = directory;
+        this.maximumBytes = maximumBytes;
+    }
+
+    /**
+     * Creates the directory, or clears what a previous run left in it, since the index doesn't survive a
+     * restart.
+     */
+    void prepare() throws IOException {
+        CacheDirectory.prepare(directory);
+    }
+
+    Path getDirectory() {
+        return directory;
+    }
+
+    long getMaximumBytes() {
+        return maximumBytes;
+    }
+
+    boolean fits(final long size) {
+        return size <= maximumBytes;
+    }
+
+    /**
+     * Returns the entry for the key and marks it as recently used, or null if there is none.
+     */
+    E get(final String key) {
+        final Record<E> record;
+        synchronized (records) {
+            record = records.get(key);
+        }
+        return record == null ? null : record.entry;
+    }
+
+    /**
+     * Adds the entry, whose file is already in the directory, replacing any entry for the key. The file
+     * of the replaced entry is deleted unless the new entry reuses it.
+     */
+    void put(final String key, final String group, final E entry) {
+        final List<Path> deleted = new ArrayList<>();
+        synchronized (records) {
+            final Record<E> previous = unlink(key);
+            if (previous != null && !previous.entry.getFile().equals(entry.getFile())) {
+                deleted.add(previous.entry.getFile());
+            }
+            records.put(key, new Record<>(entry, group));
+            if (group != null) {
+                groups.computeIfAbsent(group, ignored -> new HashSet<>()).add(key);
+            }
+            totalBytes += entry.getSize();
+            final Iterator<Map.Entry<String, Record<E>>> iterator = records.entrySet().iterator();
+            while (totalBytes > maximumBytes && iterator.hasNext()) {
+                final Map.Entry<String, Record<E>> eldest = iterator.next();
+                if (eldest.getKey().equals(key)) {
+                    continue;
+                }
+                iterator.remove();
+                unlinkGroup(eldest.getKey(), eldest.getValue());
+                totalBytes -= eldest.getValue().entry.getSize();
+                deleted.add(eldest.getValue().entry.getFile());
+                evictions.increment();
+            }
+        }
+        deleted.forEach(this::deleteQuietly);
+    }
+
+    void remove(final String key) {
+        final Record<E> record;
+        synchronized (records) {
+            record = unlink(key);
+        }
+        if (record != null) {
+            deleteQuietly(record.entry.getFile());
+        }
+    }
+
+    /**
+     * Removes the key only while it still maps to the given entry, so a newer entry put meanwhile stays.
+     */
+    void remove(final String key, final E expected) {
+        final Record<E> record;
+        synchronized (records) {
+            final Record<E> current = records.get(key);
+            record = current != null && current.entry == expected ? unlink(key) : null;
+        }
+        if (record != null) {
+            deleteQuietly(record.entry.getFile());
+        }
+    }
+
+    /**
+     * Removes every entry in the group and returns how many there were.
+     */
+    int removeGroup(final String group) {
+        final List<Path> deleted = new ArrayList<>();
+        synchronized (records) {
+            final Set<String> keys = groups.remove(group);
+            if (keys == null) {
+                return 0;
+            }
+            for (final String key : keys) {
+                final Record<E> record = records.remove(key);
+                if (record != null) {
+                    totalBytes -= record.entry.getSize();
+                    deleted.add(record.entry.getFile());
+                }
+            }
+        }
+        deleted.forEach(this::deleteQuietly);
+        return deleted.size();
+    }
+
+    /**
+     * Returns the groups whose name starts with the prefix, e.g. every study cached in a project.
+     */
+    Set<String> findGroups(final String prefix) {
+        final Set<String> found = new HashSet<>();
+        synchronized (records) {
+            for (final String group : groups.keySet()) {
+                if (group.startsWith(prefix)) {
+                    found.add(group);
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Removes every entry and returns how many there were.
+     */
+    int clear() {
+        final List<Path> deleted = new ArrayList<>();
+        synchronized (records) {
+            records.values().forEach(record -> deleted.add(record.entry.getFile()));
+            records.clear();
+            groups.clear();
+            totalBytes = 0;
+        }
+        deleted.forEach(this::deleteQuietly);
+        return deleted.size();
+    }
+
+    /**
+     * Adds the entry count, bytes used and the size limit to the statistics.
+     */
+    void addUsage(final Map<String, Object> statistics) {
+        synchronized (records) {
+            statistics.put("size", records.size());
+            statistics.put("bytes", totalBytes);
+        }
+        statistics.put("maximumBytes", maximumBytes);
+    }
+
+    long getEvictions() {
+        return evictions.sum();
+    }
+
+    private Record<E> unlink(final String key) {
+        final Record<E> record = records.remove(key);
+        if (record != null) {
+            totalBytes -= record.entry.getSize();
+            unlinkGroup(key, record);
+        }
+        return record;
+    }
+
+    private void unlinkGroup(final String key, final Record<E> record) {
+        if (record.group == null) {
+            return;
+        }
+        final Set<String> keys = groups.get(record.group);
+        if (keys != null && keys.remove(key) && keys.isEmpty()) {
+            groups.remove(record.group);
+        }
+    }
+
+    private void deleteQuietly(final Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("Failed to delete cached {} {}", description, file, e);
+        }
+    }
+
+    /**
+     * A cached file and its size in bytes.
+     */
+    interface StoredFile {
+        Path getFile();
+
+        long getSize();
+    }
+
+    private static final class Record<E> {
+        private final E entry;
+        private final String group;
+
+        private Record(final E entry, final String group) {
+            this.entry = entry;
+            this.group = group;
+        }
+    }
+}
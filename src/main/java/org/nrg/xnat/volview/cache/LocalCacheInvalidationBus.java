@@ -0,0 +1,55 @@
+package org.nrg.xnat.volview.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * In-process {@link CacheInvalidationBus} for single-node deployments: invalidations go straight to this
+ * node's listeners and nowhere else.
+ */
+public class LocalCacheInvalidationBus implements CacheInvalidationBus {
+    private static final Logger log = LoggerFactory.getLogger(LocalCacheInvalidationBus.class);
+
+    private final List<Consumer<CacheInvalidation>> listeners = new CopyOnWriteArrayList<>();
+    private final LongAdder published = new LongAdder();
+
+    @Override
+    public void publish(final CacheInvalidation invalidation) {
+        published.increment();
+        deliver(invalidation);
+    }
+
+    @Override
+    public void subscribe(final Consumer<CacheInvalidation> listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public Map<String, Object> getStatistics() {
+        final Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("implementation", "local");
+        statistics.put("published", published.sum());
+        return statistics;
+    }
+
+    /**
+     * Hands the invalidation to every listener on this node. A failing listener doesn't keep the others
+     * from seeing it.
+     */
+    protected void deliver(final CacheInvalidation invalidation) {
+        for (final Consumer<CacheInvalidation> listener : listeners) {
+            try {
+                listener.accept(invalidation);
+            } catch (RuntimeException e) {
+                log.error("Failed to apply VolView cache invalidation {}", invalidation, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package org.nrg.xnat.volview.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Bounded cache of serialized <code>/volview/config/projects/{projectId}</code> responses. Entries are
+ * keyed by project, the externally visible base URL and path prefix derived from the forwarding
+ * headers, and the settings snapshot version, so settings changes never serve stale content.
+ */
+@Component
+public class ProjectConfigCache {
+    private static final Logger log = LoggerFactory.getLogger(ProjectConfigCache.class);
+
+    private final Cache<Key, CachedResponse> cache;
+    private final long maximumSize;
+
+    public ProjectConfigCache(@Value("${volview.config.cache.max-entries:2000}") final long maximumSize) {
+        this.maximumSize = maximumSize;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .recordStats()
+                .build();
+        log.info("VolView project config cache initialized with maximum size {}", maximumSize);
+    }
+
+    public CachedResponse get(final Key key) {
+        return cache.getIfPresent(key);
+    }
+
+    public void put(final Key key, final CachedResponse response) {
+        cache.put(key, response);
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    public Map<String, Object> getStatistics() {
+        final CacheStats stats = cache.stats();
+        final Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("size", cache.size());
+        statistics.put("maximumSize", maximumSize);
+        statistics.put("hits", stats.hitCount());
+        statistics.put("misses", stats.missCount());
+        statistics.put("evictions", stats.evictionCount());
+        statistics.put("hitRate", stats.hitRate());
+        return statistics;
+    }
+
+    public static final class Key {
+        private final String projectId;
+        private final String baseUrl;
+        private final String pathPrefix;
+        private final long settingsVersion;
+        private final int hash;
+
+        public Key(final String projectId, final String baseUrl, final String pathPrefix, final long settingsVersion) {
+            this.projectId = projectId;
+            this.baseUrl = baseUrl;
+            this.pathPrefix = pathPrefix;
+            this.settingsVersion = settingsVersion;
+            this.hash = Objects.hash(projectId, baseUrl, pathPrefix, settingsVersion);
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            final Key key = (Key) other;
+            return settingsVersion == key.settingsVersion
+                   && projectId.equals(key.projectId)
+                   && baseUrl.equals(key.baseUrl)
+                   && pathPrefix.equals(key.pathPrefix);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
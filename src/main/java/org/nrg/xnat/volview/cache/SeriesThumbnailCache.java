@@ -0,0 +1,197 @@
+package org.nrg.xnat.volview.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.DigestUtils;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Rendered series thumbnails by SeriesInstanceUID, in two tiers: a small in-memory cache for the
+ * thumbnails in use, backed by a larger least-recently-used store on local disk. Each thumbnail
+ * remembers the session it was rendered from, so thumbnails can be dropped when the session changes and
+ * callers can tell whether a request for another session still needs its access checked. The disk index
+ * only lives in memory, so the cache's own subdirectory of the configured directory is cleared on startup.
+ */
+@Component
+public class SeriesThumbnailCache {
+    private static final Logger log = LoggerFactory.getLogger(SeriesThumbnailCache.class);
+
+    private final Cache<String, Thumbnail> memory;
+    // Entries are grouped by the session they were rendered from.
+    private final DiskLruStore<Entry> store;
+    private final LongAdder memoryHits = new LongAdder();
+    private final LongAdder diskHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    @Autowired
+    public SeriesThumbnailCache(@Value("${volview.thumbnail.cache.dir:}") final String cacheDirectory,
+                                @Value("${volview.thumbnail.cache.max-size-mb:512}") final long maximumSizeMb,
+                                @Value("${volview.thumbnail.cache.memory-mb:32}") final long memorySizeMb) {
+        this.store = new DiskLruStore<>("thumbnail",
+                                        CacheDirectory.resolve(cacheDirectory == null || cacheDirectory.trim().isEmpty()
+                                                               ? Paths.get(System.getProperty("java.io.tmpdir"), "xnat-volview", "thumbnails")
+                                                               : Paths.get(cacheDirectory.trim())),
+                                        maximumSizeMb * 1024L * 1024L);
+        this.memory = CacheBuilder.newBuilder()
+                .maximumWeight(memorySizeMb * 1024L * 1024L)
+                .weigher((String seriesInstanceUid, Thumbnail thumbnail) -> thumbnail.getImage().getBody().length)
+                .build();
+    }
+
+    @PostConstruct
+    public void initialize() {
+        try {
+            store.prepare();
+            log.info("VolView thumbnail cache uses {} with at most {} MB", store.getDirectory(), store.getMaximumBytes() / (1024L * 1024L));
+        } catch (IOException e) {
+            log.error("Failed to prepare the VolView thumbnail cache directory {}", store.getDirectory(), e);
+        }
+    }
+
+    /**
+     * Returns the cached thumbnail of the series, reading it back from disk if it's no longer in memory,
+     * or null if there is none.
+     */
+    public Thumbnail get(final String seriesInstanceUid) {
+        final Thumbnail cached = memory.getIfPresent(seriesInstanceUid);
+        if (cached != null) {
+            memoryHits.increment();
+            return cached;
+        }
+        final Entry entry = store.get(seriesInstanceUid);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        try {
+            final Thumbnail thumbnail = new Thumbnail(entry.sessionId, Files.readAllBytes(entry.file));
+            memory.put(seriesInstanceUid, thumbnail);
+            diskHits.increment();
+            return thumbnail;
+        } catch (IOException e) {
+            log.warn("Failed to read cached thumbnail {} for series {}", entry.file, seriesInstanceUid, e);
+            invalidate(seriesInstanceUid);
+            misses.increment();
+            return null;
+        }
+    }
+
+    /**
+     * Caches the thumbnail in memory and writes it to disk, evicting least recently used thumbnails
+     * until the disk store is back under its size limit.
+     */
+    public Thumbnail put(final String seriesInstanceUid, final String sessionId, final byte[] image) {
+        final Thumbnail thumbnail = new Thumbnail(sessionId, image);
+        memory.put(seriesInstanceUid, thumbnail);
+        if (!store.fits(image.length)) {
+            return thumbnail;
+        }
+        final Path file = store.getDirectory().resolve(DigestUtils.md5DigestAsHex(seriesInstanceUid.getBytes(StandardCharsets.UTF_8)) + ".png");
+        try {
+            final Path temp = Files.createTempFile(store.getDirectory(), "render-", ".tmp");
+            Files.write(temp, image);
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            log.warn("Failed to write the thumbnail for series {} to {}", seriesInstanceUid, file, e);
+            return thumbnail;
+        }
+        // A re-rendered thumbnail replaces the series' file in place, which the store leaves alone.
+        store.put(seriesInstanceUid, sessionId, new Entry(file, image.length, sessionId));
+        return thumbnail;
+    }
+
+    public void invalidate(final String seriesInstanceUid) {
+        memory.invalidate(seriesInstanceUid);
+        store.remove(seriesInstanceUid);
+    }
+
+    /**
+     * Drops the thumbnails rendered from the session, e.g. after its files changed or it was deleted.
+     */
+    public void invalidateSession(final String sessionId) {
+        if (sessionId == null) {
+            return;
+        }
+        memory.asMap().values().removeIf(thumbnail -> sessionId.equals(thumbnail.sessionId));
+        store.removeGroup(sessionId);
+    }
+
+    public void invalidateAll() {
+        memory.invalidateAll();
+        store.clear();
+    }
+
+    public Map<String, Object> getStatistics() {
+        final Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("memorySize", memory.size());
+        store.addUsage(statistics);
+        final long memoryHitCount = memoryHits.sum();
+        final long diskHitCount = diskHits.sum();
+        final long missCount = misses.sum();
+        final long total = memoryHitCount + diskHitCount + missCount;
+        statistics.put("memoryHits", memoryHitCount);
+        statistics.put("diskHits", diskHitCount);
+        statistics.put("misses", missCount);
+        statistics.put("evictions", store.getEvictions());
+        statistics.put("hitRate", total == 0 ? 1.0 : (double) (memoryHitCount + diskHitCount) / total);
+        return statistics;
+    }
+
+    /**
+     * A PNG thumbnail and the session it was rendered from.
+     */
+    public static final class Thumbnail {
+        private final String sessionId;
+        private final CachedResponse image;
+
+        private Thumbnail(final String sessionId, final byte[] image) {
+            this.sessionId = sessionId;
+            this.image = new CachedResponse(image);
+        }
+
+        public String getSessionId() {
+            return sessionId;
+        }
+
+        public CachedResponse getImage() {
+            return image;
+        }
+    }
+
+    private static final class Entry implements DiskLruStore.StoredFile {
+        private final Path file;
+        private final long size;
+        private final String sessionId;
+
+        private Entry(final Path file, final long size, final String sessionId) {
+            this.file = file;
+            this.size = size;
+            this.sessionId = sessionId;
+        }
+
+        @Override
+        public Path getFile() {
+            return file;
+        }
+
+        @Override
+        public long getSize() {
+            return size;
+        }
+    }
+}
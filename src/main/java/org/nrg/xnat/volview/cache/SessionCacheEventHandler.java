@@ -0,0 +1,217 @@
+package org.nrg.xnat.volview.cache;
+
+import org.nrg.xdat.om.XnatAbstractresource;
+import org.nrg.xdat.om.XnatImagescandata;
+import org.nrg.xdat.om.XnatImagesessiondata;
+import org.nrg.xdat.om.XnatProjectdata;
+import org.nrg.xft.event.XftItemEventI;
+import org.nrg.xft.event.methods.AbstractXftItemEventHandlerMethod;
+import org.nrg.xft.event.methods.XftItemEventCriteria;
+import org.nrg.xft.exception.ElementNotFoundException;
+import org.nrg.xft.exception.XFTInitException;
+import org.nrg.xft.schema.Wrappers.GenericWrapper.GenericWrapperElement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps the session caches in sync with the archive. XFT item events are turned into
+ * {@link CacheInvalidation cache invalidations} and published on the {@link CacheInvalidationBus}, and
+ * every node applies them the same way: cached session descriptors are dropped when an experiment is
+ * relabeled, shared, moved or deleted, cached study indexes are updated as image sessions are archived or
+ * changed, and cached DICOMweb responses, metadata, launch manifests and series thumbnails are dropped for
+ * sessions that change. Events for a scan or resource of an image session are published as a change of
+ * the session, which is looked up in the database, so every node can apply them without a lookup of its
+ * own. When a project is deleted, everything cached under the project is dropped, together with the
+ * sessions the caches know it owned. Only image sessions have anything cached for them, so events for
+ * subjects, assessors and other experiments are ignored.
+ */
+@Component
+public class SessionCacheEventHandler extends AbstractXftItemEventHandlerMethod {
+    private static final Logger log = LoggerFactory.getLogger(SessionCacheEventHandler.class);
+
+    // Deleted scans and resources are only left in the XFT history tables.
+    private static final String QUERY_SCAN_SESSION = "SELECT image_session_id FROM xnat_imagescandata WHERE xnat_imagescandata_id = :id "
+                                                     + "UNION SELECT image_session_id FROM xnat_imagescandata_history WHERE xnat_imagescandata_id = :id";
+    private static final String QUERY_RESOURCE_SESSION = "SELECT scan.image_session_id FROM xnat_abstractresource resource "
+                                                         + "JOIN xnat_imagescandata scan ON scan.xnat_imagescandata_id = resource.xnat_imagescandata_xnat_imagescandata_id "
+                                                         + "WHERE resource.xnat_abstractresource_id = :id "
+                                                         + "UNION SELECT scan.image_session_id FROM xnat_abstractresource_history resource "
+                                                         + "JOIN xnat_imagescandata scan ON scan.xnat_imagescandata_id = resource.xnat_imagescandata_xnat_imagescandata_id "
+                                                         + "WHERE resource.xnat_abstractresource_id = :id "
+                                                         + "UNION SELECT link.xnat_experimentdata_id FROM xnat_experimentdata_resource link "
+                                                         + "JOIN xnat_imagesessiondata session ON session.id = link.xnat_experimentdata_id "
+                                                         + "WHERE link.xnat_abstractresource_xnat_abstractresource_id = :id";
+
+    private enum ItemKind {
+        IMAGE_SESSION, IMAGE_SCAN, RESOURCE, OTHER
+    }
+
+    private final NamedParameterJdbcTemplate template;
+
+    private final SessionDescriptorCache sessionDescriptors;
+    private final StudyIndexCache studyIndexes;
+    private final DicomwebDiskCache dicomwebCache;
+    private final SessionManifestCache manifests;
+    private final DicomwebMetadataCache metadata;
+    private final SeriesThumbnailCache thumbnails;
+    private final CacheInvalidationBus invalidationBus;
+    private final ConcurrentMap<String, ItemKind> itemKinds = new ConcurrentHashMap<>();
+
+    @Autowired
+    public SessionCacheEventHandler(final NamedParameterJdbcTemplate template,
+                                    final SessionDescriptorCache sessionDescriptors,
+                                    final StudyIndexCache studyIndexes,
+                                    final DicomwebDiskCache dicomwebCache,
+                                    final SessionManifestCache manifests,
+                                    final DicomwebMetadataCache metadata,
+                                    final SeriesThumbnailCache thumbnails,
+                                    final CacheInvalidationBus invalidationBus) {
+        super(XftItemEventCriteria.builder().actions(XftItemEventI.CREATE, XftItemEventI.UPDATE, XftItemEventI.DELETE, XftItemEventI.SHARE, XftItemEventI.MOVE).build());
+        this.template = template;
+        this.sessionDescriptors = sessionDescriptors;
+        this.studyIndexes = studyIndexes;
+        this.dicomwebCache = dicomwebCache;
+        this.manifests = manifests;
+        this.metadata = metadata;
+        this.thumbnails = thumbnails;
+        this.invalidationBus = invalidationBus;
+        invalidationBus.subscribe(this::apply);
+    }
+
+    @Override
+    protected boolean handleEventImpl(final XftItemEventI event) {
+        final String xsiType = event.getXsiType();
+        final boolean deleted = XftItemEventI.DELETE.equals(event.getAction());
+        if (XnatProjectdata.SCHEMA_ELEMENT_NAME.equals(xsiType)) {
+            if (deleted) {
+                invalidationBus.publish(new CacheInvalidation(CacheInvalidation.Scope.PROJECT_REMOVED, event.getId()));
+            }
+            return true;
+        }
+        switch (getItemKind(xsiType)) {
+            case IMAGE_SESSION:
+                invalidationBus.publish(new CacheInvalidation(deleted ? CacheInvalidation.Scope.SESSION_REMOVED : CacheInvalidation.Scope.SESSION_CHANGED, event.getId()));
+                break;
+            case IMAGE_SCAN:
+                publishSessionChanged(QUERY_SCAN_SESSION, xsiType, event.getId());
+                break;
+            case RESOURCE:
+                publishSessionChanged(QUERY_RESOURCE_SESSION, xsiType, event.getId());
+                break;
+            default:
+                break;
+        }
+        return true;
+    }
+
+    /**
+     * Publishes a change of the image sessions the scan or resource belongs to. Resources of subjects,
+     * projects and assessors have no image session and are ignored.
+     */
+    private void publishSessionChanged(final String query, final String xsiType, final String id) {
+        final List<String> sessionIds;
+        try {
+            sessionIds = template.queryForList(query, new MapSqlParameterSource("id", Integer.valueOf(id)), String.class);
+        } catch (NumberFormatException e) {
+            log.debug("Ignoring the {} event for {}, which isn't a numeric ID", xsiType, id);
+            return;
+        } catch (DataAccessException e) {
+            log.warn("Failed to look up the image session of {} {}", xsiType, id, e);
+            return;
+        }
+        for (final String sessionId : new HashSet<>(sessionIds)) {
+            invalidationBus.publish(new CacheInvalidation(CacheInvalidation.Scope.SESSION_CHANGED, sessionId));
+        }
+    }
+
+    /**
+     * Returns whether the data type is, or extends, an image session, an image scan or a resource,
+     * remembering the answer per type. Types XFT can't resolve fall back to the <code>...SessionData</code>
+     * and <code>...ScanData</code> naming conventions and the <code>xnat:resource...</code> types.
+     */
+    private ItemKind getItemKind(final String xsiType) {
+        if (xsiType == null) {
+            return ItemKind.OTHER;
+        }
+        final ItemKind known = itemKinds.get(xsiType);
+        if (known != null) {
+            return known;
+        }
+        try {
+            final GenericWrapperElement element = GenericWrapperElement.GetElement(xsiType);
+            final ItemKind kind = element.instanceOf(XnatImagesessiondata.SCHEMA_ELEMENT_NAME) ? ItemKind.IMAGE_SESSION
+                                  : element.instanceOf(XnatImagescandata.SCHEMA_ELEMENT_NAME) ? ItemKind.IMAGE_SCAN
+                                  : element.instanceOf(XnatAbstractresource.SCHEMA_ELEMENT_NAME) ? ItemKind.RESOURCE
+                                  : ItemKind.OTHER;
+            itemKinds.put(xsiType, kind);
+            return kind;
+        } catch (XFTInitException | ElementNotFoundException e) {
+            log.debug("Couldn't resolve data type {}; deciding what it is by its name", xsiType, e);
+            return xsiType.endsWith("SessionData") ? ItemKind.IMAGE_SESSION
+                   : xsiType.endsWith("ScanData") ? ItemKind.IMAGE_SCAN
+                   : xsiType.startsWith("xnat:resource") || xsiType.equals(XnatAbstractresource.SCHEMA_ELEMENT_NAME) ? ItemKind.RESOURCE
+                   : ItemKind.OTHER;
+        }
+    }
+
+    private void apply(final CacheInvalidation invalidation) {
+        switch (invalidation.getScope()) {
+            case PROJECT_REMOVED:
+                invalidateProject(invalidation.getKey());
+                break;
+            case SESSION_CHANGED:
+                invalidateSession(invalidation.getKey());
+                studyIndexes.sessionChanged(invalidation.getKey());
+                break;
+            case SESSION_REMOVED:
+                invalidateSession(invalidation.getKey());
+                studyIndexes.sessionRemoved(invalidation.getKey());
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Drops what's cached under the project and for the sessions it owned. Those are only known while
+     * their descriptors or the project's index are cached; anything else left for them can't be reached
+     * without a descriptor and ages out. Sessions from the project's index may also be shared ones, which
+     * only costs them a rebuild, so only the owned ones are taken out of other projects' indexes.
+     */
+    private void invalidateProject(final String projectId) {
+        final Set<String> owned = sessionDescriptors.invalidateProject(projectId);
+        final Set<String> sessionIds = new HashSet<>(owned);
+        sessionIds.addAll(studyIndexes.invalidateProject(projectId));
+        dicomwebCache.invalidateProject(projectId);
+        metadata.invalidateProject(projectId);
+        for (final String sessionId : sessionIds) {
+            invalidateSession(sessionId);
+        }
+        for (final String sessionId : owned) {
+            studyIndexes.sessionRemoved(sessionId);
+        }
+        log.debug("Dropped what was cached for project {} and {} of its sessions", projectId, sessionIds.size());
+    }
+
+    private void invalidateSession(final String sessionId) {
+        // The DICOMweb cache remembers which sessions held each study it cached, in whichever project, so
+        // this works the same after a move or delete.
+        for (final String studyKey : dicomwebCache.invalidateSession(sessionId)) {
+            metadata.invalidateStudy(studyKey);
+        }
+        sessionDescriptors.invalidate(sessionId);
+        manifests.invalidate(sessionId);
+        thumbnails.invalidateSession(sessionId);
+    }
+}
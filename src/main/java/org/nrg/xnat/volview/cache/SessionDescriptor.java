@@ -0,0 +1,63 @@
+package org.nrg.xnat.volview.cache;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * The handful of image session fields VolView needs to launch a session, without the cost of
+ * materializing the full XFT item.
+ */
+public final class SessionDescriptor {
+    private final String id;
+    private final String xsiType;
+    private final String project;
+    private final String label;
+    private final String studyInstanceUid;
+    private final Set<String> sharedProjects;
+
+    public SessionDescriptor(final String id,
+                             final String xsiType,
+                             final String project,
+                             final String label,
+                             final String studyInstanceUid,
+                             final Set<String> sharedProjects) {
+        this.id = id;
+        this.xsiType = xsiType;
+        this.project = project;
+        this.label = label;
+        this.studyInstanceUid = studyInstanceUid;
+        this.sharedProjects = sharedProjects == null ? Collections.<String>emptySet() : Collections.unmodifiableSet(sharedProjects);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getXsiType() {
+        return xsiType;
+    }
+
+    public String getProject() {
+        return project;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public String getStudyInstanceUid() {
+        return studyInstanceUid;
+    }
+
+    public Set<String> getSharedProjects() {
+        return sharedProjects;
+    }
+
+    /**
+     * Mirrors the original check against the XFT item: the owning project matches case-insensitively,
+     * shared projects match exactly.
+     */
+    public boolean belongsTo(final String projectId) {
+        return (project != null && project.equalsIgnoreCase(projectId)) || sharedProjects.contains(projectId);
+    }
+}
@@ -0,0 +1,243 @@
+package org.nrg.xnat.volview.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import org.nrg.xdat.om.XnatImagesessiondata;
+import org.nrg.xdat.security.helpers.Permissions;
+import org.nrg.xft.security.UserI;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolves {@link SessionDescriptor session descriptors} with a single narrow query and caches them by
+ * session ID. Per-user read access is cached separately with a much shorter TTL so permission
+ * changes are picked up quickly.
+ */
+@Component
+public class SessionDescriptorCache {
+    private static final Logger log = LoggerFactory.getLogger(SessionDescriptorCache.class);
+
+    private static final String QUERY_SESSION = "SELECT expt.id, expt.project, expt.label, session.uid, element.element_name AS xsi_type, "
+                                                + "(SELECT string_agg(share.project, ',') FROM xnat_experimentdata_share share "
+                                                + "WHERE share.sharing_share_xnat_experimentda_id = expt.id) AS shared_projects "
+                                                + "FROM xnat_experimentdata expt "
+                                                + "JOIN xnat_imagesessiondata session ON session.id = expt.id "
+                                                + "LEFT JOIN xdat_meta_element element ON element.xdat_meta_element_id = expt.extension "
+                                                + "WHERE expt.id = :sessionId";
+
+    private final NamedParameterJdbcTemplate template;
+    private final Cache<String, SessionDescriptor> descriptors;
+    private final Cache<AccessKey, Boolean> access;
+    private final Cache<AccessKey, Boolean> projectAccess;
+
+    @Autowired
+    public SessionDescriptorCache(final NamedParameterJdbcTemplate template,
+                                  @Value("${volview.session.cache.max-entries:10000}") final long maximumSize,
+                                  @Value("${volview.session.cache.ttl-seconds:300}") final long ttlSeconds,
+                                  @Value("${volview.session.access-cache.ttl-seconds:30}") final long accessTtlSeconds) {
+        this.template = template;
+        this.descriptors = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+        this.access = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(accessTtlSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+        this.projectAccess = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(accessTtlSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+        log.info("VolView session descriptor cache initialized with maximum size {}, TTL {}s and access TTL {}s", maximumSize, ttlSeconds, accessTtlSeconds);
+    }
+
+    /**
+     * Returns the descriptor for the session with the given ID, or null if no such image session exists.
+     * This does not check whether any particular user can see the session; use
+     * {@link #canRead(UserI, SessionDescriptor)}.
+     */
+    public SessionDescriptor getDescriptor(final String sessionId) {
+        final SessionDescriptor cached = descriptors.getIfPresent(sessionId);
+        if (cached != null) {
+            return cached;
+        }
+        final SessionDescriptor loaded = load(sessionId);
+        if (loaded != null) {
+            descriptors.put(sessionId, loaded);
+        }
+        return loaded;
+    }
+
+    public boolean canRead(final UserI user, final SessionDescriptor descriptor) {
+        final AccessKey key = new AccessKey(user.getUsername(), descriptor.getId());
+        final Boolean cached = access.getIfPresent(key);
+        if (cached != null) {
+            return cached;
+        }
+        final boolean allowed = checkAccess(user, descriptor);
+        access.put(key, allowed);
+        return allowed;
+    }
+
+    /**
+     * Checks whether the user can read the project itself, with the same short TTL as session access.
+     */
+    public boolean canReadProject(final UserI user, final String projectId) {
+        final AccessKey key = new AccessKey(user.getUsername(), projectId);
+        final Boolean cached = projectAccess.getIfPresent(key);
+        if (cached != null) {
+            return cached;
+        }
+        final boolean allowed = checkProjectAccess(user, projectId);
+        projectAccess.put(key, allowed);
+        return allowed;
+    }
+
+    public void invalidate(final String sessionId) {
+        if (sessionId == null) {
+            return;
+        }
+        descriptors.invalidate(sessionId);
+        access.asMap().keySet().removeIf(key -> key.id.equals(sessionId));
+        log.debug("Invalidated cached VolView session descriptor for {}", sessionId);
+    }
+
+    /**
+     * Drops the cached descriptors of the project's own and shared sessions and the cached access to
+     * them and to the project, and returns the IDs of the cached sessions the project owned.
+     */
+    public Set<String> invalidateProject(final String projectId) {
+        final Set<String> owned = new HashSet<>();
+        final Set<String> dropped = new HashSet<>();
+        for (final SessionDescriptor descriptor : descriptors.asMap().values()) {
+            if (descriptor.belongsTo(projectId)) {
+                dropped.add(descriptor.getId());
+                if (descriptor.getProject() != null && descriptor.getProject().equalsIgnoreCase(projectId)) {
+                    owned.add(descriptor.getId());
+                }
+            }
+        }
+        descriptors.invalidateAll(dropped);
+        access.asMap().keySet().removeIf(key -> dropped.contains(key.id));
+        projectAccess.asMap().keySet().removeIf(key -> key.id.equals(projectId));
+        log.debug("Invalidated {} cached VolView session descriptors for project {}", dropped.size(), projectId);
+        return owned;
+    }
+
+    public void invalidateAll() {
+        descriptors.invalidateAll();
+        access.invalidateAll();
+        projectAccess.invalidateAll();
+        log.debug("Invalidated all cached VolView session descriptors");
+    }
+
+    public Map<String, Object> getStatistics() {
+        final Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("descriptors", toMap(descriptors.size(), descriptors.stats()));
+        statistics.put("access", toMap(access.size(), access.stats()));
+        statistics.put("projectAccess", toMap(projectAccess.size(), projectAccess.stats()));
+        return statistics;
+    }
+
+    private SessionDescriptor load(final String sessionId) {
+        try {
+            final List<SessionDescriptor> results = template.query(QUERY_SESSION, new MapSqlParameterSource("sessionId", sessionId), (resultSet, rowNum) -> {
+                final String sharedProjects = resultSet.getString("shared_projects");
+                final Set<String> shares = sharedProjects == null ? new HashSet<String>() : new HashSet<>(Arrays.asList(sharedProjects.split(",")));
+                final String xsiType = resultSet.getString("xsi_type");
+                return new SessionDescriptor(resultSet.getString("id"),
+                        xsiType == null ? XnatImagesessiondata.SCHEMA_ELEMENT_NAME : xsiType,
+                        resultSet.getString("project"),
+                        resultSet.getString("label"),
+                        resultSet.getString("uid"),
+                        shares);
+            });
+            return results.isEmpty() ? null : results.get(0);
+        } catch (DataAccessException e) {
+            log.error("Failed to load VolView session descriptor for {}", sessionId, e);
+            return null;
+        }
+    }
+
+    private static boolean checkAccess(final UserI user, final SessionDescriptor descriptor) {
+        try {
+            if (descriptor.getProject() != null && Permissions.canRead(user, descriptor.getXsiType() + "/project", descriptor.getProject())) {
+                return true;
+            }
+            for (final String sharedProject : descriptor.getSharedProjects()) {
+                if (Permissions.canRead(user, descriptor.getXsiType() + "/sharing/share/project", sharedProject)) {
+                    return true;
+                }
+            }
+            return false;
+        } catch (Exception e) {
+            log.error("Failed to check whether user {} can read session {}", user.getUsername(), descriptor.getId(), e);
+            return false;
+        }
+    }
+
+    private static boolean checkProjectAccess(final UserI user, final String projectId) {
+        try {
+            return Permissions.canRead(user, "xnat:projectData/ID", projectId);
+        } catch (Exception e) {
+            log.error("Failed to check whether user {} can read project {}", user.getUsername(), projectId, e);
+            return false;
+        }
+    }
+
+    private static Map<String, Object> toMap(final long size, final CacheStats stats) {
+        final Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("size", size);
+        statistics.put("hits", stats.hitCount());
+        statistics.put("misses", stats.missCount());
+        statistics.put("evictions", stats.evictionCount());
+        statistics.put("hitRate", stats.hitRate());
+        return statistics;
+    }
+
+    private static final class AccessKey {
+        private final String username;
+        private final String id;
+
+        private AccessKey(final String username, final String id) {
+            this.username = username;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof AccessKey)) {
+                return false;
+            }
+            final AccessKey key = (AccessKey) other;
+            return username.equals(key.username) && id.equals(key.id);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(username, id);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package org.nrg.xnat.volview.cache;
+
+/**
+ * A session's launch manifest, stored as gzip-compressed JSON, together with the fingerprint of the
+ * DICOM catalogs it was built from.
+ */
+public final class SessionManifest {
+    private final String fingerprint;
+    private final CachedResponse compressed;
+    private final int length;
+
+    public SessionManifest(final String fingerprint, final byte[] compressed, final int length) {
+        this.fingerprint = fingerprint;
+        this.compressed = new CachedResponse(compressed);
+        this.length = length;
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * Returns the gzip-compressed JSON body and its entity tag.
+     */
+    public CachedResponse getCompressed() {
+        return compressed;
+    }
+
+    /**
+     * Returns the length of the uncompressed JSON body.
+     */
+    public int getLength() {
+        return length;
+    }
+}
@@ -0,0 +1,80 @@
+package org.nrg.xnat.volview.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Compressed {@link SessionManifest session manifests} by session ID, bounded by their total compressed
+ * size. A cached manifest is only used while its catalog fingerprint matches the current one, so file
+ * changes that don't raise a session event are still picked up. Concurrent requests for a session that
+ * isn't cached share one build.
+ */
+@Component
+public class SessionManifestCache {
+    private static final Logger log = LoggerFactory.getLogger(SessionManifestCache.class);
+
+    private final Cache<String, SessionManifest> manifests;
+    private final long maximumBytes;
+
+    @Autowired
+    public SessionManifestCache(@Value("${volview.manifest.cache.max-size-mb:256}") final long maximumSizeMb) {
+        this.maximumBytes = maximumSizeMb * 1024L * 1024L;
+        this.manifests = CacheBuilder.newBuilder()
+                .maximumWeight(maximumBytes)
+                .weigher((String sessionId, SessionManifest manifest) -> manifest.getCompressed().getBody().length)
+                .recordStats()
+                .build();
+        log.info("VolView session manifest cache initialized with maximum size {} MB", maximumSizeMb);
+    }
+
+    /**
+     * Returns the cached manifest for the session if it was built from catalogs with the given
+     * fingerprint, or builds and caches a new one with the loader.
+     */
+    public SessionManifest get(final String sessionId, final String fingerprint, final Callable<SessionManifest> loader) throws ExecutionException {
+        final SessionManifest cached = manifests.get(sessionId, loader);
+        if (cached.getFingerprint().equals(fingerprint)) {
+            return cached;
+        }
+        manifests.asMap().remove(sessionId, cached);
+        return manifests.get(sessionId, loader);
+    }
+
+    public void invalidate(final String sessionId) {
+        if (sessionId != null) {
+            manifests.invalidate(sessionId);
+        }
+    }
+
+    public void invalidateAll() {
+        manifests.invalidateAll();
+    }
+
+    public Map<String, Object> getStatistics() {
+        final CacheStats stats = manifests.stats();
+        long bytes = 0;
+        for (final SessionManifest manifest : manifests.asMap().values()) {
+            bytes += manifest.getCompressed().getBody().length;
+        }
+        final Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("size", manifests.size());
+        statistics.put("bytes", bytes);
+        statistics.put("maximumBytes", maximumBytes);
+        statistics.put("hits", stats.hitCount());
+        statistics.put("misses", stats.missCount());
+        statistics.put("evictions", stats.evictionCount());
+        statistics.put("hitRate", stats.hitRate());
+        return statistics;
+    }
+}
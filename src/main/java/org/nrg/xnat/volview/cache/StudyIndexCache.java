@@ -0,0 +1,330 @@
+package org.nrg.xnat.volview.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Caches a compact, pre-sorted study index per project. Indexes are built with one query over the
+ * project's owned and shared image sessions and then updated in place as sessions are archived,
+ * changed or deleted, so large projects don't have to be re-read on every shell load.
+ */
+@Component
+public class StudyIndexCache {
+    private static final Logger log = LoggerFactory.getLogger(StudyIndexCache.class);
+
+    private static final String COLUMNS = "expt.id, COALESCE(%s, expt.label) AS label, to_char(expt.date, 'YYYYMMDD') AS study_date, "
+                                          + "session.uid, session.session_type, session.dcmpatientname ";
+    private static final String QUERY_PROJECT = "SELECT " + String.format(COLUMNS, "NULL") + "FROM xnat_experimentdata expt "
+                                                + "JOIN xnat_imagesessiondata session ON session.id = expt.id "
+                                                + "WHERE expt.project = :projectId "
+                                                + "UNION ALL "
+                                                + "SELECT " + String.format(COLUMNS, "share.label") + "FROM xnat_experimentdata_share share "
+                                                + "JOIN xnat_experimentdata expt ON expt.id = share.sharing_share_xnat_experimentda_id "
+                                                + "JOIN xnat_imagesessiondata session ON session.id = expt.id "
+                                                + "WHERE share.project = :projectId";
+    private static final String QUERY_SESSION = "SELECT expt.project AS project, " + String.format(COLUMNS, "NULL") + "FROM xnat_experimentdata expt "
+                                                + "JOIN xnat_imagesessiondata session ON session.id = expt.id "
+                                                + "WHERE expt.id = :sessionId "
+                                                + "UNION ALL "
+                                                + "SELECT share.project AS project, " + String.format(COLUMNS, "share.label") + "FROM xnat_experimentdata_share share "
+                                                + "JOIN xnat_experimentdata expt ON expt.id = share.sharing_share_xnat_experimentda_id "
+                                                + "JOIN xnat_imagesessiondata session ON session.id = expt.id "
+                                                + "WHERE expt.id = :sessionId";
+    private static final RowMapper<StudyIndexEntry> ENTRY_MAPPER = (resultSet, rowNum) -> new StudyIndexEntry(
+            resultSet.getString("id"),
+            resultSet.getString("label"),
+            resultSet.getString("uid"),
+            resultSet.getString("study_date"),
+            resultSet.getString("session_type"),
+            resultSet.getString("dcmpatientname"));
+
+    public enum SortField {
+        date(StudyIndexEntry::getStudyDate),
+        label(StudyIndexEntry::getLabel),
+        description(StudyIndexEntry::getDescription),
+        patientName(StudyIndexEntry::getPatientName);
+
+        private final Comparator<StudyIndexEntry> comparator;
+
+        SortField(final Function<StudyIndexEntry, String> extractor) {
+            this.comparator = Comparator.comparing(extractor, Comparator.nullsLast(String.CASE_INSENSITIVE_ORDER))
+                    .thenComparing(StudyIndexEntry::getSessionId);
+        }
+    }
+
+    private final NamedParameterJdbcTemplate template;
+    private final Cache<String, ProjectIndex> indexes;
+
+    @Autowired
+    public StudyIndexCache(final NamedParameterJdbcTemplate template,
+                           @Value("${volview.study-index.max-projects:200}") final long maximumSize,
+                           @Value("${volview.study-index.ttl-minutes:60}") final long ttlMinutes) {
+        this.template = template;
+        this.indexes = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterAccess(ttlMinutes, TimeUnit.MINUTES)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Returns up to <code>limit</code> entries of the project's study index that match the filter, in the
+     * requested order, starting after the position encoded in the cursor.
+     */
+    public Page getPage(final String projectId, final SortField sort, final boolean descending, final String filter, final String cursor, final int limit) {
+        final List<StudyIndexEntry> sorted = getIndex(projectId).getSorted(sort, descending);
+        final Comparator<StudyIndexEntry> comparator = descending ? sort.comparator.reversed() : sort.comparator;
+        final String lowerCaseFilter = filter == null ? null : filter.trim().toLowerCase();
+
+        int position = 0;
+        final StudyIndexEntry after = decodeCursor(cursor, sort);
+        if (after != null) {
+            final int found = Collections.binarySearch(sorted, after, comparator);
+            position = found >= 0 ? found + 1 : -found - 1;
+        }
+
+        final List<StudyIndexEntry> entries = new ArrayList<>(Math.min(limit, sorted.size()));
+        for (; position < sorted.size() && entries.size() < limit; position++) {
+            final StudyIndexEntry entry = sorted.get(position);
+            if (entry.matches(lowerCaseFilter)) {
+                entries.add(entry);
+            }
+        }
+        boolean more = false;
+        for (int index = position; index < sorted.size(); index++) {
+            if (sorted.get(index).matches(lowerCaseFilter)) {
+                more = true;
+                break;
+            }
+        }
+        final String nextCursor = more && !entries.isEmpty() ? encodeCursor(entries.get(entries.size() - 1), sort) : null;
+        return new Page(entries, nextCursor, sorted.size());
+    }
+
+    /**
+     * Updates every cached index that contains or should contain the session after it was created or changed.
+     * Each project gets its own entry, so a shared project lists the session under its share label.
+     */
+    public void sessionChanged(final String sessionId) {
+        final Map<String, StudyIndexEntry> entries = loadEntries(sessionId);
+        if (entries == null) {
+            // Without the current rows there's no telling which indexes are stale, so rebuild them on demand.
+            indexes.invalidateAll();
+            return;
+        }
+        for (final Map.Entry<String, ProjectIndex> cached : indexes.asMap().entrySet()) {
+            cached.getValue().upsert(sessionId, entries.get(cached.getKey()));
+        }
+    }
+
+    public void sessionRemoved(final String sessionId) {
+        for (final ProjectIndex index : indexes.asMap().values()) {
+            index.upsert(sessionId, null);
+        }
+    }
+
+    public void invalidate(final String projectId) {
+        indexes.invalidate(projectId);
+    }
+
+    /**
+     * Drops the project's index and returns the IDs of the sessions it listed, owned or shared, or an
+     * empty set if it wasn't cached.
+     */
+    public Set<String> invalidateProject(final String projectId) {
+        final ProjectIndex index = indexes.asMap().remove(projectId);
+        if (index == null) {
+            return Collections.emptySet();
+        }
+        synchronized (index) {
+            return new HashSet<>(index.bySession.keySet());
+        }
+    }
+
+    public void invalidateAll() {
+        indexes.invalidateAll();
+    }
+
+    public Map<String, Object> getStatistics() {
+        final CacheStats stats = indexes.stats();
+        final Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("projects", indexes.size());
+        statistics.put("hits", stats.hitCount());
+        statistics.put("misses", stats.missCount());
+        statistics.put("evictions", stats.evictionCount());
+        statistics.put("hitRate", stats.hitRate());
+        statistics.put("averageLoadMillis", stats.averageLoadPenalty() / 1000000.0);
+        return statistics;
+    }
+
+    private ProjectIndex getIndex(final String projectId) {
+        try {
+            return indexes.get(projectId, () -> {
+                final long started = System.nanoTime();
+                final List<StudyIndexEntry> entries = template.query(QUERY_PROJECT, new MapSqlParameterSource("projectId", projectId), ENTRY_MAPPER);
+                log.debug("Built VolView study index for project {} with {} sessions in {} ms", projectId, entries.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+                return new ProjectIndex(entries);
+            });
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to build the VolView study index for project " + projectId, e.getCause());
+        }
+    }
+
+    /**
+     * Returns the session's index entry for its own project and each project it's shared into, or null if
+     * the rows couldn't be read.
+     */
+    private Map<String, StudyIndexEntry> loadEntries(final String sessionId) {
+        try {
+            final Map<String, StudyIndexEntry> entries = new HashMap<>();
+            template.query(QUERY_SESSION, new MapSqlParameterSource("sessionId", sessionId), resultSet -> {
+                entries.put(resultSet.getString("project"), ENTRY_MAPPER.mapRow(resultSet, 0));
+            });
+            return entries;
+        } catch (DataAccessException e) {
+            log.error("Failed to load VolView study index entries for session {}", sessionId, e);
+            return null;
+        }
+    }
+
+    private static String encodeCursor(final StudyIndexEntry entry, final SortField sort) {
+        final String value = sort == SortField.date ? entry.getStudyDate()
+                             : sort == SortField.label ? entry.getLabel()
+                             : sort == SortField.description ? entry.getDescription()
+                             : entry.getPatientName();
+        final String raw = sort.name() + '\n' + (value == null ? "" : "=" + value) + '\n' + entry.getSessionId();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static StudyIndexEntry decodeCursor(final String cursor, final SortField sort) {
+        if (cursor == null || cursor.isEmpty()) {
+            return null;
+        }
+        final String[] parts;
+        try {
+            parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split("\n", 3);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid study index cursor");
+        }
+        if (parts.length != 3 || !parts[0].equals(sort.name())) {
+            throw new IllegalArgumentException("The study index cursor doesn't match the requested sort order");
+        }
+        final String value = parts[1].isEmpty() ? null : parts[1].substring(1);
+        switch (sort) {
+            case date:
+                return new StudyIndexEntry(parts[2], null, null, value, null, null);
+            case label:
+                return new StudyIndexEntry(parts[2], value, null, null, null, null);
+            case description:
+                return new StudyIndexEntry(parts[2], null, null, null, value, null);
+            default:
+                return new StudyIndexEntry(parts[2], null, null, null, null, value);
+        }
+    }
+
+    public static final class Page {
+        private final List<StudyIndexEntry> entries;
+        private final String nextCursor;
+        private final int total;
+
+        private Page(final List<StudyIndexEntry> entries, final String nextCursor, final int total) {
+            this.entries = entries;
+            this.nextCursor = nextCursor;
+            this.total = total;
+        }
+
+        public List<StudyIndexEntry> getEntries() {
+            return entries;
+        }
+
+        public String getNextCursor() {
+            return nextCursor;
+        }
+
+        /**
+         * The number of sessions in the project, before filtering.
+         */
+        public int getTotal() {
+            return total;
+        }
+    }
+
+    /**
+     * The index for one project: one ascending list per sort field, with descending order served as a
+     * reversed view. Updates binary-search the old and new positions in copies of the lists and publish
+     * them together, so readers never need to lock.
+     */
+    private static final class ProjectIndex {
+        private final Map<String, StudyIndexEntry> bySession = new HashMap<>();
+        private volatile Map<SortField, List<StudyIndexEntry>> sorted;
+
+        private ProjectIndex(final List<StudyIndexEntry> entries) {
+            for (final StudyIndexEntry entry : entries) {
+                bySession.put(entry.getSessionId(), entry);
+            }
+            final Map<SortField, List<StudyIndexEntry>> lists = new EnumMap<>(SortField.class);
+            for (final SortField field : SortField.values()) {
+                final List<StudyIndexEntry> list = new ArrayList<>(bySession.values());
+                list.sort(field.comparator);
+                lists.put(field, Collections.unmodifiableList(list));
+            }
+            this.sorted = lists;
+        }
+
+        private List<StudyIndexEntry> getSorted(final SortField sort, final boolean descending) {
+            final List<StudyIndexEntry> ascending = sorted.get(sort);
+            return descending ? Lists.reverse(ascending) : ascending;
+        }
+
+        private synchronized void upsert(final String sessionId, final StudyIndexEntry entry) {
+            final StudyIndexEntry previous = entry == null ? bySession.remove(sessionId) : bySession.put(sessionId, entry);
+            if (previous == null && entry == null) {
+                return;
+            }
+            final Map<SortField, List<StudyIndexEntry>> lists = new EnumMap<>(SortField.class);
+            for (final Map.Entry<SortField, List<StudyIndexEntry>> current : sorted.entrySet()) {
+                final Comparator<StudyIndexEntry> comparator = current.getKey().comparator;
+                final List<StudyIndexEntry> list = new ArrayList<>(current.getValue());
+                if (previous != null) {
+                    final int found = Collections.binarySearch(list, previous, comparator);
+                    if (found >= 0) {
+                        list.remove(found);
+                    }
+                }
+                if (entry != null) {
+                    final int found = Collections.binarySearch(list, entry, comparator);
+                    list.add(found >= 0 ? found : -found - 1, entry);
+                }
+                lists.put(current.getKey(), Collections.unmodifiableList(list));
+            }
+            sorted = lists;
+        }
+    }
+}
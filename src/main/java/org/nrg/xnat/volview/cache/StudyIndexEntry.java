@@ -0,0 +1,65 @@
+package org.nrg.xnat.volview.cache;
+
+/**
+ * One row of a project's study index, built from XNAT image session metadata.
+ */
+public final class StudyIndexEntry {
+    private final String sessionId;
+    private final String label;
+    private final String studyInstanceUid;
+    private final String studyDate;
+    private final String description;
+    private final String patientName;
+    private final String searchText;
+
+    public StudyIndexEntry(final String sessionId,
+                           final String label,
+                           final String studyInstanceUid,
+                           final String studyDate,
+                           final String description,
+                           final String patientName) {
+        this.sessionId = sessionId;
+        this.label = label;
+        this.studyInstanceUid = studyInstanceUid;
+        this.studyDate = studyDate;
+        this.description = description;
+        this.patientName = patientName;
+        this.searchText = (nullToEmpty(label) + '\n' + nullToEmpty(description) + '\n' + nullToEmpty(patientName) + '\n' + nullToEmpty(studyInstanceUid) + '\n' + nullToEmpty(sessionId)).toLowerCase();
+    }
+
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public String getStudyInstanceUid() {
+        return studyInstanceUid;
+    }
+
+    public String getStudyDate() {
+        return studyDate;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public String getPatientName() {
+        return patientName;
+    }
+
+    /**
+     * Case-insensitive substring match against the label, description, patient name, study UID and
+     * session ID. The filter must already be lower case.
+     */
+    public boolean matches(final String lowerCaseFilter) {
+        return lowerCaseFilter == null || lowerCaseFilter.isEmpty() || searchText.contains(lowerCaseFilter);
+    }
+
+    private static String nullToEmpty(final String value) {
+        return value == null ? "" : value;
+    }
+}
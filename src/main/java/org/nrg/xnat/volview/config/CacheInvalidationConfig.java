@@ -0,0 +1,38 @@
+package org.nrg.xnat.volview.config;
+
+import org.nrg.xnat.volview.cache.CacheInvalidationBus;
+import org.nrg.xnat.volview.cache.DatabaseCacheInvalidationBus;
+import org.nrg.xnat.volview.cache.LocalCacheInvalidationBus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * Picks the {@link CacheInvalidationBus} implementation named by <code>volview.invalidation.bus</code>.
+ */
+@Configuration
+public class CacheInvalidationConfig {
+    private static final Logger log = LoggerFactory.getLogger(CacheInvalidationConfig.class);
+
+    @Bean
+    public CacheInvalidationBus cacheInvalidationBus(@Value("${volview.invalidation.bus:local}") final String implementation,
+                                                     @Value("${volview.invalidation.node-id:}") final String nodeId,
+                                                     @Value("${volview.invalidation.poll-seconds:5}") final int pollSeconds,
+                                                     final NamedParameterJdbcTemplate template) {
+        switch (implementation.trim().toLowerCase(Locale.ROOT)) {
+            case "database":
+                return new DatabaseCacheInvalidationBus(template, nodeId.trim().isEmpty() ? UUID.randomUUID().toString() : nodeId.trim(), pollSeconds);
+            case "local":
+                return new LocalCacheInvalidationBus();
+            default:
+                log.warn("Unknown VolView cache invalidation bus \"{}\"; using the local bus, which doesn't reach other nodes", implementation);
+                return new LocalCacheInvalidationBus();
+        }
+    }
+}
@@ -1,55 +1,221 @@
 package org.nrg.xnat.volview.config;
 
 import org.nrg.xdat.preferences.SiteConfigPreferences;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 @Component
 public class VolViewSettings {
-    private static final String PROP_VIEWER_ENTRY_POINT = "volview.viewer.entry-point";
-    private static final String PROP_DICOMWEB_BASE = "volview.dicomweb.base-path";
-    private static final String PROP_SHELL_PATH = "volview.shell.path";
-    private static final String PROP_SERVER_NAME = "volview.server-name";
+    private static final Logger log = LoggerFactory.getLogger(VolViewSettings.class);
+
+    static final String PROP_VIEWER_ENTRY_POINT = "volview.viewer.entry-point";
+    static final String PROP_DICOMWEB_BASE = "volview.dicomweb.base-path";
+    static final String PROP_SHELL_PATH = "volview.shell.path";
+    static final String PROP_SERVER_NAME = "volview.server-name";
+    static final String PROP_SHELL_INLINE_CONFIG = "volview.shell.inline-config";
+    static final String PROP_ASYNC_POOL_SIZE = "volview.async.pool-size";
+    static final String PROP_ASYNC_MAX_PENDING = "volview.async.max-pending";
+    static final String PROP_ASYNC_TIMEOUT = "volview.async.timeout-seconds";
+    static final String PROP_ASYNC_BATCH_TIMEOUT = "volview.async.batch-timeout-seconds";
+    static final String PROP_DICOMWEB_CACHE_ENABLED = "volview.dicomweb-cache.enabled";
+    static final String PROP_ADMISSION_ENABLED = "volview.admission.enabled";
+    static final String PROP_ADMISSION_MAX_CONCURRENT = "volview.admission.max-concurrent";
+    static final String PROP_ADMISSION_PROJECT_RATE = "volview.admission.project-rate";
+    static final String PROP_ADMISSION_USER_RATE = "volview.admission.user-rate";
+    static final String PROP_ADMISSION_QUEUE_TIMEOUT = "volview.admission.queue-timeout-seconds";
+    static final String PROP_ADMISSION_MAX_BLOCKED = "volview.admission.max-blocked";
+    static final String PROP_ADMISSION_PROJECT_WEIGHTS = "volview.admission.project-weights";
+
+    /**
+     * Base path of the plugin's caching DICOMweb pass-through. When the cache is enabled, viewers are
+     * pointed here instead of at the configured DICOMweb base path.
+     */
+    public static final String DICOMWEB_CACHE_PATH = "/xapi/volview/dicomweb/projects";
+
+    static final List<String> PROPERTIES = Collections.unmodifiableList(Arrays.asList(
+            PROP_VIEWER_ENTRY_POINT, PROP_DICOMWEB_BASE, PROP_SHELL_PATH, PROP_SERVER_NAME, PROP_SHELL_INLINE_CONFIG,
+            PROP_ASYNC_POOL_SIZE, PROP_ASYNC_MAX_PENDING, PROP_ASYNC_TIMEOUT, PROP_ASYNC_BATCH_TIMEOUT, PROP_DICOMWEB_CACHE_ENABLED,
+            PROP_ADMISSION_ENABLED, PROP_ADMISSION_MAX_CONCURRENT, PROP_ADMISSION_PROJECT_RATE, PROP_ADMISSION_USER_RATE,
+            PROP_ADMISSION_QUEUE_TIMEOUT, PROP_ADMISSION_PROJECT_WEIGHTS));
+
+    // Safety net in case a site config change bypasses the preference handler; checking the
+    // snapshot age on read is a single volatile read plus System.nanoTime(). Only the reader that
+    // claims the revalidation reloads; the others keep using the current snapshot meanwhile.
+    private static final long REVALIDATE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(30);
 
     private final SiteConfigPreferences siteConfigPreferences;
     private final String defaultDicomwebBasePath;
     private final String defaultViewerEntryPoint;
     private final String defaultShellPath;
     private final String defaultServerName;
+    private final boolean defaultShellInlineConfig;
+    private final int defaultAsyncPoolSize;
+    private final int defaultAsyncMaxPending;
+    private final int defaultAsyncTimeoutSeconds;
+    private final int defaultAsyncBatchTimeoutSeconds;
+    private final boolean defaultDicomwebCacheEnabled;
+    private final boolean defaultAdmissionEnabled;
+    private final int defaultAdmissionMaxConcurrent;
+    private final int defaultAdmissionProjectRate;
+    private final int defaultAdmissionUserRate;
+    private final int defaultAdmissionQueueTimeoutSeconds;
+    private final int defaultAdmissionMaxBlocked;
+    private final String defaultAdmissionProjectWeights;
+
+    private final AtomicBoolean revalidating = new AtomicBoolean();
+
+    private volatile Snapshot snapshot;
 
     public VolViewSettings(
             final SiteConfigPreferences siteConfigPreferences,
             @Value("${volview.dicomweb.base-path:/xapi/dicomweb/projects}") final String dicomwebBasePath,
-            @Value("${volview.viewer.entry-point:/volview/app/index.html}") final String viewerEntryPoint,
+            @Value("${volview.viewer.entry-point:/xapi/volview/app/index.html}") final String viewerEntryPoint,
             @Value("${volview.shell.path:/plugin-resources/xnat-volview/index.html}") final String shellPath,
-            @Value("${volview.server-name:XNAT DICOMweb}") final String serverName
+            @Value("${volview.server-name:XNAT DICOMweb}") final String serverName,
+            @Value("${volview.shell.inline-config:false}") final boolean shellInlineConfig,
+            @Value("${volview.async.pool-size:8}") final int asyncPoolSize,
+            @Value("${volview.async.max-pending:100}") final int asyncMaxPending,
+            @Value("${volview.async.timeout-seconds:15}") final int asyncTimeoutSeconds,
+            @Value("${volview.async.batch-timeout-seconds:60}") final int asyncBatchTimeoutSeconds,
+            @Value("${volview.dicomweb-cache.enabled:false}") final boolean dicomwebCacheEnabled,
+            @Value("${volview.admission.enabled:false}") final boolean admissionEnabled,
+            @Value("${volview.admission.max-concurrent:64}") final int admissionMaxConcurrent,
+            @Value("${volview.admission.project-rate:400}") final int admissionProjectRate,
+            @Value("${volview.admission.user-rate:200}") final int admissionUserRate,
+            @Value("${volview.admission.queue-timeout-seconds:10}") final int admissionQueueTimeoutSeconds,
+            @Value("${volview.admission.max-blocked:32}") final int admissionMaxBlocked,
+            @Value("${volview.admission.project-weights:}") final String admissionProjectWeights
     ) {
         this.siteConfigPreferences = siteConfigPreferences;
         this.defaultDicomwebBasePath = normalizePath(dicomwebBasePath);
         this.defaultViewerEntryPoint = viewerEntryPoint;
         this.defaultShellPath = shellPath;
         this.defaultServerName = serverName;
+        this.defaultShellInlineConfig = shellInlineConfig;
+        this.defaultAsyncPoolSize = asyncPoolSize;
+        this.defaultAsyncMaxPending = asyncMaxPending;
+        this.defaultAsyncTimeoutSeconds = asyncTimeoutSeconds;
+        this.defaultAsyncBatchTimeoutSeconds = asyncBatchTimeoutSeconds;
+        this.defaultDicomwebCacheEnabled = dicomwebCacheEnabled;
+        this.defaultAdmissionEnabled = admissionEnabled;
+        this.defaultAdmissionMaxConcurrent = admissionMaxConcurrent;
+        this.defaultAdmissionProjectRate = admissionProjectRate;
+        this.defaultAdmissionUserRate = admissionUserRate;
+        this.defaultAdmissionQueueTimeoutSeconds = admissionQueueTimeoutSeconds;
+        this.defaultAdmissionMaxBlocked = admissionMaxBlocked;
+        this.defaultAdmissionProjectWeights = admissionProjectWeights == null ? "" : admissionProjectWeights.trim();
+        this.snapshot = load(1L);
+    }
+
+    /**
+     * Returns the current immutable settings snapshot. The snapshot's version changes whenever
+     * any of the <code>volview.*</code> settings change and can be used as a cache key.
+     */
+    public Snapshot getSnapshot() {
+        final Snapshot current = snapshot;
+        if (!isStale(current) || !revalidating.compareAndSet(false, true)) {
+            return current;
+        }
+        try {
+            return revalidate();
+        } finally {
+            revalidating.set(false);
+        }
+    }
+
+    public long getVersion() {
+        return getSnapshot().version;
     }
 
     public String getDicomwebBasePath() {
-        final String value = getStringProperty(PROP_DICOMWEB_BASE, defaultDicomwebBasePath);
-        return normalizePath(value);
+        return getSnapshot().dicomwebBasePath;
     }
 
     public String getViewerEntryPoint() {
-        return getStringProperty(PROP_VIEWER_ENTRY_POINT, defaultViewerEntryPoint);
+        return getSnapshot().viewerEntryPoint;
     }
 
     public String getShellPath() {
-        return getStringProperty(PROP_SHELL_PATH, defaultShellPath);
+        return getSnapshot().shellPath;
     }
 
     public String getServerName() {
-        return getStringProperty(PROP_SERVER_NAME, defaultServerName);
+        return getSnapshot().serverName;
+    }
+
+    public boolean isShellInlineConfig() {
+        return getSnapshot().shellInlineConfig;
+    }
+
+    public boolean isDicomwebCacheEnabled() {
+        return getSnapshot().dicomwebCacheEnabled;
     }
 
     public String getProjectDicomwebPath(final String projectId) {
-        return getDicomwebBasePath() + "/" + projectId;
+        return getSnapshot().getProjectDicomwebPath(projectId);
+    }
+
+    /**
+     * Re-reads the <code>volview.*</code> settings from the site configuration. A new version is
+     * only published when at least one value actually changed.
+     */
+    public synchronized Snapshot refresh() {
+        final Snapshot current = snapshot;
+        final Snapshot loaded = load(current.version);
+        if (loaded.sameValues(current)) {
+            snapshot = loaded;
+            return loaded;
+        }
+        final Snapshot updated = loaded.withVersion(current.version + 1);
+        snapshot = updated;
+        log.info("VolView settings changed, now at version {}: dicomwebBasePath={} viewerEntryPoint={} shellPath={} serverName={} shellInlineConfig={} "
+                 + "asyncPoolSize={} asyncMaxPending={} asyncTimeoutSeconds={} asyncBatchTimeoutSeconds={} dicomwebCacheEnabled={} "
+                 + "admissionEnabled={} admissionMaxConcurrent={} admissionProjectRate={} admissionUserRate={} admissionQueueTimeoutSeconds={} admissionMaxBlocked={} admissionProjectWeights={}",
+                updated.version, updated.dicomwebBasePath, updated.viewerEntryPoint, updated.shellPath, updated.serverName, updated.shellInlineConfig,
+                updated.asyncPoolSize, updated.asyncMaxPending, updated.asyncTimeoutSeconds, updated.asyncBatchTimeoutSeconds, updated.dicomwebCacheEnabled,
+                updated.admissionEnabled, updated.admissionMaxConcurrent, updated.admissionProjectRate, updated.admissionUserRate,
+                updated.admissionQueueTimeoutSeconds, updated.admissionMaxBlocked, updated.admissionProjectWeights);
+        return updated;
+    }
+
+    private synchronized Snapshot revalidate() {
+        // An explicit refresh may have published a new snapshot while this thread waited for the lock.
+        final Snapshot current = snapshot;
+        return isStale(current) ? refresh() : current;
+    }
+
+    private static boolean isStale(final Snapshot snapshot) {
+        return System.nanoTime() - snapshot.loadedAt > REVALIDATE_INTERVAL_NANOS;
+    }
+
+    private Snapshot load(final long version) {
+        return new Snapshot(version,
+                normalizePath(getStringProperty(PROP_DICOMWEB_BASE, defaultDicomwebBasePath)),
+                getStringProperty(PROP_VIEWER_ENTRY_POINT, defaultViewerEntryPoint),
+                getStringProperty(PROP_SHELL_PATH, defaultShellPath),
+                getStringProperty(PROP_SERVER_NAME, defaultServerName),
+                getBooleanProperty(PROP_SHELL_INLINE_CONFIG, defaultShellInlineConfig),
+                getIntProperty(PROP_ASYNC_POOL_SIZE, defaultAsyncPoolSize),
+                getIntProperty(PROP_ASYNC_MAX_PENDING, defaultAsyncMaxPending),
+                getIntProperty(PROP_ASYNC_TIMEOUT, defaultAsyncTimeoutSeconds),
+                getIntProperty(PROP_ASYNC_BATCH_TIMEOUT, defaultAsyncBatchTimeoutSeconds),
+                getBooleanProperty(PROP_DICOMWEB_CACHE_ENABLED, defaultDicomwebCacheEnabled),
+                getBooleanProperty(PROP_ADMISSION_ENABLED, defaultAdmissionEnabled),
+                getIntProperty(PROP_ADMISSION_MAX_CONCURRENT, defaultAdmissionMaxConcurrent),
+                getIntProperty(PROP_ADMISSION_PROJECT_RATE, defaultAdmissionProjectRate),
+                getIntProperty(PROP_ADMISSION_USER_RATE, defaultAdmissionUserRate),
+                getIntProperty(PROP_ADMISSION_QUEUE_TIMEOUT, defaultAdmissionQueueTimeoutSeconds),
+                getIntProperty(PROP_ADMISSION_MAX_BLOCKED, defaultAdmissionMaxBlocked),
+                getStringProperty(PROP_ADMISSION_PROJECT_WEIGHTS, defaultAdmissionProjectWeights));
     }
 
     private static String normalizePath(final String value) {
@@ -78,4 +244,214 @@ public class VolViewSettings {
         }
         return defaultValue;
     }
+
+    private boolean getBooleanProperty(final String key, final boolean defaultValue) {
+        if (siteConfigPreferences != null) {
+            final Object stored = siteConfigPreferences.getProperty(key);
+            if (stored instanceof Boolean) {
+                return (Boolean) stored;
+            }
+            if (stored instanceof String && !((String) stored).trim().isEmpty()) {
+                return Boolean.parseBoolean(((String) stored).trim());
+            }
+        }
+        return defaultValue;
+    }
+
+    private int getIntProperty(final String key, final int defaultValue) {
+        if (siteConfigPreferences != null) {
+            final Object stored = siteConfigPreferences.getProperty(key);
+            if (stored instanceof Number) {
+                return ((Number) stored).intValue() > 0 ? ((Number) stored).intValue() : defaultValue;
+            }
+            if (stored instanceof String && !((String) stored).trim().isEmpty()) {
+                try {
+                    final int value = Integer.parseInt(((String) stored).trim());
+                    return value > 0 ? value : defaultValue;
+                } catch (NumberFormatException e) {
+                    log.warn("Ignoring invalid value {} for {}", stored, key);
+                }
+            }
+        }
+        return defaultValue;
+    }
+
+    public static final class Snapshot {
+        private final long version;
+        private final long loadedAt;
+        private final String dicomwebBasePath;
+        private final String viewerEntryPoint;
+        private final String shellPath;
+        private final String serverName;
+        private final boolean shellInlineConfig;
+        private final int asyncPoolSize;
+        private final int asyncMaxPending;
+        private final int asyncTimeoutSeconds;
+        private final int asyncBatchTimeoutSeconds;
+        private final boolean dicomwebCacheEnabled;
+        private final boolean admissionEnabled;
+        private final int admissionMaxConcurrent;
+        private final int admissionProjectRate;
+        private final int admissionUserRate;
+        private final int admissionQueueTimeoutSeconds;
+        private final int admissionMaxBlocked;
+        private final String admissionProjectWeights;
+
+        private Snapshot(final long version,
+                         final String dicomwebBasePath,
+                         final String viewerEntryPoint,
+                         final String shellPath,
+                         final String serverName,
+                         final boolean shellInlineConfig,
+                         final int asyncPoolSize,
+                         final int asyncMaxPending,
+                         final int asyncTimeoutSeconds,
+                         final int asyncBatchTimeoutSeconds,
+                         final boolean dicomwebCacheEnabled,
+                         final boolean admissionEnabled,
+                         final int admissionMaxConcurrent,
+                         final int admissionProjectRate,
+                         final int admissionUserRate,
+                         final int admissionQueueTimeoutSeconds,
+                         final int admissionMaxBlocked,
+                         final String admissionProjectWeights) {
+            this.version = version;
+            this.loadedAt = System.nanoTime();
+            this.dicomwebBasePath = dicomwebBasePath;
+            this.viewerEntryPoint = viewerEntryPoint;
+            this.shellPath = shellPath;
+            this.serverName = serverName;
+            this.shellInlineConfig = shellInlineConfig;
+            this.asyncPoolSize = asyncPoolSize;
+            this.asyncMaxPending = asyncMaxPending;
+            this.asyncTimeoutSeconds = asyncTimeoutSeconds;
+            this.asyncBatchTimeoutSeconds = asyncBatchTimeoutSeconds;
+            this.dicomwebCacheEnabled = dicomwebCacheEnabled;
+            this.admissionEnabled = admissionEnabled;
+            this.admissionMaxConcurrent = admissionMaxConcurrent;
+            this.admissionProjectRate = admissionProjectRate;
+            this.admissionUserRate = admissionUserRate;
+            this.admissionQueueTimeoutSeconds = admissionQueueTimeoutSeconds;
+            this.admissionMaxBlocked = admissionMaxBlocked;
+            this.admissionProjectWeights = admissionProjectWeights;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public String getDicomwebBasePath() {
+            return dicomwebBasePath;
+        }
+
+        public String getViewerEntryPoint() {
+            return viewerEntryPoint;
+        }
+
+        public String getShellPath() {
+            return shellPath;
+        }
+
+        public String getServerName() {
+            return serverName;
+        }
+
+        public boolean isShellInlineConfig() {
+            return shellInlineConfig;
+        }
+
+        public int getAsyncPoolSize() {
+            return asyncPoolSize;
+        }
+
+        public int getAsyncMaxPending() {
+            return asyncMaxPending;
+        }
+
+        public int getAsyncTimeoutSeconds() {
+            return asyncTimeoutSeconds;
+        }
+
+        public int getAsyncBatchTimeoutSeconds() {
+            return asyncBatchTimeoutSeconds;
+        }
+
+        public boolean isDicomwebCacheEnabled() {
+            return dicomwebCacheEnabled;
+        }
+
+        public boolean isAdmissionEnabled() {
+            return admissionEnabled;
+        }
+
+        public int getAdmissionMaxConcurrent() {
+            return admissionMaxConcurrent;
+        }
+
+        public int getAdmissionProjectRate() {
+            return admissionProjectRate;
+        }
+
+        public int getAdmissionUserRate() {
+            return admissionUserRate;
+        }
+
+        public int getAdmissionQueueTimeoutSeconds() {
+            return admissionQueueTimeoutSeconds;
+        }
+
+        /**
+         * Returns how many requests may wait for admission on a servlet request thread at once. Keep it well
+         * below the container's request thread pool.
+         */
+        public int getAdmissionMaxBlocked() {
+            return admissionMaxBlocked;
+        }
+
+        /**
+         * Returns the fair-queuing weights of projects as comma-separated <code>PROJECT=weight</code>
+         * pairs; projects that aren't listed have weight 1.
+         */
+        public String getAdmissionProjectWeights() {
+            return admissionProjectWeights;
+        }
+
+        /**
+         * The DICOMweb base path handed to viewers: the caching pass-through when it's enabled,
+         * otherwise the configured DICOMweb base path.
+         */
+        public String getViewerDicomwebBasePath() {
+            return dicomwebCacheEnabled ? DICOMWEB_CACHE_PATH : dicomwebBasePath;
+        }
+
+        public String getProjectDicomwebPath(final String projectId) {
+            return getViewerDicomwebBasePath() + "/" + projectId;
+        }
+
+        private Snapshot withVersion(final long newVersion) {
+            return new Snapshot(newVersion, dicomwebBasePath, viewerEntryPoint, shellPath, serverName, shellInlineConfig,
+                    asyncPoolSize, asyncMaxPending, asyncTimeoutSeconds, asyncBatchTimeoutSeconds, dicomwebCacheEnabled,
+                    admissionEnabled, admissionMaxConcurrent, admissionProjectRate, admissionUserRate, admissionQueueTimeoutSeconds, admissionMaxBlocked, admissionProjectWeights);
+        }
+
+        private boolean sameValues(final Snapshot other) {
+            return Objects.equals(dicomwebBasePath, other.dicomwebBasePath)
+                   && Objects.equals(viewerEntryPoint, other.viewerEntryPoint)
+                   && Objects.equals(shellPath, other.shellPath)
+                   && Objects.equals(serverName, other.serverName)
+                   && shellInlineConfig == other.shellInlineConfig
+                   && asyncPoolSize == other.asyncPoolSize
+                   && asyncMaxPending == other.asyncMaxPending
+                   && asyncTimeoutSeconds == other.asyncTimeoutSeconds
+                   && asyncBatchTimeoutSeconds == other.asyncBatchTimeoutSeconds
+                   && dicomwebCacheEnabled == other.dicomwebCacheEnabled
+                   && admissionEnabled == other.admissionEnabled
+                   && admissionMaxConcurrent == other.admissionMaxConcurrent
+                   && admissionProjectRate == other.admissionProjectRate
+                   && admissionUserRate == other.admissionUserRate
+                   && admissionQueueTimeoutSeconds == other.admissionQueueTimeoutSeconds
+                   && admissionMaxBlocked == other.admissionMaxBlocked
+                   && Objects.equals(admissionProjectWeights, other.admissionProjectWeights);
+        }
+    }
 }
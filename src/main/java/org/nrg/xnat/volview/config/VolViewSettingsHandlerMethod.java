@@ -0,0 +1,79 @@
+package org.nrg.xnat.volview.config;
+
+import org.nrg.prefs.events.PreferenceHandlerMethod;
+import org.nrg.xdat.preferences.SiteConfigPreferences;
+import org.nrg.xnat.volview.cache.CacheInvalidation;
+import org.nrg.xnat.volview.cache.CacheInvalidationBus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Publishes a new {@link VolViewSettings} snapshot as soon as one of the <code>volview.*</code>
+ * keys is saved through <code>/xapi/siteConfig</code>. The change goes out on the
+ * {@link CacheInvalidationBus}, so every node re-reads its settings, not just the one that saved them.
+ */
+@Component
+public class VolViewSettingsHandlerMethod implements PreferenceHandlerMethod {
+    private static final Logger log = LoggerFactory.getLogger(VolViewSettingsHandlerMethod.class);
+
+    private final VolViewSettings settings;
+    private final CacheInvalidationBus invalidationBus;
+
+    @Autowired
+    public VolViewSettingsHandlerMethod(final VolViewSettings settings, final CacheInvalidationBus invalidationBus) {
+        this.settings = settings;
+        this.invalidationBus = invalidationBus;
+        invalidationBus.subscribe(this::apply);
+    }
+
+    @Override
+    public List<String> getToolIds() {
+        return Collections.singletonList(SiteConfigPreferences.SITE_CONFIG_TOOL_ID);
+    }
+
+    @Override
+    public List<String> getHandledPreferences() {
+        return VolViewSettings.PROPERTIES;
+    }
+
+    @Override
+    public Set<String> findHandledPreferences(final Collection<String> preferences) {
+        final Set<String> handled = new HashSet<>(preferences);
+        handled.retainAll(VolViewSettings.PROPERTIES);
+        return handled;
+    }
+
+    @Override
+    public void handlePreferences(final Map<String, String> values) {
+        if (!findHandledPreferences(values.keySet()).isEmpty()) {
+            refresh(values.keySet());
+        }
+    }
+
+    @Override
+    public void handlePreference(final String preference, final String value) {
+        if (VolViewSettings.PROPERTIES.contains(preference)) {
+            refresh(Collections.singleton(preference));
+        }
+    }
+
+    private void apply(final CacheInvalidation invalidation) {
+        if (invalidation.getScope() == CacheInvalidation.Scope.SETTINGS) {
+            settings.refresh();
+        }
+    }
+
+    private void refresh(final Collection<String> preferences) {
+        log.debug("VolView site config preferences changed: {}", preferences);
+        invalidationBus.publish(CacheInvalidation.settings());
+    }
+}
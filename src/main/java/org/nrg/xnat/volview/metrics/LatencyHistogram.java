@@ -0,0 +1,115 @@
+package org.nrg.xnat.volview.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free, fixed-size latency histogram with log-linear buckets in the style of HdrHistogram. Values
+ * are recorded in microseconds with 16 linear sub-buckets per power of two, which bounds the relative
+ * error of reported percentiles to about 6%. Recording only increments pre-allocated counters.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // 2^40 microseconds is roughly 12 days, well past any request timeout.
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalMicros = new LongAdder();
+
+    public void recordNanos(final long nanos) {
+        record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    public void record(final long micros) {
+        final long value = Math.max(0, micros);
+        counts.incrementAndGet(Math.min(bucketIndex(value), BUCKETS - 1));
+        count.increment();
+        totalMicros.add(value);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getTotalMicros() {
+        return totalMicros.sum();
+    }
+
+    /**
+     * Returns the upper bound, in microseconds, of the bucket containing the given percentile (0-100).
+     */
+    public long getPercentile(final double percentile) {
+        final long[] snapshot = snapshot();
+        long total = 0;
+        for (final long bucket : snapshot) {
+            total += bucket;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final long target = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for (int index = 0; index < snapshot.length; index++) {
+            seen += snapshot[index];
+            if (seen >= target) {
+                return upperBound(index);
+            }
+        }
+        return upperBound(snapshot.length - 1);
+    }
+
+    public long getMax() {
+        for (int index = BUCKETS - 1; index >= 0; index--) {
+            if (counts.get(index) > 0) {
+                return upperBound(index);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the cumulative count of values less than or equal to the given bound in microseconds,
+     * for Prometheus-style histogram buckets.
+     */
+    public long getCountAtOrBelow(final long micros) {
+        final int last = Math.min(bucketIndex(micros), BUCKETS - 1);
+        long sum = 0;
+        for (int index = 0; index <= last; index++) {
+            if (upperBound(index) <= micros) {
+                sum += counts.get(index);
+            }
+        }
+        return sum;
+    }
+
+    private long[] snapshot() {
+        final long[] snapshot = new long[BUCKETS];
+        for (int index = 0; index < BUCKETS; index++) {
+            snapshot[index] = counts.get(index);
+        }
+        return snapshot;
+    }
+
+    static int bucketIndex(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int shift = exponent - SUB_BUCKET_BITS;
+        final int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long upperBound(final int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final int shift = index / SUB_BUCKETS - 1;
+        final long lower = ((long) (SUB_BUCKETS + index % SUB_BUCKETS)) << shift;
+        return lower + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,78 @@
+package org.nrg.xnat.volview.metrics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects counters and gauges for the Prometheus text exposition format. Samples are grouped by metric,
+ * so each metric is written once with its <code>HELP</code> and <code>TYPE</code> lines whatever order
+ * they were added in. Labels are given as name and value pairs.
+ */
+public final class PrometheusMetrics {
+    private final Map<String, Family> families = new LinkedHashMap<>();
+
+    /**
+     * Adds a sample of a monotonic total; the name should end in <code>_total</code>.
+     */
+    public PrometheusMetrics counter(final String name, final String help, final Object value, final String... labels) {
+        return add("counter", name, help, value, labels);
+    }
+
+    /**
+     * Adds a sample of a value that can go up and down, e.g. a queue depth.
+     */
+    public PrometheusMetrics gauge(final String name, final String help, final Object value, final String... labels) {
+        return add("gauge", name, help, value, labels);
+    }
+
+    public void writeTo(final StringBuilder output) {
+        for (final Map.Entry<String, Family> family : families.entrySet()) {
+            output.append("# HELP ").append(family.getKey()).append(' ').append(family.getValue().help).append('\n');
+            output.append("# TYPE ").append(family.getKey()).append(' ').append(family.getValue().type).append('\n');
+            for (final String sample : family.getValue().samples) {
+                output.append(family.getKey()).append(sample).append('\n');
+            }
+        }
+    }
+
+    /**
+     * Skips values that aren't numbers or booleans, e.g. a statistic a cache doesn't report.
+     */
+    private PrometheusMetrics add(final String type, final String name, final String help, final Object value, final String... labels) {
+        final double number;
+        if (value instanceof Number) {
+            number = ((Number) value).doubleValue();
+        } else if (value instanceof Boolean) {
+            number = (Boolean) value ? 1 : 0;
+        } else {
+            return this;
+        }
+        final StringBuilder sample = new StringBuilder();
+        for (int index = 0; index + 1 < labels.length; index += 2) {
+            sample.append(index == 0 ? '{' : ',').append(labels[index]).append("=\"").append(escape(labels[index + 1])).append('"');
+        }
+        if (labels.length > 1) {
+            sample.append('}');
+        }
+        sample.append(' ').append(number);
+        families.computeIfAbsent(name, key -> new Family(type, help)).samples.add(sample.toString());
+        return this;
+    }
+
+    private static String escape(final String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static final class Family {
+        private final String type;
+        private final String help;
+        private final List<String> samples = new ArrayList<>();
+
+        private Family(final String type, final String help) {
+            this.type = type;
+            this.help = help;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package org.nrg.xnat.volview.metrics;
+
+import org.springframework.stereotype.Component;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms and status counters for the VolView request paths. All recording methods are
+ * lock-free and allocation-free, so instrumentation stays enabled in production.
+ */
+@Component
+public class VolViewMetrics {
+    public enum Endpoint {
+        PROJECT_CONFIG,
+        SESSION_CONFIG,
+        SESSION_BATCH,
+        STUDY_INDEX,
+        STUDY_STREAM,
+        SHELL,
+        DICOMWEB,
+        SERIES_BUNDLE,
+        SESSION_MANIFEST,
+        PREFETCH,
+        THUMBNAIL
+    }
+
+    public enum Stage {
+        USER_RESOLUTION,
+        SESSION_LOAD,
+        PERMISSION_CHECK,
+        URL_BUILDING,
+        SERIALIZATION,
+        ADMISSION
+    }
+
+    private static final int[] STATUSES = {200, 206, 304, 400, 401, 403, 404, 416, 429, 500, 503};
+    private static final long[] PROMETHEUS_BUCKETS_MICROS = {100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000, 500000, 1000000, 2500000, 5000000, 10000000};
+
+    private final Map<Endpoint, LatencyHistogram> requests = new EnumMap<>(Endpoint.class);
+    private final Map<Endpoint, AtomicLongArray> statuses = new EnumMap<>(Endpoint.class);
+    private final Map<Stage, LatencyHistogram> stages = new EnumMap<>(Stage.class);
+
+    public VolViewMetrics() {
+        for (final Endpoint endpoint : Endpoint.values()) {
+            requests.put(endpoint, new LatencyHistogram());
+            // The extra slot counts any status not listed in STATUSES.
+            statuses.put(endpoint, new AtomicLongArray(STATUSES.length + 1));
+        }
+        for (final Stage stage : Stage.values()) {
+            stages.put(stage, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * Records a completed request that started at the given {@link System#nanoTime()} value.
+     */
+    public void recordRequest(final Endpoint endpoint, final int status, final long startedNanos) {
+        requests.get(endpoint).recordNanos(System.nanoTime() - startedNanos);
+        statuses.get(endpoint).incrementAndGet(statusIndex(status));
+    }
+
+    /**
+     * Records a stage that started at the given {@link System#nanoTime()} value and returns the current
+     * time, so consecutive stages can be chained.
+     */
+    public long recordStage(final Stage stage, final long startedNanos) {
+        final long now = System.nanoTime();
+        stages.get(stage).recordNanos(now - startedNanos);
+        return now;
+    }
+
+    public Map<String, Object> toMap() {
+        final Map<String, Object> endpoints = new LinkedHashMap<>();
+        for (final Endpoint endpoint : Endpoint.values()) {
+            final Map<String, Object> values = describe(requests.get(endpoint));
+            final Map<String, Long> counts = new LinkedHashMap<>();
+            final AtomicLongArray statusCounts = statuses.get(endpoint);
+            for (int index = 0; index <= STATUSES.length; index++) {
+                final long count = statusCounts.get(index);
+                if (count > 0) {
+                    counts.put(index < STATUSES.length ? Integer.toString(STATUSES[index]) : "other", count);
+                }
+            }
+            values.put("statuses", counts);
+            endpoints.put(name(endpoint), values);
+        }
+        final Map<String, Object> stageValues = new LinkedHashMap<>();
+        for (final Stage stage : Stage.values()) {
+            stageValues.put(name(stage), describe(stages.get(stage)));
+        }
+        final Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("endpoints", endpoints);
+        metrics.put("stages", stageValues);
+        return metrics;
+    }
+
+    public void writePrometheus(final StringBuilder output) {
+        output.append("# HELP volview_request_duration_seconds VolView request latency.\n");
+        output.append("# TYPE volview_request_duration_seconds histogram\n");
+        for (final Endpoint endpoint : Endpoint.values()) {
+            writeHistogram(output, "volview_request_duration_seconds", "endpoint", name(endpoint), requests.get(endpoint));
+        }
+        output.append("# HELP volview_stage_duration_seconds VolView request stage latency.\n");
+        output.append("# TYPE volview_stage_duration_seconds histogram\n");
+        for (final Stage stage : Stage.values()) {
+            writeHistogram(output, "volview_stage_duration_seconds", "stage", name(stage), stages.get(stage));
+        }
+        output.append("# HELP volview_requests_total VolView requests by endpoint and status.\n");
+        output.append("# TYPE volview_requests_total counter\n");
+        for (final Endpoint endpoint : Endpoint.values()) {
+            final AtomicLongArray statusCounts = statuses.get(endpoint);
+            for (int index = 0; index <= STATUSES.length; index++) {
+                output.append("volview_requests_total{endpoint=\"").append(name(endpoint)).append("\",status=\"")
+                        .append(index < STATUSES.length ? Integer.toString(STATUSES[index]) : "other").append("\"} ")
+                        .append(statusCounts.get(index)).append('\n');
+            }
+        }
+    }
+
+    private static void writeHistogram(final StringBuilder output, final String metric, final String labelName, final String labelValue, final LatencyHistogram histogram) {
+        final String labels = labelName + "=\"" + labelValue + "\"";
+        for (final long bound : PROMETHEUS_BUCKETS_MICROS) {
+            output.append(metric).append("_bucket{").append(labels).append(",le=\"").append(bound / 1000000.0).append("\"} ")
+                    .append(histogram.getCountAtOrBelow(bound)).append('\n');
+        }
+        output.append(metric).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(histogram.getCount()).append('\n');
+        output.append(metric).append("_sum{").append(labels).append("} ").append(histogram.getTotalMicros() / 1000000.0).append('\n');
+        output.append(metric).append("_count{").append(labels).append("} ").append(histogram.getCount()).append('\n');
+    }
+
+    private static Map<String, Object> describe(final LatencyHistogram histogram) {
+        final long count = histogram.getCount();
+        final Map<String, Object> values = new LinkedHashMap<>();
+        values.put("count", count);
+        values.put("meanMicros", count == 0 ? 0 : histogram.getTotalMicros() / count);
+        values.put("p50Micros", histogram.getPercentile(50));
+        values.put("p90Micros", histogram.getPercentile(90));
+        values.put("p99Micros", histogram.getPercentile(99));
+        values.put("p999Micros", histogram.getPercentile(99.9));
+        values.put("maxMicros", histogram.getMax());
+        return values;
+    }
+
+    private static int statusIndex(final int status) {
+        for (int index = 0; index < STATUSES.length; index++) {
+            if (STATUSES[index] == status) {
+                return index;
+            }
+        }
+        return STATUSES.length;
+    }
+
+    private static String name(final Enum<?> value) {
+        return value.name().toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,33 @@
+package org.nrg.xnat.volview.rest;
+
+/**
+ * A project/session pair submitted to the batch session config endpoint.
+ */
+public class SessionReference {
+    private String projectId;
+    private String sessionId;
+
+    public SessionReference() {
+    }
+
+    public SessionReference(final String projectId, final String sessionId) {
+        this.projectId = projectId;
+        this.sessionId = sessionId;
+    }
+
+    public String getProjectId() {
+        return projectId;
+    }
+
+    public void setProjectId(final String projectId) {
+        this.projectId = projectId;
+    }
+
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    public void setSessionId(final String sessionId) {
+        this.sessionId = sessionId;
+    }
+}
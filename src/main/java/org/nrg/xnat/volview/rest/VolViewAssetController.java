@@ -0,0 +1,237 @@
+package org.nrg.xnat.volview.rest;
+
+import org.nrg.xnat.volview.services.VolViewAssetStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Controller;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.servlet.HandlerMapping;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.regex.Pattern;
+
+/**
+ * Serves the bundled VolView application from the extracted disk cache. Files are sent with the servlet
+ * container's sendfile support when available, or
+ * {@link FileChannel#transferTo(long, long, WritableByteChannel)} otherwise. Precompressed <code>.br</code> and <code>.gz</code> siblings are preferred when the client
+ * accepts them, and content-hashed build outputs are marked immutable.
+ * <p>
+ * The bundle is served at <code>/xapi/volview/app/</code>, under XNAT's REST dispatcher, whatever
+ * <code>volview.viewer.entry-point</code> is set to. The default entry point points here; an entry point
+ * elsewhere is served by whatever hosts it.
+ */
+@Controller
+public class VolViewAssetController {
+    private static final Logger log = LoggerFactory.getLogger(VolViewAssetController.class);
+
+    private static final String ASSET_PREFIX = "/volview/app/";
+    private static final String IMMUTABLE_CACHE_CONTROL = "public, max-age=31536000, immutable";
+    private static final String REVALIDATE_CACHE_CONTROL = "no-cache";
+    // Matches bundler output such as assets/index-4f3a9c1e.js or chunk.B7xQ2mZk.wasm.
+    private static final Pattern HASHED_FILENAME = Pattern.compile(".*[-.](?=[A-Za-z0-9_]*\\d)[A-Za-z0-9_]{8,}\\.[A-Za-z0-9]+$");
+
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    private final VolViewAssetStore assetStore;
+    private final ServletContext servletContext;
+
+    public VolViewAssetController(final VolViewAssetStore assetStore, final ServletContext servletContext) {
+        this.assetStore = assetStore;
+        this.servletContext = servletContext;
+    }
+
+    @GetMapping("/volview/app/**")
+    public void serveAsset(final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+        final String relativePath = getRelativePath(request);
+        if (relativePath.contains("..")) {
+            response.sendError(HttpStatus.NOT_FOUND.value());
+            return;
+        }
+
+        final Path file = assetStore.resolve(relativePath);
+        if (file == null) {
+            serveFromClasspath(relativePath, response);
+            return;
+        }
+
+        // Ranges always refer to the identity encoding; only single ranges are honored.
+        final String range = request.getHeader(HttpHeaders.RANGE);
+        final Path precompressed = range == null ? findPrecompressed(file, request.getHeader(HttpHeaders.ACCEPT_ENCODING), response) : null;
+        final long lastModified = Files.getLastModifiedTime(file).toMillis();
+        // Each encoding is a different representation, so each gets its own strong validator.
+        final String etag = "\"" + Long.toHexString(Files.size(file)) + "-" + Long.toHexString(lastModified)
+                            + (precompressed == null ? "" : "-" + getEncoding(precompressed)) + "\"";
+        response.setHeader(HttpHeaders.CACHE_CONTROL, HASHED_FILENAME.matcher(relativePath).matches() ? IMMUTABLE_CACHE_CONTROL : REVALIDATE_CACHE_CONTROL);
+        response.setHeader(HttpHeaders.ETAG, etag);
+        response.setDateHeader(HttpHeaders.LAST_MODIFIED, lastModified);
+        response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        response.setContentType(getContentType(relativePath));
+
+        if (isNotModified(request, etag, lastModified)) {
+            response.setStatus(HttpStatus.NOT_MODIFIED.value());
+            return;
+        }
+
+        if (range == null) {
+            final Path source = precompressed != null ? precompressed : file;
+            send(request, response, source, 0, Files.size(source));
+            return;
+        }
+
+        final long length = Files.size(file);
+        final long[] bounds = parseRange(range, length);
+        if (bounds == null) {
+            send(request, response, file, 0, length);
+            return;
+        }
+        if (bounds[0] >= length || bounds[0] > bounds[1]) {
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+            response.sendError(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+            return;
+        }
+        response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+        response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + bounds[0] + "-" + bounds[1] + "/" + length);
+        send(request, response, file, bounds[0], bounds[1] - bounds[0] + 1);
+    }
+
+    private void send(final HttpServletRequest request, final HttpServletResponse response, final Path file, final long start, final long count) throws IOException {
+        response.setContentLengthLong(count);
+        if ("HEAD".equalsIgnoreCase(request.getMethod())) {
+            return;
+        }
+        if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+            request.setAttribute(SENDFILE_FILENAME, file.toAbsolutePath().toString());
+            request.setAttribute(SENDFILE_START, start);
+            request.setAttribute(SENDFILE_END, start + count);
+            return;
+        }
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final OutputStream output = response.getOutputStream();
+            final WritableByteChannel target = Channels.newChannel(output);
+            long position = start;
+            final long end = start + count;
+            while (position < end) {
+                final long transferred = channel.transferTo(position, end - position, target);
+                if (transferred <= 0) {
+                    break;
+                }
+                position += transferred;
+            }
+            output.flush();
+        }
+    }
+
+    private void serveFromClasspath(final String relativePath, final HttpServletResponse response) throws IOException {
+        final ClassPathResource resource = new ClassPathResource(VolViewAssetStore.BUNDLE_LOCATION + relativePath);
+        if (!resource.exists() || !resource.isReadable()) {
+            response.sendError(HttpStatus.NOT_FOUND.value());
+            return;
+        }
+        log.debug("Serving VolView asset {} from the classpath", relativePath);
+        response.setContentType(getContentType(relativePath));
+        response.setHeader(HttpHeaders.CACHE_CONTROL, REVALIDATE_CACHE_CONTROL);
+        try (final InputStream input = resource.getInputStream()) {
+            StreamUtils.copy(input, response.getOutputStream());
+        }
+    }
+
+    private static Path findPrecompressed(final Path file, final String acceptEncoding, final HttpServletResponse response) {
+        if (VolViewPageController.accepts(acceptEncoding, "br")) {
+            final Path brotli = file.resolveSibling(file.getFileName() + ".br");
+            if (Files.isRegularFile(brotli)) {
+                response.setHeader(HttpHeaders.CONTENT_ENCODING, "br");
+                return brotli;
+            }
+        }
+        if (VolViewPageController.accepts(acceptEncoding, "gzip")) {
+            final Path gzip = file.resolveSibling(file.getFileName() + ".gz");
+            if (Files.isRegularFile(gzip)) {
+                response.setHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+                return gzip;
+            }
+        }
+        return null;
+    }
+
+    private static String getEncoding(final Path precompressed) {
+        return precompressed.getFileName().toString().endsWith(".br") ? "br" : "gzip";
+    }
+
+    private static boolean isNotModified(final HttpServletRequest request, final String etag, final long lastModified) {
+        final String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            return ifNoneMatch.trim().equals("*") || ifNoneMatch.contains(etag);
+        }
+        try {
+            final long ifModifiedSince = request.getDateHeader(HttpHeaders.IF_MODIFIED_SINCE);
+            return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Parses a single <code>bytes=</code> range into inclusive start and end offsets. Returns null for
+     * malformed or multi-part ranges, in which case the whole file is sent.
+     */
+    static long[] parseRange(final String header, final long length) {
+        if (!header.startsWith("bytes=") || header.indexOf(',') >= 0) {
+            return null;
+        }
+        final String spec = header.substring("bytes=".length()).trim();
+        final int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            final String first = spec.substring(0, dash).trim();
+            final String last = spec.substring(dash + 1).trim();
+            if (first.isEmpty()) {
+                final long suffix = Long.parseLong(last);
+                return suffix <= 0 ? null : new long[]{Math.max(0, length - suffix), length - 1};
+            }
+            final long start = Long.parseLong(first);
+            final long end = last.isEmpty() ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+            return new long[]{start, end};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private String getContentType(final String relativePath) {
+        if (relativePath.endsWith(".wasm")) {
+            return "application/wasm";
+        }
+        if (relativePath.endsWith(".js") || relativePath.endsWith(".mjs")) {
+            return "application/javascript";
+        }
+        final String mimeType = servletContext.getMimeType(relativePath);
+        return mimeType == null ? "application/octet-stream" : mimeType;
+    }
+
+    private static String getRelativePath(final HttpServletRequest request) {
+        final String path = (String) request.getAttribute(HandlerMapping.PATH_WITHIN_HANDLER_MAPPING_ATTRIBUTE);
+        final int index = path == null ? -1 : path.indexOf(ASSET_PREFIX);
+        final String relativePath = index < 0 ? "" : path.substring(index + ASSET_PREFIX.length());
+        return relativePath.isEmpty() ? "index.html" : relativePath;
+    }
+}
@@ -1,289 +1,694 @@
 package org.nrg.xnat.volview.rest;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
 import org.nrg.framework.annotations.XapiRestController;
 import org.nrg.xapi.rest.AbstractXapiRestController;
 import org.nrg.xapi.rest.XapiRequestMapping;
 import org.nrg.xdat.XDAT;
-import org.nrg.xdat.om.XnatImagesessiondata;
+import org.nrg.xdat.security.helpers.AccessLevel;
 import org.nrg.xdat.security.services.RoleHolder;
 import org.nrg.xdat.security.services.UserManagementServiceI;
 import org.nrg.xft.security.UserI;
+import org.nrg.xnat.volview.cache.CachedResponse;
+import org.nrg.xnat.volview.cache.SeriesThumbnailCache;
+import org.nrg.xnat.volview.cache.SessionDescriptor;
+import org.nrg.xnat.volview.cache.StudyIndexCache;
+import org.nrg.xnat.volview.cache.StudyIndexEntry;
 import org.nrg.xnat.volview.config.VolViewSettings;
+import org.nrg.xnat.volview.metrics.VolViewMetrics;
+import org.nrg.xnat.volview.metrics.VolViewMetrics.Endpoint;
+import org.nrg.xnat.volview.metrics.VolViewMetrics.Stage;
+import org.nrg.xnat.volview.services.DicomCatalogService;
+import org.nrg.xnat.volview.services.VolViewAdmissionControl;
+import org.nrg.xnat.volview.services.VolViewDicomwebProxy;
+import org.nrg.xnat.volview.services.VolViewLaunchService;
+import org.nrg.xnat.volview.services.VolViewManifestService;
+import org.nrg.xnat.volview.services.VolViewMetadataPrefetcher;
+import org.nrg.xnat.volview.services.VolViewRequestExecutor;
+import org.nrg.xnat.volview.services.VolViewThumbnailService;
+import org.nrg.xnat.volview.utils.LaunchUrlTemplates;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import javax.servlet.http.HttpServletRequest;
-import java.util.LinkedHashMap;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.nrg.xnat.volview.utils.VolViewUrls.buildBaseUrl;
+import static org.nrg.xnat.volview.utils.VolViewUrls.buildPathPrefix;
+import static org.nrg.xnat.volview.utils.VolViewUrls.resolveUrl;
 
 @XapiRestController
 @Api("VolView Configuration API")
 public class VolViewConfigController extends AbstractXapiRestController {
     private static final Logger log = LoggerFactory.getLogger(VolViewConfigController.class);
-    private final VolViewSettings settings;
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    // The config is user-independent but only served to authenticated users, so browsers may keep
+    // it privately as long as they revalidate with the ETag on each use.
+    private static final CacheControl CONFIG_CACHE_CONTROL = CacheControl.noCache().cachePrivate();
+    private static final int MAX_STUDY_PAGE_SIZE = 1000;
+    private static final String NDJSON_VALUE = "application/x-ndjson";
+    // Studies are flushed in pages this size, so the shell can render the first rows of a large project
+    // while the rest are still being written.
+    private static final int STREAM_PAGE_SIZE = 200;
+    // Lets the bulkhead and admission timeouts answer first; the async timeout only catches what they miss.
+    private static final int ASYNC_TIMEOUT_MARGIN_SECONDS = 5;
+
+    private final VolViewLaunchService launchService;
+    private final VolViewManifestService manifestService;
+    private final VolViewMetadataPrefetcher prefetcher;
+    private final VolViewThumbnailService thumbnailService;
+    private final VolViewRequestExecutor requestExecutor;
+    private final VolViewAdmissionControl admissionControl;
+    private final DicomCatalogService catalogService;
+    private final VolViewMetrics metrics;
+    private final int maxBatchSize;
 
     @Autowired
-    public VolViewConfigController(final VolViewSettings settings,
+    public VolViewConfigController(final VolViewLaunchService launchService,
+                                   final VolViewManifestService manifestService,
+                                   final VolViewMetadataPrefetcher prefetcher,
+                                   final VolViewThumbnailService thumbnailService,
+                                   final VolViewRequestExecutor requestExecutor,
+                                   final VolViewAdmissionControl admissionControl,
+                                   final DicomCatalogService catalogService,
+                                   final VolViewMetrics metrics,
+                                   @Value("${volview.batch.max-sessions:1000}") final int maxBatchSize,
                                    final UserManagementServiceI userManagementService,
                                    final RoleHolder roleHolder) {
         super(userManagementService, roleHolder);
-        this.settings = settings;
+        this.launchService = launchService;
+        this.manifestService = manifestService;
+        this.prefetcher = prefetcher;
+        this.thumbnailService = thumbnailService;
+        this.requestExecutor = requestExecutor;
+        this.admissionControl = admissionControl;
+        this.catalogService = catalogService;
+        this.metrics = metrics;
+        this.maxBatchSize = maxBatchSize;
     }
 
     @XapiRequestMapping(value = "/volview/config/projects/{projectId}", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
     @ApiOperation(value = "Get VolView configuration for a project", response = Map.class)
-    public Map<String, Object> getProjectConfig(@PathVariable final String projectId,
-                                                final HttpServletRequest request) {
+    public ResponseEntity<byte[]> getProjectConfig(@PathVariable final String projectId,
+                                                   final HttpServletRequest request) throws JsonProcessingException {
         log.debug("VolView project config requested for projectId={} from {}", projectId, request.getRemoteAddr());
-        final String baseUrl = buildBaseUrl(request);
-        final String pathPrefix = buildPathPrefix(request);
-        final String dicomwebRoot = joinPaths(pathPrefix, settings.getProjectDicomwebPath(projectId));
-        final String viewerEntryPoint = resolveUrl(settings.getViewerEntryPoint(), baseUrl);
-        final String shellUrl = resolveUrl(settings.getShellPath(), baseUrl);
-
-        log.debug("Computed VolView config for projectId={} baseUrl={} dicomwebRoot={} viewerEntryPoint={} shellUrl={}",
-                projectId, baseUrl, dicomwebRoot, viewerEntryPoint, shellUrl);
-
-        final Map<String, String> dicomweb = new LinkedHashMap<>();
-        dicomweb.put("root", dicomwebRoot);
-        dicomweb.put("studies", joinPaths(dicomwebRoot, "studies"));
-        dicomweb.put("series", joinPaths(dicomwebRoot, "studies/{studyInstanceUID}/series"));
-        dicomweb.put("instances", joinPaths(dicomwebRoot, "studies/{studyInstanceUID}/series/{seriesInstanceUID}/instances"));
-
-        final Map<String, Object> viewer = new LinkedHashMap<>();
-        viewer.put("shellUrl", shellUrl);
-        viewer.put("entryPoint", viewerEntryPoint);
-        viewer.put("launchUrlTemplate", viewerEntryPoint + "?dicomweb=%s");
-
-        final Map<String, Object> response = new LinkedHashMap<>();
-        response.put("projectId", projectId);
-        response.put("serverName", settings.getServerName());
-        response.put("dicomweb", dicomweb);
-        response.put("viewer", viewer);
-
-        return response;
+        final long started = System.nanoTime();
+        int status = HttpStatus.INTERNAL_SERVER_ERROR.value();
+        try {
+            final String baseUrl = buildBaseUrl(request);
+            final String pathPrefix = buildPathPrefix(request);
+            metrics.recordStage(Stage.URL_BUILDING, started);
+            final ResponseEntity<byte[]> response = toJsonResponse(launchService.getProjectConfig(projectId, baseUrl, pathPrefix), request.getHeader(HttpHeaders.IF_NONE_MATCH));
+            status = response.getStatusCodeValue();
+            return response;
+        } finally {
+            metrics.recordRequest(Endpoint.PROJECT_CONFIG, status, started);
+        }
     }
 
-    @XapiRequestMapping(value = "/volview/config/projects/{projectId}/sessions/{sessionId}", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
-    @ApiOperation(value = "Get VolView configuration for a session", response = Map.class)
-    public ResponseEntity<Map<String, Object>> getSessionConfig(@PathVariable final String projectId,
-                                                                @PathVariable final String sessionId,
-                                                                final HttpServletRequest request) {
-        log.debug("VolView session config requested for projectId={} sessionId={} from {}", projectId, sessionId, request.getRemoteAddr());
+    @XapiRequestMapping(value = "/volview/config/projects/{projectId}/studies", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
+    @ApiOperation(value = "Get a page of the project's study index", notes = "Pages are ordered by the sort field and continue after the opaque cursor returned as nextCursor by the previous page.", response = Map.class)
+    public DeferredResult<ResponseEntity<StreamingResponseBody>> getStudyIndex(@PathVariable final String projectId,
+                                                                               @RequestParam(required = false) final String cursor,
+                                                                               @RequestParam(required = false) final String filter,
+                                                                               @RequestParam(required = false, defaultValue = "date") final String sort,
+                                                                               @RequestParam(required = false, defaultValue = "desc") final String order,
+                                                                               @RequestParam(required = false, defaultValue = "200") final int limit,
+                                                                               final HttpServletRequest request) {
+        final long started = System.nanoTime();
         final UserI user = XDAT.getUserDetails();
+        final long urlsStarted = metrics.recordStage(Stage.USER_RESOLUTION, started);
         if (user == null) {
-            log.warn("Rejected VolView session config request for projectId={} sessionId={} due to missing user session", projectId, sessionId);
-            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).build();
+            return respond(Endpoint.STUDY_INDEX, started, CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.UNAUTHORIZED).build()));
         }
+        final LaunchUrlTemplates.Renderer launchUrls = launchService.getLaunchUrls(buildBaseUrl(request), buildPathPrefix(request));
+        metrics.recordStage(Stage.URL_BUILDING, urlsStarted);
+        return respond(Endpoint.STUDY_INDEX, started, submit(Endpoint.STUDY_INDEX, projectId, user,
+                () -> buildStudyIndexResponse(user, projectId, cursor, filter, sort, order, limit, launchUrls)));
+    }
 
-        final XnatImagesessiondata session = XnatImagesessiondata.getXnatImagesessiondatasById(sessionId, user, false);
-        if (session == null) {
-            log.warn("VolView session config request for projectId={} sessionId={} not found or not visible to user {}", projectId, sessionId, user.getUsername());
+    /**
+     * Reads the page on the bulkhead. The body is written afterwards, straight to the response.
+     */
+    private ResponseEntity<StreamingResponseBody> buildStudyIndexResponse(final UserI user,
+                                                                          final String projectId,
+                                                                          final String cursor,
+                                                                          final String filter,
+                                                                          final String sort,
+                                                                          final String order,
+                                                                          final int limit,
+                                                                          final LaunchUrlTemplates.Renderer launchUrls) throws IOException {
+        final long permissionStarted = System.nanoTime();
+        final boolean canRead = launchService.canReadProject(user, projectId);
+        metrics.recordStage(Stage.PERMISSION_CHECK, permissionStarted);
+        if (!canRead) {
+            log.warn("VolView study index request for projectId={} not visible to user {}", projectId, user.getUsername());
             return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
         }
 
-        final String sessionProject = session.getProject();
-        final boolean matchesProject = (sessionProject != null && sessionProject.equalsIgnoreCase(projectId))
-                                       || session.hasProject(projectId);
-        if (!matchesProject) {
-            log.warn("VolView session config request for projectId={} sessionId={} denied; session belongs to project {}", projectId, sessionId, sessionProject);
-            return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+        final StudyIndexCache.SortField sortField;
+        try {
+            sortField = StudyIndexCache.SortField.valueOf(sort);
+        } catch (IllegalArgumentException e) {
+            return streamingBadRequest("Unsupported sort field " + sort);
+        }
+        final StudyIndexCache.Page page;
+        try {
+            page = launchService.getStudyIndexPage(projectId, sortField, !"asc".equalsIgnoreCase(order), filter, cursor, Math.max(1, Math.min(limit, MAX_STUDY_PAGE_SIZE)));
+        } catch (IllegalArgumentException e) {
+            return streamingBadRequest(e.getMessage());
         }
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(output -> writeStudyIndex(output, projectId, page, launchUrls));
+    }
 
-        final String baseUrl = buildBaseUrl(request);
-        final String pathPrefix = buildPathPrefix(request);
-        final String dicomwebRoot = joinPaths(pathPrefix, settings.getProjectDicomwebPath(projectId));
-        final String viewerEntryPoint = resolveUrl(settings.getViewerEntryPoint(), baseUrl);
-
-        final String studyInstanceUid = session.getUid();
-        log.debug("VolView session config computed for projectId={} sessionId={} studyUID={} viewerEntryPoint={} dicomwebStudyUrl={}",
-                projectId, sessionId, studyInstanceUid, viewerEntryPoint,
-                studyInstanceUid == null ? null : joinPaths(dicomwebRoot, "studies/" + studyInstanceUid));
-        final Map<String, Object> payload = new LinkedHashMap<>();
-        payload.put("projectId", projectId);
-        payload.put("sessionId", sessionId);
-        payload.put("label", session.getLabel());
-        payload.put("studyInstanceUID", studyInstanceUid);
-        payload.put("dicomwebStudyUrl", studyInstanceUid == null ? null : joinPaths(dicomwebRoot, "studies/" + studyInstanceUid));
-        payload.put("viewerEntryPoint", viewerEntryPoint);
-
-        return ResponseEntity.ok(payload);
+    private void writeStudyIndex(final OutputStream output, final String projectId, final StudyIndexCache.Page page, final LaunchUrlTemplates.Renderer launchUrls) throws IOException {
+        final long serializationStarted = System.nanoTime();
+        try (final JsonGenerator generator = MAPPER.getFactory().createGenerator(output)) {
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            generator.writeStartObject();
+            generator.writeStringField("projectId", projectId);
+            generator.writeNumberField("total", page.getTotal());
+            generator.writeArrayFieldStart("studies");
+            for (final StudyIndexEntry entry : page.getEntries()) {
+                generator.writeStartObject();
+                generator.writeStringField("studyInstanceUID", entry.getStudyInstanceUid());
+                generator.writeStringField("studyDate", entry.getStudyDate());
+                generator.writeStringField("description", entry.getDescription());
+                generator.writeStringField("patientName", entry.getPatientName());
+                generator.writeStringField("sessionId", entry.getSessionId());
+                generator.writeStringField("label", entry.getLabel());
+                generator.writeStringField("launchUrl", launchUrls.launchUrl(projectId, entry.getSessionId(), entry.getStudyInstanceUid(), null));
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+            generator.writeStringField("nextCursor", page.getNextCursor());
+            generator.writeEndObject();
+        }
+        metrics.recordStage(Stage.SERIALIZATION, serializationStarted);
     }
 
-    private static String buildBaseUrl(final HttpServletRequest request) {
-        String scheme = firstForwardedValue(request, "X-Forwarded-Proto");
-        if (scheme == null || scheme.isEmpty()) {
-            scheme = request.getScheme();
+    @XapiRequestMapping(value = "/volview/config/projects/{projectId}/studies/stream", method = RequestMethod.GET, produces = NDJSON_VALUE)
+    @ApiOperation(value = "Stream the project's study index as newline-delimited JSON",
+                  notes = "Each line is a JSON object with a type: project, study, series, end or error. With a readable session, its study and series are sent and flushed first, "
+                          + "so the shell can select it before the rest of the index arrives. The studies follow in the requested order.")
+    public void streamStudies(@PathVariable final String projectId,
+                              @RequestParam(required = false) final String session,
+                              @RequestParam(required = false) final String filter,
+                              @RequestParam(required = false, defaultValue = "date") final String sort,
+                              @RequestParam(required = false, defaultValue = "desc") final String order,
+                              final HttpServletRequest request,
+                              final HttpServletResponse response) throws IOException {
+        final long started = System.nanoTime();
+        int status = HttpStatus.INTERNAL_SERVER_ERROR.value();
+        try {
+            status = serveStudyStream(started, projectId, session, filter, sort, order, request, response);
+        } finally {
+            metrics.recordRequest(Endpoint.STUDY_STREAM, status, started);
         }
+    }
 
-        String host = request.getServerName();
-        int port = request.getServerPort();
+    private int serveStudyStream(final long started,
+                                 final String projectId,
+                                 final String sessionId,
+                                 final String filter,
+                                 final String sort,
+                                 final String order,
+                                 final HttpServletRequest request,
+                                 final HttpServletResponse response) throws IOException {
+        final UserI user = XDAT.getUserDetails();
+        final long urlsStarted = metrics.recordStage(Stage.USER_RESOLUTION, started);
+        if (user == null) {
+            return sendError(response, HttpStatus.UNAUTHORIZED, null);
+        }
+        final StudyIndexCache.SortField sortField;
+        try {
+            sortField = StudyIndexCache.SortField.valueOf(sort);
+        } catch (IllegalArgumentException e) {
+            return sendError(response, HttpStatus.BAD_REQUEST, "Unsupported sort field " + sort);
+        }
+        final LaunchUrlTemplates.Renderer launchUrls = launchService.getLaunchUrls(buildBaseUrl(request), buildPathPrefix(request));
+        metrics.recordStage(Stage.URL_BUILDING, urlsStarted);
+
+        // The stream is written on the request thread, like the DICOMweb cache, and holds its admission
+        // permit until the last line is sent.
+        try (final VolViewAdmissionControl.Permit permit = admissionControl.await(projectId, user.getUsername())) {
+            if (!permit.isAdmitted()) {
+                return permit.reject(response);
+            }
+            final long permissionStarted = System.nanoTime();
+            final boolean canRead = launchService.canReadProject(user, projectId);
+            metrics.recordStage(Stage.PERMISSION_CHECK, permissionStarted);
+            if (!canRead) {
+                log.warn("VolView study stream request for projectId={} not visible to user {}", projectId, user.getUsername());
+                return sendError(response, HttpStatus.NOT_FOUND, null);
+            }
 
-        final String forwardedHost = firstForwardedValue(request, "X-Forwarded-Host");
-        if (forwardedHost != null && !forwardedHost.isEmpty()) {
-            final HostPort hostPort = parseHostPort(forwardedHost);
-            if (hostPort.host != null && !hostPort.host.isEmpty()) {
-                host = hostPort.host;
+            response.setContentType(NDJSON_VALUE);
+            response.setHeader(HttpHeaders.CACHE_CONTROL, CacheControl.noStore().getHeaderValue());
+            // Keeps reverse proxies such as nginx from buffering the stream.
+            response.setHeader("X-Accel-Buffering", "no");
+            final OutputStream output = response.getOutputStream();
+            try (final JsonGenerator generator = MAPPER.getFactory().createGenerator(output)) {
+                generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+                // Each line ends with its own newline, so no separator goes between root values.
+                generator.setRootValueSeparator(null);
+                writeStudyStream(generator, user, projectId, sessionId, sortField, !"asc".equalsIgnoreCase(order), filter, launchUrls);
             }
-            if (hostPort.port != null) {
-                port = hostPort.port;
+            output.flush();
+            return HttpStatus.OK.value();
+        }
+    }
+
+    private void writeStudyStream(final JsonGenerator generator,
+                                  final UserI user,
+                                  final String projectId,
+                                  final String sessionId,
+                                  final StudyIndexCache.SortField sort,
+                                  final boolean descending,
+                                  final String filter,
+                                  final LaunchUrlTemplates.Renderer launchUrls) throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField("type", "project");
+        generator.writeStringField("projectId", projectId);
+        generator.writeEndObject();
+        generator.writeRaw('\n');
+
+        // The session is read from the descriptor cache, so it goes out before the project's index is
+        // built. Its index entry follows later with the remaining fields.
+        if (sessionId != null) {
+            final SessionDescriptor session = launchService.getSession(sessionId);
+            if (launchService.checkSessionAccess(user, projectId, sessionId, session) == HttpStatus.OK && session.getStudyInstanceUid() != null) {
+                writeStudy(generator, session.getStudyInstanceUid(), null, null, null, sessionId, session.getLabel(),
+                        launchUrls.launchUrl(projectId, sessionId, session.getStudyInstanceUid(), null));
+                writeSeries(generator, session);
+                generator.flush();
             }
         }
 
-        final String forwardedPort = firstForwardedValue(request, "X-Forwarded-Port");
-        if (forwardedPort != null && !forwardedPort.isEmpty()) {
-            port = safeParseInt(forwardedPort, port);
+        int count = 0;
+        int total = 0;
+        String cursor = null;
+        try {
+            do {
+                final StudyIndexCache.Page page = launchService.getStudyIndexPage(projectId, sort, descending, filter, cursor, STREAM_PAGE_SIZE);
+                for (final StudyIndexEntry entry : page.getEntries()) {
+                    writeStudy(generator, entry.getStudyInstanceUid(), entry.getStudyDate(), entry.getDescription(), entry.getPatientName(),
+                            entry.getSessionId(), entry.getLabel(), launchUrls.launchUrl(projectId, entry.getSessionId(), entry.getStudyInstanceUid(), null));
+                }
+                count += page.getEntries().size();
+                total = page.getTotal();
+                generator.flush();
+                cursor = page.getNextCursor();
+            } while (cursor != null);
+        } catch (IllegalStateException e) {
+            log.error("Failed to stream the VolView study index for project {}", projectId, e);
+            generator.writeStartObject();
+            generator.writeStringField("type", "error");
+            generator.writeStringField("message", "The study index is unavailable");
+            generator.writeEndObject();
+            generator.writeRaw('\n');
+            return;
         }
 
-        final String contextPath = buildPathPrefix(request);
+        generator.writeStartObject();
+        generator.writeStringField("type", "end");
+        generator.writeNumberField("count", count);
+        generator.writeNumberField("total", total);
+        generator.writeEndObject();
+        generator.writeRaw('\n');
+    }
 
-        final boolean isDefaultPort = (scheme.equalsIgnoreCase("http") && port == 80)
-                                      || (scheme.equalsIgnoreCase("https") && port == 443);
-        final String portSection = (isDefaultPort || port <= 0) ? "" : ":" + port;
+    private static void writeStudy(final JsonGenerator generator,
+                                   final String studyInstanceUid,
+                                   final String studyDate,
+                                   final String description,
+                                   final String patientName,
+                                   final String sessionId,
+                                   final String label,
+                                   final String launchUrl) throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField("type", "study");
+        generator.writeStringField("studyInstanceUID", studyInstanceUid);
+        generator.writeStringField("studyDate", studyDate);
+        generator.writeStringField("description", description);
+        generator.writeStringField("patientName", patientName);
+        generator.writeStringField("sessionId", sessionId);
+        generator.writeStringField("label", label);
+        generator.writeStringField("launchUrl", launchUrl);
+        generator.writeEndObject();
+        generator.writeRaw('\n');
+    }
 
-        return scheme + "://" + host + portSection + contextPath;
+    /**
+     * Writes the session's DICOM series in scan order, from its catalogs rather than a QIDO query.
+     */
+    private void writeSeries(final JsonGenerator generator, final SessionDescriptor session) throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField("type", "series");
+        generator.writeStringField("studyInstanceUID", session.getStudyInstanceUid());
+        generator.writeStringField("sessionId", session.getId());
+        generator.writeArrayFieldStart("series");
+        for (final DicomCatalogService.SeriesCatalogs series : catalogService.getSessionCatalogs(session.getId())) {
+            generator.writeStartObject();
+            generator.writeStringField("seriesInstanceUID", series.getSeriesInstanceUid());
+            generator.writeStringField("description", series.getDescription());
+            generator.writeStringField("scanId", series.getScanId());
+            generator.writeEndObject();
+        }
+        generator.writeEndArray();
+        generator.writeEndObject();
+        generator.writeRaw('\n');
     }
 
-    private static String buildPathPrefix(final HttpServletRequest request) {
-        final String forwardedPrefix = firstForwardedValue(request, "X-Forwarded-Prefix");
-        final String contextPathRaw = request.getContextPath() == null ? "" : request.getContextPath();
-        return normalizePrefix(forwardedPrefix, contextPathRaw);
+    @XapiRequestMapping(value = "/volview/config/cache", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE, restrictTo = AccessLevel.Admin)
+    @ApiOperation(value = "Get VolView cache statistics", response = Map.class)
+    public Map<String, Object> getCacheStatistics() {
+        return launchService.getCacheStatistics();
     }
 
-    private static String firstForwardedValue(final HttpServletRequest request, final String headerName) {
-        final String raw = request.getHeader(headerName);
-        if (raw == null) {
-            return null;
+    @XapiRequestMapping(value = "/volview/config/projects/{projectId}/sessions/{sessionId}", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
+    @ApiOperation(value = "Get VolView configuration for a session", response = Map.class)
+    public DeferredResult<ResponseEntity<byte[]>> getSessionConfig(@PathVariable final String projectId,
+                                                                   @PathVariable final String sessionId,
+                                                                   final HttpServletRequest request) {
+        log.debug("VolView session config requested for projectId={} sessionId={} from {}", projectId, sessionId, request.getRemoteAddr());
+        final long started = System.nanoTime();
+        final UserI user = XDAT.getUserDetails();
+        final long urlsStarted = metrics.recordStage(Stage.USER_RESOLUTION, started);
+        if (user == null) {
+            log.warn("Rejected VolView session config request for projectId={} sessionId={} due to missing user session", projectId, sessionId);
+            return respond(Endpoint.SESSION_CONFIG, started, CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.UNAUTHORIZED).build()));
         }
-        final int commaIndex = raw.indexOf(',');
-        return (commaIndex >= 0 ? raw.substring(0, commaIndex) : raw).trim();
+        final String baseUrl = buildBaseUrl(request);
+        final String pathPrefix = buildPathPrefix(request);
+        final VolViewDicomwebProxy.Origin prefetchOrigin = prefetcher.capture(request);
+        metrics.recordStage(Stage.URL_BUILDING, urlsStarted);
+        return respond(Endpoint.SESSION_CONFIG, started, submit(Endpoint.SESSION_CONFIG, projectId, user,
+                () -> buildSessionConfigResponse(user, projectId, sessionId, baseUrl, pathPrefix, prefetchOrigin)));
     }
 
-    private static int safeParseInt(final String value, final int fallback) {
-        try {
-            return Integer.parseInt(value);
-        } catch (NumberFormatException e) {
-            return fallback;
+    private ResponseEntity<byte[]> buildSessionConfigResponse(final UserI user,
+                                                              final String projectId,
+                                                              final String sessionId,
+                                                              final String baseUrl,
+                                                              final String pathPrefix,
+                                                              final VolViewDicomwebProxy.Origin prefetchOrigin) throws JsonProcessingException {
+        final SessionDescriptor session = launchService.getSession(sessionId);
+        final HttpStatus status = launchService.checkSessionAccess(user, projectId, sessionId, session);
+        if (status != HttpStatus.OK) {
+            return ResponseEntity.status(status).build();
         }
+        // Start loading the metadata VolView will ask for first while the config is on its way back.
+        prefetcher.prefetch(prefetchOrigin, projectId, session);
+
+        final Map<String, Object> payload = launchService.getSessionConfig(projectId, session, baseUrl, pathPrefix);
+        final long serializationStarted = System.nanoTime();
+        final byte[] body = MAPPER.writeValueAsBytes(payload);
+        metrics.recordStage(Stage.SERIALIZATION, serializationStarted);
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(body);
     }
 
-    private static Integer safeParseIntNullable(final String value) {
-        try {
-            return Integer.valueOf(value);
-        } catch (NumberFormatException e) {
-            return null;
+    @XapiRequestMapping(value = "/volview/config/projects/{projectId}/sessions/{sessionId}/prefetch", method = RequestMethod.POST)
+    @ApiOperation(value = "Warm the DICOMweb metadata cache for a session",
+                  notes = "Queues a background fetch of the session's series metadata, e.g. when a session is selected in the shell. Returns 202 if the fetch is queued and 404 if prefetching is disabled.")
+    public DeferredResult<ResponseEntity<Void>> prefetchSession(@PathVariable final String projectId,
+                                                                @PathVariable final String sessionId,
+                                                                final HttpServletRequest request) {
+        final long started = System.nanoTime();
+        final UserI user = XDAT.getUserDetails();
+        metrics.recordStage(Stage.USER_RESOLUTION, started);
+        if (user == null) {
+            return respond(Endpoint.PREFETCH, started, CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.UNAUTHORIZED).build()));
+        }
+        final VolViewDicomwebProxy.Origin origin = prefetcher.capture(request);
+        if (origin == null) {
+            return respond(Endpoint.PREFETCH, started, CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.NOT_FOUND).build()));
         }
+        return respond(Endpoint.PREFETCH, started, submit(Endpoint.PREFETCH, projectId, user, () -> {
+            final SessionDescriptor session = launchService.getSession(sessionId);
+            final HttpStatus status = launchService.checkSessionAccess(user, projectId, sessionId, session);
+            if (status != HttpStatus.OK) {
+                return ResponseEntity.status(status).build();
+            }
+            if (session.getStudyInstanceUid() == null) {
+                return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+            }
+            return ResponseEntity.status(prefetcher.prefetch(origin, projectId, session) ? HttpStatus.ACCEPTED : HttpStatus.SERVICE_UNAVAILABLE).build();
+        }));
     }
 
-    private static String normalizePrefix(final String forwardedPrefix, final String contextPath) {
-        final StringBuilder builder = new StringBuilder();
+    @XapiRequestMapping(value = "/volview/config/projects/{projectId}/sessions/{sessionId}/manifest", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
+    @ApiOperation(value = "Get the launch manifest for a session",
+                  notes = "Lists each DICOM series with its instances sorted by position along the slice normal, with geometry, sizes and transfer syntaxes. URLs are relative to the session config's dicomwebStudyUrl. The body is always gzip-encoded.",
+                  response = Map.class)
+    public DeferredResult<ResponseEntity<byte[]>> getSessionManifest(@PathVariable final String projectId,
+                                                                     @PathVariable final String sessionId,
+                                                                     final HttpServletRequest request) {
+        log.debug("VolView session manifest requested for projectId={} sessionId={} from {}", projectId, sessionId, request.getRemoteAddr());
+        final long started = System.nanoTime();
+        final UserI user = XDAT.getUserDetails();
+        metrics.recordStage(Stage.USER_RESOLUTION, started);
+        if (user == null) {
+            return respond(Endpoint.SESSION_MANIFEST, started, CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.UNAUTHORIZED).build()));
+        }
+        // The manifest is only kept gzip-compressed. Without an Accept-Encoding header any coding is acceptable.
+        final String acceptEncoding = request.getHeader(HttpHeaders.ACCEPT_ENCODING);
+        if (acceptEncoding != null && !VolViewPageController.accepts(acceptEncoding, "gzip")) {
+            return respond(Endpoint.SESSION_MANIFEST, started, CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.NOT_ACCEPTABLE).build()));
+        }
+        final String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+        return respond(Endpoint.SESSION_MANIFEST, started, submit(Endpoint.SESSION_MANIFEST, projectId, user,
+                () -> buildSessionManifestResponse(user, projectId, sessionId, ifNoneMatch)));
+    }
 
-        if (forwardedPrefix != null && !forwardedPrefix.isEmpty()) {
-            String prefix = forwardedPrefix.trim();
-            if (!prefix.startsWith("/")) {
-                prefix = "/" + prefix;
-            }
-            if (prefix.endsWith("/")) {
-                prefix = prefix.substring(0, prefix.length() - 1);
-            }
-            builder.append(prefix);
+    private ResponseEntity<byte[]> buildSessionManifestResponse(final UserI user,
+                                                                final String projectId,
+                                                                final String sessionId,
+                                                                final String ifNoneMatch) throws IOException {
+        final SessionDescriptor session = launchService.getSession(sessionId);
+        final HttpStatus status = launchService.checkSessionAccess(user, projectId, sessionId, session);
+        if (status != HttpStatus.OK) {
+            return ResponseEntity.status(status).build();
         }
 
-        if (contextPath != null && !contextPath.isEmpty() && !contextPath.equals("/")) {
-            if (builder.length() == 0) {
-                builder.append(contextPath);
-            } else {
-                builder.append(contextPath.startsWith("/") ? contextPath : "/" + contextPath);
-            }
+        final CachedResponse manifest = manifestService.getManifest(session).getCompressed();
+        if (manifest.matches(ifNoneMatch)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                    .eTag(manifest.getEtag())
+                    .cacheControl(CONFIG_CACHE_CONTROL)
+                    .varyBy(HttpHeaders.ACCEPT_ENCODING)
+                    .build();
         }
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .eTag(manifest.getEtag())
+                .cacheControl(CONFIG_CACHE_CONTROL)
+                .varyBy(HttpHeaders.ACCEPT_ENCODING)
+                .header(HttpHeaders.CONTENT_ENCODING, "gzip")
+                .body(manifest.getBody());
+    }
 
-        return builder.length() == 0 ? "" : builder.toString();
+    @XapiRequestMapping(value = "/volview/config/projects/{projectId}/sessions/{sessionId}/series/{seriesInstanceUid}/thumbnail", method = RequestMethod.GET, produces = MediaType.IMAGE_PNG_VALUE)
+    @ApiOperation(value = "Get a thumbnail of a series in a session",
+                  notes = "Renders the middle instance of the series as a small PNG. Returns 404 if the series isn't in the session or its pixel data can't be rendered.")
+    public DeferredResult<ResponseEntity<byte[]>> getSeriesThumbnail(@PathVariable final String projectId,
+                                                                     @PathVariable final String sessionId,
+                                                                     @PathVariable final String seriesInstanceUid,
+                                                                     final HttpServletRequest request) {
+        final long started = System.nanoTime();
+        final UserI user = XDAT.getUserDetails();
+        metrics.recordStage(Stage.USER_RESOLUTION, started);
+        if (user == null) {
+            return respond(Endpoint.THUMBNAIL, started, CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.UNAUTHORIZED).build()));
+        }
+        final String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+        // The access check runs on the bulkhead and the render on the thumbnail workers, and the
+        // admission permit is held until the thumbnail is sent.
+        return respond(Endpoint.THUMBNAIL, started, admissionControl.run(projectId, user.getUsername(), () ->
+                requestExecutor.submit(Endpoint.THUMBNAIL, () -> checkSessionAccess(user, projectId, sessionId))
+                        .thenCompose(access -> access.getStatusCode() != HttpStatus.OK
+                                               ? CompletableFuture.completedFuture(ResponseEntity.status(access.getStatusCode()).headers(access.getHeaders()).<byte[]>build())
+                                               : thumbnailService.getThumbnail(sessionId, seriesInstanceUid).handle((thumbnail, error) -> toThumbnailResponse(thumbnail, error, ifNoneMatch)))));
     }
 
-    private static String joinPaths(final String base, final String path) {
-        final String safeBase = base == null ? "" : base.trim();
-        final String safePath = path == null ? "" : path.trim();
+    private ResponseEntity<Void> checkSessionAccess(final UserI user, final String projectId, final String sessionId) {
+        final SessionDescriptor session = launchService.getSession(sessionId);
+        return ResponseEntity.status(launchService.checkSessionAccess(user, projectId, sessionId, session)).build();
+    }
 
-        if (safeBase.isEmpty()) {
-            if (safePath.startsWith("/")) {
-                return safePath;
-            }
-            return safePath.isEmpty() ? "" : "/" + safePath;
+    private static ResponseEntity<byte[]> toThumbnailResponse(final SeriesThumbnailCache.Thumbnail thumbnail, final Throwable error, final String ifNoneMatch) {
+        if (error != null) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, "5").build();
         }
-
-        if (safePath.isEmpty()) {
-            return safeBase;
+        if (thumbnail == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
         }
+        final CachedResponse image = thumbnail.getImage();
+        if (image.matches(ifNoneMatch)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                    .eTag(image.getEtag())
+                    .cacheControl(CONFIG_CACHE_CONTROL)
+                    .build();
+        }
+        return ResponseEntity.ok()
+                .contentType(MediaType.IMAGE_PNG)
+                .eTag(image.getEtag())
+                .cacheControl(CONFIG_CACHE_CONTROL)
+                .body(image.getBody());
+    }
 
-        final boolean baseEndsWithSlash = safeBase.endsWith("/");
-        final boolean pathStartsWithSlash = safePath.startsWith("/");
-
-        if (baseEndsWithSlash && pathStartsWithSlash) {
-            return safeBase + safePath.substring(1);
+    @XapiRequestMapping(value = "/volview/config/sessions", method = RequestMethod.POST, consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_JSON_VALUE)
+    @ApiOperation(value = "Get VolView configuration for a batch of sessions", notes = "Resolves each project/session pair and returns a per-item status with the same semantics as the single session endpoint.", response = Map.class)
+    public DeferredResult<ResponseEntity<StreamingResponseBody>> getSessionConfigs(@RequestBody final List<SessionReference> references,
+                                                                                   final HttpServletRequest request) throws JsonProcessingException {
+        log.debug("VolView batch session config requested for {} sessions from {}", references == null ? 0 : references.size(), request.getRemoteAddr());
+        final long started = System.nanoTime();
+        final UserI user = XDAT.getUserDetails();
+        final long urlsStarted = metrics.recordStage(Stage.USER_RESOLUTION, started);
+        if (user == null) {
+            log.warn("Rejected VolView batch session config request due to missing user session");
+            return respond(Endpoint.SESSION_BATCH, started, CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.UNAUTHORIZED).build()));
         }
-        if (!baseEndsWithSlash && !pathStartsWithSlash) {
-            return safeBase + "/" + safePath;
+        if (references == null || references.size() > maxBatchSize) {
+            log.warn("Rejected VolView batch session config request from user {} with {} sessions; the limit is {}", user.getUsername(), references == null ? null : references.size(), maxBatchSize);
+            return respond(Endpoint.SESSION_BATCH, started, CompletableFuture.completedFuture(streamingBadRequest("Batch requests must contain between 0 and " + maxBatchSize + " sessions")));
         }
-        return safeBase + safePath;
+
+        final String baseUrl = buildBaseUrl(request);
+        final VolViewSettings.Snapshot snapshot = launchService.getSettings();
+        final String viewerEntryPoint = resolveUrl(snapshot.getViewerEntryPoint(), baseUrl);
+        final LaunchUrlTemplates.Renderer launchUrls = launchService.getLaunchUrls(baseUrl, buildPathPrefix(request));
+        metrics.recordStage(Stage.URL_BUILDING, urlsStarted);
+        return respond(Endpoint.SESSION_BATCH, started, submit(Endpoint.SESSION_BATCH, null, user,
+                () -> buildSessionConfigsResponse(user, references, viewerEntryPoint, launchUrls)));
+    }
+
+    /**
+     * Admits the batch on the bulkhead. Each session is then resolved and written in turn, straight to the
+     * response, so neither the configs nor the body are held in memory.
+     */
+    private ResponseEntity<StreamingResponseBody> buildSessionConfigsResponse(final UserI user,
+                                                                              final List<SessionReference> references,
+                                                                              final String viewerEntryPoint,
+                                                                              final LaunchUrlTemplates.Renderer launchUrls) {
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(output -> writeSessionConfigs(output, user, references, viewerEntryPoint, launchUrls));
     }
 
-    private static HostPort parseHostPort(final String value) {
-        String host = value;
-        Integer port = null;
-
-        if (value.startsWith("[")) {
-            final int closing = value.indexOf(']');
-            if (closing > 0) {
-                host = value.substring(0, closing + 1);
-                if (closing + 1 < value.length() && value.charAt(closing + 1) == ':') {
-                    final String portCandidate = value.substring(closing + 2);
-                    port = safeParseIntNullable(portCandidate);
+    private void writeSessionConfigs(final OutputStream output,
+                                     final UserI user,
+                                     final List<SessionReference> references,
+                                     final String viewerEntryPoint,
+                                     final LaunchUrlTemplates.Renderer launchUrls) throws IOException {
+        try (final JsonGenerator generator = MAPPER.getFactory().createGenerator(output)) {
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            generator.writeStartObject();
+            generator.writeArrayFieldStart("results");
+            for (final SessionReference reference : references) {
+                final String projectId = reference.getProjectId();
+                final String sessionId = reference.getSessionId();
+                HttpStatus status = HttpStatus.BAD_REQUEST;
+                Map<String, Object> config = null;
+                if (projectId != null && sessionId != null) {
+                    final SessionDescriptor session = launchService.getSession(sessionId);
+                    status = launchService.checkSessionAccess(user, projectId, sessionId, session);
+                    if (status == HttpStatus.OK) {
+                        config = launchService.buildSessionConfig(projectId, session, viewerEntryPoint, launchUrls);
+                    }
                 }
+                generator.writeStartObject();
+                generator.writeStringField("projectId", projectId);
+                generator.writeStringField("sessionId", sessionId);
+                generator.writeNumberField("status", status.value());
+                if (config != null) {
+                    generator.writeObjectField("config", config);
+                }
+                generator.writeEndObject();
             }
-        } else {
-            final int colonIndex = value.lastIndexOf(':');
-            if (colonIndex > 0 && colonIndex == value.indexOf(':')) {
-                host = value.substring(0, colonIndex);
-                port = safeParseIntNullable(value.substring(colonIndex + 1));
-            }
-        }
-
-        if (port != null && port <= 0) {
-            port = null;
+            generator.writeEndArray();
+            generator.writeEndObject();
         }
+    }
 
-        return new HostPort(host, port);
+    /**
+     * Runs the task on the endpoint's bulkhead once admission control lets the request through.
+     */
+    private <T> CompletableFuture<ResponseEntity<T>> submit(final Endpoint endpoint, final String projectId, final UserI user, final Callable<ResponseEntity<T>> task) {
+        return admissionControl.run(projectId, user.getUsername(), () -> requestExecutor.submit(endpoint, task));
     }
 
-    private static final class HostPort {
-        private final String host;
-        private final Integer port;
+    /**
+     * Hands the response to Spring MVC with an explicit timeout that covers the admission queue and the
+     * bulkhead timeout, so the container's default async timeout can't cut the request short, and records
+     * its status once it completes.
+     */
+    private <T> DeferredResult<ResponseEntity<T>> respond(final Endpoint endpoint, final long started, final CompletableFuture<ResponseEntity<T>> response) {
+        final VolViewSettings.Snapshot snapshot = launchService.getSettings();
+        final long timeoutSeconds = requestExecutor.getTimeoutSeconds(endpoint) + ASYNC_TIMEOUT_MARGIN_SECONDS
+                                    + (snapshot.isAdmissionEnabled() ? snapshot.getAdmissionQueueTimeoutSeconds() : 0);
+        final DeferredResult<ResponseEntity<T>> result = new DeferredResult<>(TimeUnit.SECONDS.toMillis(timeoutSeconds),
+                ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, "5").build());
+        response.whenComplete((completed, error) -> {
+            metrics.recordRequest(endpoint, completed == null ? HttpStatus.INTERNAL_SERVER_ERROR.value() : completed.getStatusCodeValue(), started);
+            if (error != null) {
+                result.setErrorResult(error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+            } else {
+                result.setResult(completed);
+            }
+        });
+        return result;
+    }
 
-        private HostPort(final String host, final Integer port) {
-            this.host = host;
-            this.port = port;
+    private static int sendError(final HttpServletResponse response, final HttpStatus status, final String message) throws IOException {
+        if (message == null) {
+            response.sendError(status.value());
+        } else {
+            response.sendError(status.value(), message);
         }
+        return status.value();
     }
 
-    private static String resolveUrl(final String path, final String baseUrl) {
-        if (path == null || path.trim().isEmpty()) {
-            return baseUrl;
-        }
-        final String trimmed = path.trim();
-        if (trimmed.startsWith("http://") || trimmed.startsWith("https://")) {
-            return trimmed;
-        }
-        if (trimmed.startsWith("/")) {
-            return baseUrl + trimmed;
+    private static ResponseEntity<StreamingResponseBody> streamingBadRequest(final String message) throws JsonProcessingException {
+        final byte[] body = MAPPER.writeValueAsBytes(Collections.singletonMap("error", message));
+        return ResponseEntity.badRequest().contentType(MediaType.APPLICATION_JSON).body(output -> output.write(body));
+    }
+
+    private static ResponseEntity<byte[]> toJsonResponse(final CachedResponse cached, final String ifNoneMatch) {
+        if (cached.matches(ifNoneMatch)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                    .eTag(cached.getEtag())
+                    .cacheControl(CONFIG_CACHE_CONTROL)
+                    .build();
         }
-        return baseUrl + "/" + trimmed;
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .eTag(cached.getEtag())
+                .cacheControl(CONFIG_CACHE_CONTROL)
+                .body(cached.getBody());
     }
 }
@@ -0,0 +1,269 @@
+package org.nrg.xnat.volview.rest;
+
+import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiOperation;
+import org.nrg.framework.annotations.XapiRestController;
+import org.nrg.xapi.rest.AbstractXapiRestController;
+import org.nrg.xapi.rest.XapiRequestMapping;
+import org.nrg.xdat.XDAT;
+import org.nrg.xdat.security.services.RoleHolder;
+import org.nrg.xdat.security.services.UserManagementServiceI;
+import org.nrg.xft.security.UserI;
+import org.nrg.xnat.volview.cache.CachedResponse;
+import org.nrg.xnat.volview.cache.DicomwebDiskCache;
+import org.nrg.xnat.volview.cache.DicomwebMetadataCache;
+import org.nrg.xnat.volview.config.VolViewSettings;
+import org.nrg.xnat.volview.metrics.VolViewMetrics;
+import org.nrg.xnat.volview.metrics.VolViewMetrics.Endpoint;
+import org.nrg.xnat.volview.services.VolViewAdmissionControl;
+import org.nrg.xnat.volview.services.VolViewDicomwebProxy;
+import org.nrg.xnat.volview.services.VolViewLaunchService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Caching DICOMweb pass-through for VolView. WADO-RS instances and frames are kept on local disk by
+ * {@link VolViewDicomwebProxy} and served from memory-mapped files, with single <code>bytes=</code>
+ * ranges honored; JSON metadata is kept and served from memory. Every request checks that the user can
+ * read the project, so cached data is never served to someone the origin would have refused. Enabled
+ * with <code>volview.dicomweb-cache.enabled</code>, which also points the launch config's
+ * <code>dicomweb.root</code> here.
+ */
+@XapiRestController
+@Api("VolView DICOMweb Cache API")
+public class VolViewDicomwebController extends AbstractXapiRestController {
+    private static final Logger log = LoggerFactory.getLogger(VolViewDicomwebController.class);
+
+    private static final String PATH_PREFIX = "/volview/dicomweb/projects/";
+    // Browsers may keep responses privately but must revalidate with the ETag, which repeats the
+    // permission check.
+    private static final String CACHE_CONTROL = "private, no-cache";
+    private static final String RETRY_AFTER_SECONDS = "5";
+    // Large instances are mapped in windows so that no single mapping pins too much address space.
+    private static final long MAP_WINDOW_BYTES = 64L * 1024L * 1024L;
+    private static final Pattern ENCODED_SEPARATOR = Pattern.compile("%2[EeFf]|%5[Cc]");
+    private static final List<String> PASSED_THROUGH_HEADERS = Collections.unmodifiableList(Arrays.asList(
+            HttpHeaders.CONTENT_RANGE, HttpHeaders.ACCEPT_RANGES, HttpHeaders.ETAG, HttpHeaders.LAST_MODIFIED, HttpHeaders.CACHE_CONTROL));
+
+    private final VolViewSettings settings;
+    private final VolViewLaunchService launchService;
+    private final VolViewDicomwebProxy dicomwebProxy;
+    private final VolViewAdmissionControl admissionControl;
+    private final VolViewMetrics metrics;
+
+    @Autowired
+    public VolViewDicomwebController(final VolViewSettings settings,
+                                     final VolViewLaunchService launchService,
+                                     final VolViewDicomwebProxy dicomwebProxy,
+                                     final VolViewAdmissionControl admissionControl,
+                                     final VolViewMetrics metrics,
+                                     final UserManagementServiceI userManagementService,
+                                     final RoleHolder roleHolder) {
+        super(userManagementService, roleHolder);
+        this.settings = settings;
+        this.launchService = launchService;
+        this.dicomwebProxy = dicomwebProxy;
+        this.admissionControl = admissionControl;
+        this.metrics = metrics;
+    }
+
+    @XapiRequestMapping(value = "/volview/dicomweb/projects/{projectId}/**", method = RequestMethod.GET)
+    @ApiOperation(value = "Get a DICOMweb resource for a project through the VolView disk cache",
+                  notes = "WADO-RS instances, frames and metadata are cached; other requests are passed through to the DICOMweb origin.")
+    public void getDicomweb(@PathVariable final String projectId, final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+        final long started = System.nanoTime();
+        int status = HttpStatus.INTERNAL_SERVER_ERROR.value();
+        try {
+            status = serve(projectId, request, response);
+        } finally {
+            metrics.recordRequest(Endpoint.DICOMWEB, status, started);
+        }
+    }
+
+    private int serve(final String projectId, final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+        if (!settings.isDicomwebCacheEnabled()) {
+            return sendError(response, HttpStatus.NOT_FOUND);
+        }
+        final UserI user = XDAT.getUserDetails();
+        if (user == null) {
+            return sendError(response, HttpStatus.UNAUTHORIZED);
+        }
+        try (final VolViewAdmissionControl.Permit permit = admissionControl.await(projectId, user.getUsername())) {
+            if (!permit.isAdmitted()) {
+                return permit.reject(response);
+            }
+            return serve(projectId, user, request, response);
+        }
+    }
+
+    private int serve(final String projectId, final UserI user, final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+        final String relativePath = getRelativePath(request, projectId);
+        if (relativePath == null) {
+            return sendError(response, HttpStatus.NOT_FOUND);
+        }
+        if (!launchService.canReadProject(user, projectId)) {
+            log.warn("VolView DICOMweb request for projectId={} path={} denied for user {}", projectId, relativePath, user.getUsername());
+            return sendError(response, HttpStatus.NOT_FOUND);
+        }
+
+        final VolViewDicomwebProxy.Response fetched;
+        try {
+            fetched = dicomwebProxy.fetch(projectId, relativePath, request.getQueryString(), request);
+        } catch (VolViewDicomwebProxy.OriginBusyException e) {
+            log.warn("Rejected DICOMweb request {} for project {}: {}", relativePath, projectId, e.getMessage());
+            response.setHeader(HttpHeaders.RETRY_AFTER, RETRY_AFTER_SECONDS);
+            return sendError(response, HttpStatus.SERVICE_UNAVAILABLE);
+        } catch (IOException e) {
+            log.error("Failed to fetch DICOMweb resource {} for project {} from the origin", relativePath, projectId, e);
+            return sendError(response, HttpStatus.BAD_GATEWAY);
+        }
+        try {
+            if (fetched.getMetadata() != null) {
+                return sendMetadata(fetched.getMetadata(), request, response);
+            }
+            if (fetched.isCached()) {
+                return sendCached(fetched.getEntry(), fetched.getChannel(), request, response);
+            }
+            return passThrough(fetched.getConnection(), response);
+        } finally {
+            fetched.close();
+        }
+    }
+
+    private static int sendMetadata(final DicomwebMetadataCache.Metadata metadata, final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+        final CachedResponse cached = metadata.getResponse();
+        response.setHeader(HttpHeaders.CACHE_CONTROL, CACHE_CONTROL);
+        response.setHeader(HttpHeaders.ETAG, cached.getEtag());
+        response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+        if (cached.matches(request.getHeader(HttpHeaders.IF_NONE_MATCH))) {
+            response.setStatus(HttpStatus.NOT_MODIFIED.value());
+            return HttpStatus.NOT_MODIFIED.value();
+        }
+        if (metadata.getContentType() != null) {
+            response.setContentType(metadata.getContentType());
+        }
+        response.setContentLength(cached.getBody().length);
+        final OutputStream output = response.getOutputStream();
+        output.write(cached.getBody());
+        output.flush();
+        return HttpStatus.OK.value();
+    }
+
+    /**
+     * Sends the cached entry, or the single byte range the request asks for, and returns the status sent.
+     */
+    static int sendCached(final DicomwebDiskCache.Entry entry, final FileChannel channel, final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+        final long length = entry.getSize();
+        response.setHeader(HttpHeaders.CACHE_CONTROL, CACHE_CONTROL);
+        response.setHeader(HttpHeaders.ETAG, entry.getEtag());
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+        if (entry.getContentType() != null) {
+            response.setContentType(entry.getContentType());
+        }
+
+        final String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+        if (ifNoneMatch != null && (ifNoneMatch.trim().equals("*") || ifNoneMatch.contains(entry.getEtag()))) {
+            response.setStatus(HttpStatus.NOT_MODIFIED.value());
+            return HttpStatus.NOT_MODIFIED.value();
+        }
+
+        final String range = request.getHeader(HttpHeaders.RANGE);
+        final long[] bounds = range == null ? null : VolViewAssetController.parseRange(range, length);
+        if (bounds == null) {
+            send(channel, 0, length, response);
+            return HttpStatus.OK.value();
+        }
+        if (bounds[0] >= length || bounds[0] > bounds[1]) {
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+            return sendError(response, HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+        }
+        response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+        response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + bounds[0] + "-" + bounds[1] + "/" + length);
+        send(channel, bounds[0], bounds[1] - bounds[0] + 1, response);
+        return HttpStatus.PARTIAL_CONTENT.value();
+    }
+
+    private static void send(final FileChannel channel, final long start, final long count, final HttpServletResponse response) throws IOException {
+        response.setContentLengthLong(count);
+        final OutputStream output = response.getOutputStream();
+        final WritableByteChannel target = Channels.newChannel(output);
+        long position = start;
+        final long end = start + count;
+        while (position < end) {
+            final MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW_BYTES, end - position));
+            while (window.hasRemaining()) {
+                target.write(window);
+            }
+            position += window.capacity();
+        }
+        output.flush();
+    }
+
+    private static int passThrough(final HttpURLConnection connection, final HttpServletResponse response) throws IOException {
+        final int status = connection.getResponseCode();
+        response.setStatus(status);
+        if (connection.getContentType() != null) {
+            response.setContentType(connection.getContentType());
+        }
+        for (final String header : PASSED_THROUGH_HEADERS) {
+            final String value = connection.getHeaderField(header);
+            if (value != null) {
+                response.setHeader(header, value);
+            }
+        }
+        if (connection.getContentLengthLong() >= 0) {
+            response.setContentLengthLong(connection.getContentLengthLong());
+        }
+        try (final InputStream input = status >= HttpURLConnection.HTTP_BAD_REQUEST ? connection.getErrorStream() : connection.getInputStream()) {
+            if (input != null) {
+                StreamUtils.copy(input, response.getOutputStream());
+            }
+        }
+        return status;
+    }
+
+    private static int sendError(final HttpServletResponse response, final HttpStatus status) throws IOException {
+        response.sendError(status.value());
+        return status.value();
+    }
+
+    /**
+     * Returns the raw DICOMweb path after the project, e.g. <code>studies/1.2.3/metadata</code>, or null
+     * if it's empty or tries to leave the project.
+     */
+    private static String getRelativePath(final HttpServletRequest request, final String projectId) {
+        final String uri = request.getRequestURI();
+        final String marker = PATH_PREFIX + projectId + "/";
+        final int index = uri.indexOf(marker);
+        if (index < 0) {
+            return null;
+        }
+        final String relativePath = uri.substring(index + marker.length());
+        if (relativePath.isEmpty() || relativePath.startsWith("/") || Arrays.asList(relativePath.split("/")).contains("..") || ENCODED_SEPARATOR.matcher(relativePath).find()) {
+            return null;
+        }
+        return relativePath;
+    }
+}
@@ -0,0 +1,196 @@
+package org.nrg.xnat.volview.rest;
+
+import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiOperation;
+import org.nrg.framework.annotations.XapiRestController;
+import org.nrg.xapi.rest.AbstractXapiRestController;
+import org.nrg.xapi.rest.XapiRequestMapping;
+import org.nrg.xdat.security.helpers.AccessLevel;
+import org.nrg.xdat.security.services.RoleHolder;
+import org.nrg.xdat.security.services.UserManagementServiceI;
+import org.nrg.xnat.volview.cache.CacheInvalidationBus;
+import org.nrg.xnat.volview.metrics.PrometheusMetrics;
+import org.nrg.xnat.volview.metrics.VolViewMetrics;
+import org.nrg.xnat.volview.services.VolViewAdmissionControl;
+import org.nrg.xnat.volview.services.VolViewLaunchService;
+import org.nrg.xnat.volview.services.VolViewMetadataPrefetcher;
+import org.nrg.xnat.volview.services.VolViewRequestExecutor;
+import org.nrg.xnat.volview.services.VolViewThumbnailService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+@XapiRestController
+@Api("VolView Metrics API")
+public class VolViewMetricsApi extends AbstractXapiRestController {
+    private static final MediaType PROMETHEUS_TEXT = new MediaType("text", "plain", StandardCharsets.UTF_8);
+
+    private final VolViewMetrics metrics;
+    private final VolViewLaunchService launchService;
+    private final VolViewRequestExecutor requestExecutor;
+    private final VolViewMetadataPrefetcher prefetcher;
+    private final VolViewAdmissionControl admissionControl;
+    private final VolViewThumbnailService thumbnailService;
+    private final CacheInvalidationBus invalidationBus;
+
+    @Autowired
+    public VolViewMetricsApi(final VolViewMetrics metrics,
+                             final VolViewLaunchService launchService,
+                             final VolViewRequestExecutor requestExecutor,
+                             final VolViewMetadataPrefetcher prefetcher,
+                             final VolViewAdmissionControl admissionControl,
+                             final VolViewThumbnailService thumbnailService,
+                             final CacheInvalidationBus invalidationBus,
+                             final UserManagementServiceI userManagementService,
+                             final RoleHolder roleHolder) {
+        super(userManagementService, roleHolder);
+        this.metrics = metrics;
+        this.launchService = launchService;
+        this.requestExecutor = requestExecutor;
+        this.prefetcher = prefetcher;
+        this.admissionControl = admissionControl;
+        this.thumbnailService = thumbnailService;
+        this.invalidationBus = invalidationBus;
+    }
+
+    @XapiRequestMapping(value = "/volview/metrics", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE, restrictTo = AccessLevel.Admin)
+    @ApiOperation(value = "Get VolView request latency and cache metrics", response = Map.class)
+    public Map<String, Object> getMetrics() {
+        final Map<String, Object> payload = new LinkedHashMap<>(metrics.toMap());
+        payload.put("caches", launchService.getCacheStatistics());
+        payload.put("executor", requestExecutor.getStatistics());
+        payload.put("prefetch", prefetcher.getStatistics());
+        payload.put("admission", admissionControl.getStatistics());
+        payload.put("thumbnails", thumbnailService.getStatistics());
+        payload.put("invalidation", invalidationBus.getStatistics());
+        return payload;
+    }
+
+    @XapiRequestMapping(value = "/volview/metrics/prometheus", method = RequestMethod.GET, produces = MediaType.TEXT_PLAIN_VALUE, restrictTo = AccessLevel.Admin)
+    @ApiOperation(value = "Get VolView metrics in the Prometheus text exposition format", response = String.class)
+    public ResponseEntity<String> getPrometheusMetrics() {
+        final StringBuilder output = new StringBuilder(16384);
+        metrics.writePrometheus(output);
+        final PrometheusMetrics prometheus = new PrometheusMetrics();
+        final Map<String, Object> caches = launchService.getCacheStatistics();
+        final Map<String, Object> sessions = child(caches, "sessions");
+        addCache(prometheus, "project_config", child(caches, "projectConfig"), "size");
+        addCache(prometheus, "sessions", child(sessions, "descriptors"), "size");
+        addCache(prometheus, "session_access", child(sessions, "access"), "size");
+        addCache(prometheus, "project_access", child(sessions, "projectAccess"), "size");
+        addCache(prometheus, "study_indexes", child(caches, "studyIndexes"), "projects");
+        addCache(prometheus, "dicomweb", child(caches, "dicomweb"), "size");
+        addCache(prometheus, "manifests", child(caches, "manifests"), "size");
+        addExecutor(prometheus, requestExecutor.getStatistics());
+        addPrefetch(prometheus, prefetcher.getStatistics());
+        addAdmission(prometheus, admissionControl.getStatistics());
+        addThumbnails(prometheus, thumbnailService.getStatistics());
+        addInvalidation(prometheus, invalidationBus.getStatistics());
+        prometheus.writeTo(output);
+        return ResponseEntity.ok().contentType(PROMETHEUS_TEXT).body(output.toString());
+    }
+
+    /**
+     * Adds a cache's hit, miss and eviction totals and its current entries and bytes, labeled with the cache.
+     */
+    private static void addCache(final PrometheusMetrics prometheus, final String cache, final Map<String, Object> values, final String entries) {
+        prometheus.counter("volview_cache_hits_total", "VolView cache hits.", values.get("hits"), "cache", cache)
+                  .counter("volview_cache_misses_total", "VolView cache misses.", values.get("misses"), "cache", cache)
+                  .counter("volview_cache_evictions_total", "VolView cache entries evicted for size or age.", values.get("evictions"), "cache", cache)
+                  .gauge("volview_cache_entries", "VolView cache entries.", values.get(entries), "cache", cache)
+                  .gauge("volview_cache_bytes", "VolView cache size in bytes.", values.get("bytes"), "cache", cache)
+                  .gauge("volview_cache_max_bytes", "VolView cache size limit in bytes.", values.get("maximumBytes"), "cache", cache);
+    }
+
+    private static void addExecutor(final PrometheusMetrics prometheus, final Map<String, Object> statistics) {
+        for (final Map.Entry<String, Object> entry : statistics.entrySet()) {
+            if (!(entry.getValue() instanceof Map)) {
+                continue;
+            }
+            final Map<String, Object> values = child(statistics, entry.getKey());
+            final String bulkhead = entry.getKey();
+            prometheus.gauge("volview_executor_pool_size", "VolView bulkhead worker threads.", values.get("poolSize"), "bulkhead", bulkhead)
+                      .gauge("volview_executor_active_threads", "VolView bulkhead threads running a request.", values.get("activeThreads"), "bulkhead", bulkhead)
+                      .gauge("volview_executor_queue_depth", "VolView requests waiting for a bulkhead thread.", values.get("queued"), "bulkhead", bulkhead)
+                      .gauge("volview_executor_pending", "VolView requests admitted to a bulkhead and not yet finished.", values.get("pending"), "bulkhead", bulkhead)
+                      .counter("volview_executor_completed_total", "VolView requests completed by a bulkhead.", values.get("completed"), "bulkhead", bulkhead);
+        }
+        prometheus.counter("volview_executor_rejected_total", "VolView requests rejected by a full bulkhead.", statistics.get("rejected"))
+                  .counter("volview_executor_timed_out_total", "VolView requests that timed out in a bulkhead.", statistics.get("timedOut"));
+    }
+
+    private static void addPrefetch(final PrometheusMetrics prometheus, final Map<String, Object> statistics) {
+        final Map<String, Object> cache = child(statistics, "cache");
+        addCache(prometheus, "metadata", cache, "size");
+        prometheus.gauge("volview_prefetch_queue_depth", "VolView metadata prefetches waiting for a thread.", statistics.get("queueDepth"))
+                  .gauge("volview_prefetch_active_threads", "VolView metadata prefetch threads fetching.", statistics.get("activeThreads"))
+                  .counter("volview_prefetch_submitted_total", "VolView metadata prefetches submitted.", statistics.get("submitted"))
+                  .counter("volview_prefetch_deduplicated_total", "VolView metadata prefetches skipped as already queued.", statistics.get("deduplicated"))
+                  .counter("volview_prefetch_dropped_total", "VolView metadata prefetches dropped by a full queue.", statistics.get("dropped"))
+                  .counter("volview_prefetch_completed_total", "VolView metadata prefetch tasks completed.", statistics.get("completed"))
+                  .counter("volview_prefetch_fetched_total", "VolView metadata responses fetched by prefetch.", statistics.get("fetched"))
+                  .counter("volview_prefetch_failed_total", "VolView metadata prefetches that failed.", statistics.get("failed"))
+                  .counter("volview_prefetched_total", "VolView metadata responses cached by prefetch.", cache.get("prefetched"))
+                  .counter("volview_prefetch_hits_total", "VolView prefetched metadata responses that were served.", cache.get("prefetchHits"))
+                  .counter("volview_prefetch_wasted_total", "VolView prefetched metadata responses evicted without being served.", cache.get("wastedPrefetches"));
+    }
+
+    private static void addAdmission(final PrometheusMetrics prometheus, final Map<String, Object> statistics) {
+        prometheus.gauge("volview_admission_enabled", "Whether VolView admission control is enabled.", statistics.get("enabled"))
+                  .gauge("volview_admission_running", "VolView requests holding an admission slot.", statistics.get("running"))
+                  .gauge("volview_admission_max_concurrent", "VolView admission slots.", statistics.get("maxConcurrent"))
+                  .gauge("volview_admission_queued", "VolView requests waiting for admission.", statistics.get("queued"))
+                  .gauge("volview_admission_blocked", "VolView requests waiting for admission on a request thread.", statistics.get("blocked"))
+                  .gauge("volview_admission_max_blocked", "VolView requests allowed to wait for admission on a request thread.", statistics.get("maxBlocked"))
+                  .gauge("volview_admission_queued_projects", "Projects with VolView requests waiting for admission.", statistics.get("queuedProjects"))
+                  .counter("volview_admission_admitted_total", "VolView requests admitted.", statistics.get("admitted"))
+                  .counter("volview_admission_delayed_total", "VolView requests admitted after waiting in the queue.", statistics.get("delayed"));
+        final Map<String, Object> rejected = child(statistics, "rejected");
+        prometheus.counter("volview_admission_rejected_total", "VolView requests rejected by admission control.", rejected.get("userRate"), "reason", "user_rate")
+                  .counter("volview_admission_rejected_total", "VolView requests rejected by admission control.", rejected.get("projectRate"), "reason", "project_rate")
+                  .counter("volview_admission_rejected_total", "VolView requests rejected by admission control.", rejected.get("queueFull"), "reason", "queue_full")
+                  .counter("volview_admission_rejected_total", "VolView requests rejected by admission control.", rejected.get("timedOut"), "reason", "timed_out");
+    }
+
+    private static void addThumbnails(final PrometheusMetrics prometheus, final Map<String, Object> statistics) {
+        final Map<String, Object> cache = new LinkedHashMap<>(child(statistics, "cache"));
+        final Object memoryHits = cache.get("memoryHits");
+        final Object diskHits = cache.get("diskHits");
+        if (memoryHits instanceof Number && diskHits instanceof Number) {
+            cache.put("hits", ((Number) memoryHits).longValue() + ((Number) diskHits).longValue());
+        }
+        addCache(prometheus, "thumbnails", cache, "size");
+        prometheus.counter("volview_thumbnail_disk_hits_total", "VolView series thumbnails served from disk rather than memory.", diskHits)
+                  .gauge("volview_thumbnail_memory_entries", "VolView series thumbnails held in memory.", cache.get("memorySize"))
+                  .gauge("volview_thumbnail_queue_depth", "VolView series thumbnails waiting to be rendered.", statistics.get("queueDepth"))
+                  .gauge("volview_thumbnail_active_threads", "VolView threads rendering series thumbnails.", statistics.get("activeThreads"))
+                  .counter("volview_thumbnail_rendered_total", "VolView series thumbnails rendered.", statistics.get("rendered"))
+                  .counter("volview_thumbnail_coalesced_total", "VolView thumbnail requests that joined a render in progress.", statistics.get("coalesced"))
+                  .counter("volview_thumbnail_dropped_total", "VolView thumbnail renders dropped by a full queue.", statistics.get("dropped"))
+                  .counter("volview_thumbnail_unsupported_total", "VolView series that can't be rendered as a thumbnail.", statistics.get("unsupported"))
+                  .counter("volview_thumbnail_failed_total", "VolView thumbnail renders that failed.", statistics.get("failed"));
+    }
+
+    private static void addInvalidation(final PrometheusMetrics prometheus, final Map<String, Object> statistics) {
+        final Object millisSinceLastPoll = statistics.get("millisSinceLastPoll");
+        prometheus.counter("volview_invalidation_published_total", "VolView cache invalidations published by this node.", statistics.get("published"))
+                  .counter("volview_invalidation_received_total", "VolView cache invalidations received from other nodes.", statistics.get("received"))
+                  .counter("volview_invalidation_publish_failures_total", "VolView cache invalidations that couldn't be shared.", statistics.get("publishFailures"))
+                  .counter("volview_invalidation_poll_failures_total", "Failed polls for VolView cache invalidations.", statistics.get("pollFailures"))
+                  .gauge("volview_invalidation_version", "Last VolView cache invalidation version this node has read.", statistics.get("version"))
+                  .gauge("volview_invalidation_seconds_since_last_poll", "Seconds since this node last read VolView cache invalidations.",
+                         millisSinceLastPoll instanceof Number ? ((Number) millisSinceLastPoll).doubleValue() / 1000 : null);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> child(final Map<String, Object> statistics, final String key) {
+        final Object value = statistics.get(key);
+        return value instanceof Map ? (Map<String, Object>) value : Collections.<String, Object>emptyMap();
+    }
+}
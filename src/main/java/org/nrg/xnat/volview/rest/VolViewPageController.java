@@ -1,47 +1,196 @@
 package org.nrg.xnat.volview.rest;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.nrg.xdat.XDAT;
+import org.nrg.xft.security.UserI;
+import org.nrg.xnat.volview.cache.SessionDescriptor;
 import org.nrg.xnat.volview.config.VolViewSettings;
+import org.nrg.xnat.volview.metrics.VolViewMetrics;
+import org.nrg.xnat.volview.metrics.VolViewMetrics.Endpoint;
+import org.nrg.xnat.volview.services.VolViewLaunchService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.core.io.ClassPathResource;
-import org.springframework.core.io.Resource;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
+import org.springframework.util.DigestUtils;
+import org.springframework.util.StreamUtils;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 
+import javax.servlet.http.HttpServletRequest;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+import static org.nrg.xnat.volview.utils.VolViewUrls.buildBaseUrl;
+import static org.nrg.xnat.volview.utils.VolViewUrls.buildPathPrefix;
+
 @Controller
 @RequestMapping({"/xapi/volview/app/projects", "/volview/app/projects", "/app/volview/projects"})
 public class VolViewPageController {
     private static final Logger log = LoggerFactory.getLogger(VolViewPageController.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final MediaType TEXT_HTML_UTF8 = new MediaType(MediaType.TEXT_HTML, StandardCharsets.UTF_8);
+    private static final byte[] INLINE_CONFIG_OPEN = "<script id=\"volview-launch-config\" type=\"application/json\">".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] INLINE_CONFIG_CLOSE = "</script>\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] HEAD_END = "</head>".getBytes(StandardCharsets.UTF_8);
+
     private final VolViewSettings settings;
+    private final VolViewLaunchService launchService;
+    private final VolViewMetrics metrics;
+
+    private volatile ShellPage shellPage;
 
-    public VolViewPageController(final VolViewSettings settings) {
+    public VolViewPageController(final VolViewSettings settings, final VolViewLaunchService launchService, final VolViewMetrics metrics) {
         this.settings = settings;
+        this.launchService = launchService;
+        this.metrics = metrics;
         log.info("VolViewPageController initialized - Shell page available at /xapi/volview/app/projects/{projectId}");
     }
 
     @GetMapping(value = {"/{projectId}", "/{projectId}/**"})
-    public ResponseEntity<Resource> serveShell(@PathVariable final String projectId) {
-        return buildShellResponse(projectId);
+    public ResponseEntity<byte[]> serveShell(@PathVariable final String projectId, final HttpServletRequest request) throws IOException {
+        final long started = System.nanoTime();
+        int status = HttpStatus.INTERNAL_SERVER_ERROR.value();
+        try {
+            final ResponseEntity<byte[]> response = buildShellResponse(projectId, request);
+            status = response.getStatusCodeValue();
+            return response;
+        } finally {
+            metrics.recordRequest(Endpoint.SHELL, status, started);
+        }
     }
 
-    private ResponseEntity<Resource> buildShellResponse(final String projectId) {
-        final ClassPathResource shell = resolveShellResource();
-        if (!shell.exists()) {
-            log.error("VolView shell resource {} not found on classpath", shell.getPath());
+    private ResponseEntity<byte[]> buildShellResponse(final String projectId, final HttpServletRequest request) throws IOException {
+        final VolViewSettings.Snapshot snapshot = settings.getSnapshot();
+        final ShellPage shell = getShellPage(snapshot.getShellPath());
+        if (shell == null) {
             return ResponseEntity.internalServerError().build();
         }
+        final String acceptEncoding = request.getHeader(HttpHeaders.ACCEPT_ENCODING);
+
+        if (snapshot.isShellInlineConfig()) {
+            final byte[] launchConfig = buildInlineLaunchConfig(projectId, request);
+            if (launchConfig != null) {
+                log.debug("Serving VolView shell for project {} with inlined launch config", projectId);
+                final byte[] page = shell.inline(launchConfig);
+                final ResponseEntity.BodyBuilder builder = ResponseEntity.ok()
+                        .contentType(TEXT_HTML_UTF8)
+                        .cacheControl(CacheControl.noStore())
+                        .varyBy(HttpHeaders.ACCEPT_ENCODING);
+                if (accepts(acceptEncoding, "gzip")) {
+                    return builder.header(HttpHeaders.CONTENT_ENCODING, "gzip").body(gzip(page));
+                }
+                return builder.body(page);
+            }
+        }
+
+        // Each encoding is a different representation, so each gets its own strong validator.
+        final String encoding = shell.brotli != null && accepts(acceptEncoding, "br") ? "br" : accepts(acceptEncoding, "gzip") ? "gzip" : null;
+        final String etag = shell.getEtag(encoding);
+        if (shell.isNotModified(request, etag)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                    .eTag(etag)
+                    .lastModified(shell.lastModified)
+                    .cacheControl(CacheControl.noCache())
+                    .varyBy(HttpHeaders.ACCEPT_ENCODING)
+                    .build();
+        }
+
         log.debug("Serving VolView shell for project {}", projectId);
-        return ResponseEntity.ok()
-                .contentType(MediaType.TEXT_HTML)
-                .body(shell);
+        final ResponseEntity.BodyBuilder builder = ResponseEntity.ok()
+                .contentType(TEXT_HTML_UTF8)
+                .eTag(etag)
+                .lastModified(shell.lastModified)
+                .cacheControl(CacheControl.noCache())
+                .varyBy(HttpHeaders.ACCEPT_ENCODING);
+        if ("br".equals(encoding)) {
+            return builder.header(HttpHeaders.CONTENT_ENCODING, "br").body(shell.brotli);
+        }
+        if ("gzip".equals(encoding)) {
+            return builder.header(HttpHeaders.CONTENT_ENCODING, "gzip").body(shell.gzip);
+        }
+        return builder.body(shell.html);
+    }
+
+    /**
+     * Builds the project config, plus the session config if a session was requested and is visible to the
+     * user, as a JSON blob that's safe to embed in a script element. Returns null for anonymous users.
+     */
+    private byte[] buildInlineLaunchConfig(final String projectId, final HttpServletRequest request) throws IOException {
+        final UserI user = XDAT.getUserDetails();
+        if (user == null || user.isGuest()) {
+            return null;
+        }
+        final String baseUrl = buildBaseUrl(request);
+        final String pathPrefix = buildPathPrefix(request);
+        final String sessionId = request.getParameter("session") != null ? request.getParameter("session") : request.getParameter("sessionId");
+
+        final StringWriter writer = new StringWriter();
+        try (final JsonGenerator generator = MAPPER.getFactory().createGenerator(writer)) {
+            generator.writeStartObject();
+            generator.writeStringField("projectId", projectId);
+            generator.writeFieldName("config");
+            generator.writeRawValue(new String(launchService.getProjectConfig(projectId, baseUrl, pathPrefix).getBody(), StandardCharsets.UTF_8));
+            if (sessionId != null && !sessionId.isEmpty()) {
+                final SessionDescriptor session = launchService.getSession(sessionId);
+                if (launchService.checkSessionAccess(user, projectId, sessionId, session) == HttpStatus.OK) {
+                    generator.writeObjectField("session", launchService.getSessionConfig(projectId, session, baseUrl, pathPrefix));
+                }
+            }
+            generator.writeEndObject();
+        }
+        // Keep the payload from terminating the surrounding script element.
+        return writer.toString().replace("</", "<\\/").replace("<!--", "<\\u0021--").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private ShellPage getShellPage(final String shellPath) {
+        final ShellPage current = shellPage;
+        if (current != null && current.shellPath.equals(shellPath)) {
+            return current;
+        }
+        synchronized (this) {
+            if (shellPage != null && shellPage.shellPath.equals(shellPath)) {
+                return shellPage;
+            }
+            final ShellPage loaded = loadShellPage(shellPath);
+            if (loaded != null) {
+                shellPage = loaded;
+            }
+            return loaded;
+        }
+    }
+
+    private static ShellPage loadShellPage(final String shellPath) {
+        final ClassPathResource shell = resolveShellResource(shellPath);
+        if (!shell.exists()) {
+            log.error("VolView shell resource {} not found on classpath", shell.getPath());
+            return null;
+        }
+        try {
+            final byte[] html = read(shell);
+            final ClassPathResource brotli = new ClassPathResource(shell.getPath() + ".br");
+            final long lastModified = lastModified(shell);
+            log.info("Loaded VolView shell {} ({} bytes, precompressed brotli {})", shell.getPath(), html.length, brotli.exists() ? "available" : "not available");
+            return new ShellPage(shellPath, html, gzip(html), brotli.exists() ? read(brotli) : null, lastModified);
+        } catch (IOException e) {
+            log.error("Failed to load VolView shell resource {}", shell.getPath(), e);
+            return null;
+        }
     }
 
-    private ClassPathResource resolveShellResource() {
-        final String shellPath = settings.getShellPath();
+    private static ClassPathResource resolveShellResource(final String shellPath) {
         final String resourcePath;
         if (shellPath.startsWith("/")) {
             resourcePath = "META-INF/resources" + shellPath;
@@ -50,4 +199,116 @@ public class VolViewPageController {
         }
         return new ClassPathResource(resourcePath);
     }
+
+    private static byte[] read(final ClassPathResource resource) throws IOException {
+        try (final InputStream input = resource.getInputStream()) {
+            return StreamUtils.copyToByteArray(input);
+        }
+    }
+
+    private static long lastModified(final ClassPathResource resource) {
+        try {
+            final long lastModified = resource.lastModified();
+            if (lastModified > 0) {
+                return lastModified;
+            }
+        } catch (IOException ignored) {
+            // Resources inside some archive types don't report a modification time.
+        }
+        return System.currentTimeMillis();
+    }
+
+    private static byte[] gzip(final byte[] data) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream(data.length / 3 + 64);
+        try (final GZIPOutputStream gzip = new GZIPOutputStream(output)) {
+            gzip.write(data);
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * Checks whether the Accept-Encoding header lists the encoding without <code>q=0</code>.
+     */
+    static boolean accepts(final String acceptEncoding, final String encoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (final String candidate : acceptEncoding.split(",")) {
+            final String[] parts = candidate.trim().split(";");
+            if (parts[0].trim().equalsIgnoreCase(encoding)) {
+                return parts.length == 1 || !parts[1].trim().replace(" ", "").matches("q=0(\\.0*)?");
+            }
+        }
+        return false;
+    }
+
+    private static final class ShellPage {
+        private final String shellPath;
+        private final byte[] html;
+        private final byte[] gzip;
+        private final byte[] brotli;
+        private final long lastModified;
+        private final String hash;
+        private final int headEnd;
+
+        private ShellPage(final String shellPath, final byte[] html, final byte[] gzip, final byte[] brotli, final long lastModified) {
+            this.shellPath = shellPath;
+            this.html = html;
+            this.gzip = gzip;
+            this.brotli = brotli;
+            this.lastModified = lastModified;
+            this.hash = DigestUtils.md5DigestAsHex(html);
+            this.headEnd = indexOf(html, HEAD_END);
+        }
+
+        private static int indexOf(final byte[] data, final byte[] target) {
+            outer:
+            for (int index = 0; index <= data.length - target.length; index++) {
+                for (int offset = 0; offset < target.length; offset++) {
+                    if (data[index + offset] != target[offset]) {
+                        continue outer;
+                    }
+                }
+                return index;
+            }
+            return -1;
+        }
+
+        /**
+         * Returns the validator of the page in the given content encoding, or of the raw HTML for null.
+         */
+        private String getEtag(final String encoding) {
+            return "\"" + hash + (encoding == null ? "" : "-" + encoding) + "\"";
+        }
+
+        private boolean isNotModified(final HttpServletRequest request, final String etag) {
+            final String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+            if (ifNoneMatch != null) {
+                return Arrays.asList(ifNoneMatch.replace("W/", "").split("\\s*,\\s*")).contains(etag) || ifNoneMatch.trim().equals("*");
+            }
+            final long ifModifiedSince;
+            try {
+                ifModifiedSince = request.getDateHeader(HttpHeaders.IF_MODIFIED_SINCE);
+            } catch (IllegalArgumentException e) {
+                return false;
+            }
+            return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+        }
+
+        private byte[] inline(final byte[] launchConfig) {
+            final int insertAt = headEnd < 0 ? 0 : headEnd;
+            final byte[] page = new byte[html.length + INLINE_CONFIG_OPEN.length + launchConfig.length + INLINE_CONFIG_CLOSE.length];
+            int offset = 0;
+            System.arraycopy(html, 0, page, offset, insertAt);
+            offset += insertAt;
+            System.arraycopy(INLINE_CONFIG_OPEN, 0, page, offset, INLINE_CONFIG_OPEN.length);
+            offset += INLINE_CONFIG_OPEN.length;
+            System.arraycopy(launchConfig, 0, page, offset, launchConfig.length);
+            offset += launchConfig.length;
+            System.arraycopy(INLINE_CONFIG_CLOSE, 0, page, offset, INLINE_CONFIG_CLOSE.length);
+            offset += INLINE_CONFIG_CLOSE.length;
+            System.arraycopy(html, insertAt, page, offset, html.length - insertAt);
+            return page;
+        }
+    }
 }
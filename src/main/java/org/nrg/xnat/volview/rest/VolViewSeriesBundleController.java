@@ -0,0 +1,154 @@
+package org.nrg.xnat.volview.rest;
+
+import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiOperation;
+import org.nrg.framework.annotations.XapiRestController;
+import org.nrg.xapi.rest.AbstractXapiRestController;
+import org.nrg.xapi.rest.XapiRequestMapping;
+import org.nrg.xdat.XDAT;
+import org.nrg.xdat.security.services.RoleHolder;
+import org.nrg.xdat.security.services.UserManagementServiceI;
+import org.nrg.xft.security.UserI;
+import org.nrg.xnat.volview.cache.SessionDescriptor;
+import org.nrg.xnat.volview.metrics.VolViewMetrics;
+import org.nrg.xnat.volview.metrics.VolViewMetrics.Endpoint;
+import org.nrg.xnat.volview.services.VolViewAdmissionControl;
+import org.nrg.xnat.volview.services.VolViewLaunchService;
+import org.nrg.xnat.volview.services.VolViewSeriesBundleService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Streams a whole series, or a range of its instances, in one response so VolView doesn't need one
+ * WADO-RS request per instance. The default zip format is what the bundle launch URLs hand to VolView;
+ * <code>format=multipart</code> returns the same body as a WADO-RS series retrieve.
+ */
+@XapiRestController
+@Api("VolView Series Bundle API")
+public class VolViewSeriesBundleController extends AbstractXapiRestController {
+    private static final Logger log = LoggerFactory.getLogger(VolViewSeriesBundleController.class);
+
+    private static final String INSTANCE_COUNT_HEADER = "X-VolView-Instance-Count";
+
+    private final VolViewLaunchService launchService;
+    private final VolViewSeriesBundleService bundleService;
+    private final VolViewAdmissionControl admissionControl;
+    private final VolViewMetrics metrics;
+
+    @Autowired
+    public VolViewSeriesBundleController(final VolViewLaunchService launchService,
+                                         final VolViewSeriesBundleService bundleService,
+                                         final VolViewAdmissionControl admissionControl,
+                                         final VolViewMetrics metrics,
+                                         final UserManagementServiceI userManagementService,
+                                         final RoleHolder roleHolder) {
+        super(userManagementService, roleHolder);
+        this.launchService = launchService;
+        this.bundleService = bundleService;
+        this.admissionControl = admissionControl;
+        this.metrics = metrics;
+    }
+
+    @XapiRequestMapping(value = "/volview/bundle/projects/{projectId}/sessions/{sessionId}/series/{seriesInstanceUid:.+}", method = RequestMethod.GET)
+    @ApiOperation(value = "Stream the DICOM instances of a series in one response",
+                  notes = "Instances are ordered by instance number. Use offset and limit to select a range; the total number of instances is returned in the X-VolView-Instance-Count header.")
+    public void getSeriesBundle(@PathVariable final String projectId,
+                                @PathVariable final String sessionId,
+                                @PathVariable final String seriesInstanceUid,
+                                @RequestParam(value = "format", required = false, defaultValue = "zip") final String format,
+                                @RequestParam(value = "offset", required = false, defaultValue = "0") final int offset,
+                                @RequestParam(value = "limit", required = false) final Integer limit,
+                                final HttpServletResponse response) throws IOException {
+        final long started = System.nanoTime();
+        int status = HttpStatus.INTERNAL_SERVER_ERROR.value();
+        try {
+            status = serve(projectId, sessionId, seriesInstanceUid, format, offset, limit, response);
+        } finally {
+            metrics.recordRequest(Endpoint.SERIES_BUNDLE, status, started);
+        }
+    }
+
+    private int serve(final String projectId,
+                      final String sessionId,
+                      final String seriesInstanceUid,
+                      final String format,
+                      final int offset,
+                      final Integer limit,
+                      final HttpServletResponse response) throws IOException {
+        final boolean multipart = "multipart".equalsIgnoreCase(format);
+        if (!multipart && !"zip".equalsIgnoreCase(format) || offset < 0 || limit != null && limit <= 0) {
+            return sendError(response, HttpStatus.BAD_REQUEST);
+        }
+        final UserI user = XDAT.getUserDetails();
+        if (user == null) {
+            return sendError(response, HttpStatus.UNAUTHORIZED);
+        }
+        try (final VolViewAdmissionControl.Permit permit = admissionControl.await(projectId, user.getUsername())) {
+            if (!permit.isAdmitted()) {
+                return permit.reject(response);
+            }
+            return serve(projectId, sessionId, seriesInstanceUid, multipart, offset, limit, user, response);
+        }
+    }
+
+    private int serve(final String projectId,
+                      final String sessionId,
+                      final String seriesInstanceUid,
+                      final boolean multipart,
+                      final int offset,
+                      final Integer limit,
+                      final UserI user,
+                      final HttpServletResponse response) throws IOException {
+        final SessionDescriptor session = launchService.getSession(sessionId);
+        final HttpStatus access = launchService.checkSessionAccess(user, projectId, sessionId, session);
+        if (access != HttpStatus.OK) {
+            return sendError(response, access);
+        }
+
+        final List<Path> files = bundleService.getSeriesFiles(sessionId, seriesInstanceUid);
+        if (files.isEmpty() || offset >= files.size()) {
+            log.debug("No DICOM files for series {} in session {} at offset {}", seriesInstanceUid, sessionId, offset);
+            return sendError(response, HttpStatus.NOT_FOUND);
+        }
+        final List<Path> selected = files.subList(offset, limit == null ? files.size() : (int) Math.min(files.size(), (long) offset + limit));
+
+        response.setHeader(HttpHeaders.CACHE_CONTROL, "private, no-cache");
+        response.setHeader(INSTANCE_COUNT_HEADER, Integer.toString(files.size()));
+        try {
+            if (multipart) {
+                final String boundary = UUID.randomUUID().toString();
+                response.setContentType("multipart/related; type=\"application/dicom\"; boundary=" + boundary);
+                response.setContentLengthLong(bundleService.getMultipartLength(selected, boundary));
+                bundleService.writeMultipart(selected, boundary, response.getOutputStream());
+            } else {
+                response.setContentType("application/zip");
+                response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + seriesInstanceUid.replaceAll("[^A-Za-z0-9._-]", "_") + ".zip\"");
+                bundleService.writeZip(selected, response.getOutputStream());
+            }
+        } catch (IOException e) {
+            if (!response.isCommitted()) {
+                throw e;
+            }
+            // Usually the client went away; the status line is long gone, so all that's left is to stop.
+            log.debug("Stopped streaming series {} in session {} to user {}", seriesInstanceUid, sessionId, user.getUsername(), e);
+        }
+        return HttpStatus.OK.value();
+    }
+
+    private static int sendError(final HttpServletResponse response, final HttpStatus status) throws IOException {
+        response.sendError(status.value());
+        return status.value();
+    }
+}
@@ -0,0 +1,245 @@
+package org.nrg.xnat.volview.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.util.DigestUtils;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Locates the archived DICOM files of image sessions through their scans' DICOM resource catalogs. The
+ * catalogs are found with one narrow query and read with a streaming parser.
+ */
+@Service
+public class DicomCatalogService {
+    private static final Logger log = LoggerFactory.getLogger(DicomCatalogService.class);
+
+    private static final String QUERY_CATALOGS = "SELECT scan.id AS scan_id, scan.uid, COALESCE(scan.series_description, scan.type) AS description, resource.uri FROM xnat_imagescandata scan "
+                                                 + "JOIN xnat_abstractresource abstract ON abstract.xnat_imagescandata_xnat_imagescandata_id = scan.xnat_imagescandata_id "
+                                                 + "JOIN xnat_resource resource ON resource.xnat_abstractresource_id = abstract.xnat_abstractresource_id "
+                                                 + "WHERE scan.image_session_id = :sessionId AND scan.uid IS NOT NULL "
+                                                 + "AND (abstract.label = 'DICOM' OR resource.format = 'DICOM') ";
+    private static final String QUERY_SESSION_CATALOGS = QUERY_CATALOGS + "ORDER BY scan.xnat_imagescandata_id, abstract.xnat_abstractresource_id";
+    private static final String QUERY_SERIES_CATALOGS = QUERY_CATALOGS + "AND scan.uid = :seriesInstanceUid ORDER BY abstract.xnat_abstractresource_id";
+    private static final XMLInputFactory XML_INPUT_FACTORY = createInputFactory();
+
+    private final NamedParameterJdbcTemplate template;
+
+    @Autowired
+    public DicomCatalogService(final NamedParameterJdbcTemplate template) {
+        this.template = template;
+    }
+
+    /**
+     * Returns the DICOM series of the session in scan order, each with its catalog files.
+     */
+    public List<SeriesCatalogs> getSessionCatalogs(final String sessionId) {
+        return query(QUERY_SESSION_CATALOGS, new MapSqlParameterSource("sessionId", sessionId), sessionId);
+    }
+
+    /**
+     * Returns the DICOM files of the series in the session, ordered by instance number when the catalog
+     * records it and by catalog order otherwise, or an empty list if the series has no DICOM resource.
+     */
+    public List<Path> getSeriesFiles(final String sessionId, final String seriesInstanceUid) {
+        final List<SeriesCatalogs> series = query(QUERY_SERIES_CATALOGS,
+                new MapSqlParameterSource("sessionId", sessionId).addValue("seriesInstanceUid", seriesInstanceUid), sessionId);
+        return series.isEmpty() ? Collections.<Path>emptyList() : getFiles(series.get(0));
+    }
+
+    /**
+     * Returns the DICOM files listed in the series' catalogs, ordered as for
+     * {@link #getSeriesFiles(String, String)}.
+     */
+    public List<Path> getFiles(final SeriesCatalogs series) {
+        final List<Instance> instances = new ArrayList<>();
+        for (final Path catalog : series.catalogs) {
+            instances.addAll(readCatalog(catalog));
+        }
+        // The sort is stable, so instances without a number keep their catalog order.
+        instances.sort(Comparator.comparingInt(instance -> instance.number));
+        final List<Path> files = new ArrayList<>(instances.size());
+        for (final Instance instance : instances) {
+            files.add(instance.file);
+        }
+        return files;
+    }
+
+    /**
+     * Returns a fingerprint of the catalog files' paths, sizes and modification times. XNAT rewrites a
+     * catalog whenever files are added to or removed from its resource, so the fingerprint changes with
+     * the session's files.
+     */
+    public String getFingerprint(final List<SeriesCatalogs> series) {
+        final StringBuilder fingerprint = new StringBuilder();
+        for (final SeriesCatalogs entry : series) {
+            fingerprint.append(entry.seriesInstanceUid).append('\n');
+            for (final Path catalog : entry.catalogs) {
+                fingerprint.append(catalog);
+                try {
+                    final BasicFileAttributes attributes = Files.readAttributes(catalog, BasicFileAttributes.class);
+                    fingerprint.append(':').append(attributes.size()).append(':').append(attributes.lastModifiedTime().toMillis());
+                } catch (IOException e) {
+                    fingerprint.append(":missing");
+                }
+                fingerprint.append('\n');
+            }
+        }
+        return DigestUtils.md5DigestAsHex(fingerprint.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private List<SeriesCatalogs> query(final String query, final MapSqlParameterSource parameters, final String sessionId) {
+        final Map<String, SeriesCatalogs> series = new LinkedHashMap<>();
+        try {
+            template.query(query, parameters, (RowCallbackHandler) resultSet -> {
+                final String uri = resultSet.getString("uri");
+                final String seriesInstanceUid = resultSet.getString("uid");
+                if (uri == null || !Paths.get(uri).isAbsolute()) {
+                    log.warn("Skipping DICOM catalog {} for series {} in session {}; only absolute catalog paths are supported", uri, seriesInstanceUid, sessionId);
+                    return;
+                }
+                SeriesCatalogs entry = series.get(seriesInstanceUid);
+                if (entry == null) {
+                    entry = new SeriesCatalogs(resultSet.getString("scan_id"), seriesInstanceUid, resultSet.getString("description"));
+                    series.put(seriesInstanceUid, entry);
+                }
+                entry.catalogs.add(Paths.get(uri));
+            });
+        } catch (DataAccessException e) {
+            log.error("Failed to find DICOM catalogs for session {}", sessionId, e);
+            return Collections.emptyList();
+        }
+        return new ArrayList<>(series.values());
+    }
+
+    private static List<Instance> readCatalog(final Path catalog) {
+        final Path directory = catalog.getParent().normalize();
+        final List<Instance> instances = new ArrayList<>();
+        try (final InputStream input = Files.newInputStream(catalog)) {
+            final XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(input);
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() != XMLStreamReader.START_ELEMENT || !"entry".equals(reader.getLocalName())) {
+                        continue;
+                    }
+                    final String uri = reader.getAttributeValue(null, "URI");
+                    if (uri == null) {
+                        continue;
+                    }
+                    final Path file = directory.resolve(uri).normalize();
+                    if (!file.startsWith(directory) || !Files.isRegularFile(file)) {
+                        log.debug("Skipping missing or out-of-place catalog entry {} in {}", uri, catalog);
+                        continue;
+                    }
+                    instances.add(new Instance(file, parseInstanceNumber(reader.getAttributeValue(null, "instanceNumber"))));
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException | XMLStreamException e) {
+            log.warn("Failed to read DICOM catalog {}; falling back to the files in its directory", catalog, e);
+            instances.clear();
+        }
+        return instances.isEmpty() ? listDirectory(directory, catalog) : instances;
+    }
+
+    private static List<Instance> listDirectory(final Path directory, final Path catalog) {
+        final List<Instance> instances = new ArrayList<>();
+        try (final DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.dcm")) {
+            for (final Path file : files) {
+                if (!file.equals(catalog) && Files.isRegularFile(file)) {
+                    instances.add(new Instance(file, Integer.MAX_VALUE));
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Failed to list DICOM files in {}", directory, e);
+        }
+        instances.sort(Comparator.comparing(instance -> instance.file.getFileName().toString()));
+        return instances;
+    }
+
+    private static int parseInstanceNumber(final String value) {
+        if (value == null) {
+            return Integer.MAX_VALUE;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return Integer.MAX_VALUE;
+        }
+    }
+
+    private static XMLInputFactory createInputFactory() {
+        final XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+
+    /**
+     * The DICOM resource catalogs of one scan.
+     */
+    public static final class SeriesCatalogs {
+        private final String scanId;
+        private final String seriesInstanceUid;
+        private final String description;
+        private final List<Path> catalogs = new ArrayList<>();
+
+        private SeriesCatalogs(final String scanId, final String seriesInstanceUid, final String description) {
+            this.scanId = scanId;
+            this.seriesInstanceUid = seriesInstanceUid;
+            this.description = description;
+        }
+
+        public String getScanId() {
+            return scanId;
+        }
+
+        public String getSeriesInstanceUid() {
+            return seriesInstanceUid;
+        }
+
+        /**
+         * The scan's series description, or its type if it has none.
+         */
+        public String getDescription() {
+            return description;
+        }
+
+        public List<Path> getCatalogs() {
+            return Collections.unmodifiableList(catalogs);
+        }
+    }
+
+    private static final class Instance {
+        private final Path file;
+        private final int number;
+
+        private Instance(final Path file, final int number) {
+            this.file = file;
+            this.number = number;
+        }
+    }
+}
@@ -0,0 +1,482 @@
+package org.nrg.xnat.volview.services;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.nrg.xnat.volview.config.VolViewSettings;
+import org.nrg.xnat.volview.metrics.VolViewMetrics;
+import org.nrg.xnat.volview.metrics.VolViewMetrics.Stage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Admission control in front of the VolView endpoints, so that one project hammering the server can't
+ * push up latency for everyone else. Each request takes a token from its user's and its project's
+ * bucket and is rejected with <code>429 Too Many Requests</code> when either is empty. Admitted requests
+ * then share a global concurrency cap; requests over the cap wait in per-project queues that are served
+ * by weighted round robin, and are answered with <code>503 Service Unavailable</code> if the queue is
+ * full or they wait longer than the queue timeout. Requests that wait on a servlet request thread have
+ * their own, smaller cap, so a flood of them can't take every thread of the container.
+ * <p>
+ * Buckets are lock-free and live in striped caches, and an uncontended request only touches atomics; the
+ * queues are only locked while requests are waiting. Limits come from the VolView settings and are
+ * applied without a restart.
+ */
+@Component
+public class VolViewAdmissionControl {
+    private static final Logger log = LoggerFactory.getLogger(VolViewAdmissionControl.class);
+    // Buckets hold two seconds' worth of tokens, which absorbs a viewer's initial burst.
+    private static final long BURST_CAPACITY_NANOS = TimeUnit.SECONDS.toNanos(2);
+    private static final int MAX_QUEUED_PER_SLOT = 8;
+    private static final String RETRY_AFTER_SECONDS = "1";
+    private static final Permit UNLIMITED = new Permit(null, HttpStatus.OK);
+    private static final Permit RATE_LIMITED = new Permit(null, HttpStatus.TOO_MANY_REQUESTS);
+    private static final Permit BUSY = new Permit(null, HttpStatus.SERVICE_UNAVAILABLE);
+
+    private final VolViewSettings settings;
+    private final VolViewMetrics metrics;
+    private final Cache<String, TokenBucket> projectBuckets = createBuckets();
+    private final Cache<String, TokenBucket> userBuckets = createBuckets();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger blocked = new AtomicInteger();
+    private final Map<String, ProjectQueue> queues = new HashMap<>();
+    private final ArrayDeque<ProjectQueue> rotation = new ArrayDeque<>();
+    private final ScheduledThreadPoolExecutor timeouts;
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder delayed = new LongAdder();
+    private final LongAdder rejectedUserRate = new LongAdder();
+    private final LongAdder rejectedProjectRate = new LongAdder();
+    private final LongAdder rejectedQueueFull = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+
+    private volatile Limits limits;
+
+    @Autowired
+    public VolViewAdmissionControl(final VolViewSettings settings, final VolViewMetrics metrics) {
+        this.settings = settings;
+        this.metrics = metrics;
+        this.limits = new Limits(settings.getSnapshot());
+        this.timeouts = new ScheduledThreadPoolExecutor(1, runnable -> {
+            final Thread thread = new Thread(runnable, "volview-admission-timeout");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.timeouts.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Returns a future that completes with a permit once the request may run, or with a rejected permit.
+     * The project may be null for requests that span projects, which then only count against the user's
+     * bucket and queue together. Admitted permits must be closed when the request completes.
+     */
+    public CompletableFuture<Permit> acquire(final String projectId, final String username) {
+        return acquire(projectId, username, false);
+    }
+
+    /**
+     * Blocks until the request may run or is rejected, for endpoints that run on the request thread. At
+     * most <code>volview.admission.max-blocked</code> such requests wait at once; further ones that
+     * would have to wait are rejected right away.
+     */
+    public Permit await(final String projectId, final String username) {
+        final CompletableFuture<Permit> permit = acquire(projectId, username, true);
+        try {
+            return permit.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            permit.thenAccept(Permit::close);
+            return BUSY;
+        } catch (ExecutionException e) {
+            return BUSY;
+        }
+    }
+
+    private CompletableFuture<Permit> acquire(final String projectId, final String username, final boolean blocking) {
+        final Limits current = getLimits();
+        if (!current.enabled) {
+            return CompletableFuture.completedFuture(UNLIMITED);
+        }
+        final long started = System.nanoTime();
+        if (username != null && !take(userBuckets, username, current.userIntervalNanos, started)) {
+            rejectedUserRate.increment();
+            return CompletableFuture.completedFuture(RATE_LIMITED);
+        }
+        final String project = projectId == null ? "" : projectId;
+        if (projectId != null && !take(projectBuckets, projectId, current.projectIntervalNanos, started)) {
+            rejectedProjectRate.increment();
+            return CompletableFuture.completedFuture(RATE_LIMITED);
+        }
+        // Skipping ahead of waiting requests would defeat the fair queue, so the fast path only applies
+        // while nothing is queued.
+        if (queued.get() == 0 && reserve(current)) {
+            admitted.increment();
+            metrics.recordStage(Stage.ADMISSION, started);
+            return CompletableFuture.completedFuture(new Permit(this, HttpStatus.OK));
+        }
+        return enqueue(project, current, started, blocking);
+    }
+
+    /**
+     * Runs the action once the request is admitted and releases the permit when its response completes,
+     * or completes with the rejection response.
+     */
+    public <T> CompletableFuture<ResponseEntity<T>> run(final String projectId, final String username, final Supplier<CompletableFuture<ResponseEntity<T>>> action) {
+        return acquire(projectId, username).thenCompose(permit -> {
+            if (!permit.isAdmitted()) {
+                return CompletableFuture.completedFuture(permit.<T>toResponse());
+            }
+            final CompletableFuture<ResponseEntity<T>> response;
+            try {
+                response = action.get();
+            } catch (RuntimeException e) {
+                permit.close();
+                throw e;
+            }
+            return response.whenComplete((completed, error) -> permit.close());
+        });
+    }
+
+    public Map<String, Object> getStatistics() {
+        final Limits current = limits;
+        final Map<String, Object> rejected = new LinkedHashMap<>();
+        rejected.put("userRate", rejectedUserRate.sum());
+        rejected.put("projectRate", rejectedProjectRate.sum());
+        rejected.put("queueFull", rejectedQueueFull.sum());
+        rejected.put("timedOut", timedOut.sum());
+        final int queuedProjects;
+        synchronized (queues) {
+            queuedProjects = queues.size();
+        }
+        final Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("enabled", current.enabled);
+        statistics.put("running", running.get());
+        statistics.put("maxConcurrent", current.maxConcurrent);
+        statistics.put("queued", queued.get());
+        statistics.put("blocked", blocked.get());
+        statistics.put("maxBlocked", current.maxBlocked);
+        statistics.put("queuedProjects", queuedProjects);
+        statistics.put("admitted", admitted.sum());
+        statistics.put("delayed", delayed.sum());
+        statistics.put("rejected", rejected);
+        return statistics;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        timeouts.shutdownNow();
+    }
+
+    private Limits getLimits() {
+        final Limits current = limits;
+        final VolViewSettings.Snapshot snapshot = settings.getSnapshot();
+        if (snapshot.getVersion() == current.version) {
+            return current;
+        }
+        final Limits updated = new Limits(snapshot);
+        limits = updated;
+        log.info("VolView admission control {} with {} concurrent requests, {} requests/s per project and {} requests/s per user",
+                updated.enabled ? "enabled" : "disabled", updated.maxConcurrent, snapshot.getAdmissionProjectRate(), snapshot.getAdmissionUserRate());
+        // A higher cap may let waiting requests run right away.
+        dispatch();
+        return updated;
+    }
+
+    private static boolean take(final Cache<String, TokenBucket> buckets, final String key, final long intervalNanos, final long now) {
+        TokenBucket bucket = buckets.getIfPresent(key);
+        if (bucket == null) {
+            bucket = buckets.asMap().computeIfAbsent(key, ignored -> new TokenBucket(now));
+        }
+        return bucket.tryTake(now, intervalNanos, BURST_CAPACITY_NANOS);
+    }
+
+    private boolean reserve(final Limits current) {
+        while (true) {
+            final int count = running.get();
+            if (count >= current.maxConcurrent) {
+                return false;
+            }
+            if (running.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void release() {
+        running.decrementAndGet();
+        if (queued.get() > 0) {
+            dispatch();
+        }
+    }
+
+    private CompletableFuture<Permit> enqueue(final String project, final Limits current, final long started, final boolean blocking) {
+        final Waiter waiter = new Waiter(project, started, blocking);
+        synchronized (queues) {
+            if (queued.get() >= current.maxConcurrent * MAX_QUEUED_PER_SLOT || blocking && blocked.get() >= current.maxBlocked) {
+                rejectedQueueFull.increment();
+                return CompletableFuture.completedFuture(BUSY);
+            }
+            if (blocking) {
+                blocked.incrementAndGet();
+            }
+            ProjectQueue queue = queues.get(project);
+            if (queue == null) {
+                queue = new ProjectQueue(project);
+                queues.put(project, queue);
+                rotation.addLast(queue);
+            }
+            queue.waiters.addLast(waiter);
+            queued.incrementAndGet();
+        }
+        waiter.timeout = timeouts.schedule(() -> expire(waiter), current.queueTimeoutMillis, TimeUnit.MILLISECONDS);
+        if (waiter.permit.isDone()) {
+            waiter.timeout.cancel(false);
+        }
+        // A slot may have been released between the failed reservation and the enqueue.
+        dispatch();
+        return waiter.permit;
+    }
+
+    private void expire(final Waiter waiter) {
+        if (!waiter.permit.complete(BUSY)) {
+            return;
+        }
+        timedOut.increment();
+        synchronized (queues) {
+            final ProjectQueue queue = queues.get(waiter.project);
+            if (queue != null && queue.waiters.remove(waiter)) {
+                queued.decrementAndGet();
+                if (waiter.blocking) {
+                    blocked.decrementAndGet();
+                }
+                if (queue.waiters.isEmpty()) {
+                    queues.remove(waiter.project);
+                    rotation.remove(queue);
+                }
+            }
+        }
+        log.debug("VolView request for project {} timed out waiting for admission", waiter.project);
+    }
+
+    private void dispatch() {
+        while (queued.get() > 0) {
+            final Waiter waiter;
+            synchronized (queues) {
+                if (queued.get() == 0 || !reserve(limits)) {
+                    return;
+                }
+                waiter = next();
+            }
+            final Permit permit = new Permit(this, HttpStatus.OK);
+            if (waiter.permit.complete(permit)) {
+                final ScheduledFuture<?> timeout = waiter.timeout;
+                if (timeout != null) {
+                    timeout.cancel(false);
+                }
+                delayed.increment();
+                admitted.increment();
+                metrics.recordStage(Stage.ADMISSION, waiter.started);
+            } else {
+                permit.close();
+            }
+        }
+    }
+
+    /**
+     * Takes the next waiter by weighted round robin: the project at the head of the rotation is served
+     * up to its weight in a row before moving to the back. Must be called with the queues locked and at
+     * least one request queued.
+     */
+    private Waiter next() {
+        final ProjectQueue queue = rotation.peekFirst();
+        if (queue.credit <= 0) {
+            queue.credit = limits.getWeight(queue.project);
+        }
+        final Waiter waiter = queue.waiters.pollFirst();
+        queue.credit--;
+        queued.decrementAndGet();
+        if (waiter.blocking) {
+            blocked.decrementAndGet();
+        }
+        if (queue.waiters.isEmpty()) {
+            rotation.pollFirst();
+            queues.remove(queue.project);
+        } else if (queue.credit <= 0) {
+            rotation.addLast(rotation.pollFirst());
+        }
+        return waiter;
+    }
+
+    private static Cache<String, TokenBucket> createBuckets() {
+        return CacheBuilder.newBuilder().concurrencyLevel(16).expireAfterAccess(10, TimeUnit.MINUTES).build();
+    }
+
+    /**
+     * The outcome of admission. Admitted permits hold a concurrency slot until closed; closing is
+     * idempotent.
+     */
+    public static final class Permit implements AutoCloseable {
+        private final VolViewAdmissionControl owner;
+        private final HttpStatus status;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(final VolViewAdmissionControl owner, final HttpStatus status) {
+            this.owner = owner;
+            this.status = status;
+        }
+
+        public boolean isAdmitted() {
+            return status == HttpStatus.OK;
+        }
+
+        /**
+         * Returns the status to reject the request with: 429 when a rate limit was hit, 503 when the
+         * queue was full or the request waited too long.
+         */
+        public HttpStatus getStatus() {
+            return status;
+        }
+
+        public <T> ResponseEntity<T> toResponse() {
+            return ResponseEntity.status(status).header(HttpHeaders.RETRY_AFTER, RETRY_AFTER_SECONDS).build();
+        }
+
+        /**
+         * Sends the rejection on a servlet response and returns its status code.
+         */
+        public int reject(final HttpServletResponse response) throws IOException {
+            response.setHeader(HttpHeaders.RETRY_AFTER, RETRY_AFTER_SECONDS);
+            response.sendError(status.value());
+            return status.value();
+        }
+
+        @Override
+        public void close() {
+            if (owner != null && released.compareAndSet(false, true)) {
+                owner.release();
+            }
+        }
+    }
+
+    /**
+     * A lock-free token bucket in its generic cell rate form: a single timestamp of when the bucket
+     * would be full again, advanced by one interval per token taken.
+     */
+    static final class TokenBucket {
+        private final AtomicLong full;
+
+        TokenBucket(final long now) {
+            full = new AtomicLong(now);
+        }
+
+        boolean tryTake(final long now, final long intervalNanos, final long capacityNanos) {
+            while (true) {
+                final long current = full.get();
+                final long next = (current - now > 0 ? current : now) + intervalNanos;
+                if (next - now > capacityNanos) {
+                    return false;
+                }
+                if (full.compareAndSet(current, next)) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    private static final class ProjectQueue {
+        private final String project;
+        private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+        private int credit;
+
+        private ProjectQueue(final String project) {
+            this.project = project;
+        }
+    }
+
+    private static final class Waiter {
+        private final String project;
+        private final long started;
+        private final boolean blocking;
+        private final CompletableFuture<Permit> permit = new CompletableFuture<>();
+        private volatile ScheduledFuture<?> timeout;
+
+        private Waiter(final String project, final long started, final boolean blocking) {
+            this.project = project;
+            this.started = started;
+            this.blocking = blocking;
+        }
+    }
+
+    private static final class Limits {
+        private final long version;
+        private final boolean enabled;
+        private final int maxConcurrent;
+        private final long projectIntervalNanos;
+        private final long userIntervalNanos;
+        private final long queueTimeoutMillis;
+        private final int maxBlocked;
+        private final Map<String, Integer> weights;
+
+        private Limits(final VolViewSettings.Snapshot snapshot) {
+            version = snapshot.getVersion();
+            enabled = snapshot.isAdmissionEnabled();
+            maxConcurrent = Math.max(1, snapshot.getAdmissionMaxConcurrent());
+            projectIntervalNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, snapshot.getAdmissionProjectRate());
+            userIntervalNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, snapshot.getAdmissionUserRate());
+            queueTimeoutMillis = TimeUnit.SECONDS.toMillis(Math.max(1, snapshot.getAdmissionQueueTimeoutSeconds()));
+            maxBlocked = Math.max(0, snapshot.getAdmissionMaxBlocked());
+            weights = parseWeights(snapshot.getAdmissionProjectWeights());
+        }
+
+        private int getWeight(final String project) {
+            final Integer weight = weights.get(project);
+            return weight == null ? 1 : weight;
+        }
+
+        private static Map<String, Integer> parseWeights(final String value) {
+            if (value == null || value.trim().isEmpty()) {
+                return Collections.emptyMap();
+            }
+            final Map<String, Integer> weights = new HashMap<>();
+            for (final String pair : value.split(",")) {
+                final int separator = pair.indexOf('=');
+                if (separator <= 0) {
+                    log.warn("Ignoring VolView admission weight \"{}\"; expected PROJECT=weight", pair.trim());
+                    continue;
+                }
+                try {
+                    final int weight = Integer.parseInt(pair.substring(separator + 1).trim());
+                    if (weight > 0) {
+                        weights.put(pair.substring(0, separator).trim(), weight);
+                    }
+                } catch (NumberFormatException e) {
+                    log.warn("Ignoring VolView admission weight \"{}\"; expected PROJECT=weight", pair.trim());
+                }
+            }
+            return weights;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package org.nrg.xnat.volview.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.stereotype.Service;
+import org.springframework.util.DigestUtils;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Extracts the bundled VolView production build from the plugin jar to a local disk cache on startup so
+ * assets can be served straight from the file system. The extraction directory is named after a
+ * fingerprint of the bundle, so upgrading the plugin extracts a fresh copy.
+ */
+@Service
+public class VolViewAssetStore {
+    private static final Logger log = LoggerFactory.getLogger(VolViewAssetStore.class);
+
+    public static final String BUNDLE_LOCATION = "META-INF/resources/volview/app/";
+    private static final String COMPLETE_MARKER = ".complete";
+
+    private final Path cacheRoot;
+    private volatile Path bundleRoot;
+
+    public VolViewAssetStore(@Value("${volview.assets.cache-dir:}") final String cacheDirectory) {
+        this.cacheRoot = cacheDirectory == null || cacheDirectory.trim().isEmpty()
+                         ? Paths.get(System.getProperty("java.io.tmpdir"), "xnat-volview", "assets")
+                         : Paths.get(cacheDirectory.trim());
+    }
+
+    @PostConstruct
+    public void extract() {
+        try {
+            final Resource[] resources = new PathMatchingResourcePatternResolver(getClass().getClassLoader()).getResources("classpath*:" + BUNDLE_LOCATION + "**");
+            final List<Resource> files = new ArrayList<>();
+            final StringBuilder fingerprint = new StringBuilder();
+            for (final Resource resource : resources) {
+                final String relativePath = getRelativePath(resource);
+                if (relativePath == null || relativePath.isEmpty() || relativePath.endsWith("/") || !resource.isReadable()) {
+                    continue;
+                }
+                files.add(resource);
+                fingerprint.append(relativePath).append(':').append(resource.contentLength()).append(':').append(resource.lastModified()).append('\n');
+            }
+            if (files.isEmpty()) {
+                log.info("No bundled VolView assets found under {}; asset requests fall back to the classpath", BUNDLE_LOCATION);
+                return;
+            }
+
+            final Path target = cacheRoot.resolve(DigestUtils.md5DigestAsHex(fingerprint.toString().getBytes(StandardCharsets.UTF_8)));
+            if (!Files.exists(target.resolve(COMPLETE_MARKER))) {
+                final long started = System.currentTimeMillis();
+                for (final Resource resource : files) {
+                    final Path destination = target.resolve(getRelativePath(resource)).normalize();
+                    if (!destination.startsWith(target)) {
+                        continue;
+                    }
+                    Files.createDirectories(destination.getParent());
+                    try (final InputStream input = resource.getInputStream()) {
+                        Files.copy(input, destination, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+                markComplete(target);
+                log.info("Extracted {} VolView assets to {} in {} ms", files.size(), target, System.currentTimeMillis() - started);
+            } else {
+                log.info("Using {} previously extracted VolView assets in {}", files.size(), target);
+            }
+            bundleRoot = target;
+        } catch (IOException e) {
+            log.error("Failed to extract VolView assets to {}; asset requests fall back to the classpath", cacheRoot, e);
+        }
+    }
+
+    /**
+     * Writes the marker through a temporary file and an atomic move, so another node or thread finishing
+     * the same extraction at the same time doesn't fail.
+     */
+    private static void markComplete(final Path target) throws IOException {
+        final Path temporary = Files.createTempFile(target, COMPLETE_MARKER, ".tmp");
+        try {
+            Files.move(temporary, target.resolve(COMPLETE_MARKER), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * Returns the extracted file for the given path relative to the bundle root, or null if the bundle
+     * hasn't been extracted, the file doesn't exist or the path escapes the bundle.
+     */
+    public Path resolve(final String relativePath) {
+        final Path root = bundleRoot;
+        if (root == null || relativePath == null) {
+            return null;
+        }
+        final Path resolved = root.resolve(relativePath).normalize();
+        if (!resolved.startsWith(root) || !Files.isRegularFile(resolved)) {
+            return null;
+        }
+        return resolved;
+    }
+
+    public boolean isExtracted() {
+        return bundleRoot != null;
+    }
+
+    private static String getRelativePath(final Resource resource) throws IOException {
+        final String url = resource.getURL().toString();
+        final int index = url.lastIndexOf(BUNDLE_LOCATION);
+        return index < 0 ? null : url.substring(index + BUNDLE_LOCATION.length());
+    }
+}
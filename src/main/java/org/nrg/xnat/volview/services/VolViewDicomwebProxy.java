@@ -0,0 +1,384 @@
+package org.nrg.xnat.volview.services;
+
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.nrg.xnat.volview.cache.DicomwebDiskCache;
+import org.nrg.xnat.volview.cache.DicomwebMetadataCache;
+import org.nrg.xnat.volview.config.VolViewSettings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StreamUtils;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Pattern;
+
+/**
+ * Fetches WADO-RS instances, frames and metadata from the DICOMweb origin on behalf of the caching
+ * pass-through. JSON metadata is kept in memory in the {@link DicomwebMetadataCache}, where the launch
+ * prefetcher also puts it, and instances and frames are kept in the {@link DicomwebDiskCache}. Concurrent
+ * misses for the same resource share a single origin request. Everything else, including QIDO-RS
+ * searches and error responses, is passed through uncached. The caller must check that the user can read
+ * the project before calling {@link #fetch(String, String, String, HttpServletRequest)}.
+ * <p>
+ * By default the origin is XNAT's own DICOMweb API over loopback, so every origin request needs a second
+ * Tomcat thread while the first one waits. At most <code>volview.dicomweb-cache.max-origin-fetches</code>
+ * origin requests run at a time, which leaves the rest of the pool free to answer them. A request that
+ * can't get a slot within the connect timeout fails with {@link OriginBusyException}.
+ */
+@Service
+public class VolViewDicomwebProxy {
+    private static final Logger log = LoggerFactory.getLogger(VolViewDicomwebProxy.class);
+
+    private static final Pattern METADATA = Pattern.compile("^studies/[^/]+(?:/series/[^/]+)?/metadata$");
+    private static final Pattern CACHEABLE = Pattern.compile("^studies/[^/]+(?:/series/[^/]+)?/metadata$"
+                                                             + "|^studies/[^/]+/series/[^/]+/instances/[^/]+(?:/metadata|/frames/[^/]+)?$");
+    private static final List<String> FORWARDED_HEADERS = Collections.unmodifiableList(Arrays.asList(
+            HttpHeaders.ACCEPT, HttpHeaders.AUTHORIZATION, HttpHeaders.COOKIE));
+    private static final String DICOM_JSON = "application/dicom+json";
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
+    private final VolViewSettings settings;
+    private final DicomwebDiskCache cache;
+    private final DicomwebMetadataCache metadataCache;
+    private final String origin;
+    private final int readTimeoutMillis;
+    private final int maxOriginFetches;
+    private final Semaphore originFetches;
+    private final ConcurrentMap<String, CompletableFuture<DicomwebDiskCache.Entry>> inFlight = new ConcurrentHashMap<>();
+
+    @Autowired
+    public VolViewDicomwebProxy(final VolViewSettings settings,
+                                final DicomwebDiskCache cache,
+                                final DicomwebMetadataCache metadataCache,
+                                @Value("${volview.dicomweb-cache.origin:}") final String origin,
+                                @Value("${volview.dicomweb-cache.read-timeout-seconds:60}") final int readTimeoutSeconds,
+                                @Value("${volview.dicomweb-cache.max-origin-fetches:8}") final int maxOriginFetches) {
+        this.settings = settings;
+        this.cache = cache;
+        this.metadataCache = metadataCache;
+        this.origin = origin == null || origin.trim().isEmpty() ? null : origin.trim().replaceAll("/+$", "");
+        this.readTimeoutMillis = (int) TimeUnit.SECONDS.toMillis(readTimeoutSeconds);
+        this.maxOriginFetches = Math.max(1, maxOriginFetches);
+        this.originFetches = new Semaphore(this.maxOriginFetches, true);
+    }
+
+    public static boolean isCacheable(final String relativePath) {
+        return CACHEABLE.matcher(relativePath).matches();
+    }
+
+    /**
+     * Returns the origin the request's DICOMweb resources are fetched from and the request headers to
+     * send there. It can be kept to fetch resources for the same user after the request has completed.
+     */
+    public Origin getOrigin(final HttpServletRequest request) {
+        final Map<String, String> headers = new LinkedHashMap<>();
+        for (final String header : FORWARDED_HEADERS) {
+            final String value = request.getHeader(header);
+            if (value != null) {
+                headers.put(header, value);
+            }
+        }
+        return new Origin(origin != null ? origin : "http://127.0.0.1:" + request.getLocalPort() + request.getContextPath() + settings.getDicomwebBasePath(), headers);
+    }
+
+    /**
+     * Returns the cached response for the DICOMweb path, loading it from the origin on a miss, or an open
+     * origin connection to pass through when the path isn't cacheable or the origin didn't return
+     * <code>200 OK</code>.
+     */
+    public Response fetch(final String projectId, final String relativePath, final String query, final HttpServletRequest request) throws IOException {
+        final Origin source = getOrigin(request);
+        final String url = source.getUrl(projectId, relativePath, query);
+        final String accept = request.getHeader(HttpHeaders.ACCEPT);
+        if (!isCacheable(relativePath)) {
+            return new Response(open(url, source, request.getHeader(HttpHeaders.RANGE)), originFetches);
+        }
+        if (query == null && METADATA.matcher(relativePath).matches() && acceptsJson(accept)) {
+            cache.indexStudy(projectId + "/" + relativePath);
+            try {
+                return new Response(metadataCache.get(projectId + "/" + relativePath, () -> loadMetadata(url, source, false)));
+            } catch (ExecutionException | UncheckedExecutionException e) {
+                // The origin didn't return metadata for the request that loaded it, which may have been
+                // made with someone else's credentials, so ask again with ours.
+                log.debug("Passing through DICOMweb metadata {} after a failed load: {}", relativePath, e.getCause().getMessage());
+                return new Response(open(url, source, null), originFetches);
+            }
+        }
+
+        final String key = projectId + "/" + relativePath + (query == null ? "" : "?" + query) + "#" + (accept == null ? "" : accept);
+        for (int attempt = 0; attempt < 2; attempt++) {
+            DicomwebDiskCache.Entry entry = cache.get(key);
+            if (entry == null) {
+                final CompletableFuture<DicomwebDiskCache.Entry> loading = new CompletableFuture<>();
+                final CompletableFuture<DicomwebDiskCache.Entry> existing = inFlight.putIfAbsent(key, loading);
+                if (existing == null) {
+                    return load(key, url, source, loading);
+                }
+                entry = await(existing);
+                if (entry == null) {
+                    // The origin didn't return anything cacheable for the request being waited on, and it
+                    // may have been made with someone else's credentials, so ask again with ours.
+                    return new Response(open(url, source, null), originFetches);
+                }
+            }
+            try {
+                return new Response(entry, FileChannel.open(entry.getFile(), StandardOpenOption.READ));
+            } catch (NoSuchFileException e) {
+                log.debug("Cached DICOMweb response {} was evicted before it could be read", key);
+                cache.invalidate(key);
+            }
+        }
+        return new Response(open(url, source, null), originFetches);
+    }
+
+    /**
+     * Loads the WADO-RS metadata at the DICOMweb path into the metadata cache unless it's already there,
+     * and returns whether it was loaded.
+     */
+    public boolean prefetchMetadata(final Origin source, final String projectId, final String relativePath) throws IOException {
+        cache.indexStudy(projectId + "/" + relativePath);
+        try {
+            return metadataCache.prefetch(projectId + "/" + relativePath, () -> loadMetadata(source.getUrl(projectId, relativePath, null), source, true));
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    private DicomwebMetadataCache.Metadata loadMetadata(final String url, final Origin source, final boolean prefetched) throws IOException {
+        final HttpURLConnection connection = open(url, source, null);
+        try {
+            connection.setRequestProperty(HttpHeaders.ACCEPT, DICOM_JSON);
+            final int status = connection.getResponseCode();
+            if (status != HttpURLConnection.HTTP_OK) {
+                throw new IOException("The DICOMweb origin returned status " + status + " for " + url);
+            }
+            try (final InputStream input = connection.getInputStream()) {
+                return new DicomwebMetadataCache.Metadata(StreamUtils.copyToByteArray(input), connection.getContentType(), prefetched);
+            }
+        } finally {
+            release(connection);
+        }
+    }
+
+    private Response load(final String key, final String url, final Origin source, final CompletableFuture<DicomwebDiskCache.Entry> loading) throws IOException {
+        DicomwebDiskCache.Entry entry = null;
+        try {
+            final HttpURLConnection connection = open(url, source, null);
+            boolean passedThrough = false;
+            try {
+                if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                    passedThrough = true;
+                    return new Response(connection, originFetches);
+                }
+                final Path downloaded = cache.createTempFile();
+                // The entity tag is a digest of the body, taken while it's copied, so it changes exactly
+                // when the content does.
+                final MessageDigest digest = createDigest();
+                try (final InputStream input = new DigestInputStream(connection.getInputStream(), digest)) {
+                    Files.copy(input, downloaded, StandardCopyOption.REPLACE_EXISTING);
+                    entry = cache.put(key, downloaded, connection.getContentType(), BaseEncoding.base16().lowerCase().encode(digest.digest()));
+                } finally {
+                    if (entry == null) {
+                        Files.deleteIfExists(downloaded);
+                    }
+                }
+            } finally {
+                if (!passedThrough) {
+                    release(connection);
+                }
+            }
+            if (entry == null) {
+                log.info("DICOMweb response {} is larger than the whole cache; passing it through", url);
+                return new Response(open(url, source, null), originFetches);
+            }
+            return new Response(entry, FileChannel.open(entry.getFile(), StandardOpenOption.READ));
+        } finally {
+            inFlight.remove(key, loading);
+            loading.complete(entry);
+        }
+    }
+
+    private DicomwebDiskCache.Entry await(final CompletableFuture<DicomwebDiskCache.Entry> loading) throws IOException {
+        try {
+            return loading.get(readTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a DICOMweb response", e);
+        } catch (ExecutionException | TimeoutException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Opens a connection to the origin once an origin slot is free. The slot is held until the connection
+     * is passed to {@link #release(HttpURLConnection)} or the {@link Response} holding it is closed.
+     */
+    private HttpURLConnection open(final String url, final Origin source, final String range) throws IOException {
+        try {
+            if (!originFetches.tryAcquire(CONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                throw new OriginBusyException("All " + maxOriginFetches + " DICOMweb origin slots are busy");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a DICOMweb origin slot", e);
+        }
+        final HttpURLConnection connection;
+        try {
+            connection = (HttpURLConnection) new URL(url).openConnection();
+        } catch (IOException | RuntimeException e) {
+            originFetches.release();
+            throw e;
+        }
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(readTimeoutMillis);
+        connection.setInstanceFollowRedirects(false);
+        source.headers.forEach(connection::setRequestProperty);
+        if (range != null) {
+            connection.setRequestProperty(HttpHeaders.RANGE, range);
+        }
+        return connection;
+    }
+
+    private void release(final HttpURLConnection connection) {
+        connection.disconnect();
+        originFetches.release();
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e);
+        }
+    }
+
+    private static boolean acceptsJson(final String accept) {
+        return accept == null || accept.contains("json") || accept.contains("*/*");
+    }
+
+    /**
+     * The DICOMweb origin base URL together with the user's headers to forward to it.
+     */
+    public static final class Origin {
+        private final String base;
+        private final Map<String, String> headers;
+
+        private Origin(final String base, final Map<String, String> headers) {
+            this.base = base;
+            this.headers = headers;
+        }
+
+        private String getUrl(final String projectId, final String relativePath, final String query) {
+            return base + "/" + projectId + "/" + relativePath + (query == null ? "" : "?" + query);
+        }
+    }
+
+    /**
+     * Thrown when no origin slot became free within the connect timeout.
+     */
+    public static final class OriginBusyException extends IOException {
+        private OriginBusyException(final String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Either cached metadata, a cached entry with an open channel on its file or an origin connection to
+     * pass through. The caller must close it, which closes the channel or disconnects the connection and
+     * frees its origin slot.
+     */
+    public static final class Response implements Closeable {
+        private final DicomwebMetadataCache.Metadata metadata;
+        private final DicomwebDiskCache.Entry entry;
+        private final FileChannel channel;
+        private final HttpURLConnection connection;
+        private final Semaphore originFetches;
+        private boolean closed;
+
+        private Response(final DicomwebMetadataCache.Metadata metadata) {
+            this(metadata, null, null, null, null);
+        }
+
+        private Response(final DicomwebDiskCache.Entry entry, final FileChannel channel) {
+            this(null, entry, channel, null, null);
+        }
+
+        private Response(final HttpURLConnection connection, final Semaphore originFetches) {
+            this(null, null, null, connection, originFetches);
+        }
+
+        private Response(final DicomwebMetadataCache.Metadata metadata, final DicomwebDiskCache.Entry entry, final FileChannel channel,
+                         final HttpURLConnection connection, final Semaphore originFetches) {
+            this.metadata = metadata;
+            this.entry = entry;
+            this.channel = channel;
+            this.connection = connection;
+            this.originFetches = originFetches;
+        }
+
+        public DicomwebMetadataCache.Metadata getMetadata() {
+            return metadata;
+        }
+
+        public boolean isCached() {
+            return entry != null;
+        }
+
+        public DicomwebDiskCache.Entry getEntry() {
+            return entry;
+        }
+
+        public FileChannel getChannel() {
+            return channel;
+        }
+
+        public HttpURLConnection getConnection() {
+            return connection;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (channel != null) {
+                channel.close();
+            }
+            if (connection != null) {
+                connection.disconnect();
+                originFetches.release();
+            }
+        }
+    }
+}
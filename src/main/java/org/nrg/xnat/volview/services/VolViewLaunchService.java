@@ -0,0 +1,223 @@
+package org.nrg.xnat.volview.services;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.nrg.xft.security.UserI;
+import org.nrg.xnat.volview.cache.CachedResponse;
+import org.nrg.xnat.volview.cache.DicomwebDiskCache;
+import org.nrg.xnat.volview.cache.ProjectConfigCache;
+import org.nrg.xnat.volview.cache.SessionDescriptor;
+import org.nrg.xnat.volview.cache.SessionDescriptorCache;
+import org.nrg.xnat.volview.cache.SessionManifestCache;
+import org.nrg.xnat.volview.cache.StudyIndexCache;
+import org.nrg.xnat.volview.config.VolViewSettings;
+import org.nrg.xnat.volview.metrics.VolViewMetrics;
+import org.nrg.xnat.volview.metrics.VolViewMetrics.Stage;
+import org.nrg.xnat.volview.utils.LaunchUrlTemplates;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.nrg.xnat.volview.utils.VolViewUrls.joinPaths;
+import static org.nrg.xnat.volview.utils.VolViewUrls.resolveUrl;
+
+/**
+ * Builds the project and session launch configuration shared by the VolView config API and the
+ * shell page.
+ */
+@Service
+public class VolViewLaunchService {
+    private static final Logger log = LoggerFactory.getLogger(VolViewLaunchService.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final VolViewSettings settings;
+    private final ProjectConfigCache projectConfigCache;
+    private final SessionDescriptorCache sessionDescriptors;
+    private final StudyIndexCache studyIndexes;
+    private final DicomwebDiskCache dicomwebCache;
+    private final SessionManifestCache manifestCache;
+    private final VolViewMetrics metrics;
+
+    private volatile LaunchUrlTemplates launchUrlTemplates;
+
+    @Autowired
+    public VolViewLaunchService(final VolViewSettings settings,
+                                final ProjectConfigCache projectConfigCache,
+                                final SessionDescriptorCache sessionDescriptors,
+                                final StudyIndexCache studyIndexes,
+                                final DicomwebDiskCache dicomwebCache,
+                                final SessionManifestCache manifestCache,
+                                final VolViewMetrics metrics) {
+        this.settings = settings;
+        this.projectConfigCache = projectConfigCache;
+        this.sessionDescriptors = sessionDescriptors;
+        this.studyIndexes = studyIndexes;
+        this.dicomwebCache = dicomwebCache;
+        this.manifestCache = manifestCache;
+        this.metrics = metrics;
+    }
+
+    public VolViewSettings.Snapshot getSettings() {
+        return settings.getSnapshot();
+    }
+
+    /**
+     * Returns the serialized project configuration for the given externally visible base URL and path
+     * prefix, building and caching it on first use.
+     */
+    public CachedResponse getProjectConfig(final String projectId, final String baseUrl, final String pathPrefix) throws JsonProcessingException {
+        final VolViewSettings.Snapshot snapshot = settings.getSnapshot();
+        final ProjectConfigCache.Key key = new ProjectConfigCache.Key(projectId, baseUrl, pathPrefix, snapshot.getVersion());
+        final CachedResponse cached = projectConfigCache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        final Map<String, Object> config = buildProjectConfig(projectId, baseUrl, pathPrefix, snapshot, getLaunchUrlTemplates(snapshot).bind(baseUrl, pathPrefix));
+        final long started = System.nanoTime();
+        final CachedResponse built = new CachedResponse(MAPPER.writeValueAsBytes(config));
+        metrics.recordStage(Stage.SERIALIZATION, started);
+        projectConfigCache.put(key, built);
+        return built;
+    }
+
+    public SessionDescriptor getSession(final String sessionId) {
+        final long started = System.nanoTime();
+        try {
+            return sessionDescriptors.getDescriptor(sessionId);
+        } finally {
+            metrics.recordStage(Stage.SESSION_LOAD, started);
+        }
+    }
+
+    /**
+     * Returns {@link HttpStatus#OK} if the user can launch the session in the given project,
+     * {@link HttpStatus#NOT_FOUND} if the session doesn't exist or isn't visible to the user, and
+     * {@link HttpStatus#FORBIDDEN} if the session doesn't belong to the project.
+     */
+    public HttpStatus checkSessionAccess(final UserI user, final String projectId, final String sessionId, final SessionDescriptor session) {
+        final long started = System.nanoTime();
+        try {
+            return checkAccess(user, projectId, sessionId, session);
+        } finally {
+            metrics.recordStage(Stage.PERMISSION_CHECK, started);
+        }
+    }
+
+    private HttpStatus checkAccess(final UserI user, final String projectId, final String sessionId, final SessionDescriptor session) {
+        if (session == null || !sessionDescriptors.canRead(user, session)) {
+            log.warn("VolView session config request for projectId={} sessionId={} not found or not visible to user {}", projectId, sessionId, user.getUsername());
+            return HttpStatus.NOT_FOUND;
+        }
+        if (!session.belongsTo(projectId)) {
+            log.warn("VolView session config request for projectId={} sessionId={} denied; session belongs to project {}", projectId, sessionId, session.getProject());
+            return HttpStatus.FORBIDDEN;
+        }
+        return HttpStatus.OK;
+    }
+
+    public boolean canReadProject(final UserI user, final String projectId) {
+        return sessionDescriptors.canReadProject(user, projectId);
+    }
+
+    public StudyIndexCache.Page getStudyIndexPage(final String projectId,
+                                                  final StudyIndexCache.SortField sort,
+                                                  final boolean descending,
+                                                  final String filter,
+                                                  final String cursor,
+                                                  final int limit) {
+        return studyIndexes.getPage(projectId, sort, descending, filter, cursor, limit);
+    }
+
+    /**
+     * Returns the launch URL templates for the current settings, bound to the given externally visible
+     * base URL and path prefix. The templates are only recompiled when the settings version changes.
+     */
+    public LaunchUrlTemplates.Renderer getLaunchUrls(final String baseUrl, final String pathPrefix) {
+        return getLaunchUrlTemplates(settings.getSnapshot()).bind(baseUrl, pathPrefix);
+    }
+
+    public Map<String, Object> getSessionConfig(final String projectId, final SessionDescriptor session, final String baseUrl, final String pathPrefix) {
+        final VolViewSettings.Snapshot snapshot = settings.getSnapshot();
+        return buildSessionConfig(projectId, session, resolveUrl(snapshot.getViewerEntryPoint(), baseUrl), getLaunchUrlTemplates(snapshot).bind(baseUrl, pathPrefix));
+    }
+
+    public Map<String, Object> buildSessionConfig(final String projectId,
+                                                  final SessionDescriptor session,
+                                                  final String viewerEntryPoint,
+                                                  final LaunchUrlTemplates.Renderer launchUrls) {
+        final String studyInstanceUid = session.getStudyInstanceUid();
+        final String dicomwebStudyUrl = studyInstanceUid == null ? null : launchUrls.dicomwebStudyUrl(projectId, studyInstanceUid);
+        final String launchUrl = studyInstanceUid == null ? null : launchUrls.launchUrl(projectId, session.getId(), studyInstanceUid, null);
+        log.debug("VolView session config computed for projectId={} sessionId={} studyUID={} viewerEntryPoint={} dicomwebStudyUrl={}",
+                projectId, session.getId(), studyInstanceUid, viewerEntryPoint, dicomwebStudyUrl);
+
+        final Map<String, Object> payload = new LinkedHashMap<>();
+        payload.put("projectId", projectId);
+        payload.put("sessionId", session.getId());
+        payload.put("label", session.getLabel());
+        payload.put("studyInstanceUID", studyInstanceUid);
+        payload.put("dicomwebStudyUrl", dicomwebStudyUrl);
+        payload.put("viewerEntryPoint", viewerEntryPoint);
+        payload.put("launchUrl", launchUrl);
+        payload.put("seriesBundleLaunchUrl", launchUrls.bundleLaunchUrl(projectId, session.getId(), studyInstanceUid, null));
+        return payload;
+    }
+
+    public Map<String, Object> getCacheStatistics() {
+        final Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("projectConfig", projectConfigCache.getStatistics());
+        statistics.put("sessions", sessionDescriptors.getStatistics());
+        statistics.put("studyIndexes", studyIndexes.getStatistics());
+        statistics.put("dicomweb", dicomwebCache.getStatistics());
+        statistics.put("manifests", manifestCache.getStatistics());
+        return statistics;
+    }
+
+    private LaunchUrlTemplates getLaunchUrlTemplates(final VolViewSettings.Snapshot snapshot) {
+        final LaunchUrlTemplates current = launchUrlTemplates;
+        if (current != null && current.getVersion() == snapshot.getVersion()) {
+            return current;
+        }
+        final LaunchUrlTemplates compiled = LaunchUrlTemplates.compile(snapshot.getVersion(), snapshot.getViewerEntryPoint(), snapshot.getViewerDicomwebBasePath());
+        launchUrlTemplates = compiled;
+        return compiled;
+    }
+
+    private static Map<String, Object> buildProjectConfig(final String projectId,
+                                                          final String baseUrl,
+                                                          final String pathPrefix,
+                                                          final VolViewSettings.Snapshot snapshot,
+                                                          final LaunchUrlTemplates.Renderer launchUrls) {
+        final String dicomwebRoot = joinPaths(pathPrefix, snapshot.getProjectDicomwebPath(projectId));
+        final String viewerEntryPoint = resolveUrl(snapshot.getViewerEntryPoint(), baseUrl);
+        final String shellUrl = resolveUrl(snapshot.getShellPath(), baseUrl);
+
+        log.debug("Computed VolView config for projectId={} baseUrl={} dicomwebRoot={} viewerEntryPoint={} shellUrl={}",
+                projectId, baseUrl, dicomwebRoot, viewerEntryPoint, shellUrl);
+
+        final Map<String, String> dicomweb = new LinkedHashMap<>();
+        dicomweb.put("root", dicomwebRoot);
+        dicomweb.put("studies", joinPaths(dicomwebRoot, "studies"));
+        dicomweb.put("series", joinPaths(dicomwebRoot, "studies/{studyInstanceUID}/series"));
+        dicomweb.put("instances", joinPaths(dicomwebRoot, "studies/{studyInstanceUID}/series/{seriesInstanceUID}/instances"));
+
+        final Map<String, Object> viewer = new LinkedHashMap<>();
+        viewer.put("shellUrl", shellUrl);
+        viewer.put("entryPoint", viewerEntryPoint);
+        viewer.put("studyLaunchUrl", launchUrls.studyLaunchUrlTemplate(projectId));
+        viewer.put("seriesLaunchUrl", launchUrls.seriesLaunchUrlTemplate(projectId));
+        viewer.put("seriesBundleLaunchUrl", launchUrls.bundleLaunchUrl(projectId, null, null, null));
+
+        final Map<String, Object> response = new LinkedHashMap<>();
+        response.put("projectId", projectId);
+        response.put("serverName", snapshot.getServerName());
+        response.put("dicomweb", dicomweb);
+        response.put("viewer", viewer);
+        return response;
+    }
+}
@@ -0,0 +1,364 @@
+package org.nrg.xnat.volview.services;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.io.DicomInputStream;
+import org.dcm4che2.io.StopTagInputHandler;
+import org.nrg.xnat.volview.cache.SessionDescriptor;
+import org.nrg.xnat.volview.cache.SessionManifest;
+import org.nrg.xnat.volview.cache.SessionManifestCache;
+import org.nrg.xnat.volview.services.DicomCatalogService.SeriesCatalogs;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Builds per-session launch manifests: every DICOM series in the session with its instances already
+ * sorted along the slice normal, plus the geometry, byte sizes and transfer syntaxes VolView would
+ * otherwise have to learn from the WADO-RS metadata. Instance headers are read up to the pixel data, so
+ * a manifest costs one pass over the headers and is then served from the {@link SessionManifestCache}
+ * until the session's catalogs change.
+ * <p>
+ * URLs in the manifest are relative to the session config's <code>dicomwebStudyUrl</code> followed by
+ * a slash, so the same manifest serves every DICOMweb root and path prefix.
+ */
+@Service
+public class VolViewManifestService {
+    private static final Logger log = LoggerFactory.getLogger(VolViewManifestService.class);
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    // Positions closer than this along the normal are treated as the same slice.
+    private static final double EPSILON = 1e-4;
+
+    private final DicomCatalogService catalogService;
+    private final SessionManifestCache manifestCache;
+
+    @Autowired
+    public VolViewManifestService(final DicomCatalogService catalogService, final SessionManifestCache manifestCache) {
+        this.catalogService = catalogService;
+        this.manifestCache = manifestCache;
+    }
+
+    /**
+     * Returns the session's manifest, building it if it isn't cached or the session's files changed
+     * since it was built.
+     */
+    public SessionManifest getManifest(final SessionDescriptor session) throws IOException {
+        final List<SeriesCatalogs> series = catalogService.getSessionCatalogs(session.getId());
+        final String fingerprint = catalogService.getFingerprint(series);
+        try {
+            return manifestCache.get(session.getId(), fingerprint, () -> build(session, series, fingerprint));
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    private SessionManifest build(final SessionDescriptor session, final List<SeriesCatalogs> series, final String fingerprint) throws IOException {
+        final long started = System.nanoTime();
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream(4096);
+        final CountingOutputStream counter = new CountingOutputStream(new GZIPOutputStream(compressed, 8192));
+        try (final JsonGenerator generator = JSON_FACTORY.createGenerator(counter)) {
+            generator.writeStartObject();
+            generator.writeStringField("sessionId", session.getId());
+            generator.writeStringField("studyInstanceUID", session.getStudyInstanceUid());
+            generator.writeArrayFieldStart("series");
+            int instances = 0;
+            for (final SeriesCatalogs entry : series) {
+                instances += writeSeries(generator, entry);
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+            generator.flush();
+            log.debug("Built VolView manifest for session {} with {} series and {} instances in {} ms",
+                    session.getId(), series.size(), instances, (System.nanoTime() - started) / 1000000L);
+        }
+        return new SessionManifest(fingerprint, compressed.toByteArray(), (int) counter.count);
+    }
+
+    private int writeSeries(final JsonGenerator generator, final SeriesCatalogs series) throws IOException {
+        final List<Instance> instances = new ArrayList<>();
+        for (final Path file : catalogService.getFiles(series)) {
+            final Instance instance = readInstance(file);
+            if (instance != null) {
+                instances.add(instance);
+            }
+        }
+        final Instance first = instances.isEmpty() ? null : instances.get(0);
+        final double[] orientation = first == null ? null : first.orientation;
+        final Double spacing = sortByPosition(instances, orientation);
+        final String transferSyntax = getCommonTransferSyntax(instances);
+        final String seriesUrl = "series/" + series.getSeriesInstanceUid();
+
+        generator.writeStartObject();
+        generator.writeStringField("seriesInstanceUID", series.getSeriesInstanceUid());
+        generator.writeStringField("scanId", series.getScanId());
+        generator.writeStringField("url", seriesUrl);
+        if (first != null) {
+            generator.writeStringField("modality", first.modality);
+            generator.writeStringField("seriesDescription", first.seriesDescription);
+            writeNumber(generator, "rows", first.rows);
+            writeNumber(generator, "columns", first.columns);
+            writeArray(generator, "pixelSpacing", first.pixelSpacing);
+            writeNumber(generator, "sliceThickness", first.sliceThickness);
+            writeArray(generator, "imageOrientationPatient", orientation);
+        }
+        writeNumber(generator, "spacingBetweenSlices", spacing);
+        generator.writeStringField("transferSyntaxUID", transferSyntax);
+        generator.writeNumberField("instanceCount", instances.size());
+        long totalBytes = 0;
+        for (final Instance instance : instances) {
+            totalBytes += instance.size;
+        }
+        generator.writeNumberField("totalBytes", totalBytes);
+        generator.writeArrayFieldStart("instances");
+        for (final Instance instance : instances) {
+            generator.writeStartObject();
+            generator.writeStringField("sopInstanceUID", instance.sopInstanceUid);
+            generator.writeStringField("url", seriesUrl + "/instances/" + instance.sopInstanceUid);
+            writeNumber(generator, "instanceNumber", instance.number);
+            writeArray(generator, "imagePositionPatient", instance.position);
+            if (instance.frames > 1) {
+                generator.writeNumberField("numberOfFrames", instance.frames);
+            }
+            generator.writeNumberField("size", instance.size);
+            if (transferSyntax == null) {
+                generator.writeStringField("transferSyntaxUID", instance.transferSyntax);
+            }
+            generator.writeEndObject();
+        }
+        generator.writeEndArray();
+        generator.writeEndObject();
+        return instances.size();
+    }
+
+    /**
+     * Sorts the instances by their position along the normal of the given orientation, then by instance
+     * number, and returns the median distance between neighbouring slices, or null if there aren't two
+     * distinct positions. Instances without a position, or with a different orientation, follow the rest
+     * in instance number order. Orientations are compared within {@link #EPSILON}, since scanners write
+     * the same direction cosines with different rounding from slice to slice.
+     */
+    private static Double sortByPosition(final List<Instance> instances, final double[] orientation) {
+        final double[] normal = getNormal(orientation);
+        for (final Instance instance : instances) {
+            instance.distance = normal == null || instance.position == null || !isSameOrientation(orientation, instance.orientation)
+                                ? Double.NaN
+                                : normal[0] * instance.position[0] + normal[1] * instance.position[1] + normal[2] * instance.position[2];
+        }
+        instances.sort(Comparator.<Instance>comparingInt(instance -> Double.isNaN(instance.distance) ? 1 : 0)
+                               .thenComparingDouble(instance -> Double.isNaN(instance.distance) ? 0 : instance.distance)
+                               .thenComparingInt(instance -> instance.number == null ? Integer.MAX_VALUE : instance.number));
+
+        final List<Double> gaps = new ArrayList<>();
+        for (int index = 1; index < instances.size(); index++) {
+            final double gap = instances.get(index).distance - instances.get(index - 1).distance;
+            if (gap > EPSILON) {
+                gaps.add(gap);
+            }
+        }
+        if (gaps.isEmpty()) {
+            return null;
+        }
+        gaps.sort(null);
+        return gaps.get(gaps.size() / 2);
+    }
+
+    private static boolean isSameOrientation(final double[] orientation, final double[] other) {
+        if (other == null || other.length != orientation.length) {
+            return false;
+        }
+        for (int index = 0; index < orientation.length; index++) {
+            if (Math.abs(orientation[index] - other[index]) > EPSILON) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static double[] getNormal(final double[] orientation) {
+        if (orientation == null || orientation.length != 6) {
+            return null;
+        }
+        final double[] normal = {
+                orientation[1] * orientation[5] - orientation[2] * orientation[4],
+                orientation[2] * orientation[3] - orientation[0] * orientation[5],
+                orientation[0] * orientation[4] - orientation[1] * orientation[3]
+        };
+        return normal[0] == 0 && normal[1] == 0 && normal[2] == 0 ? null : normal;
+    }
+
+    private static String getCommonTransferSyntax(final List<Instance> instances) {
+        String transferSyntax = null;
+        for (final Instance instance : instances) {
+            if (transferSyntax == null) {
+                transferSyntax = instance.transferSyntax;
+            } else if (!Objects.equals(transferSyntax, instance.transferSyntax)) {
+                return null;
+            }
+        }
+        return transferSyntax;
+    }
+
+    private static Instance readInstance(final Path file) {
+        try (final DicomInputStream input = new DicomInputStream(file.toFile())) {
+            input.setHandler(new StopTagInputHandler(Tag.PixelData));
+            final DicomObject header = input.readDicomObject();
+            final String sopInstanceUid = header.getString(Tag.SOPInstanceUID);
+            if (sopInstanceUid == null) {
+                log.debug("Skipping {} in the VolView manifest; it has no SOP instance UID", file);
+                return null;
+            }
+            final String transferSyntax = header.getString(Tag.TransferSyntaxUID);
+            return new Instance(sopInstanceUid,
+                    transferSyntax != null ? transferSyntax : input.getTransferSyntax().uid(),
+                    Files.size(file),
+                    getInteger(header, Tag.InstanceNumber),
+                    getInteger(header, Tag.NumberOfFrames),
+                    getInteger(header, Tag.Rows),
+                    getInteger(header, Tag.Columns),
+                    getDoubles(header, Tag.ImagePositionPatient, 3),
+                    getDoubles(header, Tag.ImageOrientationPatient, 6),
+                    getDoubles(header, Tag.PixelSpacing, 2),
+                    header.getString(Tag.SliceThickness),
+                    header.getString(Tag.Modality),
+                    header.getString(Tag.SeriesDescription));
+        } catch (IOException | RuntimeException e) {
+            log.warn("Skipping unreadable DICOM file {} in the VolView manifest", file, e);
+            return null;
+        }
+    }
+
+    private static Integer getInteger(final DicomObject header, final int tag) {
+        if (!header.containsValue(tag)) {
+            return null;
+        }
+        try {
+            return header.getInt(tag);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static double[] getDoubles(final DicomObject header, final int tag, final int length) {
+        final double[] values = header.containsValue(tag) ? header.getDoubles(tag) : null;
+        return values != null && values.length == length ? values : null;
+    }
+
+    private static void writeNumber(final JsonGenerator generator, final String name, final Number value) throws IOException {
+        if (value != null) {
+            generator.writeFieldName(name);
+            if (value instanceof Integer) {
+                generator.writeNumber(value.intValue());
+            } else {
+                generator.writeNumber(value.doubleValue());
+            }
+        }
+    }
+
+    private static void writeNumber(final JsonGenerator generator, final String name, final String value) throws IOException {
+        if (value != null) {
+            try {
+                writeNumber(generator, name, Double.valueOf(value.trim()));
+            } catch (NumberFormatException ignored) {
+                // Malformed decimal strings are left out rather than failing the whole manifest.
+            }
+        }
+    }
+
+    private static void writeArray(final JsonGenerator generator, final String name, final double[] values) throws IOException {
+        if (values != null) {
+            generator.writeFieldName(name);
+            generator.writeArray(values, 0, values.length);
+        }
+    }
+
+    private static final class Instance {
+        private final String sopInstanceUid;
+        private final String transferSyntax;
+        private final long size;
+        private final Integer number;
+        private final int frames;
+        private final Integer rows;
+        private final Integer columns;
+        private final double[] position;
+        private final double[] orientation;
+        private final double[] pixelSpacing;
+        private final String sliceThickness;
+        private final String modality;
+        private final String seriesDescription;
+        private double distance;
+
+        private Instance(final String sopInstanceUid,
+                         final String transferSyntax,
+                         final long size,
+                         final Integer number,
+                         final Integer frames,
+                         final Integer rows,
+                         final Integer columns,
+                         final double[] position,
+                         final double[] orientation,
+                         final double[] pixelSpacing,
+                         final String sliceThickness,
+                         final String modality,
+                         final String seriesDescription) {
+            this.sopInstanceUid = sopInstanceUid;
+            this.transferSyntax = transferSyntax;
+            this.size = size;
+            this.number = number;
+            this.frames = frames == null ? 1 : frames;
+            this.rows = rows;
+            this.columns = columns;
+            this.position = position;
+            this.orientation = orientation;
+            this.pixelSpacing = pixelSpacing;
+            this.sliceThickness = sliceThickness;
+            this.modality = modality;
+            this.seriesDescription = seriesDescription;
+        }
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+        private final OutputStream output;
+        private long count;
+
+        private CountingOutputStream(final OutputStream output) {
+            this.output = output;
+        }
+
+        @Override
+        public void write(final int value) throws IOException {
+            output.write(value);
+            count++;
+        }
+
+        @Override
+        public void write(final byte[] buffer, final int offset, final int length) throws IOException {
+            output.write(buffer, offset, length);
+            count += length;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            output.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            output.close();
+        }
+    }
+}
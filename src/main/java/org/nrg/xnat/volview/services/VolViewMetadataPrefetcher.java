@@ -0,0 +1,154 @@
+package org.nrg.xnat.volview.services;
+
+import org.nrg.xnat.volview.cache.DicomwebMetadataCache;
+import org.nrg.xnat.volview.cache.SessionDescriptor;
+import org.nrg.xnat.volview.config.VolViewSettings;
+import org.nrg.xnat.volview.services.DicomCatalogService.SeriesCatalogs;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Warms the {@link DicomwebMetadataCache} when a session is about to be opened, so the series metadata
+ * VolView asks for first is already in memory when it arrives. Jobs run on a small pool with a bounded
+ * queue; a study that is already queued isn't queued again, and jobs that don't fit are dropped. The
+ * series come from the session's DICOM catalogs and their metadata is fetched from the DICOMweb origin
+ * with the launching user's credentials. Prefetching only runs when the DICOMweb cache is enabled, since
+ * otherwise VolView doesn't read metadata through it.
+ */
+@Service
+public class VolViewMetadataPrefetcher {
+    private static final Logger log = LoggerFactory.getLogger(VolViewMetadataPrefetcher.class);
+
+    private final VolViewSettings settings;
+    private final VolViewDicomwebProxy dicomwebProxy;
+    private final DicomCatalogService catalogService;
+    private final DicomwebMetadataCache metadataCache;
+    private final boolean enabled;
+    private final ThreadPoolExecutor workers;
+    private final Set<String> queued = ConcurrentHashMap.newKeySet();
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder deduplicated = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder fetched = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    @Autowired
+    public VolViewMetadataPrefetcher(final VolViewSettings settings,
+                                     final VolViewDicomwebProxy dicomwebProxy,
+                                     final DicomCatalogService catalogService,
+                                     final DicomwebMetadataCache metadataCache,
+                                     @Value("${volview.prefetch.enabled:false}") final boolean enabled,
+                                     @Value("${volview.prefetch.threads:2}") final int threads,
+                                     @Value("${volview.prefetch.queue-size:64}") final int queueSize) {
+        this.settings = settings;
+        this.dicomwebProxy = dicomwebProxy;
+        this.catalogService = catalogService;
+        this.metadataCache = metadataCache;
+        this.enabled = enabled;
+        final AtomicInteger count = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(Math.max(1, queueSize)), runnable -> {
+            final Thread thread = new Thread(runnable, "volview-prefetch-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.workers.allowCoreThreadTimeOut(true);
+    }
+
+    public boolean isEnabled() {
+        return enabled && settings.isDicomwebCacheEnabled();
+    }
+
+    /**
+     * Captures what a later prefetch for the request's user needs, or returns null if prefetching is
+     * disabled. Call this on the request thread.
+     */
+    public VolViewDicomwebProxy.Origin capture(final HttpServletRequest request) {
+        return isEnabled() ? dicomwebProxy.getOrigin(request) : null;
+    }
+
+    /**
+     * Queues a prefetch of the series metadata of the session's study in the project. The caller must
+     * have checked that the user can read the session. Returns whether the study is queued, either by
+     * this call or an earlier one.
+     */
+    public boolean prefetch(final VolViewDicomwebProxy.Origin origin, final String projectId, final SessionDescriptor session) {
+        if (origin == null || session.getStudyInstanceUid() == null) {
+            return false;
+        }
+        final String key = projectId + "/" + session.getStudyInstanceUid();
+        if (!queued.add(key)) {
+            deduplicated.increment();
+            return true;
+        }
+        try {
+            workers.execute(() -> {
+                try {
+                    run(origin, projectId, session);
+                } finally {
+                    queued.remove(key);
+                }
+            });
+            submitted.increment();
+            return true;
+        } catch (RejectedExecutionException e) {
+            queued.remove(key);
+            dropped.increment();
+            log.debug("Dropped VolView metadata prefetch for study {} in project {}; the queue is full", session.getStudyInstanceUid(), projectId);
+            return false;
+        }
+    }
+
+    public Map<String, Object> getStatistics() {
+        final Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("enabled", isEnabled());
+        statistics.put("queueDepth", workers.getQueue().size());
+        statistics.put("activeThreads", workers.getActiveCount());
+        statistics.put("submitted", submitted.sum());
+        statistics.put("deduplicated", deduplicated.sum());
+        statistics.put("dropped", dropped.sum());
+        statistics.put("completed", workers.getCompletedTaskCount());
+        statistics.put("fetched", fetched.sum());
+        statistics.put("failed", failed.sum());
+        statistics.put("cache", metadataCache.getStatistics());
+        return statistics;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        workers.shutdownNow();
+    }
+
+    private void run(final VolViewDicomwebProxy.Origin origin, final String projectId, final SessionDescriptor session) {
+        final String studyPath = "studies/" + session.getStudyInstanceUid() + "/series/";
+        for (final SeriesCatalogs series : catalogService.getSessionCatalogs(session.getId())) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            try {
+                if (dicomwebProxy.prefetchMetadata(origin, projectId, studyPath + series.getSeriesInstanceUid() + "/metadata")) {
+                    fetched.increment();
+                }
+            } catch (IOException e) {
+                failed.increment();
+                log.debug("Failed to prefetch metadata for series {} in session {}", series.getSeriesInstanceUid(), session.getId(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package org.nrg.xnat.volview.services;
+
+import org.nrg.xnat.volview.config.VolViewSettings;
+import org.nrg.xnat.volview.metrics.VolViewMetrics.Endpoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs blocking VolView lookups on dedicated, bounded worker pools so that a slow database ties up
+ * VolView workers instead of servlet container threads. Each endpoint is a separate bulkhead with its
+ * own workers and limit on pending requests, so a slow batch can't starve single launches. Requests
+ * over the limit, and requests that run past their timeout, complete with <code>503 Service
+ * Unavailable</code> and a <code>Retry-After</code> header. Pool sizes, limits and timeouts come from
+ * the VolView settings and are applied without a restart.
+ */
+@Component
+public class VolViewRequestExecutor {
+    private static final Logger log = LoggerFactory.getLogger(VolViewRequestExecutor.class);
+    private static final String RETRY_AFTER_SECONDS = "5";
+    private static final Set<Endpoint> ENDPOINTS = Collections.unmodifiableSet(EnumSet.of(Endpoint.SESSION_CONFIG, Endpoint.SESSION_BATCH, Endpoint.STUDY_INDEX, Endpoint.SESSION_MANIFEST, Endpoint.PREFETCH, Endpoint.THUMBNAIL));
+
+    private final VolViewSettings settings;
+    private final Map<Endpoint, Bulkhead> bulkheads = new EnumMap<>(Endpoint.class);
+    private final ScheduledThreadPoolExecutor timeouts;
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+
+    private volatile long appliedVersion;
+
+    @Autowired
+    public VolViewRequestExecutor(final VolViewSettings settings) {
+        this.settings = settings;
+        final VolViewSettings.Snapshot snapshot = settings.getSnapshot();
+        for (final Endpoint endpoint : ENDPOINTS) {
+            bulkheads.put(endpoint, new Bulkhead(endpoint, snapshot.getAsyncPoolSize()));
+        }
+        timeouts = new ScheduledThreadPoolExecutor(1, daemonThreads("volview-timeout"));
+        timeouts.setRemoveOnCancelPolicy(true);
+        appliedVersion = snapshot.getVersion();
+        log.info("VolView request executor initialized with {} workers and at most {} pending requests per endpoint",
+                snapshot.getAsyncPoolSize(), snapshot.getAsyncMaxPending());
+    }
+
+    /**
+     * Runs the task on the worker pool. The returned future completes with the task's response, with a
+     * 503 response if the endpoint's bulkhead is full or the task times out, or exceptionally if the
+     * task throws. Only the session config, batch, study index, manifest, prefetch and thumbnail
+     * endpoints have bulkheads.
+     */
+    public <T> CompletableFuture<ResponseEntity<T>> submit(final Endpoint endpoint, final Callable<ResponseEntity<T>> task) {
+        final VolViewSettings.Snapshot snapshot = settings.getSnapshot();
+        applySettings(snapshot);
+
+        final Bulkhead bulkhead = bulkheads.get(endpoint);
+        if (bulkhead == null) {
+            throw new IllegalArgumentException("No VolView bulkhead for endpoint " + endpoint);
+        }
+        if (bulkhead.pending.incrementAndGet() > snapshot.getAsyncMaxPending()) {
+            bulkhead.pending.decrementAndGet();
+            return reject(endpoint, "bulkhead full");
+        }
+
+        final Task<T> wrapped = new Task<>(task, bulkhead.pending);
+        try {
+            bulkhead.workers.execute(wrapped);
+        } catch (RejectedExecutionException e) {
+            bulkhead.pending.decrementAndGet();
+            return reject(endpoint, "executor shut down");
+        }
+
+        final int timeoutSeconds = getTimeoutSeconds(endpoint);
+        final ScheduledFuture<?> timeout = timeouts.schedule(() -> {
+            if (wrapped.result.complete(unavailable())) {
+                timedOut.increment();
+                log.warn("VolView {} request timed out after {}s", endpoint, timeoutSeconds);
+                // A task that is already running keeps its slot until it finishes, so the bulkhead
+                // still accounts for the busy worker; one that hasn't started is dropped.
+                if (wrapped.claim()) {
+                    bulkhead.workers.remove(wrapped);
+                    bulkhead.pending.decrementAndGet();
+                }
+            }
+        }, timeoutSeconds, TimeUnit.SECONDS);
+        wrapped.result.whenComplete((response, error) -> timeout.cancel(false));
+        return wrapped.result;
+    }
+
+    /**
+     * Returns how long a request to the endpoint may wait and run before it is answered with 503.
+     */
+    public int getTimeoutSeconds(final Endpoint endpoint) {
+        final VolViewSettings.Snapshot snapshot = settings.getSnapshot();
+        return endpoint == Endpoint.SESSION_BATCH || endpoint == Endpoint.SESSION_MANIFEST ? snapshot.getAsyncBatchTimeoutSeconds() : snapshot.getAsyncTimeoutSeconds();
+    }
+
+    public Map<String, Object> getStatistics() {
+        final Map<String, Object> statistics = new LinkedHashMap<>();
+        for (final Bulkhead bulkhead : bulkheads.values()) {
+            final Map<String, Object> values = new LinkedHashMap<>();
+            values.put("poolSize", bulkhead.workers.getMaximumPoolSize());
+            values.put("activeThreads", bulkhead.workers.getActiveCount());
+            values.put("queued", bulkhead.workers.getQueue().size());
+            values.put("pending", bulkhead.pending.get());
+            values.put("completed", bulkhead.workers.getCompletedTaskCount());
+            statistics.put(bulkhead.name, values);
+        }
+        statistics.put("rejected", rejected.sum());
+        statistics.put("timedOut", timedOut.sum());
+        return statistics;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        timeouts.shutdownNow();
+        for (final Bulkhead bulkhead : bulkheads.values()) {
+            bulkhead.workers.shutdownNow();
+        }
+    }
+
+    private void applySettings(final VolViewSettings.Snapshot snapshot) {
+        if (snapshot.getVersion() == appliedVersion) {
+            return;
+        }
+        synchronized (bulkheads) {
+            if (snapshot.getVersion() == appliedVersion) {
+                return;
+            }
+            final int size = snapshot.getAsyncPoolSize();
+            for (final Bulkhead bulkhead : bulkheads.values()) {
+                bulkhead.resize(size);
+            }
+            appliedVersion = snapshot.getVersion();
+            log.info("VolView request executor now uses {} workers and at most {} pending requests per endpoint", size, snapshot.getAsyncMaxPending());
+        }
+    }
+
+    private <T> CompletableFuture<ResponseEntity<T>> reject(final Endpoint endpoint, final String reason) {
+        rejected.increment();
+        log.debug("Rejected VolView {} request: {}", endpoint, reason);
+        return CompletableFuture.completedFuture(unavailable());
+    }
+
+    private static <T> ResponseEntity<T> unavailable() {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, RETRY_AFTER_SECONDS).build();
+    }
+
+    private static ThreadFactory daemonThreads(final String prefix) {
+        final AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            final Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static final class Bulkhead {
+        private final String name;
+        private final ThreadPoolExecutor workers;
+        private final AtomicInteger pending = new AtomicInteger();
+
+        private Bulkhead(final Endpoint endpoint, final int size) {
+            name = endpoint.name().toLowerCase(Locale.ROOT);
+            workers = new ThreadPoolExecutor(size, size, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), daemonThreads("volview-" + name));
+            workers.allowCoreThreadTimeOut(true);
+        }
+
+        private void resize(final int size) {
+            if (size > workers.getMaximumPoolSize()) {
+                workers.setMaximumPoolSize(size);
+                workers.setCorePoolSize(size);
+            } else if (size < workers.getMaximumPoolSize()) {
+                workers.setCorePoolSize(size);
+                workers.setMaximumPoolSize(size);
+            }
+        }
+    }
+
+    private static final class Task<T> implements Runnable {
+        private final CompletableFuture<ResponseEntity<T>> result = new CompletableFuture<>();
+        private final Callable<ResponseEntity<T>> task;
+        private final AtomicInteger endpointPending;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+
+        private Task(final Callable<ResponseEntity<T>> task, final AtomicInteger endpointPending) {
+            this.task = task;
+            this.endpointPending = endpointPending;
+        }
+
+        private boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+
+        @Override
+        public void run() {
+            if (!claim()) {
+                return;
+            }
+            try {
+                result.complete(task.call());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            } finally {
+                endpointPending.decrementAndGet();
+            }
+        }
+    }
+}
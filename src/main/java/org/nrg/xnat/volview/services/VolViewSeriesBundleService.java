@@ -0,0 +1,108 @@
+package org.nrg.xnat.volview.services;
+
+import org.apache.commons.compress.archivers.zip.Zip64Mode;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Streams the DICOM files of one series as a single response, either as a zip archive or as
+ * <code>multipart/related; type="application/dicom"</code> like a WADO-RS series retrieve. Files are
+ * located by {@link DicomCatalogService} and copied straight from the archive to the response, without
+ * temp files or buffering whole instances.
+ */
+@Service
+public class VolViewSeriesBundleService {
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final DicomCatalogService catalogService;
+
+    @Autowired
+    public VolViewSeriesBundleService(final DicomCatalogService catalogService) {
+        this.catalogService = catalogService;
+    }
+
+    /**
+     * Returns the DICOM files of the series in the session in instance order, or an empty list if the
+     * series has no DICOM resource.
+     */
+    public List<Path> getSeriesFiles(final String sessionId, final String seriesInstanceUid) {
+        return catalogService.getSeriesFiles(sessionId, seriesInstanceUid);
+    }
+
+    /**
+     * Writes the files as a zip archive. Entries are deflated at the fastest level since DICOM pixel
+     * data rarely compresses well, and Zip64 extensions are only used for entries that need them.
+     */
+    public void writeZip(final List<Path> files, final OutputStream output) throws IOException {
+        final ZipArchiveOutputStream zip = new ZipArchiveOutputStream(output);
+        zip.setUseZip64(Zip64Mode.AsNeeded);
+        zip.setLevel(Deflater.BEST_SPEED);
+        int index = 0;
+        for (final Path file : files) {
+            final ZipArchiveEntry entry = new ZipArchiveEntry(String.format("%05d-%s", ++index, file.getFileName()));
+            entry.setSize(Files.size(file));
+            entry.setTime(Files.getLastModifiedTime(file).toMillis());
+            zip.putArchiveEntry(entry);
+            Files.copy(file, zip);
+            zip.closeArchiveEntry();
+        }
+        zip.finish();
+        zip.flush();
+    }
+
+    /**
+     * Returns the exact length of the multipart body {@link #writeMultipart(List, String, OutputStream)}
+     * writes for the files, so it can be sent as the content length.
+     */
+    public long getMultipartLength(final List<Path> files, final String boundary) throws IOException {
+        long length = getClosingDelimiter(boundary).length;
+        for (final Path file : files) {
+            final long size = Files.size(file);
+            length += getPartHeader(boundary, size).length + size + CRLF.length;
+        }
+        return length;
+    }
+
+    public void writeMultipart(final List<Path> files, final String boundary, final OutputStream output) throws IOException {
+        final WritableByteChannel target = Channels.newChannel(output);
+        for (final Path file : files) {
+            try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                final long size = channel.size();
+                output.write(getPartHeader(boundary, size));
+                long position = 0;
+                while (position < size) {
+                    final long transferred = channel.transferTo(position, size - position, target);
+                    if (transferred <= 0) {
+                        throw new IOException("Failed to copy " + file + " after " + position + " of " + size + " bytes");
+                    }
+                    position += transferred;
+                }
+                output.write(CRLF);
+            }
+        }
+        output.write(getClosingDelimiter(boundary));
+        output.flush();
+    }
+
+    private static byte[] getPartHeader(final String boundary, final long size) {
+        return ("--" + boundary + "\r\nContent-Type: application/dicom\r\nContent-Length: " + size + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] getClosingDelimiter(final String boundary) {
+        return ("--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+}
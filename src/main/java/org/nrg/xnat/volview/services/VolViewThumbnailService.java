@@ -0,0 +1,328 @@
+package org.nrg.xnat.volview.services;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.dcm4che2.data.DicomElement;
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.io.DicomInputStream;
+import org.nrg.xnat.volview.cache.SeriesThumbnailCache;
+import org.nrg.xnat.volview.cache.SeriesThumbnailCache.Thumbnail;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import javax.imageio.ImageIO;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Renders small PNG thumbnails of series for the shell's series picker. A thumbnail is the middle
+ * instance of the series, windowed and downsampled to fit in a square of the configured size, and is
+ * kept in the {@link SeriesThumbnailCache}. Rendering runs on a small pool with a bounded queue, and
+ * concurrent requests for the same series share one render.
+ * <p>
+ * Uncompressed 8- and 16-bit monochrome and 8-bit RGB pixel data is decoded directly. Compressed pixel
+ * data is decoded with whatever ImageIO readers are installed, which covers baseline JPEG; series that
+ * can't be decoded get no thumbnail.
+ */
+@Service
+public class VolViewThumbnailService {
+    private static final Logger log = LoggerFactory.getLogger(VolViewThumbnailService.class);
+
+    private final DicomCatalogService catalogService;
+    private final SeriesThumbnailCache thumbnailCache;
+    private final int size;
+    private final ThreadPoolExecutor workers;
+    private final ConcurrentMap<String, CompletableFuture<Thumbnail>> rendering = new ConcurrentHashMap<>();
+    // Series with unsupported pixel data aren't retried on every request from the picker.
+    private final Cache<String, Boolean> unrenderable = CacheBuilder.newBuilder().maximumSize(10000).expireAfterWrite(1, TimeUnit.HOURS).build();
+    private final LongAdder rendered = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder unsupported = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    @Autowired
+    public VolViewThumbnailService(final DicomCatalogService catalogService,
+                                   final SeriesThumbnailCache thumbnailCache,
+                                   @Value("${volview.thumbnail.size:128}") final int size,
+                                   @Value("${volview.thumbnail.threads:2}") final int threads,
+                                   @Value("${volview.thumbnail.queue-size:128}") final int queueSize) {
+        this.catalogService = catalogService;
+        this.thumbnailCache = thumbnailCache;
+        this.size = Math.max(16, size);
+        final AtomicInteger count = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(Math.max(1, queueSize)), runnable -> {
+            final Thread thread = new Thread(runnable, "volview-thumbnail-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.workers.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns a future that completes with the thumbnail of the series in the session, or with null if
+     * the series isn't in the session or can't be rendered. The future completes exceptionally with a
+     * {@link RejectedExecutionException} if the render queue is full. The caller must have checked that
+     * the user can read the session.
+     */
+    public CompletableFuture<Thumbnail> getThumbnail(final String sessionId, final String seriesInstanceUid) {
+        final Thumbnail cached = thumbnailCache.get(seriesInstanceUid);
+        if (cached != null && cached.getSessionId().equals(sessionId)) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        // Renders are keyed by session as well, so a request only ever shares the result of a render
+        // that checked the series belongs to its own session.
+        final String key = sessionId + "/" + seriesInstanceUid;
+        final CompletableFuture<Thumbnail> created = new CompletableFuture<>();
+        final CompletableFuture<Thumbnail> existing = rendering.putIfAbsent(key, created);
+        if (existing != null) {
+            coalesced.increment();
+            return existing;
+        }
+        try {
+            workers.execute(() -> {
+                try {
+                    created.complete(render(sessionId, seriesInstanceUid));
+                } finally {
+                    rendering.remove(key, created);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rendering.remove(key, created);
+            dropped.increment();
+            created.completeExceptionally(e);
+        }
+        return created;
+    }
+
+    public Map<String, Object> getStatistics() {
+        final Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("queueDepth", workers.getQueue().size());
+        statistics.put("activeThreads", workers.getActiveCount());
+        statistics.put("rendered", rendered.sum());
+        statistics.put("coalesced", coalesced.sum());
+        statistics.put("dropped", dropped.sum());
+        statistics.put("unsupported", unsupported.sum());
+        statistics.put("failed", failed.sum());
+        statistics.put("cache", thumbnailCache.getStatistics());
+        return statistics;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        workers.shutdownNow();
+    }
+
+    private Thumbnail render(final String sessionId, final String seriesInstanceUid) {
+        final List<Path> files = catalogService.getSeriesFiles(sessionId, seriesInstanceUid);
+        if (files.isEmpty()) {
+            return null;
+        }
+        // The series is in the session, so a thumbnail rendered for another session that shares it is
+        // good for this one too.
+        final Thumbnail cached = thumbnailCache.get(seriesInstanceUid);
+        if (cached != null) {
+            return cached;
+        }
+        if (unrenderable.getIfPresent(seriesInstanceUid) != null) {
+            return null;
+        }
+        final long started = System.nanoTime();
+        final Path file = files.get(files.size() / 2);
+        try {
+            final BufferedImage image = decode(file);
+            if (image == null) {
+                unsupported.increment();
+                unrenderable.put(seriesInstanceUid, Boolean.TRUE);
+                log.debug("No thumbnail for series {} in session {}; the pixel data of {} isn't supported", seriesInstanceUid, sessionId, file);
+                return null;
+            }
+            final ByteArrayOutputStream output = new ByteArrayOutputStream(16384);
+            ImageIO.write(scale(image, size), "png", output);
+            rendered.increment();
+            log.debug("Rendered thumbnail for series {} in session {} in {} ms", seriesInstanceUid, sessionId, (System.nanoTime() - started) / 1000000L);
+            return thumbnailCache.put(seriesInstanceUid, sessionId, output.toByteArray());
+        } catch (IOException | RuntimeException e) {
+            // Read errors may be transient, e.g. a file that's still being archived, so unlike unsupported
+            // pixel data the series is tried again on the next request.
+            failed.increment();
+            log.warn("Failed to render a thumbnail of series {} in session {} from {}", seriesInstanceUid, sessionId, file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Decodes the middle frame of the DICOM file, or returns null if its pixel data isn't supported.
+     */
+    private static BufferedImage decode(final Path file) throws IOException {
+        final DicomObject dicom;
+        try (final DicomInputStream input = new DicomInputStream(file.toFile())) {
+            dicom = input.readDicomObject();
+        }
+        final DicomElement pixelData = dicom.get(Tag.PixelData);
+        final int rows = dicom.getInt(Tag.Rows, 0);
+        final int columns = dicom.getInt(Tag.Columns, 0);
+        if (pixelData == null || rows <= 0 || columns <= 0) {
+            return null;
+        }
+        final int frames = Math.max(1, dicom.getInt(Tag.NumberOfFrames, 1));
+        final int frame = frames / 2;
+        if (pixelData.hasItems()) {
+            return decodeEncapsulated(pixelData, frames, frame);
+        }
+
+        final int samples = dicom.getInt(Tag.SamplesPerPixel, 1);
+        final int bitsAllocated = dicom.getInt(Tag.BitsAllocated, 16);
+        final String photometric = dicom.getString(Tag.PhotometricInterpretation);
+        final byte[] bytes = pixelData.getBytes();
+        final int frameLength = rows * columns * samples * (bitsAllocated / 8);
+        final int offset = frame * frameLength;
+        if (bytes == null || bitsAllocated % 8 != 0 || offset + frameLength > bytes.length) {
+            return null;
+        }
+        if (samples == 1 && (bitsAllocated == 8 || bitsAllocated == 16)) {
+            return decodeMonochrome(dicom, bytes, offset, rows, columns, bitsAllocated, pixelData.bigEndian(), "MONOCHROME1".equals(photometric));
+        }
+        if (samples == 3 && bitsAllocated == 8 && "RGB".equals(photometric)) {
+            return decodeRgb(bytes, offset, rows, columns, dicom.getInt(Tag.PlanarConfiguration, 0) == 1);
+        }
+        return null;
+    }
+
+    private static BufferedImage decodeEncapsulated(final DicomElement pixelData, final int frames, final int frame) throws IOException {
+        // The first item is the basic offset table; after it each frame is usually a single fragment.
+        final int fragments = pixelData.countItems() - 1;
+        final byte[] bytes;
+        if (fragments == frames) {
+            bytes = pixelData.getFragment(frame + 1);
+        } else if (frames == 1 && fragments > 0) {
+            final ByteArrayOutputStream joined = new ByteArrayOutputStream();
+            for (int index = 1; index <= fragments; index++) {
+                joined.write(pixelData.getFragment(index));
+            }
+            bytes = joined.toByteArray();
+        } else {
+            return null;
+        }
+        return ImageIO.read(new ByteArrayInputStream(bytes));
+    }
+
+    private static BufferedImage decodeMonochrome(final DicomObject dicom,
+                                                  final byte[] bytes,
+                                                  final int offset,
+                                                  final int rows,
+                                                  final int columns,
+                                                  final int bitsAllocated,
+                                                  final boolean bigEndian,
+                                                  final boolean inverted) {
+        final int bitsStored = Math.min(bitsAllocated, dicom.getInt(Tag.BitsStored, bitsAllocated));
+        final boolean signed = dicom.getInt(Tag.PixelRepresentation, 0) == 1;
+        final double slope = dicom.getFloat(Tag.RescaleSlope, 1f);
+        final double intercept = dicom.getFloat(Tag.RescaleIntercept, 0f);
+        final int pixels = rows * columns;
+        final float[] values = new float[pixels];
+        float minimum = Float.MAX_VALUE;
+        float maximum = -Float.MAX_VALUE;
+        for (int index = 0; index < pixels; index++) {
+            int stored;
+            if (bitsAllocated == 8) {
+                stored = bytes[offset + index] & 0xFF;
+            } else {
+                final int position = offset + index * 2;
+                stored = bigEndian
+                         ? (bytes[position] & 0xFF) << 8 | bytes[position + 1] & 0xFF
+                         : (bytes[position + 1] & 0xFF) << 8 | bytes[position] & 0xFF;
+            }
+            stored = signed ? stored << (32 - bitsStored) >> (32 - bitsStored) : stored & (1 << bitsStored) - 1;
+            final float value = (float) (stored * slope + intercept);
+            values[index] = value;
+            minimum = Math.min(minimum, value);
+            maximum = Math.max(maximum, value);
+        }
+
+        final double[] centers = dicom.getDoubles(Tag.WindowCenter);
+        final double[] widths = dicom.getDoubles(Tag.WindowWidth);
+        final double low;
+        final double high;
+        if (centers != null && widths != null && centers.length > 0 && widths.length > 0 && widths[0] > 0) {
+            low = centers[0] - widths[0] / 2;
+            high = centers[0] + widths[0] / 2;
+        } else {
+            low = minimum;
+            high = maximum;
+        }
+        final double scale = high > low ? 255.0 / (high - low) : 0;
+
+        final BufferedImage image = new BufferedImage(columns, rows, BufferedImage.TYPE_BYTE_GRAY);
+        final byte[] gray = new byte[pixels];
+        for (int index = 0; index < pixels; index++) {
+            int level = (int) Math.round((values[index] - low) * scale);
+            level = level < 0 ? 0 : level > 255 ? 255 : level;
+            gray[index] = (byte) (inverted ? 255 - level : level);
+        }
+        image.getRaster().setDataElements(0, 0, columns, rows, gray);
+        return image;
+    }
+
+    private static BufferedImage decodeRgb(final byte[] bytes, final int offset, final int rows, final int columns, final boolean planar) {
+        final int pixels = rows * columns;
+        final BufferedImage image = new BufferedImage(columns, rows, BufferedImage.TYPE_INT_RGB);
+        final int[] rgb = new int[pixels];
+        for (int index = 0; index < pixels; index++) {
+            final int red = planar ? bytes[offset + index] : bytes[offset + index * 3];
+            final int green = planar ? bytes[offset + pixels + index] : bytes[offset + index * 3 + 1];
+            final int blue = planar ? bytes[offset + 2 * pixels + index] : bytes[offset + index * 3 + 2];
+            rgb[index] = (red & 0xFF) << 16 | (green & 0xFF) << 8 | blue & 0xFF;
+        }
+        image.setRGB(0, 0, columns, rows, rgb, 0, columns);
+        return image;
+    }
+
+    /**
+     * Scales the image to fit in a square of the given size, halving it with bilinear filtering until
+     * the last step so that large images don't alias.
+     */
+    private static BufferedImage scale(final BufferedImage source, final int size) {
+        final double ratio = Math.min(1.0, (double) size / Math.max(source.getWidth(), source.getHeight()));
+        final int targetWidth = Math.max(1, (int) Math.round(source.getWidth() * ratio));
+        final int targetHeight = Math.max(1, (int) Math.round(source.getHeight() * ratio));
+        final int type = source.getType() == BufferedImage.TYPE_BYTE_GRAY ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_INT_RGB;
+        BufferedImage current = source;
+        do {
+            final int width = Math.max(targetWidth, current.getWidth() / 2);
+            final int height = Math.max(targetHeight, current.getHeight() / 2);
+            final BufferedImage next = new BufferedImage(width, height, type);
+            final Graphics2D graphics = next.createGraphics();
+            try {
+                graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                graphics.drawImage(current, 0, 0, width, height, null);
+            } finally {
+                graphics.dispose();
+            }
+            current = next;
+        } while (current.getWidth() > targetWidth || current.getHeight() > targetHeight);
+        return current;
+    }
+}
@@ -0,0 +1,280 @@
+package org.nrg.xnat.volview.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * VolView launch URL patterns, compiled once per settings version into lists of literal and
+ * placeholder segments. The viewer entry point may use the <code>{dicomweb}</code>,
+ * <code>{project}</code>, <code>{study}</code>, <code>{series}</code> and <code>{session}</code>
+ * placeholders; when it doesn't mention <code>{dicomweb}</code>, a <code>dicomweb</code> query
+ * parameter is appended. Values are percent-encoded like JavaScript's <code>encodeURIComponent</code>.
+ * Series can also be launched from a single zip bundle, passed to VolView with its <code>urls</code>
+ * and <code>names</code> parameters.
+ */
+public final class LaunchUrlTemplates {
+    public enum Placeholder {
+        BASE_URL("baseUrl", false),
+        PATH_PREFIX("pathPrefix", false),
+        DICOMWEB("dicomweb", true),
+        PROJECT("project", true),
+        STUDY("study", true),
+        SERIES("series", true),
+        SESSION("session", true),
+        BUNDLE("bundle", true);
+
+        private final String token;
+        private final boolean encoded;
+
+        Placeholder(final String name, final boolean encoded) {
+            this.token = "{" + name + "}";
+            this.encoded = encoded;
+        }
+
+        public String getToken() {
+            return token;
+        }
+    }
+
+    public static final String BUNDLE_PATH = "/xapi/volview/bundle/projects";
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    private static final ThreadLocal<Buffers> BUFFERS = ThreadLocal.withInitial(Buffers::new);
+
+    private final long version;
+    private final Template viewer;
+    private final Template studyTarget;
+    private final Template seriesTarget;
+    private final Template bundleViewer;
+    private final Template bundleTarget;
+
+    private LaunchUrlTemplates(final long version, final Template viewer, final Template studyTarget, final Template seriesTarget,
+                               final Template bundleViewer, final Template bundleTarget) {
+        this.version = version;
+        this.viewer = viewer;
+        this.studyTarget = studyTarget;
+        this.seriesTarget = seriesTarget;
+        this.bundleViewer = bundleViewer;
+        this.bundleTarget = bundleTarget;
+    }
+
+    public static LaunchUrlTemplates compile(final long version, final String viewerEntryPoint, final String dicomwebBasePath) {
+        String entryPoint = viewerEntryPoint == null ? "" : viewerEntryPoint.trim();
+        if (!entryPoint.startsWith("http://") && !entryPoint.startsWith("https://")) {
+            entryPoint = Placeholder.BASE_URL.token + (entryPoint.isEmpty() || entryPoint.startsWith("/") ? entryPoint : "/" + entryPoint);
+        }
+        final String separator = entryPoint.indexOf('?') >= 0 ? "&" : "?";
+        final String bundleViewer = entryPoint + separator + "names=%5Bseries.zip%5D&urls=%5B" + Placeholder.BUNDLE.token + "%5D";
+        if (!entryPoint.contains(Placeholder.DICOMWEB.token)) {
+            entryPoint += separator + "dicomweb=" + Placeholder.DICOMWEB.token;
+        }
+        final String studyTarget = Placeholder.PATH_PREFIX.token + (dicomwebBasePath == null ? "" : dicomwebBasePath)
+                                   + "/" + Placeholder.PROJECT.token + "/studies/" + Placeholder.STUDY.token;
+        final String bundleTarget = Placeholder.BASE_URL.token + BUNDLE_PATH + "/" + Placeholder.PROJECT.token
+                                    + "/sessions/" + Placeholder.SESSION.token + "/series/" + Placeholder.SERIES.token;
+        return new LaunchUrlTemplates(version, Template.parse(entryPoint), Template.parse(studyTarget),
+                Template.parse(studyTarget + "/series/" + Placeholder.SERIES.token), Template.parse(bundleViewer), Template.parse(bundleTarget));
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Binds the templates to the externally visible base URL and path prefix of one request.
+     */
+    public Renderer bind(final String baseUrl, final String pathPrefix) {
+        return new Renderer(baseUrl, pathPrefix);
+    }
+
+    public final class Renderer {
+        private final String baseUrl;
+        private final String pathPrefix;
+
+        private Renderer(final String baseUrl, final String pathPrefix) {
+            this.baseUrl = baseUrl;
+            this.pathPrefix = pathPrefix;
+        }
+
+        /**
+         * Renders the DICOMweb URL of the given study, relative to the server root.
+         */
+        public String dicomwebStudyUrl(final String projectId, final String studyInstanceUid) {
+            final Buffers buffers = BUFFERS.get().reset(baseUrl, pathPrefix, projectId, null, studyInstanceUid, null);
+            studyTarget.render(buffers.output, buffers.values, false);
+            return buffers.output.toString();
+        }
+
+        /**
+         * Renders the URL that opens the given study, or the given series when <code>seriesInstanceUid</code>
+         * isn't null, in VolView. Null values are rendered as their placeholder tokens, which lets
+         * clients fill in values that are only known to them, e.g. series from a QIDO query.
+         */
+        public String launchUrl(final String projectId, final String sessionId, final String studyInstanceUid, final String seriesInstanceUid) {
+            return launchUrl(projectId, sessionId, studyInstanceUid, seriesInstanceUid, seriesInstanceUid != null);
+        }
+
+        /**
+         * Renders the study launch URL with <code>{study}</code> left as the encoded token
+         * <code>%7Bstudy%7D</code> for the client to fill in.
+         */
+        public String studyLaunchUrlTemplate(final String projectId) {
+            return launchUrl(projectId, null, null, null, false);
+        }
+
+        /**
+         * Renders the series launch URL with <code>{study}</code> and <code>{series}</code> left as the
+         * encoded tokens <code>%7Bstudy%7D</code> and <code>%7Bseries%7D</code> for the client to fill in.
+         */
+        public String seriesLaunchUrlTemplate(final String projectId) {
+            return launchUrl(projectId, null, null, null, true);
+        }
+
+        /**
+         * Renders the URL that opens the series in VolView from its zip bundle. Null values are rendered
+         * as encoded placeholder tokens like <code>%7Bseries%7D</code>. The bundle URL is itself a
+         * parameter value, so values filled in for tokens inside it must be encoded twice.
+         */
+        public String bundleLaunchUrl(final String projectId, final String sessionId, final String studyInstanceUid, final String seriesInstanceUid) {
+            final Buffers buffers = BUFFERS.get().reset(baseUrl, pathPrefix, projectId, sessionId, studyInstanceUid, seriesInstanceUid);
+            studyTarget.render(buffers.target, buffers.values, false);
+            bundleTarget.render(buffers.bundle, buffers.values, false);
+            buffers.values[Placeholder.DICOMWEB.ordinal()] = buffers.target;
+            buffers.values[Placeholder.BUNDLE.ordinal()] = buffers.bundle;
+            bundleViewer.render(buffers.output, buffers.values, true);
+            return buffers.output.toString();
+        }
+
+        private String launchUrl(final String projectId, final String sessionId, final String studyInstanceUid, final String seriesInstanceUid, final boolean series) {
+            final Buffers buffers = BUFFERS.get().reset(baseUrl, pathPrefix, projectId, sessionId, studyInstanceUid, seriesInstanceUid);
+            // Missing values stay raw in the DICOMweb target so they come out encoded once, like the
+            // tokens rendered directly into the viewer URL.
+            (series ? seriesTarget : studyTarget).render(buffers.target, buffers.values, false);
+            buffers.values[Placeholder.DICOMWEB.ordinal()] = buffers.target;
+            viewer.render(buffers.output, buffers.values, true);
+            return buffers.output.toString();
+        }
+    }
+
+    static void appendEncoded(final StringBuilder output, final CharSequence value) {
+        final int length = value.length();
+        for (int index = 0; index < length; index++) {
+            final char character = value.charAt(index);
+            if (isUnreserved(character)) {
+                output.append(character);
+            } else if (character < 0x80) {
+                appendByte(output, character);
+            } else if (character < 0x800) {
+                appendByte(output, 0xC0 | (character >> 6));
+                appendByte(output, 0x80 | (character & 0x3F));
+            } else if (Character.isHighSurrogate(character) && index + 1 < length && Character.isLowSurrogate(value.charAt(index + 1))) {
+                final int codePoint = Character.toCodePoint(character, value.charAt(++index));
+                appendByte(output, 0xF0 | (codePoint >> 18));
+                appendByte(output, 0x80 | ((codePoint >> 12) & 0x3F));
+                appendByte(output, 0x80 | ((codePoint >> 6) & 0x3F));
+                appendByte(output, 0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(character)) {
+                // Unpaired surrogates can't be encoded as UTF-8, so emit U+FFFD instead.
+                output.append("%EF%BF%BD");
+            } else {
+                appendByte(output, 0xE0 | (character >> 12));
+                appendByte(output, 0x80 | ((character >> 6) & 0x3F));
+                appendByte(output, 0x80 | (character & 0x3F));
+            }
+        }
+    }
+
+    private static boolean isUnreserved(final char character) {
+        return (character >= 'a' && character <= 'z') || (character >= 'A' && character <= 'Z') || (character >= '0' && character <= '9')
+               || character == '-' || character == '_' || character == '.' || character == '!' || character == '~'
+               || character == '*' || character == '\'' || character == '(' || character == ')';
+    }
+
+    private static void appendByte(final StringBuilder output, final int value) {
+        output.append('%').append(HEX[(value >> 4) & 0xF]).append(HEX[value & 0xF]);
+    }
+
+    static final class Template {
+        // Each segment is either a literal String or a Placeholder.
+        private final Object[] segments;
+
+        private Template(final Object[] segments) {
+            this.segments = segments;
+        }
+
+        static Template parse(final String pattern) {
+            final List<Object> segments = new ArrayList<>();
+            int literalStart = 0;
+            int index = pattern.indexOf('{');
+            while (index >= 0) {
+                final Placeholder placeholder = placeholderAt(pattern, index);
+                if (placeholder == null) {
+                    index = pattern.indexOf('{', index + 1);
+                    continue;
+                }
+                if (index > literalStart) {
+                    segments.add(pattern.substring(literalStart, index));
+                }
+                segments.add(placeholder);
+                literalStart = index + placeholder.token.length();
+                index = pattern.indexOf('{', literalStart);
+            }
+            if (literalStart < pattern.length()) {
+                segments.add(pattern.substring(literalStart));
+            }
+            return new Template(segments.toArray());
+        }
+
+        void render(final StringBuilder output, final CharSequence[] values, final boolean encodeMissing) {
+            output.setLength(0);
+            for (final Object segment : segments) {
+                if (segment instanceof String) {
+                    output.append((String) segment);
+                    continue;
+                }
+                final Placeholder placeholder = (Placeholder) segment;
+                final CharSequence value = values[placeholder.ordinal()];
+                if (value == null) {
+                    if (placeholder.encoded && encodeMissing) {
+                        appendEncoded(output, placeholder.token);
+                    } else {
+                        output.append(placeholder.token);
+                    }
+                } else if (placeholder.encoded) {
+                    appendEncoded(output, value);
+                } else {
+                    output.append(value);
+                }
+            }
+        }
+
+        private static Placeholder placeholderAt(final String pattern, final int index) {
+            for (final Placeholder placeholder : Placeholder.values()) {
+                if (pattern.startsWith(placeholder.token, index)) {
+                    return placeholder;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final class Buffers {
+        private final StringBuilder target = new StringBuilder(256);
+        private final StringBuilder bundle = new StringBuilder(256);
+        private final StringBuilder output = new StringBuilder(512);
+        private final CharSequence[] values = new CharSequence[Placeholder.values().length];
+
+        private Buffers reset(final String baseUrl, final String pathPrefix, final String projectId, final String sessionId,
+                              final String studyInstanceUid, final String seriesInstanceUid) {
+            values[Placeholder.BASE_URL.ordinal()] = baseUrl;
+            values[Placeholder.PATH_PREFIX.ordinal()] = pathPrefix;
+            values[Placeholder.DICOMWEB.ordinal()] = null;
+            values[Placeholder.PROJECT.ordinal()] = projectId;
+            values[Placeholder.STUDY.ordinal()] = studyInstanceUid;
+            values[Placeholder.SERIES.ordinal()] = seriesInstanceUid;
+            values[Placeholder.SESSION.ordinal()] = sessionId;
+            values[Placeholder.BUNDLE.ordinal()] = null;
+            return this;
+        }
+    }
+}
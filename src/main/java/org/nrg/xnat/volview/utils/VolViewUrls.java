@@ -0,0 +1,181 @@
+package org.nrg.xnat.volview.utils;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Builds externally visible URLs for VolView resources, honoring the <code>X-Forwarded-*</code>
+ * headers set by reverse proxies in front of XNAT.
+ */
+public final class VolViewUrls {
+    private VolViewUrls() {
+    }
+
+    public static String buildBaseUrl(final HttpServletRequest request) {
+        String scheme = firstForwardedValue(request, "X-Forwarded-Proto");
+        if (scheme == null || scheme.isEmpty()) {
+            scheme = request.getScheme();
+        }
+
+        String host = request.getServerName();
+        int port = request.getServerPort();
+
+        final String forwardedHost = firstForwardedValue(request, "X-Forwarded-Host");
+        if (forwardedHost != null && !forwardedHost.isEmpty()) {
+            final HostPort hostPort = parseHostPort(forwardedHost);
+            if (hostPort.host != null && !hostPort.host.isEmpty()) {
+                host = hostPort.host;
+            }
+            if (hostPort.port != null) {
+                port = hostPort.port;
+            }
+        }
+
+        final String forwardedPort = firstForwardedValue(request, "X-Forwarded-Port");
+        if (forwardedPort != null && !forwardedPort.isEmpty()) {
+            port = safeParseInt(forwardedPort, port);
+        }
+
+        final String contextPath = buildPathPrefix(request);
+
+        final boolean isDefaultPort = (scheme.equalsIgnoreCase("http") && port == 80)
+                                      || (scheme.equalsIgnoreCase("https") && port == 443);
+        final String portSection = (isDefaultPort || port <= 0) ? "" : ":" + port;
+
+        return scheme + "://" + host + portSection + contextPath;
+    }
+
+    public static String buildPathPrefix(final HttpServletRequest request) {
+        final String forwardedPrefix = firstForwardedValue(request, "X-Forwarded-Prefix");
+        final String contextPathRaw = request.getContextPath() == null ? "" : request.getContextPath();
+        return normalizePrefix(forwardedPrefix, contextPathRaw);
+    }
+
+    private static String firstForwardedValue(final HttpServletRequest request, final String headerName) {
+        final String raw = request.getHeader(headerName);
+        if (raw == null) {
+            return null;
+        }
+        final int commaIndex = raw.indexOf(',');
+        return (commaIndex >= 0 ? raw.substring(0, commaIndex) : raw).trim();
+    }
+
+    private static int safeParseInt(final String value, final int fallback) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    private static Integer safeParseIntNullable(final String value) {
+        try {
+            return Integer.valueOf(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    static String normalizePrefix(final String forwardedPrefix, final String contextPath) {
+        final StringBuilder builder = new StringBuilder();
+
+        if (forwardedPrefix != null && !forwardedPrefix.isEmpty()) {
+            String prefix = forwardedPrefix.trim();
+            if (!prefix.startsWith("/")) {
+                prefix = "/" + prefix;
+            }
+            if (prefix.endsWith("/")) {
+                prefix = prefix.substring(0, prefix.length() - 1);
+            }
+            builder.append(prefix);
+        }
+
+        if (contextPath != null && !contextPath.isEmpty() && !contextPath.equals("/")) {
+            if (builder.length() == 0) {
+                builder.append(contextPath);
+            } else {
+                builder.append(contextPath.startsWith("/") ? contextPath : "/" + contextPath);
+            }
+        }
+
+        return builder.length() == 0 ? "" : builder.toString();
+    }
+
+    public static String joinPaths(final String base, final String path) {
+        final String safeBase = base == null ? "" : base.trim();
+        final String safePath = path == null ? "" : path.trim();
+
+        if (safeBase.isEmpty()) {
+            if (safePath.startsWith("/")) {
+                return safePath;
+            }
+            return safePath.isEmpty() ? "" : "/" + safePath;
+        }
+
+        if (safePath.isEmpty()) {
+            return safeBase;
+        }
+
+        final boolean baseEndsWithSlash = safeBase.endsWith("/");
+        final boolean pathStartsWithSlash = safePath.startsWith("/");
+
+        if (baseEndsWithSlash && pathStartsWithSlash) {
+            return safeBase + safePath.substring(1);
+        }
+        if (!baseEndsWithSlash && !pathStartsWithSlash) {
+            return safeBase + "/" + safePath;
+        }
+        return safeBase + safePath;
+    }
+
+    static HostPort parseHostPort(final String value) {
+        String host = value;
+        Integer port = null;
+
+        if (value.startsWith("[")) {
+            final int closing = value.indexOf(']');
+            if (closing > 0) {
+                host = value.substring(0, closing + 1);
+                if (closing + 1 < value.length() && value.charAt(closing + 1) == ':') {
+                    final String portCandidate = value.substring(closing + 2);
+                    port = safeParseIntNullable(portCandidate);
+                }
+            }
+        } else {
+            final int colonIndex = value.lastIndexOf(':');
+            if (colonIndex > 0 && colonIndex == value.indexOf(':')) {
+                host = value.substring(0, colonIndex);
+                port = safeParseIntNullable(value.substring(colonIndex + 1));
+            }
+        }
+
+        if (port != null && port <= 0) {
+            port = null;
+        }
+
+        return new HostPort(host, port);
+    }
+
+    static final class HostPort {
+        private final String host;
+        private final Integer port;
+
+        private HostPort(final String host, final Integer port) {
+            this.host = host;
+            this.port = port;
+        }
+    }
+
+    public static String resolveUrl(final String path, final String baseUrl) {
+        if (path == null || path.trim().isEmpty()) {
+            return baseUrl;
+        }
+        final String trimmed = path.trim();
+        if (trimmed.startsWith("http://") || trimmed.startsWith("https://")) {
+            return trimmed;
+        }
+        if (trimmed.startsWith("/")) {
+            return baseUrl + trimmed;
+        }
+        return baseUrl + "/" + trimmed;
+    }
+}
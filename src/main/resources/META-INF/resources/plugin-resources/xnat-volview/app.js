@@ -1,12 +1,25 @@
+// Series of this many studies at the top of the list are loaded in the background.
+const SERIES_PREFETCH_STUDIES = 3;
+
 const state = {
     projectId: null,
     config: null,
+    configReady: null,
     studies: [],
+    studiesByUid: new Map(),
+    studyOptions: new Map(),
+    studiesAbort: null,
     seriesByStudy: new Map(),
+    seriesRequests: new Map(),
+    seriesPrefetchStarted: false,
     sessionId: null,
     preselectStudyUid: null,
     autoLaunch: false,
+    preselectionDone: false,
+    viewerLaunched: false,
     sessionContext: null,
+    prefetchedSessions: new Set(),
+    thumbnailObserver: null,
     queryParams: new URLSearchParams(window.location.search)
 };
 
@@ -16,6 +29,7 @@ const elements = {
     viewerEntryPoint: document.getElementById('viewer-entry-point'),
     studySelect: document.getElementById('study-select'),
     seriesSelect: document.getElementById('series-select'),
+    seriesThumbnails: document.getElementById('series-thumbnails'),
     openStudy: document.getElementById('open-study'),
     openSeries: document.getElementById('open-series'),
     status: document.getElementById('status'),
@@ -52,42 +66,74 @@ async function init() {
         state.autoLaunch = true;
     }
 
+    const inlineConfig = readInlineLaunchConfig(state.projectId);
+    bindControls();
+
+    // The config, the session context and the study list don't depend on each other, so they are all
+    // requested at once. Studies are rendered as they stream in, and the preselected study is selected
+    // as soon as its row and the config are both there.
+    state.configReady = inlineConfig && inlineConfig.config ? Promise.resolve(inlineConfig.config) : fetchConfig(state.projectId);
+    state.studiesAbort = 'AbortController' in window ? new AbortController() : null;
+    const studiesLoaded = loadStudies();
+    const sessionLoaded = resolveSessionContext(inlineConfig);
+
     try {
-        state.config = await fetchConfig(state.projectId);
+        state.config = await state.configReady;
         elements.dicomwebRoot.textContent = state.config.dicomweb.root;
         elements.viewerEntryPoint.textContent = state.config.viewer.entryPoint;
+        elements.studySelect.disabled = !state.studies.length;
     } catch (error) {
         console.error(error);
+        if (state.studiesAbort) {
+            state.studiesAbort.abort();
+        }
         setStatus(`Failed to load VolView configuration: ${error.message}`, true);
         disableControls();
         return;
     }
+    applyPreselection();
 
-    if (state.sessionId) {
-        try {
-            await loadSessionContext(state.projectId, state.sessionId);
-        } catch (error) {
-            console.error(error);
-            setStatus(`Failed to resolve session metadata: ${error.message}`);
-        }
+    await Promise.all([sessionLoaded, studiesLoaded]);
+    if (state.preselectStudyUid && !state.preselectionDone) {
+        setStatus(`Study ${state.preselectStudyUid} is not available via the DICOMweb proxy.`, true);
     }
+    state.preselectStudyUid = null;
+    state.autoLaunch = false;
+}
 
+function bindControls() {
     elements.studySelect.addEventListener('change', async (event) => {
+        if (event.isTrusted) {
+            // A study picked by hand wins over a preselection that hasn't arrived yet.
+            state.preselectionDone = true;
+        }
         const studyUid = event.target.value;
         if (!studyUid) {
             elements.seriesSelect.innerHTML = `<option value="">Select a study first</option>`;
             elements.seriesSelect.disabled = true;
             elements.openStudy.disabled = true;
             elements.openSeries.disabled = true;
+            renderSeriesThumbnails(null, []);
             return;
         }
         elements.openStudy.disabled = false;
+        prefetchStudy(studyUid);
         await ensureSeriesLoaded(studyUid);
     });
 
     elements.seriesSelect.addEventListener('change', () => {
         const seriesUid = elements.seriesSelect.value;
         elements.openSeries.disabled = !seriesUid;
+        highlightSeriesThumbnail(seriesUid);
+    });
+
+    elements.seriesThumbnails.addEventListener('click', (event) => {
+        const card = event.target.closest('[data-series]');
+        if (!card) {
+            return;
+        }
+        elements.seriesSelect.value = card.dataset.series;
+        elements.seriesSelect.dispatchEvent(new Event('change'));
     });
 
     elements.openStudy.addEventListener('click', () => {
@@ -108,8 +154,6 @@ async function init() {
         const url = buildViewerUrl(studyUid, seriesUid);
         setViewerSource(url);
     });
-
-    await loadStudies();
 }
 
 function resolveProjectId() {
@@ -152,6 +196,20 @@ function buildApiUrl(path) {
     return path;
 }
 
+function readInlineLaunchConfig(projectId) {
+    const element = document.getElementById('volview-launch-config');
+    if (!element) {
+        return null;
+    }
+    try {
+        const launchConfig = JSON.parse(element.textContent);
+        return launchConfig && launchConfig.projectId === projectId ? launchConfig : null;
+    } catch (error) {
+        console.warn('Ignoring malformed inline VolView launch config', error);
+        return null;
+    }
+}
+
 async function fetchConfig(projectId) {
     const configUrl = buildApiUrl(`/xapi/volview/config/projects/${encodeURIComponent(projectId)}`);
     const response = await fetch(configUrl, {
@@ -180,29 +238,286 @@ async function fetchSessionConfig(projectId, sessionId) {
     return response.json();
 }
 
+async function resolveSessionContext(inlineConfig) {
+    if (!state.sessionId) {
+        return;
+    }
+    if (inlineConfig && inlineConfig.session && inlineConfig.session.sessionId === state.sessionId) {
+        applySessionContext(inlineConfig.session);
+        return;
+    }
+    try {
+        await loadSessionContext(state.projectId, state.sessionId);
+    } catch (error) {
+        console.error(error);
+        setStatus(`Failed to resolve session metadata: ${error.message}`);
+    }
+}
+
 async function loadSessionContext(projectId, sessionId) {
-    const info = await fetchSessionConfig(projectId, sessionId);
+    applySessionContext(await fetchSessionConfig(projectId, sessionId));
+}
+
+function applySessionContext(info) {
     state.sessionContext = info;
     if (info.studyInstanceUID) {
-        if (!state.preselectStudyUid) {
-            state.preselectStudyUid = info.studyInstanceUID;
-        }
-        state.autoLaunch = state.autoLaunch || Boolean(info.studyInstanceUID);
+        preselectSessionStudy(info.studyInstanceUID);
     } else {
         setStatus('Session metadata does not include a StudyInstanceUID. Please choose a study manually.');
     }
 }
 
+// The session's study is known from either the session config or the head of the study stream,
+// whichever arrives first. A study given in the URL takes precedence.
+function preselectSessionStudy(studyUid) {
+    if (state.preselectionDone || state.preselectStudyUid) {
+        return;
+    }
+    state.preselectStudyUid = studyUid;
+    state.autoLaunch = true;
+    applyPreselection();
+}
+
+function applyPreselection() {
+    const studyUid = state.preselectStudyUid;
+    if (!studyUid || state.preselectionDone || !state.config || !state.studyOptions.has(studyUid)) {
+        return;
+    }
+    state.preselectionDone = true;
+    setStudySelection(studyUid, state.autoLaunch);
+}
+
+// Asks the server to warm its DICOMweb metadata cache for the selected study before VolView opens it.
+// Each session is only requested once, and failures are ignored since the launch works without it.
+function prefetchStudy(studyUid) {
+    const study = state.studiesByUid.get(studyUid);
+    const sessionId = study && study.sessionId;
+    if (!sessionId || state.prefetchedSessions.has(sessionId)) {
+        return;
+    }
+    state.prefetchedSessions.add(sessionId);
+    const prefetchUrl = new URL(buildApiUrl(`/xapi/volview/config/projects/${encodeURIComponent(state.projectId)}/sessions/${encodeURIComponent(sessionId)}/prefetch`), window.location.origin);
+    if (window.csrfToken) {
+        prefetchUrl.searchParams.set('XNAT_CSRF', window.csrfToken);
+    }
+    fetch(prefetchUrl.toString(), {
+        method: 'POST',
+        credentials: 'include'
+    }).catch((error) => console.debug('Metadata prefetch request failed', error));
+}
+
 async function loadStudies() {
-    const listUrl = new URL(state.config.dicomweb.studies, window.location.origin);
+    setStatus('Loading studies…');
+
+    try {
+        await streamStudies(state.projectId, state.sessionId);
+    } catch (error) {
+        if (error.name === 'AbortError') {
+            return;
+        }
+        console.warn('Study stream unavailable, falling back to the paged study index', error);
+        try {
+            addStudies(await fetchStudyIndex(state.projectId));
+        } catch (indexError) {
+            console.warn('Study index unavailable, falling back to a DICOMweb study query', indexError);
+            try {
+                addStudies(await fetchStudiesFromQido());
+            } catch (qidoError) {
+                console.error(qidoError);
+            }
+        }
+    }
+
+    if (state.studies.length) {
+        if (!state.viewerLaunched) {
+            setStatus(`Loaded ${state.studies.length} studies.`);
+        }
+        prefetchLikelySeries();
+    } else {
+        elements.studySelect.innerHTML = `<option value="">No studies available</option>`;
+        setStatus('No DICOM studies were returned for this project.', true);
+        elements.studySelect.disabled = true;
+        elements.openStudy.disabled = true;
+    }
+}
+
+// Reads the plugin's newline-delimited study stream and renders each chunk of studies as it arrives.
+// With a session, its study and series come first, so it can be selected before the rest of a large
+// project has been read.
+async function streamStudies(projectId, sessionId) {
+    const streamUrl = new URL(buildApiUrl(`/xapi/volview/config/projects/${encodeURIComponent(projectId)}/studies/stream`), window.location.origin);
+    if (sessionId) {
+        streamUrl.searchParams.set('session', sessionId);
+    }
+    const response = await fetch(streamUrl.toString(), {
+        credentials: 'include',
+        headers: {
+            'Accept': 'application/x-ndjson'
+        },
+        signal: state.studiesAbort ? state.studiesAbort.signal : undefined
+    });
+    if (!response.ok) {
+        throw new Error(`Study stream request failed with status ${response.status}`);
+    }
+
+    let ended = false;
+    const handleLines = (lines) => {
+        const studies = [];
+        let sessionStudyUid = null;
+        for (const line of lines) {
+            if (!line.trim()) {
+                continue;
+            }
+            const record = JSON.parse(line);
+            if (record.type === 'study') {
+                studies.push(record);
+            } else if (record.type === 'series') {
+                state.seriesByStudy.set(record.studyInstanceUID, (record.series || []).map(toQidoSeries));
+                if (record.sessionId === state.sessionId) {
+                    sessionStudyUid = record.studyInstanceUID;
+                }
+            } else if (record.type === 'error') {
+                throw new Error(record.message);
+            } else if (record.type === 'end') {
+                ended = true;
+            }
+        }
+        addStudies(studies);
+        if (sessionStudyUid) {
+            preselectSessionStudy(sessionStudyUid);
+        }
+    };
+
+    if (!response.body || !window.TextDecoder) {
+        handleLines((await response.text()).split('\n'));
+    } else {
+        const reader = response.body.getReader();
+        const decoder = new TextDecoder();
+        let buffered = '';
+        for (;;) {
+            const { done, value } = await reader.read();
+            buffered += decoder.decode(value, { stream: !done });
+            const lines = buffered.split('\n');
+            buffered = done ? '' : lines.pop();
+            handleLines(lines);
+            if (done) {
+                break;
+            }
+        }
+    }
+    if (!ended) {
+        throw new Error('The study stream ended early');
+    }
+}
+
+// Adds studies to the list in the order given. The session's study arrives from the stream twice,
+// first with just its label and then from the index, and the second copy fills in the first.
+function addStudies(studies) {
+    const first = !state.studies.length;
+    const fragment = document.createDocumentFragment();
+    for (const entry of studies) {
+        const studyUid = entry.studyInstanceUID;
+        if (!studyUid) {
+            continue;
+        }
+        const existing = state.studiesByUid.get(studyUid);
+        if (existing && existing.sessionId === entry.sessionId) {
+            Object.assign(existing, entry);
+            delete existing.type;
+            state.studyOptions.get(studyUid).textContent = formatStudyLabel(existing);
+            continue;
+        }
+        const study = Object.assign({}, entry);
+        delete study.type;
+        state.studies.push(study);
+        if (!existing) {
+            state.studiesByUid.set(studyUid, study);
+        }
+        const option = document.createElement('option');
+        option.value = studyUid;
+        option.textContent = formatStudyLabel(study);
+        if (!existing) {
+            state.studyOptions.set(studyUid, option);
+        }
+        fragment.appendChild(option);
+    }
+    if (!fragment.childNodes.length) {
+        return;
+    }
+    if (first) {
+        elements.studySelect.innerHTML = `<option value="">Choose a study…</option>`;
+    }
+    elements.studySelect.appendChild(fragment);
+    if (state.config) {
+        elements.studySelect.disabled = false;
+    }
+    applyPreselection();
+    if (state.studies.length > SERIES_PREFETCH_STUDIES) {
+        prefetchLikelySeries();
+    }
+}
+
+// Loads the series of the first few studies in the list, the most recent ones by default, while the
+// browser is idle, so they show at once if the user picks one of them.
+async function prefetchLikelySeries() {
+    if (state.seriesPrefetchStarted) {
+        return;
+    }
+    state.seriesPrefetchStarted = true;
+    try {
+        await state.configReady;
+    } catch (error) {
+        return;
+    }
+    const schedule = window.requestIdleCallback || ((callback) => setTimeout(callback, 0));
+    schedule(() => {
+        const candidates = state.studies
+            .filter((study) => !state.seriesByStudy.has(study.studyInstanceUID))
+            .slice(0, SERIES_PREFETCH_STUDIES);
+        for (const study of candidates) {
+            fetchSeries(study.studyInstanceUID).catch((error) => console.debug('Series prefetch failed', error));
+        }
+    });
+}
+
+async function fetchStudyIndex(projectId) {
+    const studies = [];
+    let cursor = null;
+    do {
+        const indexUrl = new URL(buildApiUrl(`/xapi/volview/config/projects/${encodeURIComponent(projectId)}/studies`), window.location.origin);
+        indexUrl.searchParams.set('limit', '1000');
+        if (cursor) {
+            indexUrl.searchParams.set('cursor', cursor);
+        }
+        const response = await fetch(indexUrl.toString(), {
+            credentials: 'include',
+            headers: {
+                'Accept': 'application/json'
+            }
+        });
+        if (!response.ok) {
+            throw new Error(`Study index request failed with status ${response.status}`);
+        }
+        const page = await response.json();
+        for (const study of page.studies || []) {
+            if (study.studyInstanceUID) {
+                studies.push(study);
+            }
+        }
+        cursor = page.nextCursor;
+    } while (cursor);
+    return studies;
+}
+
+async function fetchStudiesFromQido() {
+    const config = await state.configReady;
+    const listUrl = new URL(config.dicomweb.studies, window.location.origin);
     listUrl.searchParams.set('limit', '200');
     listUrl.searchParams.append('includefield', '00080020'); // StudyDate
     listUrl.searchParams.append('includefield', '00081030'); // StudyDescription
     listUrl.searchParams.append('includefield', '00100010'); // PatientName
     listUrl.searchParams.append('includefield', '0020000D'); // StudyInstanceUID
 
-    setStatus('Loading studies…');
-
     const response = await fetch(listUrl.toString(), {
         credentials: 'include',
         headers: {
@@ -215,93 +530,105 @@ async function loadStudies() {
     }
 
     const data = await response.json();
-    state.studies = Array.isArray(data) ? data : [];
-    renderStudyOptions();
+    return (Array.isArray(data) ? data : [])
+        .map((study) => ({
+            studyInstanceUID: getDicomValue(study, '0020000D'),
+            studyDate: getDicomValue(study, '00080020'),
+            description: getDicomValue(study, '00081030'),
+            patientName: getDicomValue(study, '00100010')
+        }))
+        .filter((study) => study.studyInstanceUID);
+}
 
-    if (state.studies.length) {
-        setStatus(`Loaded ${state.studies.length} studies.`);
-        elements.studySelect.disabled = false;
-        elements.openStudy.disabled = false;
-    } else {
-        setStatus('No DICOM studies were returned for this project.', true);
-        elements.studySelect.disabled = true;
-        elements.openStudy.disabled = true;
+async function ensureSeriesLoaded(studyUid) {
+    const cached = state.seriesByStudy.has(studyUid);
+    if (!cached) {
+        setStatus('Loading series…');
     }
 
-    if (state.preselectStudyUid) {
-        const selected = setStudySelection(state.preselectStudyUid, state.autoLaunch);
-        if (!selected) {
-            setStatus(`Study ${state.preselectStudyUid} is not available via the DICOMweb proxy.`, true);
+    let series;
+    try {
+        series = await fetchSeries(studyUid);
+    } catch (error) {
+        if (elements.studySelect.value === studyUid) {
+            setStatus(error.message, true);
+            elements.seriesSelect.disabled = true;
+            elements.openSeries.disabled = true;
+            renderSeriesThumbnails(null, []);
         }
-        state.preselectStudyUid = null;
-        state.autoLaunch = false;
+        return;
+    }
+    // Another study may have been picked while this one's series were loading.
+    if (elements.studySelect.value !== studyUid) {
+        return;
+    }
+    renderSeriesOptions(series);
+    renderSeriesThumbnails(studyUid, series);
+    if (!cached) {
+        setStatus(`Loaded ${series.length} series.`);
     }
 }
 
-async function ensureSeriesLoaded(studyUid) {
+// Returns the study's series, sharing one QIDO request between background prefetching and selection.
+function fetchSeries(studyUid) {
     if (state.seriesByStudy.has(studyUid)) {
-        renderSeriesOptions(state.seriesByStudy.get(studyUid));
-        return;
+        return Promise.resolve(state.seriesByStudy.get(studyUid));
     }
+    let request = state.seriesRequests.get(studyUid);
+    if (!request) {
+        request = querySeries(studyUid)
+            .then((series) => {
+                state.seriesByStudy.set(studyUid, series);
+                return series;
+            })
+            .finally(() => state.seriesRequests.delete(studyUid));
+        state.seriesRequests.set(studyUid, request);
+    }
+    return request;
+}
 
-    const seriesTemplate = state.config.dicomweb.series.replace('{studyInstanceUID}', encodeURIComponent(studyUid));
+async function querySeries(studyUid) {
+    const config = await state.configReady;
+    const seriesTemplate = config.dicomweb.series.replace('{studyInstanceUID}', encodeURIComponent(studyUid));
     const listUrl = new URL(seriesTemplate, window.location.origin);
     listUrl.searchParams.set('limit', '400');
     listUrl.searchParams.append('includefield', '0008103E'); // SeriesDescription
     listUrl.searchParams.append('includefield', '0020000E'); // SeriesInstanceUID
 
-    setStatus('Loading series…');
-
     const response = await fetch(listUrl.toString(), {
         credentials: 'include',
         headers: {
             'Accept': 'application/dicom+json'
         }
     });
-
     if (!response.ok) {
-        setStatus(`Series query failed: HTTP ${response.status}`, true);
-        elements.seriesSelect.disabled = true;
-        elements.openSeries.disabled = true;
-        return;
+        throw new Error(`Series query failed: HTTP ${response.status}`);
     }
-
     const data = await response.json();
-    const series = Array.isArray(data) ? data : [];
-    state.seriesByStudy.set(studyUid, series);
-    renderSeriesOptions(series);
-    setStatus(`Loaded ${series.length} series.`);
+    return Array.isArray(data) ? data : [];
 }
 
-function renderStudyOptions(studies = state.studies) {
-    const options = [];
-
-    if (!studies.length) {
-        options.push(`<option value="">No studies available</option>`);
-    } else {
-        options.push(`<option value="">Choose a study…</option>`);
+// Series from the study stream come from the session's catalogs; they're given the shape of QIDO
+// results so both render the same way.
+function toQidoSeries(entry) {
+    const series = {
+        '0020000E': { vr: 'UI', Value: [entry.seriesInstanceUID] }
+    };
+    if (entry.description) {
+        series['0008103E'] = { vr: 'LO', Value: [entry.description] };
     }
+    return series;
+}
 
-    for (const study of studies) {
-        const studyUid = getDicomValue(study, '0020000D');
-        if (!studyUid) {
-            continue;
-        }
-        const studyDescription = getDicomValue(study, '00081030') || 'Unnamed study';
-        const studyDate = getDicomValue(study, '00080020');
-        const patientName = getDicomValue(study, '00100010');
-        const labelParts = [];
-        labelParts.push(studyDescription);
-        if (studyDate) {
-            labelParts.push(formatDicomDate(studyDate));
-        }
-        if (patientName) {
-            labelParts.push(patientName);
-        }
-        options.push(`<option value="${studyUid}">${escapeHtml(labelParts.join(' · '))}</option>`);
+function formatStudyLabel(study) {
+    const labelParts = [study.description || study.label || 'Unnamed study'];
+    if (study.studyDate) {
+        labelParts.push(formatDicomDate(study.studyDate));
     }
-
-    elements.studySelect.innerHTML = options.join('');
+    if (study.patientName) {
+        labelParts.push(study.patientName);
+    }
+    return labelParts.join(' · ');
 }
 
 function renderSeriesOptions(series) {
@@ -326,9 +653,70 @@ function renderSeriesOptions(series) {
     elements.openSeries.disabled = true;
 }
 
+// Shows a card per series with a server-rendered thumbnail, so the right series can be picked before
+// launching. Thumbnails need the study's session, so studies found through QIDO get none. Images are
+// only requested once their card scrolls into view.
+function renderSeriesThumbnails(studyUid, series) {
+    if (state.thumbnailObserver) {
+        state.thumbnailObserver.disconnect();
+    }
+    const container = elements.seriesThumbnails;
+    const study = studyUid ? state.studiesByUid.get(studyUid) : null;
+    const sessionId = study && study.sessionId;
+    if (!sessionId || !series || !series.length) {
+        container.innerHTML = '';
+        container.hidden = true;
+        return;
+    }
+
+    const cards = [];
+    for (const entry of series) {
+        const seriesUid = getDicomValue(entry, '0020000E');
+        if (!seriesUid) {
+            continue;
+        }
+        const description = getDicomValue(entry, '0008103E') || 'Unnamed series';
+        const thumbnailUrl = buildApiUrl(`/xapi/volview/config/projects/${encodeURIComponent(state.projectId)}/sessions/${encodeURIComponent(sessionId)}/series/${encodeURIComponent(seriesUid)}/thumbnail`);
+        cards.push(`<button type="button" class="series-card" data-series="${escapeHtml(seriesUid)}" title="${escapeHtml(description)}">`
+            + `<img alt="" data-src="${escapeHtml(thumbnailUrl)}">`
+            + `<span>${escapeHtml(description)}</span></button>`);
+    }
+    container.innerHTML = cards.join('');
+    container.hidden = !cards.length;
+    highlightSeriesThumbnail(elements.seriesSelect.value);
+
+    for (const image of container.querySelectorAll('img[data-src]')) {
+        image.addEventListener('error', () => image.classList.add('unavailable'), { once: true });
+        if ('IntersectionObserver' in window) {
+            getThumbnailObserver().observe(image);
+        } else {
+            image.src = image.dataset.src;
+        }
+    }
+}
+
+function getThumbnailObserver() {
+    if (!state.thumbnailObserver) {
+        state.thumbnailObserver = new IntersectionObserver((entries, observer) => {
+            for (const entry of entries) {
+                if (entry.isIntersecting) {
+                    observer.unobserve(entry.target);
+                    entry.target.src = entry.target.dataset.src;
+                }
+            }
+        }, { root: elements.seriesThumbnails, rootMargin: '200px' });
+    }
+    return state.thumbnailObserver;
+}
+
+function highlightSeriesThumbnail(seriesUid) {
+    for (const card of elements.seriesThumbnails.querySelectorAll('[data-series]')) {
+        card.classList.toggle('selected', card.dataset.series === seriesUid);
+    }
+}
+
 function setStudySelection(studyUid, autoLaunch = false) {
-    const option = Array.from(elements.studySelect.options).find((opt) => opt.value === studyUid);
-    if (!option) {
+    if (!state.studyOptions.has(studyUid)) {
         return false;
     }
     elements.studySelect.value = studyUid;
@@ -342,24 +730,42 @@ function setStudySelection(studyUid, autoLaunch = false) {
 }
 
 function buildViewerUrl(studyUid, seriesUid) {
-    const dicomwebRoot = state.config.dicomweb.root;
-    let target = `${dicomwebRoot}/studies/${encodeURIComponent(studyUid)}`;
-    if (seriesUid) {
-        target += `/series/${encodeURIComponent(seriesUid)}`;
+    if (!seriesUid) {
+        const study = state.studiesByUid.get(studyUid);
+        if (study && study.launchUrl) {
+            return study.launchUrl;
+        }
     }
+    // The server renders these with the {study} and {series} tokens percent-encoded in place.
+    const bundleUrl = seriesUid ? buildBundleViewerUrl(studyUid, seriesUid) : null;
+    if (bundleUrl) {
+        return bundleUrl;
+    }
+    const template = seriesUid ? state.config.viewer.seriesLaunchUrl : state.config.viewer.studyLaunchUrl;
+    return template
+        .replaceAll('%7Bstudy%7D', encodeURIComponent(studyUid))
+        .replaceAll('%7Bseries%7D', encodeURIComponent(seriesUid || ''));
+}
 
-    const entryPoint = state.config.viewer.entryPoint;
-    const encodedTarget = encodeURIComponent(target);
-
-    if (entryPoint.includes('{dicomweb}')) {
-        return entryPoint.replace('{dicomweb}', encodedTarget);
+// Opens a series from its zip bundle in one request instead of one WADO-RS request per instance.
+// The tokens inside the bundle URL sit in a URL that is itself a parameter value, so the values
+// filled in for them are encoded twice.
+function buildBundleViewerUrl(studyUid, seriesUid) {
+    const template = state.config.viewer.seriesBundleLaunchUrl;
+    const study = state.studiesByUid.get(studyUid);
+    const sessionId = study && study.sessionId;
+    if (!template || !sessionId) {
+        return null;
     }
-    const separator = entryPoint.includes('?') ? '&' : '?';
-    return `${entryPoint}${separator}dicomweb=${encodedTarget}`;
+    return template
+        .replaceAll('%7Bsession%7D', encodeURIComponent(encodeURIComponent(sessionId)))
+        .replaceAll('%7Bseries%7D', encodeURIComponent(encodeURIComponent(seriesUid)))
+        .replaceAll('%7Bstudy%7D', encodeURIComponent(studyUid));
 }
 
 function setViewerSource(url) {
     elements.viewerFrame.src = url;
+    state.viewerLaunched = true;
     setStatus(`Launching VolView…`);
 }
 
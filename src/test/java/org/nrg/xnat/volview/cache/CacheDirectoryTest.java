@@ -0,0 +1,44 @@
+package org.nrg.xnat.volview.cache;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CacheDirectoryTest {
+    @TempDir
+    Path configured;
+
+    @Test
+    void clearsOnlyItsOwnMarkedSubdirectory() throws Exception {
+        final Path sibling = Files.write(configured.resolve("keep.txt"), new byte[]{1});
+        final Path directory = CacheDirectory.resolve(configured);
+        CacheDirectory.prepare(directory);
+        assertTrue(Files.isRegularFile(directory.resolve(CacheDirectory.MARKER)));
+
+        final Path cached = Files.write(directory.resolve("entry"), new byte[]{2});
+        Files.createDirectories(directory.resolve("nested"));
+        CacheDirectory.prepare(directory);
+
+        assertFalse(Files.exists(cached));
+        assertFalse(Files.exists(directory.resolve("nested")));
+        assertTrue(Files.isRegularFile(directory.resolve(CacheDirectory.MARKER)));
+        assertTrue(Files.exists(sibling));
+    }
+
+    @Test
+    void leavesAnUnmarkedDirectoryAlone() throws Exception {
+        final Path directory = CacheDirectory.resolve(configured);
+        final Path foreign = Files.write(Files.createDirectories(directory).resolve("foreign.txt"), new byte[]{3});
+
+        CacheDirectory.prepare(directory);
+        CacheDirectory.prepare(directory);
+
+        assertTrue(Files.exists(foreign));
+        assertFalse(Files.exists(directory.resolve(CacheDirectory.MARKER)));
+    }
+}
@@ -0,0 +1,129 @@
+package org.nrg.xnat.volview.cache;
+
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Runs two buses against one table in an embedded PostgreSQL server, the way two nodes share the XNAT
+ * database.
+ */
+class DatabaseCacheInvalidationBusTest {
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private static EmbeddedPostgres postgres;
+    private static DataSource dataSource;
+
+    private final BlockingQueue<CacheInvalidation> firstReceived = new LinkedBlockingQueue<>();
+    private final BlockingQueue<CacheInvalidation> secondReceived = new LinkedBlockingQueue<>();
+    private DatabaseCacheInvalidationBus first;
+    private DatabaseCacheInvalidationBus second;
+
+    @BeforeAll
+    static void startDatabase() throws Exception {
+        postgres = EmbeddedPostgres.start();
+        dataSource = postgres.getPostgresDatabase();
+    }
+
+    @AfterAll
+    static void stopDatabase() throws Exception {
+        if (postgres != null) {
+            postgres.close();
+        }
+    }
+
+    @BeforeEach
+    void setUp() throws Exception {
+        try (final Connection connection = dataSource.getConnection(); final Statement statement = connection.createStatement()) {
+            statement.execute("DROP TABLE IF EXISTS volview_cache_invalidation");
+        }
+        first = start("first", firstReceived);
+        second = start("second", secondReceived);
+    }
+
+    @AfterEach
+    void tearDown() {
+        first.stop();
+        second.stop();
+    }
+
+    @Test
+    void deliversInvalidationsToTheOtherNodeOnce() throws Exception {
+        first.publish(changed("XNAT_E1"));
+        assertEquals(changed("XNAT_E1"), firstReceived.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(changed("XNAT_E1"), secondReceived.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        second.publish(CacheInvalidation.settings());
+        assertEquals(CacheInvalidation.settings(), secondReceived.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(CacheInvalidation.settings(), firstReceived.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        // Once the second node has read this row it has also read past its own, without applying it again.
+        first.publish(changed("XNAT_E2"));
+        assertEquals(changed("XNAT_E2"), firstReceived.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(changed("XNAT_E2"), secondReceived.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertNull(firstReceived.poll());
+        assertNull(secondReceived.poll());
+    }
+
+    @Test
+    void appliesRowsThatCommitAfterAHigherVersion() throws Exception {
+        try (final Connection slow = dataSource.getConnection()) {
+            slow.setAutoCommit(false);
+            try (final PreparedStatement insert = slow.prepareStatement("INSERT INTO volview_cache_invalidation (node, scope, item_key) VALUES ('third', ?, ?)")) {
+                insert.setString(1, CacheInvalidation.Scope.SESSION_REMOVED.name());
+                insert.setString(2, "XNAT_E1");
+                insert.executeUpdate();
+            }
+            // The slow node took the lower version but hasn't committed, so the other node skips past it.
+            first.publish(changed("XNAT_E2"));
+            assertEquals(changed("XNAT_E2"), secondReceived.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            slow.commit();
+        }
+        final CacheInvalidation removed = new CacheInvalidation(CacheInvalidation.Scope.SESSION_REMOVED, "XNAT_E1");
+        assertEquals(removed, secondReceived.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(changed("XNAT_E2"), firstReceived.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(removed, firstReceived.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void startsFromTheLatestVersion() throws Exception {
+        first.publish(changed("XNAT_E1"));
+        assertEquals(changed("XNAT_E1"), secondReceived.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        final BlockingQueue<CacheInvalidation> lateReceived = new LinkedBlockingQueue<>();
+        final DatabaseCacheInvalidationBus late = start("late", lateReceived);
+        try {
+            first.publish(changed("XNAT_E2"));
+            assertEquals(changed("XNAT_E2"), lateReceived.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            assertNull(lateReceived.poll());
+        } finally {
+            late.stop();
+        }
+    }
+
+    private static DatabaseCacheInvalidationBus start(final String nodeId, final BlockingQueue<CacheInvalidation> received) {
+        final DatabaseCacheInvalidationBus bus = new DatabaseCacheInvalidationBus(new NamedParameterJdbcTemplate(dataSource), nodeId, 1);
+        bus.subscribe(received::add);
+        bus.start();
+        return bus;
+    }
+
+    private static CacheInvalidation changed(final String sessionId) {
+        return new CacheInvalidation(CacheInvalidation.Scope.SESSION_CHANGED, sessionId);
+    }
+}
@@ -0,0 +1,58 @@
+package org.nrg.xnat.volview.cache;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DicomwebMetadataCacheTest {
+    private static final String KEY = "P1/studies/1.2.3/series/4.5/metadata";
+
+    @Test
+    void countsPrefetchesEvictedForSpaceAsWasted() throws Exception {
+        final DicomwebMetadataCache cache = new DicomwebMetadataCache(1, 10);
+        assertTrue(cache.prefetch(KEY, () -> metadata(2 * 1024 * 1024)));
+
+        assertEquals(0L, cache.getStatistics().get("size"));
+        assertEquals(1L, cache.getStatistics().get("wastedPrefetches"));
+    }
+
+    @Test
+    void doesNotCountInvalidatedPrefetchesAsWasted() throws Exception {
+        final DicomwebMetadataCache cache = new DicomwebMetadataCache(1, 10);
+        cache.prefetch(KEY, () -> metadata(16));
+        cache.invalidateStudy("P1/studies/1.2.3");
+        cache.prefetch(KEY, () -> metadata(16));
+        cache.invalidateAll();
+
+        assertEquals(0L, cache.getStatistics().get("size"));
+        assertEquals(0L, cache.getStatistics().get("wastedPrefetches"));
+    }
+
+    @Test
+    void doesNotCountServedPrefetchesAsWasted() throws Exception {
+        final DicomwebMetadataCache cache = new DicomwebMetadataCache(1, 10);
+        cache.prefetch(KEY, () -> metadata(16));
+        cache.get(KEY, () -> metadata(16));
+        cache.invalidateAll();
+
+        assertEquals(1L, cache.getStatistics().get("prefetchHits"));
+        assertEquals(0L, cache.getStatistics().get("wastedPrefetches"));
+    }
+
+    @Test
+    void dropsOnlyTheRemovedProject() throws Exception {
+        final DicomwebMetadataCache cache = new DicomwebMetadataCache(1, 10);
+        cache.prefetch(KEY, () -> metadata(16));
+        cache.prefetch("P10/studies/1.2.3/series/4.5/metadata", () -> metadata(16));
+        cache.invalidateProject("P1");
+
+        assertEquals(1L, cache.getStatistics().get("size"));
+        assertFalse(cache.prefetch("P10/studies/1.2.3/series/4.5/metadata", () -> metadata(16)));
+    }
+
+    private static DicomwebMetadataCache.Metadata metadata(final int size) {
+        return new DicomwebMetadataCache.Metadata(new byte[size], "application/dicom+json", true);
+    }
+}
@@ -0,0 +1,135 @@
+package org.nrg.xnat.volview.cache;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DiskLruStoreTest {
+    @TempDir
+    Path configured;
+
+    private DiskLruStore<TestFile> store;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        store = new DiskLruStore<>("test file", CacheDirectory.resolve(configured), 100);
+        store.prepare();
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedEntriesOverTheLimit() throws Exception {
+        final TestFile first = put("a", null, "a", 40);
+        final TestFile second = put("b", null, "b", 40);
+        store.get("a");
+        final TestFile third = put("c", null, "c", 40);
+
+        assertSame(first, store.get("a"));
+        assertNull(store.get("b"));
+        assertSame(third, store.get("c"));
+        assertFalse(Files.exists(second.file));
+        assertEquals(1L, store.getEvictions());
+        assertEquals(80L, getUsage().get("bytes"));
+    }
+
+    @Test
+    void keepsAReplacedEntrysFileWhenTheNewEntryReusesIt() throws Exception {
+        put("a", null, "a.png", 10);
+        final TestFile replaced = put("a", null, "a.png", 20);
+
+        assertSame(replaced, store.get("a"));
+        assertTrue(Files.exists(replaced.file));
+        assertEquals(20L, getUsage().get("bytes"));
+    }
+
+    @Test
+    void deletesAReplacedEntrysOwnFile() throws Exception {
+        final TestFile previous = put("a", null, "a-1", 10);
+        final TestFile replaced = put("a", null, "a-2", 20);
+
+        assertFalse(Files.exists(previous.file));
+        assertTrue(Files.exists(replaced.file));
+        assertEquals(1, getUsage().get("size"));
+    }
+
+    @Test
+    void removesGroups() throws Exception {
+        final TestFile first = put("a", "S1", "a", 10);
+        put("b", "S1", "b", 10);
+        final TestFile other = put("c", "S2", "c", 10);
+        // Moving a key to another group takes it out of the old one.
+        put("b", "S2", "b", 10);
+
+        assertEquals(1, store.removeGroup("S1"));
+        assertFalse(Files.exists(first.file));
+        assertEquals(0, store.removeGroup("S1"));
+        assertSame(other, store.get("c"));
+        assertEquals(2, store.removeGroup("S2"));
+        assertEquals(0L, getUsage().get("bytes"));
+    }
+
+    @Test
+    void removesOnlyTheExpectedEntry() throws Exception {
+        final TestFile stale = put("a", null, "a-1", 10);
+        final TestFile current = put("a", null, "a-2", 10);
+
+        store.remove("a", stale);
+        assertSame(current, store.get("a"));
+        store.remove("a", current);
+        assertNull(store.get("a"));
+        assertFalse(Files.exists(current.file));
+    }
+
+    @Test
+    void clearsEverything() throws Exception {
+        final TestFile first = put("a", "S1", "a", 10);
+        put("b", null, "b", 10);
+
+        assertEquals(2, store.clear());
+        assertFalse(Files.exists(first.file));
+        assertEquals(0, getUsage().get("size"));
+        assertEquals(0, store.removeGroup("S1"));
+    }
+
+    private TestFile put(final String key, final String group, final String name, final int size) throws Exception {
+        final TestFile entry = new TestFile(Files.write(store.getDirectory().resolve(name), new byte[size]), size);
+        store.put(key, group, entry);
+        return entry;
+    }
+
+    private Map<String, Object> getUsage() {
+        final Map<String, Object> usage = new LinkedHashMap<>();
+        store.addUsage(usage);
+        return usage;
+    }
+
+    private static final class TestFile implements DiskLruStore.StoredFile {
+        private final Path file;
+        private final long size;
+
+        private TestFile(final Path file, final long size) {
+            this.file = file;
+            this.size = size;
+        }
+
+        @Override
+        public Path getFile() {
+            return file;
+        }
+
+        @Override
+        public long getSize() {
+            return size;
+        }
+    }
+}
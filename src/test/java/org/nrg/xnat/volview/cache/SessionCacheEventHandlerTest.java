@@ -0,0 +1,98 @@
+package org.nrg.xnat.volview.cache;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.nrg.xft.event.XftItemEventI;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.contains;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class SessionCacheEventHandlerTest {
+    private NamedParameterJdbcTemplate template;
+    private SessionDescriptorCache sessionDescriptors;
+    private StudyIndexCache studyIndexes;
+    private DicomwebDiskCache dicomwebCache;
+    private SessionManifestCache manifests;
+    private DicomwebMetadataCache metadata;
+    private SeriesThumbnailCache thumbnails;
+    private final List<CacheInvalidation> published = new ArrayList<>();
+    private SessionCacheEventHandler handler;
+
+    @BeforeEach
+    void setUp() {
+        template = mock(NamedParameterJdbcTemplate.class);
+        sessionDescriptors = mock(SessionDescriptorCache.class);
+        studyIndexes = mock(StudyIndexCache.class);
+        dicomwebCache = mock(DicomwebDiskCache.class);
+        manifests = mock(SessionManifestCache.class);
+        metadata = mock(DicomwebMetadataCache.class);
+        thumbnails = mock(SeriesThumbnailCache.class);
+        final CacheInvalidationBus bus = new LocalCacheInvalidationBus();
+        bus.subscribe(published::add);
+        handler = new SessionCacheEventHandler(template, sessionDescriptors, studyIndexes, dicomwebCache, manifests, metadata, thumbnails, bus);
+    }
+
+    @Test
+    void publishesScanAndResourceEventsAsSessionChanges() {
+        when(template.queryForList(contains("FROM xnat_imagescandata WHERE"), any(SqlParameterSource.class), eq(String.class))).thenReturn(Collections.singletonList("E1"));
+        when(template.queryForList(contains("FROM xnat_abstractresource resource"), any(SqlParameterSource.class), eq(String.class))).thenReturn(Arrays.asList("E2", "E2"));
+
+        handler.handleEventImpl(event("xnat:mrScanData", XftItemEventI.UPDATE, "7"));
+        handler.handleEventImpl(event("xnat:resourceCatalog", XftItemEventI.DELETE, "12"));
+        handler.handleEventImpl(event("xnat:mrScanData", XftItemEventI.UPDATE, "not-a-number"));
+        handler.handleEventImpl(event("xnat:subjectData", XftItemEventI.UPDATE, "XNAT_S1"));
+
+        assertEquals(Arrays.asList(new CacheInvalidation(CacheInvalidation.Scope.SESSION_CHANGED, "E1"),
+                                   new CacheInvalidation(CacheInvalidation.Scope.SESSION_CHANGED, "E2")), published);
+        verify(manifests).invalidate("E1");
+        verify(studyIndexes).sessionChanged("E2");
+    }
+
+    @Test
+    void dropsOnlyWhatTheRemovedProjectHadCached() {
+        when(sessionDescriptors.invalidateProject("P1")).thenReturn(new HashSet<>(Collections.singletonList("E1")));
+        when(studyIndexes.invalidateProject("P1")).thenReturn(new HashSet<>(Arrays.asList("E1", "E3")));
+
+        handler.handleEventImpl(event("xnat:projectData", XftItemEventI.DELETE, "P1"));
+
+        verify(dicomwebCache).invalidateProject("P1");
+        verify(metadata).invalidateProject("P1");
+        for (final String sessionId : Arrays.asList("E1", "E3")) {
+            verify(manifests).invalidate(sessionId);
+            verify(thumbnails).invalidateSession(sessionId);
+        }
+        // E3 may be a session shared into the project, so it stays in its own project's index.
+        verify(studyIndexes).sessionRemoved("E1");
+        verify(studyIndexes, never()).sessionRemoved("E3");
+        verify(sessionDescriptors, never()).invalidateAll();
+        verify(studyIndexes, never()).invalidateAll();
+        verify(dicomwebCache, never()).invalidateAll();
+        verify(manifests, never()).invalidateAll();
+        verify(metadata, never()).invalidateAll();
+        verify(thumbnails, never()).invalidateAll();
+        verify(template, never()).queryForList(anyString(), any(SqlParameterSource.class), eq(String.class));
+    }
+
+    private static XftItemEventI event(final String xsiType, final String action, final String id) {
+        final XftItemEventI event = mock(XftItemEventI.class);
+        when(event.getXsiType()).thenReturn(xsiType);
+        when(event.getAction()).thenReturn(action);
+        when(event.getId()).thenReturn(id);
+        return event;
+    }
+}
@@ -0,0 +1,121 @@
+package org.nrg.xnat.volview.cache;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class StudyIndexCacheTest {
+    private NamedParameterJdbcTemplate template;
+    private StudyIndexCache cache;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        template = mock(NamedParameterJdbcTemplate.class);
+        when(template.query(anyString(), any(SqlParameterSource.class), any(RowMapper.class))).thenReturn(Arrays.asList(
+                entry("E5", "Gamma", "20200105"),
+                entry("E1", "alpha", "20200101"),
+                entry("E3", "Beta", null),
+                entry("E2", "delta", "20200103"),
+                entry("E4", "Alpha", "20200101")));
+        cache = new StudyIndexCache(template, 10, 60);
+    }
+
+    @Test
+    void pagesThroughEveryEntryWithCursors() {
+        assertEquals(Arrays.asList("E1", "E4", "E2", "E5", "E3"), readAll(StudyIndexCache.SortField.date, false, null, 2));
+        assertEquals(Arrays.asList("E3", "E5", "E2", "E4", "E1"), readAll(StudyIndexCache.SortField.date, true, null, 2));
+        assertEquals(Arrays.asList("E1", "E4", "E3", "E2", "E5"), readAll(StudyIndexCache.SortField.label, false, null, 3));
+        assertEquals(Arrays.asList("E5", "E2", "E3", "E4", "E1"), readAll(StudyIndexCache.SortField.label, true, null, 1));
+    }
+
+    @Test
+    void filtersAndStopsAtTheLastMatch() {
+        final StudyIndexCache.Page page = cache.getPage("P1", StudyIndexCache.SortField.label, false, " ALPHA ", null, 2);
+        assertEquals(Arrays.asList("E1", "E4"), ids(page));
+        assertNull(page.getNextCursor());
+        assertEquals(5, page.getTotal());
+    }
+
+    @Test
+    void rejectsCursorsFromAnotherSortOrder() {
+        final String cursor = cache.getPage("P1", StudyIndexCache.SortField.date, false, null, null, 1).getNextCursor();
+        assertThrows(IllegalArgumentException.class, () -> cache.getPage("P1", StudyIndexCache.SortField.label, false, null, cursor, 1));
+        assertThrows(IllegalArgumentException.class, () -> cache.getPage("P1", StudyIndexCache.SortField.label, false, null, "not a cursor!", 1));
+    }
+
+    @Test
+    void updatesEachProjectWithItsOwnLabel() throws Exception {
+        cache.getPage("P1", StudyIndexCache.SortField.label, false, null, null, 10);
+        cache.getPage("P2", StudyIndexCache.SortField.label, false, null, null, 10);
+        cache.getPage("P3", StudyIndexCache.SortField.label, false, null, null, 10);
+        doAnswer(invocation -> {
+            final RowCallbackHandler handler = invocation.getArgument(2);
+            handler.processRow(row("P1", "E6", "Aardvark"));
+            handler.processRow(row("P2", "E6", "Zebra"));
+            return null;
+        }).when(template).query(anyString(), any(SqlParameterSource.class), any(RowCallbackHandler.class));
+
+        cache.sessionChanged("E6");
+        cache.sessionChanged("E6");
+
+        assertEquals(Arrays.asList("E6", "E1", "E4", "E3", "E2", "E5"), readAll("P1", StudyIndexCache.SortField.label, false, 10));
+        assertEquals(Arrays.asList("E1", "E4", "E3", "E2", "E5", "E6"), readAll("P2", StudyIndexCache.SortField.label, false, 10));
+        assertEquals("Zebra", cache.getPage("P2", StudyIndexCache.SortField.label, true, null, null, 1).getEntries().get(0).getLabel());
+        assertEquals(5, cache.getPage("P3", StudyIndexCache.SortField.label, false, null, null, 10).getTotal());
+
+        cache.sessionRemoved("E1");
+        assertEquals(Arrays.asList("E6", "E4", "E3", "E2", "E5"), readAll("P1", StudyIndexCache.SortField.label, false, 10));
+        assertEquals(Arrays.asList("E3", "E5", "E2", "E6", "E4"), readAll("P1", StudyIndexCache.SortField.date, true, 10));
+    }
+
+    private List<String> readAll(final StudyIndexCache.SortField sort, final boolean descending, final String filter, final int limit) {
+        final List<String> ids = new ArrayList<>();
+        String cursor = null;
+        do {
+            final StudyIndexCache.Page page = cache.getPage("P1", sort, descending, filter, cursor, limit);
+            ids.addAll(ids(page));
+            cursor = page.getNextCursor();
+        } while (cursor != null);
+        return ids;
+    }
+
+    private List<String> readAll(final String projectId, final StudyIndexCache.SortField sort, final boolean descending, final int limit) {
+        return ids(cache.getPage(projectId, sort, descending, null, null, limit));
+    }
+
+    private static List<String> ids(final StudyIndexCache.Page page) {
+        return page.getEntries().stream().map(StudyIndexEntry::getSessionId).collect(Collectors.toList());
+    }
+
+    private static StudyIndexEntry entry(final String sessionId, final String label, final String studyDate) {
+        return new StudyIndexEntry(sessionId, label, "1.2." + sessionId, studyDate, "MR", "Patient " + sessionId);
+    }
+
+    private static ResultSet row(final String project, final String sessionId, final String label) throws Exception {
+        final ResultSet resultSet = mock(ResultSet.class);
+        when(resultSet.getString("project")).thenReturn(project);
+        when(resultSet.getString("id")).thenReturn(sessionId);
+        when(resultSet.getString("label")).thenReturn(label);
+        when(resultSet.getString("study_date")).thenReturn("20200102");
+        return resultSet;
+    }
+}
@@ -0,0 +1,88 @@
+package org.nrg.xnat.volview.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LatencyHistogramTest {
+    @Test
+    void bucketsBoundEveryValueWithinTheRelativeError() {
+        for (long value = 0; value < 1L << 41; value = value < 4096 ? value + 1 : value + value / 7 + 1) {
+            final int index = LatencyHistogram.bucketIndex(value);
+            final long upper = LatencyHistogram.upperBound(index);
+            assertTrue(upper >= value, "upper bound " + upper + " below " + value);
+            assertTrue(upper - value <= value / 16, "upper bound " + upper + " too far above " + value);
+            if (index > 0) {
+                assertTrue(LatencyHistogram.upperBound(index - 1) < value, "value " + value + " belongs in an earlier bucket");
+            }
+        }
+    }
+
+    @Test
+    void reportsPercentilesWithinTheBucketResolution() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (long micros = 1; micros <= 10000; micros++) {
+            histogram.record(micros);
+        }
+        assertEquals(10000, histogram.getCount());
+        assertEquals(50005000, histogram.getTotalMicros());
+        assertWithin(5000, histogram.getPercentile(50));
+        assertWithin(9900, histogram.getPercentile(99));
+        assertWithin(10000, histogram.getPercentile(100));
+        assertWithin(10000, histogram.getMax());
+        assertEquals(1, histogram.getPercentile(0));
+    }
+
+    @Test
+    void handlesEmptyNegativeAndHugeValues() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(99));
+        assertEquals(0, histogram.getMax());
+
+        histogram.record(-5);
+        histogram.recordNanos(TimeUnit.DAYS.toNanos(365));
+        assertEquals(2, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(50));
+        assertTrue(histogram.getMax() >= 1L << 40);
+    }
+
+    @Test
+    void countsValuesAtOrBelowBucketBounds() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(5);
+        histogram.record(1000);
+        histogram.record(1000000);
+
+        assertEquals(0, histogram.getCountAtOrBelow(4));
+        assertEquals(1, histogram.getCountAtOrBelow(5));
+        assertEquals(1, histogram.getCountAtOrBelow(999));
+        assertEquals(2, histogram.getCountAtOrBelow(LatencyHistogram.upperBound(LatencyHistogram.bucketIndex(1000))));
+        assertEquals(3, histogram.getCountAtOrBelow(Long.MAX_VALUE));
+    }
+
+    @Test
+    void recordsConcurrentlyWithoutLosingCounts() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        for (int thread = 0; thread < 4; thread++) {
+            executor.execute(() -> {
+                for (int index = 0; index < 25000; index++) {
+                    histogram.record(index % 500);
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+        assertEquals(100000, histogram.getCount());
+        assertEquals(100000, histogram.getCountAtOrBelow(Long.MAX_VALUE));
+    }
+
+    private static void assertWithin(final long expected, final long actual) {
+        assertTrue(actual >= expected && actual <= expected + expected / 16, "expected about " + expected + " but was " + actual);
+    }
+}
@@ -0,0 +1,30 @@
+package org.nrg.xnat.volview.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class PrometheusMetricsTest {
+    @Test
+    void groupsSamplesByMetricAndSkipsMissingValues() {
+        final StringBuilder output = new StringBuilder();
+        new PrometheusMetrics()
+                .counter("volview_cache_hits_total", "Hits.", 3L, "cache", "manifests")
+                .gauge("volview_queue_depth", "Queue depth.", 2)
+                .counter("volview_cache_hits_total", "Hits.", 5L, "cache", "dicom\"web")
+                .gauge("volview_enabled", "Enabled.", true)
+                .gauge("volview_missing", "Missing.", null)
+                .writeTo(output);
+
+        assertEquals("# HELP volview_cache_hits_total Hits.\n"
+                     + "# TYPE volview_cache_hits_total counter\n"
+                     + "volview_cache_hits_total{cache=\"manifests\"} 3.0\n"
+                     + "volview_cache_hits_total{cache=\"dicom\\\"web\"} 5.0\n"
+                     + "# HELP volview_queue_depth Queue depth.\n"
+                     + "# TYPE volview_queue_depth gauge\n"
+                     + "volview_queue_depth 2.0\n"
+                     + "# HELP volview_enabled Enabled.\n"
+                     + "# TYPE volview_enabled gauge\n"
+                     + "volview_enabled 1.0\n", output.toString());
+    }
+}
@@ -0,0 +1,111 @@
+package org.nrg.xnat.volview.rest;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.nrg.xnat.volview.services.VolViewAssetStore;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockServletContext;
+import org.springframework.web.servlet.HandlerMapping;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class VolViewAssetControllerTest {
+    @TempDir
+    Path bundle;
+
+    private VolViewAssetController controller;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        final Path file = Files.write(bundle.resolve("index.html"), "<html></html>".getBytes(StandardCharsets.UTF_8));
+        Files.write(bundle.resolve("index.html.gz"), new byte[]{1, 2, 3});
+        Files.write(bundle.resolve("index.html.br"), new byte[]{4, 5});
+        final VolViewAssetStore assetStore = mock(VolViewAssetStore.class);
+        when(assetStore.resolve("index.html")).thenReturn(file);
+        controller = new VolViewAssetController(assetStore, new MockServletContext());
+    }
+
+    @Test
+    void parsesSingleRanges() {
+        assertArrayEquals(new long[]{0, 99}, VolViewAssetController.parseRange("bytes=0-99", 1000));
+        assertArrayEquals(new long[]{500, 999}, VolViewAssetController.parseRange("bytes=500-", 1000));
+        assertArrayEquals(new long[]{900, 999}, VolViewAssetController.parseRange("bytes=-100", 1000));
+        assertArrayEquals(new long[]{0, 999}, VolViewAssetController.parseRange("bytes=-5000", 1000));
+        assertArrayEquals(new long[]{10, 999}, VolViewAssetController.parseRange("bytes=10-5000", 1000));
+    }
+
+    @Test
+    void ignoresUnsupportedRanges() {
+        assertNull(VolViewAssetController.parseRange("items=0-1", 1000));
+        assertNull(VolViewAssetController.parseRange("bytes=0-1,5-6", 1000));
+        assertNull(VolViewAssetController.parseRange("bytes=abc", 1000));
+        assertNull(VolViewAssetController.parseRange("bytes=x-1", 1000));
+        assertNull(VolViewAssetController.parseRange("bytes=-0", 1000));
+    }
+
+    @Test
+    void givesEachEncodingItsOwnEtag() throws Exception {
+        final MockHttpServletResponse identity = serve(null, null);
+        final MockHttpServletResponse gzip = serve("gzip", null);
+        final MockHttpServletResponse brotli = serve("br, gzip", null);
+
+        assertNull(identity.getHeader(HttpHeaders.CONTENT_ENCODING));
+        assertEquals("gzip", gzip.getHeader(HttpHeaders.CONTENT_ENCODING));
+        assertEquals("br", brotli.getHeader(HttpHeaders.CONTENT_ENCODING));
+        assertNotEquals(identity.getHeader(HttpHeaders.ETAG), gzip.getHeader(HttpHeaders.ETAG));
+        assertNotEquals(gzip.getHeader(HttpHeaders.ETAG), brotli.getHeader(HttpHeaders.ETAG));
+
+        assertEquals(304, serve("gzip", gzip.getHeader(HttpHeaders.ETAG)).getStatus());
+        assertEquals(200, serve(null, gzip.getHeader(HttpHeaders.ETAG)).getStatus());
+    }
+
+    @Test
+    void skipsEncodingsTheClientRefuses() throws Exception {
+        assertEquals("gzip", serve("br;q=0, gzip", null).getHeader(HttpHeaders.CONTENT_ENCODING));
+        assertNull(serve("br;q=0, gzip;q=0.0", null).getHeader(HttpHeaders.CONTENT_ENCODING));
+    }
+
+    @Test
+    void servesRangesFromTheIdentityEncoding() throws Exception {
+        final MockHttpServletRequest request = request("gzip");
+        request.addHeader(HttpHeaders.RANGE, "bytes=1-4");
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+        controller.serveAsset(request, response);
+
+        assertEquals(206, response.getStatus());
+        assertNull(response.getHeader(HttpHeaders.CONTENT_ENCODING));
+        assertEquals("bytes 1-4/13", response.getHeader(HttpHeaders.CONTENT_RANGE));
+        assertEquals("html", response.getContentAsString());
+    }
+
+    private MockHttpServletResponse serve(final String acceptEncoding, final String ifNoneMatch) throws Exception {
+        final MockHttpServletRequest request = request(acceptEncoding);
+        if (ifNoneMatch != null) {
+            request.addHeader(HttpHeaders.IF_NONE_MATCH, ifNoneMatch);
+        }
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+        controller.serveAsset(request, response);
+        return response;
+    }
+
+    private static MockHttpServletRequest request(final String acceptEncoding) {
+        final MockHttpServletRequest request = new MockHttpServletRequest("GET", "/xapi/volview/app/index.html");
+        request.setAttribute(HandlerMapping.PATH_WITHIN_HANDLER_MAPPING_ATTRIBUTE, "index.html");
+        if (acceptEncoding != null) {
+            request.addHeader(HttpHeaders.ACCEPT_ENCODING, acceptEncoding);
+        }
+        return request;
+    }
+}
@@ -0,0 +1,92 @@
+package org.nrg.xnat.volview.rest;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.nrg.xnat.volview.cache.DicomwebDiskCache;
+import org.springframework.http.HttpHeaders;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+
+class VolViewDicomwebControllerTest {
+    private static final String BODY = "0123456789";
+
+    @TempDir
+    Path cacheDirectory;
+
+    private DicomwebDiskCache.Entry entry;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        final DicomwebDiskCache cache = new DicomwebDiskCache(mock(NamedParameterJdbcTemplate.class), cacheDirectory.toString(), 1, 1);
+        cache.initialize();
+        final Path downloaded = Files.write(cache.createTempFile(), BODY.getBytes(StandardCharsets.US_ASCII));
+        entry = cache.put("P1/studies/1.2.3/series/4.5/instances/6#application/dicom", downloaded, "application/dicom", "abc");
+    }
+
+    @Test
+    void sendsTheWholeEntryWithoutARange() throws Exception {
+        final MockHttpServletResponse response = send(null, null);
+        assertEquals(200, response.getStatus());
+        assertEquals(BODY, response.getContentAsString());
+        assertEquals("bytes", response.getHeader(HttpHeaders.ACCEPT_RANGES));
+        assertEquals("\"abc-a\"", response.getHeader(HttpHeaders.ETAG));
+    }
+
+    @Test
+    void sendsTheRequestedRange() throws Exception {
+        final MockHttpServletResponse response = send("bytes=2-5", null);
+        assertEquals(206, response.getStatus());
+        assertEquals("2345", response.getContentAsString());
+        assertEquals("bytes 2-5/10", response.getHeader(HttpHeaders.CONTENT_RANGE));
+
+        final MockHttpServletResponse suffix = send("bytes=-3", null);
+        assertEquals(206, suffix.getStatus());
+        assertEquals("789", suffix.getContentAsString());
+    }
+
+    @Test
+    void rejectsRangesPastTheEnd() throws Exception {
+        final MockHttpServletResponse response = send("bytes=10-", null);
+        assertEquals(416, response.getStatus());
+        assertEquals("bytes */10", response.getHeader(HttpHeaders.CONTENT_RANGE));
+    }
+
+    @Test
+    void sendsTheWholeEntryForMultipleRanges() throws Exception {
+        final MockHttpServletResponse response = send("bytes=0-1,4-5", null);
+        assertEquals(200, response.getStatus());
+        assertEquals(BODY, response.getContentAsString());
+    }
+
+    @Test
+    void answersMatchingEtagsWithNotModified() throws Exception {
+        assertEquals(304, send("bytes=2-5", entry.getEtag()).getStatus());
+        assertEquals(200, send(null, "\"other\"").getStatus());
+    }
+
+    private MockHttpServletResponse send(final String range, final String ifNoneMatch) throws Exception {
+        final MockHttpServletRequest request = new MockHttpServletRequest("GET", "/xapi/volview/dicomweb/projects/P1/studies/1.2.3/series/4.5/instances/6");
+        if (range != null) {
+            request.addHeader(HttpHeaders.RANGE, range);
+        }
+        if (ifNoneMatch != null) {
+            request.addHeader(HttpHeaders.IF_NONE_MATCH, ifNoneMatch);
+        }
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+        try (final FileChannel channel = FileChannel.open(entry.getFile(), StandardOpenOption.READ)) {
+            VolViewDicomwebController.sendCached(entry, channel, request, response);
+        }
+        return response;
+    }
+}
@@ -0,0 +1,60 @@
+package org.nrg.xnat.volview.rest;
+
+import org.junit.jupiter.api.Test;
+import org.nrg.xnat.volview.config.VolViewSettings;
+import org.nrg.xnat.volview.metrics.VolViewMetrics;
+import org.nrg.xnat.volview.services.VolViewLaunchService;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+class VolViewPageControllerTest {
+    private final VolViewPageController controller = new VolViewPageController(
+            new VolViewSettings(null, "/xapi/dicomweb/projects", "/xapi/volview/app/index.html",
+                    "/plugin-resources/xnat-volview/index.html", "XNAT DICOMweb", false, 8, 100, 15, 60, false,
+                    false, 64, 400, 200, 10, 32, ""),
+            mock(VolViewLaunchService.class), new VolViewMetrics());
+
+    @Test
+    void parsesAcceptEncoding() {
+        assertTrue(VolViewPageController.accepts("gzip, deflate, br", "br"));
+        assertTrue(VolViewPageController.accepts("GZIP;q=0.5", "gzip"));
+        assertFalse(VolViewPageController.accepts("br;q=0, gzip", "br"));
+        assertFalse(VolViewPageController.accepts("gzip; q=0.000", "gzip"));
+        assertFalse(VolViewPageController.accepts("brotli", "br"));
+        assertFalse(VolViewPageController.accepts(null, "gzip"));
+    }
+
+    @Test
+    void givesEachEncodingItsOwnEtag() throws Exception {
+        final ResponseEntity<byte[]> identity = serve(null, null);
+        final ResponseEntity<byte[]> gzip = serve("gzip", null);
+
+        assertNull(identity.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+        assertEquals("gzip", gzip.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+        assertNotEquals(identity.getHeaders().getETag(), gzip.getHeaders().getETag());
+
+        assertEquals(304, serve("gzip", gzip.getHeaders().getETag()).getStatusCodeValue());
+        assertEquals(304, serve(null, identity.getHeaders().getETag()).getStatusCodeValue());
+        assertEquals(200, serve(null, gzip.getHeaders().getETag()).getStatusCodeValue());
+        assertEquals(200, serve("gzip", identity.getHeaders().getETag()).getStatusCodeValue());
+    }
+
+    private ResponseEntity<byte[]> serve(final String acceptEncoding, final String ifNoneMatch) throws Exception {
+        final MockHttpServletRequest request = new MockHttpServletRequest("GET", "/xapi/volview/app/projects/P1");
+        if (acceptEncoding != null) {
+            request.addHeader(HttpHeaders.ACCEPT_ENCODING, acceptEncoding);
+        }
+        if (ifNoneMatch != null) {
+            request.addHeader(HttpHeaders.IF_NONE_MATCH, ifNoneMatch);
+        }
+        return controller.serveShell("P1", request);
+    }
+}
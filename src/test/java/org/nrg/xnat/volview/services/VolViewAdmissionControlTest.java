@@ -0,0 +1,201 @@
+package org.nrg.xnat.volview.services;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.nrg.xnat.volview.config.VolViewSettings;
+import org.nrg.xnat.volview.metrics.VolViewMetrics;
+import org.springframework.http.HttpStatus;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class VolViewAdmissionControlTest {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final long INTERVAL = SECOND / 5;
+    private static final long CAPACITY = 2 * SECOND;
+
+    private VolViewAdmissionControl admissionControl;
+
+    @AfterEach
+    void tearDown() {
+        if (admissionControl != null) {
+            admissionControl.shutdown();
+        }
+    }
+
+    @Test
+    void tokenBucketAllowsABurstOfItsCapacity() {
+        final long now = 1000 * SECOND;
+        final VolViewAdmissionControl.TokenBucket bucket = new VolViewAdmissionControl.TokenBucket(now);
+        for (int token = 0; token < 10; token++) {
+            assertTrue(bucket.tryTake(now, INTERVAL, CAPACITY));
+        }
+        assertFalse(bucket.tryTake(now, INTERVAL, CAPACITY));
+    }
+
+    @Test
+    void tokenBucketRefillsOneTokenPerInterval() {
+        final long now = 1000 * SECOND;
+        final VolViewAdmissionControl.TokenBucket bucket = new VolViewAdmissionControl.TokenBucket(now);
+        while (bucket.tryTake(now, INTERVAL, CAPACITY)) {
+            // Drain the burst.
+        }
+        assertFalse(bucket.tryTake(now + INTERVAL - 1, INTERVAL, CAPACITY));
+        assertTrue(bucket.tryTake(now + INTERVAL, INTERVAL, CAPACITY));
+        assertFalse(bucket.tryTake(now + INTERVAL, INTERVAL, CAPACITY));
+    }
+
+    @Test
+    void tokenBucketDoesNotSaveUpPastItsCapacity() {
+        final long now = 1000 * SECOND;
+        final VolViewAdmissionControl.TokenBucket bucket = new VolViewAdmissionControl.TokenBucket(now);
+        final long later = now + 60 * SECOND;
+        int taken = 0;
+        while (bucket.tryTake(later, INTERVAL, CAPACITY)) {
+            taken++;
+        }
+        assertEquals(10, taken);
+    }
+
+    @Test
+    void tokenBucketSurvivesTheNanoTimeWrapping() {
+        final long now = Long.MAX_VALUE - SECOND;
+        final VolViewAdmissionControl.TokenBucket bucket = new VolViewAdmissionControl.TokenBucket(now);
+        for (int token = 0; token < 10; token++) {
+            assertTrue(bucket.tryTake(now, INTERVAL, CAPACITY));
+        }
+        assertFalse(bucket.tryTake(now, INTERVAL, CAPACITY));
+        assertTrue(bucket.tryTake(now + 3 * SECOND, INTERVAL, CAPACITY));
+    }
+
+    @Test
+    void rejectsUsersOverTheirRate() {
+        admissionControl = create(64, 1000, 5, "");
+        for (int request = 0; request < 10; request++) {
+            admissionControl.await("P1", "alice").close();
+        }
+        final VolViewAdmissionControl.Permit rejected = admissionControl.await("P1", "alice");
+        assertEquals(HttpStatus.TOO_MANY_REQUESTS, rejected.getStatus());
+        assertTrue(admissionControl.await("P1", "bob").isAdmitted());
+        assertEquals(1L, getRejected("userRate"));
+    }
+
+    @Test
+    void rejectsProjectsOverTheirRate() {
+        admissionControl = create(64, 5, 1000, "");
+        for (int request = 0; request < 10; request++) {
+            admissionControl.await("P1", "user" + request).close();
+        }
+        assertEquals(HttpStatus.TOO_MANY_REQUESTS, admissionControl.await("P1", "other").getStatus());
+        assertTrue(admissionControl.await("P2", "other").isAdmitted());
+        assertEquals(1L, getRejected("projectRate"));
+    }
+
+    @Test
+    void queuesRequestsOverTheConcurrencyCap() throws Exception {
+        admissionControl = create(1, 1000, 1000, "");
+        final VolViewAdmissionControl.Permit running = admissionControl.await("P1", "alice");
+        final CompletableFuture<VolViewAdmissionControl.Permit> waiting = admissionControl.acquire("P1", "bob");
+        assertFalse(waiting.isDone());
+
+        running.close();
+        assertTrue(waiting.get(1, TimeUnit.SECONDS).isAdmitted());
+        // Closing twice must not free a second slot.
+        running.close();
+        assertFalse(admissionControl.acquire("P1", "carol").isDone());
+    }
+
+    @Test
+    void rejectsRequestsWhenTheQueueIsFull() {
+        admissionControl = create(1, 1000, 1000, "");
+        admissionControl.await("P1", "alice");
+        for (int request = 0; request < 8; request++) {
+            assertFalse(admissionControl.acquire("P1", "user" + request).isDone());
+        }
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, admissionControl.await("P1", "late").getStatus());
+        assertEquals(1L, getRejected("queueFull"));
+    }
+
+    @Test
+    void capsRequestsWaitingOnRequestThreads() throws Exception {
+        admissionControl = create(1, 1000, 1000, 1, "");
+        final VolViewAdmissionControl.Permit running = admissionControl.await("P1", "alice");
+        final CompletableFuture<VolViewAdmissionControl.Permit> waiting = CompletableFuture.supplyAsync(() -> admissionControl.await("P1", "bob"));
+        final long deadline = System.nanoTime() + SECOND;
+        while (!Integer.valueOf(1).equals(admissionControl.getStatistics().get("blocked")) && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, admissionControl.await("P1", "carol").getStatus());
+        // Asynchronous requests don't hold a thread while they wait, so they still queue.
+        final CompletableFuture<VolViewAdmissionControl.Permit> queued = admissionControl.acquire("P1", "dave");
+        assertFalse(queued.isDone());
+
+        running.close();
+        assertTrue(waiting.get(1, TimeUnit.SECONDS).isAdmitted());
+        assertEquals(0, admissionControl.getStatistics().get("blocked"));
+        assertEquals(1L, getRejected("queueFull"));
+    }
+
+    @Test
+    void servesQueuedProjectsByWeight() throws Exception {
+        admissionControl = create(1, 1000, 1000, "A=2");
+        final VolViewAdmissionControl.Permit running = admissionControl.await("A", "alice");
+        final List<String> order = new ArrayList<>();
+        final List<CompletableFuture<VolViewAdmissionControl.Permit>> waiting = new ArrayList<>();
+        for (final String project : new String[]{"A", "A", "A", "B", "B"}) {
+            waiting.add(admissionControl.acquire(project, "user" + waiting.size()).thenApply(permit -> {
+                synchronized (order) {
+                    order.add(project);
+                }
+                return permit;
+            }));
+        }
+
+        running.close();
+        while (!waiting.isEmpty()) {
+            // Each admitted request runs alone, so closing it admits the next.
+            waitForAny(waiting).close();
+        }
+        assertEquals(5, order.size());
+        assertEquals("[A, A, B, A, B]", order.toString());
+    }
+
+    private static VolViewAdmissionControl.Permit waitForAny(final List<CompletableFuture<VolViewAdmissionControl.Permit>> waiting) throws Exception {
+        final long deadline = System.nanoTime() + SECOND;
+        while (System.nanoTime() < deadline) {
+            for (final CompletableFuture<VolViewAdmissionControl.Permit> permit : waiting) {
+                if (permit.isDone()) {
+                    waiting.remove(permit);
+                    return permit.get();
+                }
+            }
+            Thread.sleep(1);
+        }
+        throw new AssertionError("No queued request was admitted");
+    }
+
+    private long getRejected(final String reason) {
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> rejected = (Map<String, Object>) admissionControl.getStatistics().get("rejected");
+        return (Long) rejected.get(reason);
+    }
+
+    private static VolViewAdmissionControl create(final int maxConcurrent, final int projectRate, final int userRate, final String weights) {
+        return create(maxConcurrent, projectRate, userRate, 32, weights);
+    }
+
+    private static VolViewAdmissionControl create(final int maxConcurrent, final int projectRate, final int userRate, final int maxBlocked, final String weights) {
+        final VolViewSettings settings = new VolViewSettings(null, "/xapi/dicomweb/projects", "/volview/app/index.html",
+                "/plugin-resources/xnat-volview/index.html", "XNAT DICOMweb", false, 8, 100, 15, 60, false,
+                true, maxConcurrent, projectRate, userRate, 10, maxBlocked, weights);
+        return new VolViewAdmissionControl(settings, new VolViewMetrics());
+    }
+}
@@ -0,0 +1,182 @@
+package org.nrg.xnat.volview.services;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.nrg.xnat.volview.cache.DicomwebDiskCache;
+import org.nrg.xnat.volview.cache.DicomwebMetadataCache;
+import org.nrg.xnat.volview.config.VolViewSettings;
+import org.springframework.http.HttpHeaders;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+class VolViewDicomwebProxyTest {
+    private static final String INSTANCE = "studies/1.2.3/series/4.5/instances/";
+    private static final int INSTANCE_BYTES = 400 * 1024;
+
+    @TempDir
+    Path cacheDirectory;
+
+    private final Map<String, AtomicInteger> originRequests = new ConcurrentHashMap<>();
+    private volatile CountDownLatch originGate = new CountDownLatch(0);
+    private HttpServer origin;
+    private ExecutorService originWorkers;
+    private DicomwebDiskCache cache;
+    private VolViewDicomwebProxy proxy;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        origin = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        origin.createContext("/dicomweb/", this::handle);
+        originWorkers = Executors.newCachedThreadPool();
+        origin.setExecutor(originWorkers);
+        origin.start();
+
+        cache = new DicomwebDiskCache(mock(NamedParameterJdbcTemplate.class), cacheDirectory.toString(), 1, 1);
+        cache.initialize();
+        proxy = new VolViewDicomwebProxy(mock(VolViewSettings.class), cache, new DicomwebMetadataCache(1, 10),
+                                         "http://127.0.0.1:" + origin.getAddress().getPort() + "/dicomweb", 10, 4);
+    }
+
+    @AfterEach
+    void tearDown() {
+        origin.stop(0);
+        originWorkers.shutdownNow();
+    }
+
+    @Test
+    void concurrentFetchesMakeOneOriginRequest() throws Exception {
+        originGate = new CountDownLatch(1);
+        final ExecutorService clients = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<String>> etags = new ArrayList<>();
+            for (int client = 0; client < 8; client++) {
+                etags.add(clients.submit(() -> {
+                    try (final VolViewDicomwebProxy.Response response = fetch(INSTANCE + "1")) {
+                        assertTrue(response.isCached());
+                        return response.getEntry().getEtag();
+                    }
+                }));
+            }
+            while (requests(INSTANCE + "1") == 0) {
+                Thread.sleep(5);
+            }
+            originGate.countDown();
+            final String etag = etags.get(0).get(10, TimeUnit.SECONDS);
+            for (final Future<String> other : etags) {
+                assertEquals(etag, other.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            clients.shutdownNow();
+        }
+        assertEquals(1, requests(INSTANCE + "1"));
+    }
+
+    @Test
+    void cachesTheOriginBody() throws Exception {
+        try (final VolViewDicomwebProxy.Response response = fetch(INSTANCE + "1")) {
+            assertTrue(response.isCached());
+            assertEquals(INSTANCE_BYTES, response.getEntry().getSize());
+            final ByteBuffer body = ByteBuffer.allocate(INSTANCE_BYTES);
+            while (body.hasRemaining() && response.getChannel().read(body) >= 0) {
+                // Keep reading until the buffer is full.
+            }
+            assertArrayEquals(body(INSTANCE + "1"), body.array());
+        }
+        fetch(INSTANCE + "1").close();
+        assertEquals(1, requests(INSTANCE + "1"));
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedResponsesOverTheSizeLimit() throws Exception {
+        fetch(INSTANCE + "1").close();
+        fetch(INSTANCE + "2").close();
+        fetch(INSTANCE + "1").close();
+        fetch(INSTANCE + "3").close();
+
+        final Map<String, Object> statistics = cache.getStatistics();
+        assertEquals(2, statistics.get("size"));
+        assertEquals(1L, statistics.get("evictions"));
+        assertEquals(2L * INSTANCE_BYTES, statistics.get("bytes"));
+
+        fetch(INSTANCE + "1").close();
+        fetch(INSTANCE + "2").close();
+        assertEquals(1, requests(INSTANCE + "1"));
+        assertEquals(2, requests(INSTANCE + "2"));
+    }
+
+    @Test
+    void passesThroughResponsesThatAreNotOk() throws Exception {
+        try (final VolViewDicomwebProxy.Response response = fetch(INSTANCE + "missing")) {
+            assertFalse(response.isCached());
+            assertEquals(404, response.getConnection().getResponseCode());
+        }
+        assertEquals(0, cache.getStatistics().get("size"));
+    }
+
+    private VolViewDicomwebProxy.Response fetch(final String relativePath) throws IOException {
+        final MockHttpServletRequest request = new MockHttpServletRequest("GET", "/xapi/volview/dicomweb/projects/P1/" + relativePath);
+        request.addHeader(HttpHeaders.ACCEPT, "application/dicom");
+        return proxy.fetch("P1", relativePath, null, request);
+    }
+
+    private int requests(final String relativePath) {
+        final AtomicInteger count = originRequests.get(relativePath);
+        return count == null ? 0 : count.get();
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        final String relativePath = exchange.getRequestURI().getPath().substring("/dicomweb/P1/".length());
+        originRequests.computeIfAbsent(relativePath, path -> new AtomicInteger()).incrementAndGet();
+        try {
+            originGate.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (relativePath.endsWith("missing")) {
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+            return;
+        }
+        final byte[] body = body(relativePath);
+        exchange.getResponseHeaders().set(HttpHeaders.CONTENT_TYPE, "application/dicom");
+        exchange.sendResponseHeaders(200, body.length);
+        try (final OutputStream output = exchange.getResponseBody()) {
+            output.write(body);
+        }
+    }
+
+    private static byte[] body(final String relativePath) {
+        final byte[] body = new byte[INSTANCE_BYTES];
+        Arrays.fill(body, (byte) relativePath.hashCode());
+        body[0] = (byte) relativePath.length();
+        return body;
+    }
+}
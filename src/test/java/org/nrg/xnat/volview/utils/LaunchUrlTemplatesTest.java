@@ -0,0 +1,75 @@
+package org.nrg.xnat.volview.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class LaunchUrlTemplatesTest {
+    private static final String DICOMWEB = "/xapi/volview/dicomweb/projects";
+
+    @Test
+    void encodesLikeEncodeUriComponent() throws Exception {
+        final String[] values = {"", "abc-_.!~*'()", "a b+c&d=e/f?g#h%", "1.2.840.10008.5.1.4", "M\u00FCller", "\u6771\u4EAC", "\uD83D\uDE00 emoji", "{study}"};
+        for (final String value : values) {
+            final String expected = URLEncoder.encode(value, StandardCharsets.UTF_8.name()).replace("+", "%20").replace("%21", "!")
+                    .replace("%27", "'").replace("%28", "(").replace("%29", ")").replace("%7E", "~");
+            assertEquals(expected, encode(value), value);
+        }
+    }
+
+    @Test
+    void replacesUnpairedSurrogates() {
+        assertEquals("a%EF%BF%BDb", encode("a\uD83Db"));
+        assertEquals("%EF%BF%BD", encode("\uDE00"));
+    }
+
+    @Test
+    void rendersStudyAndSeriesLaunchUrls() {
+        final LaunchUrlTemplates.Renderer renderer = LaunchUrlTemplates.compile(1, "/volview/app/index.html", DICOMWEB).bind("https://xnat.example.org/xnat", "/xnat");
+
+        assertEquals("/xnat" + DICOMWEB + "/P%201/studies/1.2.3", renderer.dicomwebStudyUrl("P 1", "1.2.3"));
+        assertEquals("https://xnat.example.org/xnat/volview/app/index.html?dicomweb=%2Fxnat%2Fxapi%2Fvolview%2Fdicomweb%2Fprojects%2FP1%2Fstudies%2F1.2.3",
+                renderer.launchUrl("P1", "E1", "1.2.3", null));
+        assertEquals("https://xnat.example.org/xnat/volview/app/index.html?dicomweb=%2Fxnat%2Fxapi%2Fvolview%2Fdicomweb%2Fprojects%2FP1%2Fstudies%2F1.2.3%2Fseries%2F4.5",
+                renderer.launchUrl("P1", "E1", "1.2.3", "4.5"));
+    }
+
+    @Test
+    void leavesClientTokensEncodedOnce() {
+        final LaunchUrlTemplates.Renderer renderer = LaunchUrlTemplates.compile(1, "/volview/app/index.html", DICOMWEB).bind("https://xnat.example.org", "");
+
+        assertEquals("https://xnat.example.org/volview/app/index.html?dicomweb=%2Fxapi%2Fvolview%2Fdicomweb%2Fprojects%2FP1%2Fstudies%2F%7Bstudy%7D",
+                renderer.studyLaunchUrlTemplate("P1"));
+        assertEquals("https://xnat.example.org/volview/app/index.html?dicomweb=%2Fxapi%2Fvolview%2Fdicomweb%2Fprojects%2FP1%2Fstudies%2F%7Bstudy%7D%2Fseries%2F%7Bseries%7D",
+                renderer.seriesLaunchUrlTemplate("P1"));
+    }
+
+    @Test
+    void honorsPlaceholdersInTheEntryPoint() {
+        final LaunchUrlTemplates templates = LaunchUrlTemplates.compile(7, "https://viewer.example.org/?root={dicomweb}&p={project}&x={unknown}", DICOMWEB);
+        assertEquals(7, templates.getVersion());
+        assertEquals("https://viewer.example.org/?root=%2Fxapi%2Fvolview%2Fdicomweb%2Fprojects%2FP%25261%2Fstudies%2F1.2&p=P%261&x={unknown}",
+                templates.bind("https://xnat.example.org", "").launchUrl("P&1", null, "1.2", null));
+    }
+
+    @Test
+    void rendersBundleLaunchUrls() {
+        final LaunchUrlTemplates.Renderer renderer = LaunchUrlTemplates.compile(1, "volview/app/index.html", DICOMWEB).bind("https://xnat.example.org", "");
+
+        assertEquals("https://xnat.example.org/volview/app/index.html?names=%5Bseries.zip%5D&urls=%5B"
+                     + "https%3A%2F%2Fxnat.example.org%2Fxapi%2Fvolview%2Fbundle%2Fprojects%2FP1%2Fsessions%2FE1%2Fseries%2F4.5%5D",
+                renderer.bundleLaunchUrl("P1", "E1", "1.2.3", "4.5"));
+        assertEquals("https://xnat.example.org/volview/app/index.html?names=%5Bseries.zip%5D&urls=%5B"
+                     + "https%3A%2F%2Fxnat.example.org%2Fxapi%2Fvolview%2Fbundle%2Fprojects%2FP1%2Fsessions%2FE1%2Fseries%2F%7Bseries%7D%5D",
+                renderer.bundleLaunchUrl("P1", "E1", "1.2.3", null));
+    }
+
+    private static String encode(final String value) {
+        final StringBuilder output = new StringBuilder();
+        LaunchUrlTemplates.appendEncoded(output, value);
+        return output.toString();
+    }
+}